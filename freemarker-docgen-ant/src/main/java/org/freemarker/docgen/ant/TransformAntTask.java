@@ -19,11 +19,15 @@
 package org.freemarker.docgen.ant;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 import org.freemarker.docgen.core.Transform;
+import org.freemarker.docgen.core.TransformEngine;
 
 /**
  * Ant task "interface" to {@link Transform}.
@@ -90,10 +94,113 @@ public final class TransformAntTask extends Task {
     public void setOffline(Boolean offline) {
         transform.setOffline(offline);
     }
+
+    public void setRenderingThreads(int value) {
+        transform.setRenderingThreads(value);
+    }
+
+    public void setBuildTaskThreads(int value) {
+        transform.setBuildTaskThreads(value);
+    }
+
+    public void setIncremental(boolean value) {
+        transform.setIncremental(value);
+    }
+
+    public void setSkipUnchangedOutputFiles(boolean value) {
+        transform.setSkipUnchangedOutputFiles(value);
+    }
+
+    public void setHardLinkStaticFiles(boolean value) {
+        transform.setHardLinkStaticFiles(value);
+    }
+
+    public void setPruneStaleOutputFiles(boolean value) {
+        transform.setPruneStaleOutputFiles(value);
+    }
+
+    public void setChangeSetFile(File value) {
+        transform.setChangeSetFile(value);
+    }
+
+    public void setGzipOutputFiles(boolean value) {
+        transform.setGzipOutputFiles(value);
+    }
+
+    /**
+     * @param value Comma separated list of file name extensions.
+     */
+    public void setGzipExtensions(String value) {
+        transform.setGzipExtensions(Arrays.asList(value.split(",")));
+    }
+
+    public void setGzipMinimumSize(int value) {
+        transform.setGzipMinimumSize(value);
+    }
+
+    public void setGzipCompressionLevel(int value) {
+        transform.setGzipCompressionLevel(value);
+    }
+
+    public void setBuildReportFile(File value) {
+        transform.setBuildReportFile(value);
+    }
+
+    public void setDocumentSnapshotFile(File value) {
+        transform.setDocumentSnapshotFile(value);
+    }
+
+    public void setCommandOutputCacheDirectory(File value) {
+        transform.setCommandOutputCacheDirectory(value);
+    }
+
+    public void setCommandOutputCacheMaxSize(long value) {
+        transform.setCommandOutputCacheMaxSize(value);
+    }
+
+    public void setCommandWorkers(int value) {
+        transform.setCommandWorkers(value);
+    }
+
+    /**
+     * @param value Comma separated list of element id-s and output file name globs.
+     */
+    public void setPageSelection(String value) {
+        transform.setPageSelection(Arrays.asList(value.split(",")));
+    }
+
+    public void setIncludeNeighborPages(boolean value) {
+        transform.setIncludeNeighborPages(value);
+    }
+
+    public void setSkipCustomStaticFiles(boolean value) {
+        transform.setSkipCustomStaticFiles(value);
+    }
+
+    public void setSkipTOCJSON(boolean value) {
+        transform.setSkipTOCJSON(value);
+    }
+
+    public void setShardIndex(int value) {
+        transform.setShardIndex(value);
+    }
+
+    public void setShardCount(int value) {
+        transform.setShardCount(value);
+    }
+
+    public void setShardDirectories(String value) {
+        List<File> shardDirectories = new ArrayList<>();
+        for (String path : value.split(",")) {
+            shardDirectories.add(getProject().resolveFile(path.trim()));
+        }
+        transform.setShardDirectories(shardDirectories);
+    }
     
     @Override
     public void execute() {
         try {
+            transform.setEngine(new TransformEngine(transform.getSourceDirectory()));
             transform.execute();
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.io.FileUtils;
+import org.freemarker.docgen.core.Transform;
+import org.freemarker.docgen.core.TransformEngine;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Runs {@link Transform} end-to-end on {@linkplain SyntheticBookGenerator synthetic books} of different sizes, and
+ * prints the wall time, the peak heap usage, and the number of bytes allocated for each.
+ *
+ * <p>Usage: {@code java ... EndToEndBenchmark [option1=value1 ...]}, where the supported options are:
+ * <ul>
+ *   <li>{@code pageCounts}: Comma separated list of book sizes. Defaults to {@code 100,1000,10000}.
+ *   <li>{@code workDir}: Where the books are generated, and their output is written. Defaults to
+ *       {@code target/benchmark-work} (or a temporary directory, if there's no {@code target} directory).
+ *   <li>{@code repetitions}: How many times to transform each book; the first run is not measured, unless there's
+ *       only one. Defaults to {@code 3}.
+ *   <li>{@code renderingThreads}: See {@link Transform#setRenderingThreads(int)}. Defaults to {@code 1}.
+ *   <li>{@code validate}: See {@link Transform#setValidate(boolean)}. Defaults to {@code true}.
+ * </ul>
+ *
+ * <p>The allocated bytes are counted on all threads (including the short-lived threads that {@link Transform} starts
+ * internally), as the growth of the used heap plus the amount freed by the garbage collections in the meantime. So
+ * it's an approximation, which also includes the allocations of the JVM's own threads during the run.
+ */
+public final class EndToEndBenchmark {
+
+    private int[] pageCounts = { 100, 1000, 10000 };
+    private File workDir;
+    private int repetitions = 3;
+    private int renderingThreads = 1;
+    private boolean validate = true;
+
+    private final HeapAllocationCounter heapAllocationCounter = new HeapAllocationCounter();
+
+    // Can only be instantiated by main
+    private EndToEndBenchmark() {
+        // Nop
+    }
+
+    public static void main(String[] args) throws IOException {
+        EndToEndBenchmark benchmark = new EndToEndBenchmark();
+        for (String arg : args) {
+            benchmark.parseOption(arg);
+        }
+        if (benchmark.workDir == null) {
+            File targetDir = new File("target");
+            benchmark.workDir = targetDir.isDirectory()
+                    ? new File(targetDir, "benchmark-work")
+                    : new File(System.getProperty("java.io.tmpdir"), "docgen-benchmark-work");
+        }
+        benchmark.run();
+    }
+
+    private void parseOption(String optStr) {
+        int equalsIdx = optStr.indexOf('=');
+        if (equalsIdx == -1) {
+            throw new IllegalArgumentException("Options must be in name=value format: " + optStr);
+        }
+        String name = optStr.substring(0, equalsIdx).trim();
+        String value = optStr.substring(equalsIdx + 1).trim();
+        if (name.equals("pageCounts")) {
+            String[] items = value.split(",");
+            pageCounts = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                pageCounts[i] = Integer.parseInt(items[i].trim());
+            }
+        } else if (name.equals("workDir")) {
+            workDir = new File(value);
+        } else if (name.equals("repetitions")) {
+            repetitions = Integer.parseInt(value);
+        } else if (name.equals("renderingThreads")) {
+            renderingThreads = Integer.parseInt(value);
+        } else if (name.equals("validate")) {
+            validate = Boolean.parseBoolean(value);
+        } else {
+            throw new IllegalArgumentException("Unsupported option: " + name);
+        }
+    }
+
+    private void run() throws IOException {
+        ExecutorService renderingExecutor = renderingThreads > 1 ? createRenderingExecutor() : null;
+        try {
+            List<Result> results = new ArrayList<>();
+            for (int pageCount : pageCounts) {
+                results.add(runBook(pageCount, renderingExecutor));
+            }
+
+            p("");
+            p(String.format(Locale.ROOT, "%8s %8s %12s %12s %14s %14s",
+                    "Pages", "Files", "Wall [ms]", "Pages/s", "Peak heap [MB]", "Allocated [MB]"));
+            for (Result result : results) {
+                p(String.format(Locale.ROOT, "%8d %8d %12.1f %12.1f %14.1f %14.1f",
+                        result.requestedPages, result.htmlFiles,
+                        result.wallNanos / 1e6,
+                        result.htmlFiles / (result.wallNanos / 1e9),
+                        result.peakHeapBytes / (1024.0 * 1024),
+                        result.allocatedBytes / (1024.0 * 1024)));
+            }
+        } finally {
+            if (renderingExecutor != null) {
+                renderingExecutor.shutdown();
+            }
+        }
+    }
+
+    private Result runBook(int pageCount, ExecutorService renderingExecutor) throws IOException {
+        File bookDir = new File(workDir, "book-" + pageCount);
+        File srcDir = new File(bookDir, "src");
+        File outDir = new File(bookDir, "out");
+        File reportDir = new File(bookDir, "reports");
+
+        p("Generating book with ~" + pageCount + " pages into " + srcDir + "...");
+        FileUtils.deleteDirectory(srcDir);
+        SyntheticBookGenerator.forPageCount(pageCount).generate(srcDir);
+        FileUtils.forceMkdir(reportDir);
+
+        TransformEngine engine = new TransformEngine(srcDir);
+        Result best = null;
+        int runs = Math.max(1, repetitions);
+        for (int runIdx = 0; runIdx < runs; runIdx++) {
+            FileUtils.deleteDirectory(outDir);
+            FileUtils.forceMkdir(outDir);
+
+            Transform tr = engine.newTransform();
+            tr.setDestinationDirectory(outDir);
+            tr.setOffline(true);
+            tr.setValidate(validate);
+            tr.setPrintProgress(false);
+            tr.setBuildReportFile(new File(reportDir, "run-" + (runIdx + 1) + ".json"));
+            if (renderingExecutor != null) {
+                tr.setRenderingExecutor(renderingExecutor);
+            }
+
+            System.gc();
+            resetPeakHeapUsage();
+            long allocatedBefore = heapAllocationCounter.getAllocatedBytes();
+            long startTime = System.nanoTime();
+            try {
+                tr.execute();
+            } catch (Exception e) {
+                throw new RuntimeException("Transform has failed for " + srcDir, e);
+            }
+            long wallNanos = System.nanoTime() - startTime;
+            long allocatedBytes = heapAllocationCounter.getAllocatedBytes() - allocatedBefore;
+            long peakHeapBytes = getPeakHeapUsage();
+
+            Result result = new Result(pageCount, countHtmlFiles(outDir), wallNanos, peakHeapBytes, allocatedBytes);
+            p(String.format(Locale.ROOT, "  Run %d: %.1f ms%s",
+                    runIdx + 1, wallNanos / 1e6, runIdx == 0 && runs > 1 ? " (warm-up)" : ""));
+            if (runIdx != 0 || runs == 1) {
+                if (best == null || result.wallNanos < best.wallNanos) {
+                    best = result;
+                }
+            }
+        }
+        return best;
+    }
+
+    private ExecutorService createRenderingExecutor() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(renderingThreads, r -> {
+            Thread thread = new Thread(r, "docgen-benchmark-renderer-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * The sum of the peaks of the heap memory pools; as the pools don't peak at the same time, this is an upper bound.
+     */
+    private static long getPeakHeapUsage() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                sum += pool.getPeakUsage().getUsed();
+            }
+        }
+        return sum;
+    }
+
+    private static int countHtmlFiles(File outDir) {
+        File[] files = outDir.listFiles((dir, name) -> name.endsWith(".html"));
+        return files != null ? files.length : 0;
+    }
+
+    private static void p(Object o) {
+        System.out.println(o);
+    }
+
+    /**
+     * Counts the bytes allocated on the heap by all threads since this object was created. Unlike
+     * {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes}, this also covers the threads that have already
+     * terminated. The count is the currently used heap, plus the amount that was freed by the garbage collections,
+     * which we learn from the notifications of the {@link GarbageCollectorMXBean}-s.
+     */
+    private static final class HeapAllocationCounter implements NotificationListener {
+        private final Set<String> heapPoolNames = new HashSet<>();
+        private final long initialCollectionCount;
+        private long collectionNotificationCount;
+        private long freedBytes;
+
+        private HeapAllocationCounter() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPoolNames.add(pool.getName());
+                }
+            }
+            long collectionCount = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+                collectionCount += Math.max(gc.getCollectionCount(), 0);
+            }
+            initialCollectionCount = collectionCount;
+        }
+
+        @Override
+        public synchronized void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GcInfo gcInfo = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                    .getGcInfo();
+            for (Map.Entry<String, MemoryUsage> before : gcInfo.getMemoryUsageBeforeGc().entrySet()) {
+                if (heapPoolNames.contains(before.getKey())) {
+                    freedBytes += before.getValue().getUsed()
+                            - gcInfo.getMemoryUsageAfterGc().get(before.getKey()).getUsed();
+                }
+            }
+            collectionNotificationCount++;
+            notifyAll();
+        }
+
+        private synchronized long getAllocatedBytes() {
+            // The notifications are delivered asynchronously, so we wait for those of the already finished collections:
+            long collectionCount = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collectionCount += Math.max(gc.getCollectionCount(), 0);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (collectionNotificationCount < collectionCount - initialCollectionCount) {
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    throw new IllegalStateException("Timed out waiting for the garbage collection notifications");
+                }
+                try {
+                    wait(timeLeft);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + freedBytes;
+        }
+    }
+
+    private static final class Result {
+        private final int requestedPages;
+        private final int htmlFiles;
+        private final long wallNanos;
+        private final long peakHeapBytes;
+        private final long allocatedBytes;
+
+        private Result(int requestedPages, int htmlFiles, long wallNanos, long peakHeapBytes, long allocatedBytes) {
+            this.requestedPages = requestedPages;
+            this.htmlFiles = htmlFiles;
+            this.wallNanos = wallNanos;
+            this.peakHeapBytes = peakHeapBytes;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic DocBook 5 book (with {@code docgen.cjson}) into a source directory, so that Docgen can be
+ * measured on books of any size. The content is random, but the same settings always generate the same book.
+ *
+ * <p>With the default {@code lowestFileElementRank}, each chapter and each top-level section becomes a page, so the
+ * number of pages is about {@code chapters * (1 + sectionsPerChapter)}. The deeper sections only make the pages
+ * longer. Use {@link #forPageCount(int)} to get a book
+ * with a given number of pages.
+ */
+public final class SyntheticBookGenerator {
+
+    static final String INDEX_ID = "alphaidx";
+
+    private static final String[] WORDS = {
+            "template", "directive", "variable", "hash", "sequence", "macro", "function", "namespace", "output",
+            "format", "escaping", "number", "string", "boolean", "date", "node", "interpolation", "expression",
+            "configuration", "setting", "loader", "cache", "wrapper", "object", "model", "method", "the", "a",
+            "of", "is", "and", "to", "in", "can", "when", "with", "that", "be", "for", "not", "by", "this" };
+
+    private int chapters = 10;
+    private int sectionsPerChapter = 9;
+    private int subsectionsPerSection = 3;
+    private int sectionDepth = 2;
+    private int paragraphsPerSection = 4;
+    private int sentencesPerParagraph = 5;
+    private int tablesPerSection = 1;
+    private int programlistingsPerSection = 1;
+    private int xrefsPerSection = 2;
+    private int indextermsPerSection = 2;
+    private int xIncludeDepth = 1;
+    private long seed = 1;
+
+    private Random random;
+    private List<String> sectionIds;
+
+    /**
+     * Returns a generator that generates a book with approximately the given number of pages, with default settings
+     * otherwise.
+     */
+    public static SyntheticBookGenerator forPageCount(int pages) {
+        if (pages < 2) {
+            throw new IllegalArgumentException("pages must be at least 2");
+        }
+        SyntheticBookGenerator generator = new SyntheticBookGenerator();
+        int chapters = (int) Math.max(1, Math.round(Math.sqrt(pages)));
+        generator.setChapters(chapters);
+        generator.setSectionsPerChapter((int) Math.max(0, Math.round((double) pages / chapters) - 1));
+        return generator;
+    }
+
+    /**
+     * Generates the book into the given directory, which will be created if it doesn't exist. Files of an earlier
+     * book in the same directory are overwritten, but not deleted.
+     */
+    public void generate(File srcDir) throws IOException {
+        random = new Random(seed);
+        sectionIds = new ArrayList<>();
+        collectSectionIds();
+
+        Files.createDirectories(srcDir.toPath());
+        writeSettingsFile(new File(srcDir, "docgen.cjson"));
+
+        try (Writer w = newWriter(new File(srcDir, "book.xml"))) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            w.write("<book conformance=\"docgen\" version=\"5.0\" xmlns=\"http://docbook.org/ns/docbook\"\n"
+                    + "      xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n"
+                    + "      xmlns:xi=\"http://www.w3.org/2001/XInclude\">\n");
+            w.write("  <title>Synthetic Book</title>\n\n");
+            for (int chapterIdx = 1; chapterIdx <= chapters; chapterIdx++) {
+                String id = "ch" + chapterIdx;
+                if (xIncludeDepth >= 1) {
+                    String fileName = id + ".xml";
+                    w.write("  <xi:include href=\"" + fileName + "\"/>\n");
+                    try (Writer cw = newWriter(new File(srcDir, fileName))) {
+                        cw.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                        writeChapter(cw, srcDir, id, chapterIdx, true);
+                    }
+                } else {
+                    writeChapter(w, srcDir, id, chapterIdx, false);
+                }
+            }
+            if (indextermsPerSection > 0) {
+                w.write("\n  <index xml:id=\"" + INDEX_ID + "\"/>\n");
+            }
+            w.write("</book>\n");
+        }
+    }
+
+    private void collectSectionIds() {
+        for (int chapterIdx = 1; chapterIdx <= chapters; chapterIdx++) {
+            collectSectionIds("s" + chapterIdx, 1);
+        }
+    }
+
+    private void collectSectionIds(String parentId, int level) {
+        if (level > sectionDepth) {
+            return;
+        }
+        for (int i = 1; i <= getSectionsAtLevel(level); i++) {
+            String id = parentId + "_" + i;
+            sectionIds.add(id);
+            collectSectionIds(id, level + 1);
+        }
+    }
+
+    private int getSectionsAtLevel(int level) {
+        return level == 1 ? sectionsPerChapter : subsectionsPerSection;
+    }
+
+    private void writeSettingsFile(File file) throws IOException {
+        try (Writer w = newWriter(file)) {
+            w.write("deployUrl: \"http://example.com/\"\n");
+            w.write("offline: true\n");
+            // The XInclude-d files shouldn't be copied into the output:
+            w.write("ignoredFiles: [ \"*.xml\" ]\n");
+            w.write("logo: {\n  href: \"http://example.com\"\n  src: logo.png\n  alt: \"Logo\"\n}\n");
+            w.write("copyrightHolder: \"The Apache Software Foundation\"\n");
+            w.write("copyrightHolderSite: \"https://apache.org/\"\n");
+            w.write("copyrightStartYear: 1999\n");
+            if (indextermsPerSection > 0) {
+                w.write("internalBookmarks: {\n  \"Index\": " + INDEX_ID + "\n}\n");
+            }
+        }
+    }
+
+    private void writeChapter(Writer w, File srcDir, String id, int chapterIdx, boolean rootElement)
+            throws IOException {
+        String indent = rootElement ? "" : "  ";
+        w.write(indent + "<chapter xml:id=\"" + id + "\"");
+        if (rootElement) {
+            w.write(" version=\"5.0\" xmlns=\"http://docbook.org/ns/docbook\"\n"
+                    + "         xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n"
+                    + "         xmlns:xi=\"http://www.w3.org/2001/XInclude\"");
+        }
+        w.write(">\n");
+        w.write(indent + "  <title>Chapter " + chapterIdx + ": " + randomTitle() + "</title>\n\n");
+        writeSectionContent(w, indent + "  ");
+        writeSections(w, srcDir, "s" + chapterIdx, 1, indent + "  ");
+        w.write(indent + "</chapter>\n\n");
+    }
+
+    private void writeSections(Writer w, File srcDir, String parentId, int level, String indent)
+            throws IOException {
+        if (level > sectionDepth) {
+            return;
+        }
+        for (int i = 1; i <= getSectionsAtLevel(level); i++) {
+            String id = parentId + "_" + i;
+            if (xIncludeDepth > level) {
+                String fileName = id + ".xml";
+                w.write(indent + "<xi:include href=\"" + fileName + "\"/>\n\n");
+                try (Writer sw = newWriter(new File(srcDir, fileName))) {
+                    sw.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                    writeSection(sw, srcDir, id, level, "", true);
+                }
+            } else {
+                writeSection(w, srcDir, id, level, indent, false);
+            }
+        }
+    }
+
+    private void writeSection(Writer w, File srcDir, String id, int level, String indent, boolean rootElement)
+            throws IOException {
+        w.write(indent + "<section xml:id=\"" + id + "\"");
+        if (rootElement) {
+            w.write(" version=\"5.0\" xmlns=\"http://docbook.org/ns/docbook\"\n"
+                    + "         xmlns:xlink=\"http://www.w3.org/1999/xlink\"\n"
+                    + "         xmlns:xi=\"http://www.w3.org/2001/XInclude\"");
+        }
+        w.write(">\n");
+        w.write(indent + "  <title>" + randomTitle() + "</title>\n\n");
+        writeSectionContent(w, indent + "  ");
+        writeSections(w, srcDir, id, level + 1, indent + "  ");
+        w.write(indent + "</section>\n\n");
+    }
+
+    private void writeSectionContent(Writer w, String indent) throws IOException {
+        // Distribute the xref-s and indexterm-s among the paragraphs:
+        int paragraphs = Math.max(1, paragraphsPerSection);
+        for (int paraIdx = 0; paraIdx < paragraphs; paraIdx++) {
+            int xrefs = xrefsPerSection / paragraphs + (paraIdx < xrefsPerSection % paragraphs ? 1 : 0);
+            int indexterms = indextermsPerSection / paragraphs
+                    + (paraIdx < indextermsPerSection % paragraphs ? 1 : 0);
+            writeParagraph(w, indent, xrefs, indexterms);
+
+            if (paraIdx == 0) {
+                for (int i = 0; i < tablesPerSection; i++) {
+                    writeTable(w, indent);
+                }
+                for (int i = 0; i < programlistingsPerSection; i++) {
+                    writeProgramlisting(w, indent);
+                }
+            }
+        }
+    }
+
+    private void writeParagraph(Writer w, String indent, int xrefs, int indexterms) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(indent).append("<para>");
+        int sentences = Math.max(1, sentencesPerParagraph);
+        for (int sentenceIdx = 0; sentenceIdx < sentences; sentenceIdx++) {
+            if (sentenceIdx != 0) {
+                sb.append(' ');
+            }
+            sb.append(randomSentence());
+            if (sentenceIdx < indexterms) {
+                sb.append("<indexterm><primary>").append(randomWord()).append("</primary>");
+                if (random.nextBoolean()) {
+                    sb.append("<secondary>").append(randomWord()).append("</secondary>");
+                }
+                sb.append("</indexterm>");
+            }
+            if (sentenceIdx < xrefs && !sectionIds.isEmpty()) {
+                sb.append(" See <xref linkend=\"")
+                        .append(sectionIds.get(random.nextInt(sectionIds.size())))
+                        .append("\"/>.");
+            }
+        }
+        // If there are more xref-s or indexterm-s than sentences:
+        for (int i = sentences; i < indexterms; i++) {
+            sb.append("<indexterm><primary>").append(randomWord()).append("</primary></indexterm>");
+        }
+        for (int i = sentences; i < xrefs && !sectionIds.isEmpty(); i++) {
+            sb.append(" See <xref linkend=\"")
+                    .append(sectionIds.get(random.nextInt(sectionIds.size())))
+                    .append("\"/>.");
+        }
+        sb.append("</para>\n\n");
+        w.write(sb.toString());
+    }
+
+    private void writeTable(Writer w, String indent) throws IOException {
+        final int columns = 3;
+        final int rows = 5;
+        w.write(indent + "<informaltable border=\"1\">\n");
+        w.write(indent + "  <thead>\n" + indent + "    <tr>\n");
+        for (int col = 0; col < columns; col++) {
+            w.write(indent + "      <th>" + capitalize(randomWord()) + "</th>\n");
+        }
+        w.write(indent + "    </tr>\n" + indent + "  </thead>\n\n");
+        w.write(indent + "  <tbody>\n");
+        for (int row = 0; row < rows; row++) {
+            w.write(indent + "    <tr>\n");
+            for (int col = 0; col < columns; col++) {
+                w.write(indent + "      <td>" + randomWord() + " " + randomWord() + "</td>\n");
+            }
+            w.write(indent + "    </tr>\n");
+        }
+        w.write(indent + "  </tbody>\n" + indent + "</informaltable>\n\n");
+    }
+
+    private void writeProgramlisting(Writer w, String indent) throws IOException {
+        final int lines = 10;
+        StringBuilder sb = new StringBuilder();
+        sb.append(indent).append("<programlisting language=\"java\">");
+        for (int line = 0; line < lines; line++) {
+            if (line != 0) {
+                sb.append('\n');
+            }
+            sb.append(line == 0 || line == lines - 1 ? "" : "    ")
+                    .append(randomWord()).append('(').append(randomWord()).append(", ")
+                    .append(random.nextInt(1000)).append(");");
+        }
+        sb.append("</programlisting>\n\n");
+        w.write(sb.toString());
+    }
+
+    private String randomTitle() {
+        int words = 2 + random.nextInt(4);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i != 0) {
+                sb.append(' ');
+            }
+            String word = randomWord();
+            sb.append(i == 0 ? capitalize(word) : word);
+        }
+        return sb.toString();
+    }
+
+    private String randomSentence() {
+        int words = 8 + random.nextInt(8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i != 0) {
+                sb.append(' ');
+            }
+            String word = randomWord();
+            sb.append(i == 0 ? capitalize(word) : word);
+        }
+        sb.append('.');
+        return sb.toString();
+    }
+
+    private String randomWord() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    // -------------------------------------------------------------------------
+
+    public int getChapters() {
+        return chapters;
+    }
+
+    public void setChapters(int chapters) {
+        this.chapters = chapters;
+    }
+
+    public int getSectionsPerChapter() {
+        return sectionsPerChapter;
+    }
+
+    /**
+     * The number of top-level sections in each chapter; each of these will be a separate page.
+     */
+    public void setSectionsPerChapter(int sectionsPerChapter) {
+        this.sectionsPerChapter = sectionsPerChapter;
+    }
+
+    public int getSubsectionsPerSection() {
+        return subsectionsPerSection;
+    }
+
+    /**
+     * The number of sub-sections in each section that is not at the {@link #setSectionDepth(int) sectionDepth} yet.
+     */
+    public void setSubsectionsPerSection(int subsectionsPerSection) {
+        this.subsectionsPerSection = subsectionsPerSection;
+    }
+
+    public int getSectionDepth() {
+        return sectionDepth;
+    }
+
+    /**
+     * How deeply are sections nested; 1 means that there are only top-level sections (no sub-sections).
+     */
+    public void setSectionDepth(int sectionDepth) {
+        this.sectionDepth = sectionDepth;
+    }
+
+    public int getParagraphsPerSection() {
+        return paragraphsPerSection;
+    }
+
+    public void setParagraphsPerSection(int paragraphsPerSection) {
+        this.paragraphsPerSection = paragraphsPerSection;
+    }
+
+    public int getSentencesPerParagraph() {
+        return sentencesPerParagraph;
+    }
+
+    /**
+     * The size of paragraphs; a sentence is 8 to 15 words.
+     */
+    public void setSentencesPerParagraph(int sentencesPerParagraph) {
+        this.sentencesPerParagraph = sentencesPerParagraph;
+    }
+
+    public int getTablesPerSection() {
+        return tablesPerSection;
+    }
+
+    public void setTablesPerSection(int tablesPerSection) {
+        this.tablesPerSection = tablesPerSection;
+    }
+
+    public int getProgramlistingsPerSection() {
+        return programlistingsPerSection;
+    }
+
+    public void setProgramlistingsPerSection(int programlistingsPerSection) {
+        this.programlistingsPerSection = programlistingsPerSection;
+    }
+
+    public int getXrefsPerSection() {
+        return xrefsPerSection;
+    }
+
+    /**
+     * The number of {@code xref}-s in each chapter and section, pointing to random sections.
+     */
+    public void setXrefsPerSection(int xrefsPerSection) {
+        this.xrefsPerSection = xrefsPerSection;
+    }
+
+    public int getIndextermsPerSection() {
+        return indextermsPerSection;
+    }
+
+    /**
+     * The number of {@code indexterm}-s in each chapter and section; if more than 0, the book will have an index.
+     */
+    public void setIndextermsPerSection(int indextermsPerSection) {
+        this.indextermsPerSection = indextermsPerSection;
+    }
+
+    public int getXIncludeDepth() {
+        return xIncludeDepth;
+    }
+
+    /**
+     * How many levels of the book are split into separate files that are XInclude-d: 0 means that everything is in
+     * {@code book.xml}, 1 means that each chapter is in its own file, 2 means that the top-level sections are in
+     * their own files too, and so on. So the XInclude fan-out of a file is the number of its chapters or sections.
+     */
+    public void setXIncludeDepth(int xIncludeDepth) {
+        this.xIncludeDepth = xIncludeDepth;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * The seed of the random content; the same seed and settings always generate the same book.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+}
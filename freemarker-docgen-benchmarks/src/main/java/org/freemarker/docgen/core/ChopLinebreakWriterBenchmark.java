@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link ChopLinebreakWriter}, with the kind of writes FreeMarker does when it prints a program listing:
+ * short static template parts, and text that often ends with line breaks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChopLinebreakWriterBenchmark {
+
+    private static final int LINES = 200;
+
+    private String[] chunks;
+    private char[][] charChunks;
+
+    @Setup
+    public void setup() {
+        List<String> chunkList = new ArrayList<>();
+        for (int i = 0; i < LINES; i++) {
+            chunkList.add("<span class=\"code-line\">");
+            chunkList.add("    ${user.name} has " + i + " messages &lt;" + (i % 7) + "&gt;");
+            chunkList.add("</span>");
+            chunkList.add(i % 10 == 9 ? "\r\n\r\n" : "\n");
+        }
+        chunks = chunkList.toArray(new String[0]);
+        charChunks = new char[chunks.length][];
+        for (int i = 0; i < chunks.length; i++) {
+            charChunks[i] = chunks[i].toCharArray();
+        }
+    }
+
+    @Benchmark
+    public void writeStrings() throws IOException {
+        Writer w = new ChopLinebreakWriter(NullWriter.INSTANCE);
+        for (String chunk : chunks) {
+            w.write(chunk, 0, chunk.length());
+        }
+    }
+
+    @Benchmark
+    public void writeCharArrays() throws IOException {
+        Writer w = new ChopLinebreakWriter(NullWriter.INSTANCE);
+        for (char[] chunk : charChunks) {
+            w.write(chunk, 0, chunk.length);
+        }
+    }
+
+}
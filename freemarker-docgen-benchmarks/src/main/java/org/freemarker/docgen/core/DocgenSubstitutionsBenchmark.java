@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/**
+ * Benchmarks {@link PrintTextWithDocgenSubstitutionsDirective}, which is called for every text node of the book, so
+ * it mostly scans for {@code [docgen} tags in text that has none.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocgenSubstitutionsBenchmark {
+
+    /**
+     * {@code plain}: no {@code [docgen} tags; {@code lookalikes}: many {@code [} and {@code [docgenX} that aren't
+     * tags; {@code customVariables}: a {@code [docgen.customVariables.name]} tag in every sentence.
+     */
+    @Param({ "plain", "lookalikes", "customVariables" })
+    public String textKind;
+
+    @Param({ "200", "5000" })
+    public int textLength;
+
+    private Template template;
+    private Map<String, Object> dataModel;
+
+    @Setup
+    public void setup() throws IOException {
+        Configuration cfg = new Configuration(Configuration.VERSION_2_3_25);
+        cfg.setSharedVariable("printTextWithDocgenSubstitutions",
+                new PrintTextWithDocgenSubstitutionsDirective(new Transform()));
+        template = new Template("benchmark", new StringReader(
+                "<@printTextWithDocgenSubstitutions text=text />"), cfg);
+
+        Map<String, Object> customVariables = new HashMap<>();
+        customVariables.put("version", "2.3.34");
+        customVariables.put("productName", "Apache FreeMarker");
+        dataModel = new HashMap<>();
+        dataModel.put(Transform.VAR_CUSTOM_VARIABLES, customVariables);
+        dataModel.put("text", createText());
+    }
+
+    private String createText() {
+        String sentence;
+        switch (textKind) {
+        case "plain":
+            sentence = "The template language is a simple, specialized language, not a full-blown programming "
+                    + "language like PHP. ";
+            break;
+        case "lookalikes":
+            sentence = "Use [#list xs as x] or [docgenerated] in the [square bracket] syntax, like a[0]. ";
+            break;
+        case "customVariables":
+            sentence = "This is [docgen.customVariables.productName] version [docgen.customVariables.version]. ";
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown textKind: " + textKind);
+        }
+        StringBuilder sb = new StringBuilder(textLength + sentence.length());
+        while (sb.length() < textLength) {
+            sb.append(sentence);
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public void printText() throws IOException, TemplateException {
+        template.process(dataModel, NullWriter.INSTANCE);
+    }
+
+}
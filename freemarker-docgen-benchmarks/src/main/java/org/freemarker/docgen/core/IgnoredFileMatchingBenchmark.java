@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks matching file paths with the ignored file patterns made by {@link FileUtil#globToRegexp(String)}, as done
+ * for each file copied from the source directory; once with the patterns one by one, and once with the single
+ * pattern made by {@link FileUtil#combinePatterns(java.util.Collection)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IgnoredFileMatchingBenchmark {
+
+    private static final String[] IGNORED_FILES_GLOBS = {
+            "book.xml", "*.bak", "**/*.tmp", "drafts/", "figures/**/*.psd", "/docgen-templates/**",
+            "**/.#*", "notes?.txt" };
+
+    private List<Pattern> patterns;
+    private Pattern combinedPattern;
+    private List<String> paths;
+
+    @Setup
+    public void setup() {
+        patterns = new ArrayList<>();
+        for (String glob : IGNORED_FILES_GLOBS) {
+            patterns.add(FileUtil.globToRegexp(glob));
+        }
+        combinedPattern = FileUtil.combinePatterns(patterns);
+
+        paths = new ArrayList<>();
+        String[] dirs = { "", "figures", "figures/overview", "drafts", "docgen-templates", "examples/java" };
+        String[] names = { "logo.png", "overview.png", "model2sketch.psd", "page.html", "notes1.txt", "x.tmp",
+                "chapter.xml.bak", "Main.java", ".#chapter.xml", "style.css" };
+        for (String dir : dirs) {
+            for (String name : names) {
+                paths.add(dir.isEmpty() ? "/" + name : "/" + dir + "/" + name);
+            }
+        }
+    }
+
+    @Benchmark
+    public int matchPatternsOneByOne() {
+        int ignoredCount = 0;
+        for (String path : paths) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(path).matches()) {
+                    ignoredCount++;
+                    break;
+                }
+            }
+        }
+        return ignoredCount;
+    }
+
+    @Benchmark
+    public int matchCombinedPattern() {
+        int ignoredCount = 0;
+        for (String path : paths) {
+            if (combinedPattern.matcher(path).matches()) {
+                ignoredCount++;
+            }
+        }
+        return ignoredCount;
+    }
+
+    @Benchmark
+    public int globToRegexp() {
+        int hash = 0;
+        for (String glob : IGNORED_FILES_GLOBS) {
+            hash += FileUtil.globToRegexp(glob).pattern().length();
+        }
+        return hash;
+    }
+
+}
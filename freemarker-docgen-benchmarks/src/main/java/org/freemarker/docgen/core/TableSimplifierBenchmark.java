@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Benchmarks {@link TableSimplifier}. As that modifies the table, it's run on a fresh copy each time; the copying is
+ * done outside the measured part.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableSimplifierBenchmark {
+
+    @Param({ "12", "200" })
+    public int rows;
+
+    private Element originalTable;
+    private Element table;
+
+    @Setup
+    public void setup() throws ParserConfigurationException, SAXException, IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<informaltable xmlns='http://docbook.org/ns/docbook' border='1'>");
+        sb.append("<colgroup align='left'><col/><col align='center'/></colgroup>");
+        sb.append("<col align='right' valign='top'/><col/>");
+        sb.append("<thead><tr><th>Name</th><th>Type</th><th>Default</th><th>Description</th></tr></thead>");
+        sb.append("<tbody valign='middle'>");
+        for (int row = 0; row < rows; row++) {
+            sb.append("<tr>");
+            if (row % 4 == 0) {
+                // Spans the 4 rows, so the other rows have one less cell
+                sb.append("<td rowspan='4'>setting").append(row).append("</td>");
+            }
+            if (row % 3 == 0) {
+                sb.append("<td colspan='2' align='center'>String</td>");
+            } else {
+                sb.append("<td>int</td><td>").append(row).append("</td>");
+            }
+            sb.append("<td><para>Description of the setting, with <literal>markup</literal>.</para></td>");
+            sb.append("</tr>");
+        }
+        sb.append("</tbody></informaltable>");
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        originalTable = dbf.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(sb.toString())))
+                .getDocumentElement();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyTable() {
+        table = (Element) originalTable.cloneNode(true);
+    }
+
+    @Benchmark
+    public Element simplify() throws SAXException, DocgenException {
+        TableSimplifier.simplify(table);
+        return table;
+    }
+
+}
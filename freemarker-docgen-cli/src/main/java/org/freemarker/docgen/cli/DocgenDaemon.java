@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.freemarker.docgen.core.TransformEngine;
+
+/**
+ * Keeps a JVM running in the background, and executes the builds that {@link DocgenDaemonClient}-s send to it, so that
+ * the JVM start-up, class loading, JIT warm-up, and the JVM-wide caches (like of the compiled XML schema, and of the
+ * templates of books that have no custom templates) are paid for only once, not for each build. The
+ * {@link TransformEngine} of each book is kept too, so the FreeMarker configuration of books with custom templates
+ * also remains warm.
+ *
+ * <p>It listens on a loopback TCP port. The port, and a random token that the clients must send with each request,
+ * are written into the daemon file (see {@link #getDaemonFile()}), which is only readable by the owner, and is deleted
+ * when the daemon exits. The requests are served one after the other.
+ *
+ * <p>A request consists of the token (as {@value #TOKEN_LENGTH} ASCII characters), the working directory of the client
+ * (relative paths are resolved against it), and the command line arguments, as {@link Main} would get them. The
+ * response is a sequence of frames, each starting with a byte that tells its type: {@link #FRAME_STDOUT} and
+ * {@link #FRAME_STDERR} are followed by length-prefixed UTF-8 text, while {@link #FRAME_EXIT} is followed by an
+ * {@code int} exit code, and is the last frame. As any local process can connect, the daemon checks the token before
+ * reading anything else, limits the size of everything it reads, and gives up on clients that stop sending.
+ */
+final class DocgenDaemon {
+
+    static final String DAEMON_FILE_SYSTEM_PROPERTY = "docgen.daemonFile";
+    static final String DAEMON_PORT_SYSTEM_PROPERTY = "docgen.daemonPort";
+    static final String STOP_REQUEST = "--stop";
+
+    static final String PORT_PROPERTY = "port";
+    static final String TOKEN_PROPERTY = "token";
+
+    static final int FRAME_STDOUT = 1;
+    static final int FRAME_STDERR = 2;
+    static final int FRAME_EXIT = 3;
+
+    private static final int TOKEN_BYTES = 32;
+    /** The length of the token in the request; it's hexadecimal, so each byte is 2 characters. */
+    static final int TOKEN_LENGTH = TOKEN_BYTES * 2;
+
+    /** The maximum length of the strings, and of the frames, in UTF-8 bytes. */
+    static final int MAX_STRING_BYTES = 1024 * 1024;
+    private static final int MAX_ARGS = 10000;
+    /** How long we wait for the next part of the request before giving up on the client. */
+    private static final int REQUEST_READ_TIMEOUT_MILLIS = 10000;
+
+    private final File daemonFile;
+    /** The engines of the books built earlier, by canonical source directory; see {@link #getEngine(File)}. */
+    private final Map<File, TransformEngine> engines = new HashMap<>();
+
+    DocgenDaemon(File daemonFile) {
+        this.daemonFile = daemonFile;
+    }
+
+    /**
+     * The file that tells the clients how to connect to the daemon; can be set with the
+     * {@value #DAEMON_FILE_SYSTEM_PROPERTY} system property, defaults to {@code .freemarker-docgen-daemon} in the home
+     * directory of the user.
+     */
+    static File getDaemonFile() {
+        String path = System.getProperty(DAEMON_FILE_SYSTEM_PROPERTY);
+        return path != null
+                ? new File(path)
+                : new File(System.getProperty("user.home"), ".freemarker-docgen-daemon");
+    }
+
+    /**
+     * Serves the requests until a {@link #STOP_REQUEST} arrives.
+     */
+    void run() throws IOException, CommandLineExitException {
+        if (daemonFile.exists()) {
+            throw new CommandLineExitException(-1,
+                    "The daemon file already exists, so maybe a daemon is already running. If not, delete the file: "
+                    + daemonFile);
+        }
+
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        String token = toHex(tokenBytes);
+
+        int port = Integer.getInteger(DAEMON_PORT_SYSTEM_PROPERTY, 0);
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            writeDaemonFile(serverSocket.getLocalPort(), token);
+            try {
+                Main.p("Docgen daemon is listening on port " + serverSocket.getLocalPort()
+                        + "; daemon file: " + daemonFile.getAbsolutePath());
+                boolean stop;
+                do {
+                    try (Socket socket = serverSocket.accept()) {
+                        // A client that sends nothing mustn't block the other clients forever:
+                        socket.setSoTimeout(REQUEST_READ_TIMEOUT_MILLIS);
+                        stop = serve(socket, token);
+                    } catch (IOException | RuntimeException e) {
+                        // The client has probably disconnected, or has sent garbage; that shouldn't kill the daemon.
+                        System.err.println("Docgen daemon: Failed to serve request: " + e);
+                        stop = false;
+                    }
+                } while (!stop);
+                Main.p("Docgen daemon has stopped.");
+            } finally {
+                Files.deleteIfExists(daemonFile.toPath());
+            }
+        }
+    }
+
+    private void writeDaemonFile(int port, String token) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(PORT_PROPERTY, String.valueOf(port));
+        props.setProperty(TOKEN_PROPERTY, token);
+
+        File parentDir = daemonFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null) {
+            Files.createDirectories(parentDir.toPath());
+        }
+        try {
+            Files.createFile(
+                    daemonFile.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(daemonFile.toPath());
+        }
+        try (Writer w = Files.newBufferedWriter(daemonFile.toPath(), StandardCharsets.UTF_8)) {
+            props.store(w, "FreeMarker Docgen daemon");
+        }
+    }
+
+    /**
+     * @return Whether the daemon should stop.
+     */
+    private boolean serve(Socket socket, String token) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        byte[] requestToken = new byte[TOKEN_LENGTH];
+        in.readFully(requestToken);
+        if (!MessageDigest.isEqual(requestToken, token.getBytes(StandardCharsets.US_ASCII))) {
+            writeString(out, FRAME_STDERR, "The token sent to the Docgen daemon is wrong." + System.lineSeparator());
+            writeExit(out, -1);
+            return false;
+        }
+        String workingDirPath = readString(in);
+        if (workingDirPath == null) {
+            throw new IOException("The working directory is missing from the request");
+        }
+        File workingDir = new File(workingDirPath);
+        int argCount = in.readInt();
+        if (argCount < 0 || argCount > MAX_ARGS) {
+            throw new IOException("Illegal argument count in the request: " + argCount);
+        }
+        List<String> args = new ArrayList<>(argCount);
+        for (int i = 0; i < argCount; i++) {
+            args.add(readString(in));
+        }
+
+        if (args.size() == 1 && args.get(0).equals(STOP_REQUEST)) {
+            writeString(out, FRAME_STDOUT, "Docgen daemon is stopping." + System.lineSeparator());
+            writeExit(out, 0);
+            return true;
+        }
+
+        writeExit(out, build(args, workingDir, out));
+        return false;
+    }
+
+    private int build(List<String> args, File workingDir, DataOutputStream out) {
+        PrintStream prevOut = System.out;
+        PrintStream prevErr = System.err;
+        try (
+                PrintStream buildOut = new PrintStream(
+                        new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDOUT)), true, "UTF-8");
+                PrintStream buildErr = new PrintStream(
+                        new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDERR)), true, "UTF-8")) {
+            System.setOut(buildOut);
+            System.setErr(buildErr);
+            try {
+                Main.run(args.toArray(new String[0]), workingDir, false, this::getEngine);
+                return 0;
+            } catch (CommandLineExitException e) {
+                Main.p(e.getMessage().replaceAll("\n", System.lineSeparator()));
+                return e.getExitCode();
+            } catch (Exception | Error e) {
+                e.printStackTrace();
+                return 1;
+            } finally {
+                System.out.flush();
+                System.err.flush();
+            }
+        } catch (IOException e) {
+            // Only the unsupported charset case can get here
+            throw new IllegalStateException(e);
+        } finally {
+            System.setOut(prevOut);
+            System.setErr(prevErr);
+        }
+    }
+
+    /**
+     * Returns the engine used by the earlier builds of the same book, so that its FreeMarker configuration remains
+     * warm; the template cache is cleared, so that changed templates are picked up.
+     */
+    private synchronized TransformEngine getEngine(File srcDir) throws IOException {
+        File canonicalSrcDir = srcDir.getCanonicalFile();
+        TransformEngine engine = engines.get(canonicalSrcDir);
+        if (engine != null && engine.isUpToDate()) {
+            engine.clearTemplateCache();
+        } else {
+            engine = new TransformEngine(canonicalSrcDir);
+            engines.put(canonicalSrcDir, engine);
+        }
+        return engine;
+    }
+
+    private static void writeExit(DataOutputStream out, int exitCode) throws IOException {
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(exitCode);
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, int frameType, String s) throws IOException {
+        out.writeByte(frameType);
+        writeString(out, s);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        return new String(readBytes(in, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the given number of bytes, after checking that the length (which was read from the other party) is
+     * sensible.
+     */
+    static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Illegal length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the token as the first part of the request, as {@link #TOKEN_LENGTH} ASCII characters.
+     */
+    static void writeToken(DataOutputStream out, String token) throws IOException {
+        byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length != TOKEN_LENGTH) {
+            throw new IOException("The token must be " + TOKEN_LENGTH + " characters long");
+        }
+        out.write(bytes);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends what's written into it as frames of the given type. As the printed text is cut into frames at arbitrary
+     * points, the frames contain raw UTF-8 bytes, which the client writes out as is.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int frameType;
+
+        private FrameOutputStream(DataOutputStream out, int frameType) {
+            this.out = out;
+            this.frameType = frameType;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // The build may print from multiple threads (like in batch mode), and the two streams share the socket
+            synchronized (out) {
+                // The client doesn't accept frames longer than MAX_STRING_BYTES:
+                while (len > 0) {
+                    int frameLen = Math.min(len, MAX_STRING_BYTES);
+                    out.writeByte(frameType);
+                    out.writeInt(frameLen);
+                    out.write(b, off, frameLen);
+                    off += frameLen;
+                    len -= frameLen;
+                }
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Doesn't close the socket; the exit frame is still to be sent
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sends a build request to a {@link DocgenDaemon}, and prints what the build prints, as it happens.
+ */
+final class DocgenDaemonClient {
+
+    private static final String START_DAEMON_HINT =
+            " Start the daemon with \"java -jar docgen.jar --daemon\", or run the build without --client.";
+
+    // Can't be instantiated
+    private DocgenDaemonClient() {
+        // Nop
+    }
+
+    /**
+     * @param args
+     *            The command line arguments that {@link Main} would get for the build, or {@value
+     *            DocgenDaemon#STOP_REQUEST} to stop the daemon.
+     *
+     * @return The exit code of the build; 0 if it was successful.
+     */
+    static int run(File daemonFile, List<String> args) throws IOException, CommandLineExitException {
+        if (args.isEmpty()) {
+            throw new CommandLineExitException(-1, "The build arguments are missing after --client.");
+        }
+
+        if (!daemonFile.isFile()) {
+            throw new CommandLineExitException(-1,
+                    "The Docgen daemon isn't running, as the daemon file doesn't exist: " + daemonFile + "."
+                    + START_DAEMON_HINT);
+        }
+        Properties props = new Properties();
+        try (Reader r = Files.newBufferedReader(daemonFile.toPath(), StandardCharsets.UTF_8)) {
+            props.load(r);
+        }
+        String token = props.getProperty(DocgenDaemon.TOKEN_PROPERTY);
+        if (token == null || token.length() != DocgenDaemon.TOKEN_LENGTH) {
+            throw new CommandLineExitException(-1, "Malformed Docgen daemon file: " + daemonFile);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(props.getProperty(DocgenDaemon.PORT_PROPERTY, ""));
+        } catch (NumberFormatException e) {
+            throw new CommandLineExitException(-1, "Malformed Docgen daemon file: " + daemonFile);
+        }
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (ConnectException e) {
+            throw new CommandLineExitException(-1,
+                    "Couldn't connect to the Docgen daemon on port " + port + ". Maybe it was killed; then delete "
+                    + daemonFile + "." + START_DAEMON_HINT);
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DocgenDaemon.writeToken(out, token);
+            DocgenDaemon.writeString(out, new File("").getAbsolutePath());
+            out.writeInt(args.size());
+            for (String arg : args) {
+                DocgenDaemon.writeString(out, arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int frameType;
+                try {
+                    frameType = in.readByte();
+                } catch (EOFException e) {
+                    throw new CommandLineExitException(1, "The Docgen daemon has closed the connection unexpectedly.");
+                }
+                if (frameType == DocgenDaemon.FRAME_EXIT) {
+                    return in.readInt();
+                }
+                PrintStream target;
+                if (frameType == DocgenDaemon.FRAME_STDOUT) {
+                    target = System.out;
+                } else if (frameType == DocgenDaemon.FRAME_STDERR) {
+                    target = System.err;
+                } else {
+                    throw new IOException("Unknown frame type in the Docgen daemon response: " + frameType);
+                }
+                target.write(DocgenDaemon.readBytes(in, in.readInt()));
+                target.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.cli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.freemarker.docgen.core.DocgenException;
+import org.freemarker.docgen.core.TransformPreview;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the files of a {@link TransformPreview} over HTTP, on the loopback interface. The requests are served on a
+ * single thread, as the pages are generated one after the other anyway.
+ */
+final class DocgenPreviewServer {
+
+    private static final String INDEX_FILE_NAME = "index.html";
+
+    private final TransformPreview preview;
+    private final HttpServer server;
+
+    /**
+     * @param port
+     *            The TCP port to listen on; 0 to pick a free one (see {@link #getPort()}).
+     */
+    DocgenPreviewServer(TransformPreview preview, int port) throws IOException {
+        this.preview = preview;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                sendText(exchange, 405, "Method not allowed: " + method);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if (path.isEmpty() || path.endsWith("/")) {
+                path += INDEX_FILE_NAME;
+            }
+
+            byte[] content;
+            try {
+                content = preview.getFile(path);
+            } catch (DocgenException | IOException e) {
+                StringWriter stackTrace = new StringWriter();
+                e.printStackTrace(new PrintWriter(stackTrace));
+                sendText(exchange, 500, "Failed to generate " + path + ":\n\n" + stackTrace);
+                return;
+            }
+            if (content == null) {
+                sendText(exchange, 404, "Not found: " + path);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", getContentType(path));
+            // The file can change whenever the source is edited:
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            send(exchange, 200, content);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        send(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] content) throws IOException {
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.sendResponseHeaders(status, head ? -1 : content.length);
+        if (!head) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        }
+    }
+
+    private static String getContentType(String path) {
+        String lowerCasePath = path.toLowerCase(Locale.ROOT);
+        if (lowerCasePath.endsWith(".html")) {
+            return "text/html; charset=UTF-8";
+        }
+        if (lowerCasePath.endsWith(".js")) {
+            return "text/javascript; charset=UTF-8";
+        }
+        if (lowerCasePath.endsWith(".css")) {
+            return "text/css; charset=UTF-8";
+        }
+        if (lowerCasePath.endsWith(".xml")) {
+            return "application/xml";
+        }
+        if (lowerCasePath.endsWith(".svg")) {
+            return "image/svg+xml";
+        }
+        String contentType = URLConnection.guessContentTypeFromName(path);
+        return contentType != null ? contentType : "application/octet-stream";
+    }
+
+}
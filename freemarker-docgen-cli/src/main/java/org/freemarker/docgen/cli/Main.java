@@ -20,11 +20,29 @@ package org.freemarker.docgen.cli;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import org.freemarker.docgen.core.BashCommandLineArgsParser;
 import org.freemarker.docgen.core.DocgenException;
+import org.freemarker.docgen.core.MultiVariantBuild;
 import org.freemarker.docgen.core.Transform;
+import org.freemarker.docgen.core.TransformEngine;
+import org.freemarker.docgen.core.TransformPreview;
+import org.freemarker.docgen.core.TransformWatcher;
 import org.xml.sax.SAXException;
 
 /**
@@ -34,6 +52,17 @@ public final class Main {
 
     private static final String CUSTOM_VARIABLES_DOT = "customVariables.";
     private static final String INSERTABLE_FILES_DOT = "insertableFiles.";
+    private static final String BATCH_ARG = "--batch";
+    private static final String DAEMON_ARG = "--daemon";
+    private static final String CLIENT_ARG = "--client";
+    private static final String PREVIEW_ARG = "--preview";
+    private static final String USAGE =
+            "Usage: java -jar docgen.jar <srcDir> <dstDir> [option1=value1 ...]\n"
+            + "   or: java -jar docgen.jar " + BATCH_ARG + " <manifestFile> [option1=value1 ...]\n"
+            + "   or: java -jar docgen.jar " + PREVIEW_ARG + " <srcDir> [previewPort=<port>] [option1=value1 ...]\n"
+            + "   or: java -jar docgen.jar " + DAEMON_ARG + "\n"
+            + "   or: java -jar docgen.jar " + CLIENT_ARG + " <arguments as above, or " + DocgenDaemon.STOP_REQUEST
+            + ">";
 
     // Can't be instantiated
     private Main() {
@@ -43,59 +72,535 @@ public final class Main {
     public static void main(String[] args)
             throws DocgenException, IOException, SAXException {
         try {
+            if (args.length >= 1 && args[0].equals(DAEMON_ARG)) {
+                if (args.length != 1) {
+                    throw new CommandLineExitException(-1, USAGE);
+                }
+                new DocgenDaemon(DocgenDaemon.getDaemonFile()).run();
+                return;
+            }
+            if (args.length >= 1 && args[0].equals(CLIENT_ARG)) {
+                int exitCode = DocgenDaemonClient.run(
+                        DocgenDaemon.getDaemonFile(), Arrays.asList(args).subList(1, args.length));
+                if (exitCode != 0) {
+                    System.exit(exitCode);
+                }
+                return;
+            }
+
+            run(args, null, true, TransformEngine::new);
+        } catch (CommandLineExitException e) {
+            p(e.getMessage().replaceAll("\n", System.lineSeparator()));
+            System.exit(e.getExitCode());
+        }
+    }
+
+    /**
+     * Does what {@link #main(String[])} does with the arguments, except that it doesn't handle the daemon related
+     * arguments, and doesn't exit the JVM.
+     *
+     * @param workingDir
+     *            The directory to which relative paths in the arguments are relative; {@code null} if that's the
+     *            working directory of this process. Not {@code null} when the build request came from a
+     *            {@link DocgenDaemonClient}.
+     * @param watchAllowed
+     *            Whether the {@code watch} option and {@value #PREVIEW_ARG} can be used; not if the build request came
+     *            from a {@link DocgenDaemonClient}, as those never finish.
+     * @param engineProvider
+     *            Creates the {@link TransformEngine} for the source directories; the daemon uses this to reuse the
+     *            engines of earlier builds.
+     */
+    static void run(String[] args, File workingDir, boolean watchAllowed, EngineProvider engineProvider)
+            throws DocgenException, IOException, SAXException, CommandLineExitException {
+        if (args.length >= 1 && args[0].equals(PREVIEW_ARG)) {
             if (args.length < 2) {
+                throw new CommandLineExitException(-1, USAGE);
+            }
+            if (!watchAllowed) {
+                throw new CommandLineExitException(-1, "The preview server can't be started through the daemon.");
+            }
+            Options options = new Options();
+            parseOptions(Arrays.asList(args).subList(2, args.length), options, false, workingDir);
+            runPreview(engineProvider.getEngine(toFile(args[1], workingDir)), options);
+            return;
+        }
+
+        if (args.length >= 1 && args[0].equals(BATCH_ARG)) {
+            if (args.length < 2) {
+                throw new CommandLineExitException(-1, USAGE);
+            }
+            Options commonOptions = new Options();
+            parseOptions(Arrays.asList(args).subList(2, args.length), commonOptions, true, workingDir);
+            runBatch(toFile(args[1], workingDir), commonOptions, workingDir, engineProvider);
+            return;
+        }
+
+        if (args.length < 2) {
+            throw new CommandLineExitException(-1, USAGE);
+        }
+
+        File srcDir = toFile(args[0], workingDir);
+        File destDir = toFile(args[1], workingDir);
+        Options options = new Options();
+        parseOptions(Arrays.asList(args).subList(2, args.length), options, false, workingDir);
+        if (options.watch && !watchAllowed) {
+            throw new CommandLineExitException(-1, "The watch option can't be used through the daemon.");
+        }
+
+        // The engine is reused by all the builds in watch mode:
+        build(engineProvider.getEngine(srcDir), destDir, options, true);
+    }
+
+    /**
+     * Parses the {@code name=value} options into the {@link Options} object.
+     *
+     * @param batchOptionsAllowed
+     *            Whether the options that affect the whole batch (see
+     *            {@link #runBatch(File, Options, File, EngineProvider)}) are allowed.
+     * @param workingDir
+     *            See {@link #run(String[], File, boolean, EngineProvider)}
+     */
+    private static void parseOptions(
+            List<String> optStrs, Options options, boolean batchOptionsAllowed, File workingDir)
+            throws CommandLineExitException {
+        List<Consumer<Transform>> transformOptions = options.transformOptions;
+        for (String optStr : optStrs) {
+            final int equalsIdx = optStr.indexOf('=');
+            if (equalsIdx == -1) {
+                throw new CommandLineExitException(-1, "Options must be in name=value format");
+            }
+            String name = optStr.substring(0, equalsIdx).trim();
+            String value = optStr.substring(equalsIdx + 1).trim();
+
+            if (name.equals("offline")) {
+                boolean offline = parseBoolean(value);
+                transformOptions.add(tr -> tr.setOffline(offline));
+                options.offlineSpecified = true;
+            } else if (name.equals("timeZone")) {
+                TimeZone timeZone = TimeZone.getTimeZone(value);
+                transformOptions.add(tr -> tr.setTimeZone(timeZone));
+            } else if (name.equals("generateEclipseToC")) {
+                boolean generateEclipseToC = parseBoolean(value);
+                transformOptions.add(tr -> tr.setGenerateEclipseToC(generateEclipseToC));
+            } else if (name.equals("renderingThreads")) {
+                int renderingThreads = parsePositiveInt(value);
+                transformOptions.add(tr -> tr.setRenderingThreads(renderingThreads));
+            } else if (name.equals("buildTaskThreads")) {
+                int buildTaskThreads = parsePositiveInt(value);
+                transformOptions.add(tr -> tr.setBuildTaskThreads(buildTaskThreads));
+            } else if (name.equals("incremental")) {
+                boolean incremental = parseBoolean(value);
+                transformOptions.add(tr -> tr.setIncremental(incremental));
+                options.incrementalSpecified = true;
+            } else if (name.equals("skipUnchangedOutputFiles")) {
+                boolean skipUnchangedOutputFiles = parseBoolean(value);
+                transformOptions.add(tr -> tr.setSkipUnchangedOutputFiles(skipUnchangedOutputFiles));
+            } else if (name.equals("hardLinkStaticFiles")) {
+                boolean hardLinkStaticFiles = parseBoolean(value);
+                transformOptions.add(tr -> tr.setHardLinkStaticFiles(hardLinkStaticFiles));
+            } else if (name.equals("pruneStaleOutputFiles")) {
+                boolean pruneStaleOutputFiles = parseBoolean(value);
+                transformOptions.add(tr -> tr.setPruneStaleOutputFiles(pruneStaleOutputFiles));
+            } else if (name.equals("changeSetFile")) {
+                File changeSetFile = toFile(value, workingDir);
+                transformOptions.add(tr -> tr.setChangeSetFile(changeSetFile));
+            } else if (name.equals("gzipOutputFiles")) {
+                boolean gzipOutputFiles = parseBoolean(value);
+                transformOptions.add(tr -> tr.setGzipOutputFiles(gzipOutputFiles));
+            } else if (name.equals("gzipExtensions")) {
+                List<String> gzipExtensions = Arrays.asList(value.split(","));
+                transformOptions.add(tr -> tr.setGzipExtensions(gzipExtensions));
+            } else if (name.equals("gzipMinimumSize")) {
+                int gzipMinimumSize = parseNonNegativeInt(value);
+                transformOptions.add(tr -> tr.setGzipMinimumSize(gzipMinimumSize));
+            } else if (name.equals("gzipCompressionLevel")) {
+                int gzipCompressionLevel = parseIntInRange(value, 1, 9);
+                transformOptions.add(tr -> tr.setGzipCompressionLevel(gzipCompressionLevel));
+            } else if (name.equals("buildReportFile")) {
+                File buildReportFile = toFile(value, workingDir);
+                transformOptions.add(tr -> tr.setBuildReportFile(buildReportFile));
+            } else if (name.equals("documentSnapshotFile")) {
+                File documentSnapshotFile = toFile(value, workingDir);
+                transformOptions.add(tr -> tr.setDocumentSnapshotFile(documentSnapshotFile));
+            } else if (name.equals("commandOutputCacheDirectory")) {
+                File commandOutputCacheDirectory = toFile(value, workingDir);
+                transformOptions.add(tr -> tr.setCommandOutputCacheDirectory(commandOutputCacheDirectory));
+            } else if (name.equals("commandOutputCacheMaxSize")) {
+                long commandOutputCacheMaxSize = parseNonNegativeLong(value);
+                transformOptions.add(tr -> tr.setCommandOutputCacheMaxSize(commandOutputCacheMaxSize));
+            } else if (name.equals("commandWorkers")) {
+                int commandWorkers = parseNonNegativeInt(value);
+                transformOptions.add(tr -> tr.setCommandWorkers(commandWorkers));
+            } else if (name.equals("pageSelection")) {
+                List<String> pageSelection = Arrays.asList(value.split(","));
+                transformOptions.add(tr -> tr.setPageSelection(pageSelection));
+            } else if (name.equals("includeNeighborPages")) {
+                boolean includeNeighborPages = parseBoolean(value);
+                transformOptions.add(tr -> tr.setIncludeNeighborPages(includeNeighborPages));
+            } else if (name.equals("skipCustomStaticFiles")) {
+                boolean skipCustomStaticFiles = parseBoolean(value);
+                transformOptions.add(tr -> tr.setSkipCustomStaticFiles(skipCustomStaticFiles));
+            } else if (name.equals("skipTOCJSON")) {
+                boolean skipTOCJSON = parseBoolean(value);
+                transformOptions.add(tr -> tr.setSkipTOCJSON(skipTOCJSON));
+            } else if (name.equals("shard")) {
+                int slashIdx = value.indexOf('/');
+                if (slashIdx == -1) {
+                    throw new CommandLineExitException(-1, "Malformed shard, should be like 1/4: " + value);
+                }
+                int shardIndex = parsePositiveInt(value.substring(0, slashIdx));
+                int shardCount = parsePositiveInt(value.substring(slashIdx + 1));
+                if (shardIndex > shardCount) {
+                    throw new CommandLineExitException(-1, "Shard index is greater than the shard count: " + value);
+                }
+                transformOptions.add(tr -> {
+                    tr.setShardIndex(shardIndex);
+                    tr.setShardCount(shardCount);
+                });
+            } else if (name.equals("shardDirectories")) {
+                List<File> shardDirectories = new ArrayList<>();
+                for (String path : value.split(",")) {
+                    shardDirectories.add(toFile(path.trim(), workingDir));
+                }
+                transformOptions.add(tr -> tr.setShardDirectories(shardDirectories));
+            } else if (name.equals("onlineDestinationDirectory")) {
+                options.onlineDestDir = toFile(value, workingDir);
+            } else if (name.equals("previewPort")) {
+                options.previewPort = parseNonNegativeInt(value);
+            } else if (name.equals("watch")) {
+                options.watch = parseBoolean(value);
+            } else if (batchOptionsAllowed && name.equals("batchThreads")) {
+                options.batchThreads = parsePositiveInt(value);
+            } else if (name.startsWith(CUSTOM_VARIABLES_DOT)) {
+                Map<String, Object> customVariables = Collections.singletonMap(
+                        name.substring(CUSTOM_VARIABLES_DOT.length()),
+                        value);
+                transformOptions.add(tr -> tr.addCustomVariableOverrides(customVariables));
+            } else if (name.startsWith(INSERTABLE_FILES_DOT)) {
+                Map<String, String> insertableFiles = Collections.singletonMap(
+                        name.substring(INSERTABLE_FILES_DOT.length()),
+                        value);
+                transformOptions.add(tr -> tr.addInsertableFileOverrides(insertableFiles));
+            } else {
+                throw new CommandLineExitException(-1, "Unsupported option: " + name);
+            }
+        }
+    }
+
+    /**
+     * Builds a single book, according to the options.
+     */
+    private static void build(TransformEngine engine, File destDir, Options options, boolean printProgress)
+            throws DocgenException, IOException, SAXException, CommandLineExitException {
+        List<Consumer<Transform>> transformOptions = new ArrayList<>(options.transformOptions);
+        if (options.watch && !options.incrementalSpecified) {
+            // Only re-write the pages affected by the change
+            transformOptions.add(0, tr -> tr.setIncremental(true));
+        }
+
+        Supplier<Transform> transformFactory = () -> {
+            Transform tr = engine.newTransform();
+            tr.setDestinationDirectory(destDir);
+            tr.setPrintProgress(printProgress);
+            for (Consumer<Transform> option : transformOptions) {
+                option.accept(tr);
+            }
+            return tr;
+        };
+
+        if (options.onlineDestDir != null) {
+            if (options.watch) {
                 throw new CommandLineExitException(-1,
-                        "Usage: java -jar docgen.jar <srcDir> <dstDir> [option1=value1 ...]");
+                        "The watch option can't be used together with onlineDestinationDirectory.");
             }
+            if (options.offlineSpecified) {
+                throw new CommandLineExitException(-1,
+                        "The offline option can't be used together with onlineDestinationDirectory, as then the "
+                                + "offline variant is generated into <dstDir>, and the online variant into "
+                                + "onlineDestinationDirectory.");
+            }
+            Transform offlineVariant = transformFactory.get();
+            offlineVariant.setOffline(true);
+            Transform onlineVariant = transformFactory.get();
+            onlineVariant.setOffline(false);
+            onlineVariant.setDestinationDirectory(options.onlineDestDir);
+            // The other output files can't be shared by the variants:
+            onlineVariant.setBuildReportFile(toOnlineVariantFile(onlineVariant.getBuildReportFile()));
+            onlineVariant.setChangeSetFile(toOnlineVariantFile(onlineVariant.getChangeSetFile()));
+            onlineVariant.setDocumentSnapshotFile(toOnlineVariantFile(onlineVariant.getDocumentSnapshotFile()));
+            new MultiVariantBuild(Arrays.asList(offlineVariant, onlineVariant)).execute();
+        } else if (options.watch) {
+            new TransformWatcher(transformFactory).run();
+        } else {
+            transformFactory.get().execute();
+        }
+    }
+
+    /**
+     * Starts a local HTTP server that shows the book, generating each page when it's requested. Never returns, unless
+     * the thread is interrupted.
+     */
+    private static void runPreview(TransformEngine engine, Options options)
+            throws IOException, CommandLineExitException {
+        if (options.watch || options.onlineDestDir != null) {
+            throw new CommandLineExitException(-1,
+                    "The watch and onlineDestinationDirectory options can't be used with " + PREVIEW_ARG + ".");
+        }
 
-            Transform tr = new Transform();
-            tr.setSourceDirectory(new File(args[0]));
-            tr.setDestinationDirectory(new File(args[1]));
+        TransformPreview preview = new TransformPreview(() -> {
+            Transform tr = engine.newTransform();
             tr.setPrintProgress(true);
+            for (Consumer<Transform> option : options.transformOptions) {
+                option.accept(tr);
+            }
+            return tr;
+        });
+        DocgenPreviewServer server = new DocgenPreviewServer(preview, options.previewPort);
+        server.start();
+        try {
+            p("Preview server: http://localhost:" + server.getPort() + "/");
+            preview.run();
+        } finally {
+            server.stop();
+        }
+    }
 
-            for (int i = 2; i < args.length; i++) {
-                String optStr = args[i];
-                final int equalsIdx = optStr.indexOf('=');
-                if (equalsIdx == -1) {
-                    throw new CommandLineExitException(-1, "Options must be in name=value format");
-                }
-                String name = optStr.substring(0, equalsIdx).trim();
-                String value = optStr.substring(equalsIdx + 1).trim();
-
-                if (name.equals("offline")) {
-                    tr.setOffline(parseBoolean(value));
-                } else if (name.equals("timeZone")) {
-                    tr.setTimeZone(TimeZone.getTimeZone(value));
-                } else if (name.equals("generateEclipseToC")) {
-                    tr.setGenerateEclipseToC(parseBoolean(value));
-                } else if (name.startsWith(CUSTOM_VARIABLES_DOT)) {
-                    tr.addCustomVariableOverrides(
-                            Collections.singletonMap(
-                                    name.substring(CUSTOM_VARIABLES_DOT.length()),
-                                    value));
-                } else if (name.startsWith(INSERTABLE_FILES_DOT)) {
-                    tr.addInsertableFileOverrides(
-                            Collections.singletonMap(
-                                    name.substring(INSERTABLE_FILES_DOT.length()),
-                                    value));
-                } else {
-                    throw new CommandLineExitException(-1, "Unsupported option: " + name);
+    /**
+     * Builds all the books listed in the manifest file in this JVM, so the JVM start-up, the class loading, the
+     * compilation of the DocBook schema, and the parsing of the standard templates is only paid once. Each non-empty
+     * line of the manifest that doesn't start with {@code #} is like
+     * {@code <srcDir> <dstDir> [option1=value1 ...]}, with Bash-like quoting. The options given on the command line
+     * apply to all books, and the options of the book override them. A book that fails doesn't stop the others.
+     */
+    private static void runBatch(
+            File manifestFile, Options commonOptions, File workingDir, EngineProvider engineProvider)
+            throws IOException, CommandLineExitException {
+        if (commonOptions.watch) {
+            throw new CommandLineExitException(-1, "The watch option can't be used in batch mode.");
+        }
+
+        // Parse the whole manifest first, so that we fail before building anything if it's malformed:
+        List<BatchBook> books = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+        for (int lineIdx = 0; lineIdx < lines.size(); lineIdx++) {
+            String line = lines.get(lineIdx).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            List<String> lineArgs = BashCommandLineArgsParser.parse(line);
+            String location = manifestFile + ":" + (lineIdx + 1) + ": ";
+            if (lineArgs.size() < 2) {
+                throw new CommandLineExitException(-1,
+                        location + "The line must be like <srcDir> <dstDir> [option1=value1 ...]");
+            }
+            Options options = commonOptions.copy();
+            try {
+                parseOptions(lineArgs.subList(2, lineArgs.size()), options, false, workingDir);
+            } catch (CommandLineExitException e) {
+                throw new CommandLineExitException(e.getExitCode(), location + e.getMessage());
+            }
+            if (options.watch) {
+                throw new CommandLineExitException(-1, location + "The watch option can't be used in batch mode.");
+            }
+            books.add(new BatchBook(
+                    toFile(lineArgs.get(0), workingDir), toFile(lineArgs.get(1), workingDir), options));
+        }
+        if (books.isEmpty()) {
+            throw new CommandLineExitException(-1, "The batch manifest contains no books: " + manifestFile);
+        }
+
+        // With concurrent builds the progress messages would be mixed up, so then we only report the results.
+        boolean printProgress = commonOptions.batchThreads == 1;
+        long startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(commonOptions.batchThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(books.size());
+            for (BatchBook book : books) {
+                futures.add(executor.submit(() -> book.build(printProgress, engineProvider)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CommandLineExitException(-1, "Interrupted while waiting for the books to be built.");
+                } catch (ExecutionException e) {
+                    // BatchBook.build catches the exceptions, so this should be an Error
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Unexpected exception during batch build", cause);
                 }
             }
+        } finally {
+            executor.shutdownNow();
+        }
+        long totalNanos = System.nanoTime() - startNanos;
 
-            tr.execute();
-        } catch (CommandLineExitException e) {
-            p(e.getMessage().replaceAll("\n", System.lineSeparator()));
-            System.exit(e.getExitCode());
+        int failures = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Batch report:\n");
+        sb.append(String.format(Locale.ROOT, "  %-36s %12s %8s%n", "Book", "Time (ms)", "Result"));
+        long sumNanos = 0;
+        for (BatchBook book : books) {
+            sb.append(String.format(Locale.ROOT, "  %-36s %12s %8s%n",
+                    book.srcDir.getPath(), formatMillis(book.nanos), book.failure == null ? "OK" : "FAILED"));
+            sumNanos += book.nanos;
+            if (book.failure != null) {
+                failures++;
+            }
+        }
+        sb.append(String.format(Locale.ROOT, "  %-36s %12s%n", "Total", formatMillis(totalNanos)));
+        sb.append(String.format(Locale.ROOT, "  Books: %d built, %d failed; %s ms build time with %d thread(s)",
+                books.size() - failures, failures, formatMillis(sumNanos), commonOptions.batchThreads));
+        p(sb);
+
+        if (failures != 0) {
+            throw new CommandLineExitException(1, failures + " of the " + books.size() + " books have failed.");
         }
     }
 
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static File toFile(String path, File workingDir) {
+        File file = new File(path);
+        return workingDir == null || file.isAbsolute() ? file : new File(workingDir, path);
+    }
+
+    /**
+     * Inserts "online" before the file name extension, like "report.json" becomes "report.online.json".
+     */
+    private static File toOnlineVariantFile(File file) {
+        if (file == null) {
+            return null;
+        }
+        String name = file.getName();
+        int dotIdx = name.lastIndexOf('.');
+        String onlineName = dotIdx > 0
+                ? name.substring(0, dotIdx) + ".online" + name.substring(dotIdx)
+                : name + ".online";
+        return new File(file.getParentFile(), onlineName);
+    }
+
     private static boolean parseBoolean(String value) throws CommandLineExitException {
         if (value.equals("true")) return true;
         if (value.equals("false")) return false;
         throw new CommandLineExitException(-1, "Malformed boolean: " + value);
     }
 
+    private static int parsePositiveInt(String value) throws CommandLineExitException {
+        int result = parseInt(value);
+        if (result < 1) {
+            throw new CommandLineExitException(-1, "Integer must be at least 1: " + value);
+        }
+        return result;
+    }
+
+    private static int parseIntInRange(String value, int min, int max) throws CommandLineExitException {
+        int result = parseInt(value);
+        if (result < min || result > max) {
+            throw new CommandLineExitException(-1, "Integer must be between " + min + " and " + max + ": " + value);
+        }
+        return result;
+    }
+
+    private static int parseNonNegativeInt(String value) throws CommandLineExitException {
+        int result = parseInt(value);
+        if (result < 0) {
+            throw new CommandLineExitException(-1, "Integer must be at least 0: " + value);
+        }
+        return result;
+    }
+
+    private static int parseInt(String value) throws CommandLineExitException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new CommandLineExitException(-1, "Malformed integer: " + value);
+        }
+    }
+
+    private static long parseNonNegativeLong(String value) throws CommandLineExitException {
+        long result;
+        try {
+            result = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new CommandLineExitException(-1, "Malformed integer: " + value);
+        }
+        if (result < 0) {
+            throw new CommandLineExitException(-1, "Integer must be at least 0: " + value);
+        }
+        return result;
+    }
+
+    /**
+     * The options parsed from the command line (or from a line of the batch manifest).
+     */
+    private static final class Options {
+        private final List<Consumer<Transform>> transformOptions = new ArrayList<>();
+        private boolean watch;
+        private boolean incrementalSpecified;
+        private boolean offlineSpecified;
+        private File onlineDestDir;
+        private int batchThreads = 1;
+        private int previewPort = 8080;
+
+        private Options copy() {
+            Options copy = new Options();
+            copy.transformOptions.addAll(transformOptions);
+            copy.watch = watch;
+            copy.incrementalSpecified = incrementalSpecified;
+            copy.offlineSpecified = offlineSpecified;
+            copy.onlineDestDir = onlineDestDir;
+            copy.batchThreads = batchThreads;
+            copy.previewPort = previewPort;
+            return copy;
+        }
+    }
+
+    /**
+     * A book in batch mode, and the result of building it.
+     */
+    private static final class BatchBook {
+        private final File srcDir;
+        private final File destDir;
+        private final Options options;
+        private long nanos;
+        private Exception failure;
+
+        private BatchBook(File srcDir, File destDir, Options options) {
+            this.srcDir = srcDir;
+            this.destDir = destDir;
+            this.options = options;
+        }
+
+        private void build(boolean printProgress, EngineProvider engineProvider) {
+            long startNanos = System.nanoTime();
+            try {
+                Main.build(engineProvider.getEngine(srcDir), destDir, options, printProgress);
+            } catch (Exception e) {
+                failure = e;
+                synchronized (System.err) {
+                    System.err.println("Building " + srcDir + " has failed:");
+                    e.printStackTrace();
+                }
+            } finally {
+                nanos = System.nanoTime() - startNanos;
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link TransformEngine} to use for the book in the given source directory.
+     */
+    @FunctionalInterface
+    interface EngineProvider {
+        TransformEngine getEngine(File srcDir) throws IOException;
+    }
+
     static void p(Object o) {
         System.out.println(o);
     }
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import freemarker.template.utility.StringUtil;
+
+/**
+ * The manifest file that {@link Transform} writes into the output directory in incremental mode (see
+ * {@link Transform#setIncremental(boolean)}). It stores the fingerprints of the inputs of the previous run, so the
+ * next run can tell which HTML pages need to be generated again.
+ *
+ * <p>The format is a simple line based one, with tab separated fields. It's an internal format that can change in
+ * any Docgen version; in that case the manifest is ignored, and all pages are generated.
+ */
+final class BuildManifest {
+
+    static final String FILE_NAME = ".docgen-manifest";
+
+    private static final String FORMAT_VERSION = "1";
+
+    private static final String HEADER_LINE = "# Docgen incremental build manifest. Don't edit it!";
+    private static final String K_VERSION = "version";
+    private static final String K_INPUTS = "inputs";
+    private static final String K_PAGE = "page";
+    private static final String K_INSERTED_FILE = "insertedFile";
+    private static final String K_EXECUTES_COMMANDS = "executesCommands";
+
+    private final String inputsFingerprint;
+    private final Map<String, PageEntry> pages = new LinkedHashMap<>();
+
+    /**
+     * @param inputsFingerprint
+     *            The fingerprint of the inputs that all pages depend on. If this changes, all pages must be
+     *            generated again.
+     */
+    BuildManifest(String inputsFingerprint) {
+        this.inputsFingerprint = inputsFingerprint;
+    }
+
+    String getInputsFingerprint() {
+        return inputsFingerprint;
+    }
+
+    /**
+     * Returns the entry for the given output file name, or {@code null} if there's none.
+     */
+    PageEntry getPage(String outputFileName) {
+        return pages.get(outputFileName);
+    }
+
+    /**
+     * Adds or replaces the entry for the given output file name.
+     */
+    void putPage(String outputFileName, PageEntry pageEntry) {
+        pages.put(outputFileName, pageEntry);
+    }
+
+    /**
+     * Loads the manifest from the given output directory.
+     *
+     * @return {@code null} if there's no manifest file, or if it can't be used (for example, it was written by a
+     *         different Docgen version).
+     */
+    static BuildManifest load(File destDir, DocgenLogger logger) throws IOException {
+        Path file = destDir.toPath().resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            boolean versionChecked = false;
+            BuildManifest manifest = null;
+            String curPageName = null;
+            PageEntry curPage = null;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", -1);
+                String key = fields[0];
+                if (!versionChecked) {
+                    if (!key.equals(K_VERSION) || fields.length != 2) {
+                        return malformed(file, lineNumber, logger);
+                    }
+                    if (!fields[1].equals(FORMAT_VERSION)) {
+                        logger.info("Ignoring " + file + ", as it was written by a different Docgen version.");
+                        return null;
+                    }
+                    versionChecked = true;
+                } else if (key.equals(K_INPUTS) && fields.length == 2 && manifest == null) {
+                    manifest = new BuildManifest(fields[1]);
+                } else if (key.equals(K_PAGE) && fields.length == 3 && manifest != null) {
+                    if (curPage != null) {
+                        manifest.putPage(curPageName, curPage);
+                    }
+                    curPageName = fields[1];
+                    curPage = new PageEntry(fields[2]);
+                } else if (key.equals(K_INSERTED_FILE) && fields.length == 3 && curPage != null) {
+                    curPage.addInsertedFile(fields[1], fields[2]);
+                } else if (key.equals(K_EXECUTES_COMMANDS) && fields.length == 1 && curPage != null) {
+                    curPage.setExecutesCommands(true);
+                } else {
+                    return malformed(file, lineNumber, logger);
+                }
+            }
+            if (manifest == null) {
+                return malformed(file, lineNumber, logger);
+            }
+            if (curPage != null) {
+                manifest.putPage(curPageName, curPage);
+            }
+            return manifest;
+        }
+    }
+
+    private static BuildManifest malformed(Path file, int lineNumber, DocgenLogger logger) {
+        logger.warning("Ignoring malformed " + file + " (problem found in line " + lineNumber + ").");
+        return null;
+    }
+
+    /**
+     * Saves the manifest into the given output directory. The file is replaced atomically, if the file system
+     * allows that.
+     */
+    void save(File destDir) throws IOException {
+        Path file = destDir.toPath().resolve(FILE_NAME);
+        Path tempFile = destDir.toPath().resolve(FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER_LINE);
+            writer.write("\n");
+            writeLine(writer, K_VERSION, FORMAT_VERSION);
+            writeLine(writer, K_INPUTS, inputsFingerprint);
+            for (Entry<String, PageEntry> pageEnt : pages.entrySet()) {
+                PageEntry page = pageEnt.getValue();
+                writeLine(writer, K_PAGE, pageEnt.getKey(), page.getFingerprint());
+                for (Entry<String, String> insertedFileEnt : page.getInsertedFiles().entrySet()) {
+                    writeLine(writer, K_INSERTED_FILE, insertedFileEnt.getKey(), insertedFileEnt.getValue());
+                }
+                if (page.getExecutesCommands()) {
+                    writeLine(writer, K_EXECUTES_COMMANDS);
+                }
+            }
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeLine(Writer writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i];
+            if (field.indexOf('\t') != -1 || field.indexOf('\n') != -1 || field.indexOf('\r') != -1) {
+                throw new DocgenException("Can't store value in " + FILE_NAME + ", as it contains tab or "
+                        + "line-break: " + StringUtil.jQuote(field));
+            }
+            if (i != 0) {
+                writer.write('\t');
+            }
+            writer.write(field);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Deletes the manifest from the given output directory, if it exists.
+     */
+    static void delete(File destDir) throws IOException {
+        Files.deleteIfExists(destDir.toPath().resolve(FILE_NAME));
+    }
+
+    /**
+     * What we know about the inputs of an HTML page.
+     */
+    static final class PageEntry {
+        private final String fingerprint;
+        private final Map<String, String> insertedFiles = new LinkedHashMap<>();
+        private boolean executesCommands;
+
+        PageEntry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * The fingerprint of the part of the document that the page was generated from (including the titles of
+         * the elements it links to).
+         */
+        String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * The files that were inserted with {@code [docgen.insertFile ...]}, mapped to the fingerprint of their
+         * content.
+         */
+        Map<String, String> getInsertedFiles() {
+            return Collections.unmodifiableMap(insertedFiles);
+        }
+
+        void addInsertedFile(String path, String contentFingerprint) {
+            insertedFiles.put(path, contentFingerprint);
+        }
+
+        /**
+         * Whether the page has used {@code [docgen.insertWithOutput ...]} or similar, in which case we can't tell
+         * if the page would be the same, so it has to be generated again.
+         */
+        boolean getExecutesCommands() {
+            return executesCommands;
+        }
+
+        void setExecutesCommands(boolean executesCommands) {
+            this.executesCommands = executesCommands;
+        }
+    }
+
+}
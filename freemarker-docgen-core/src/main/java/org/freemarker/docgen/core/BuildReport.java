@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import freemarker.template.utility.StringUtil;
+
+/**
+ * Collects how long the phases of the output generation take, and how much output they produce. All methods are
+ * thread-safe, as pages can be rendered concurrently.
+ */
+final class BuildReport implements OutputFileListener {
+
+    static final int VERSION = 1;
+
+    /** The phase of generating all HTML pages (wall-clock time); used for calculating the pages per second. */
+    static final String PHASE_HTML_FILES = "htmlFiles";
+    /** The rendering of the individual pages; as pages can be rendered concurrently, this can exceed the wall time. */
+    static final String PHASE_RENDER_PAGE = "renderPage";
+
+    /** The number of slowest pages listed in the report. */
+    private static final int SLOWEST_PAGES_LISTED = 10;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final List<PageTiming> slowestPages = new ArrayList<>();
+    private int pagesGenerated;
+    private int pagesSkipped;
+    private int filesWritten;
+    private long bytesWritten;
+    private int filesUnchanged;
+    private final Map<String, CacheStatistics> caches = new LinkedHashMap<>();
+
+    /**
+     * Starts measuring a phase; use it in a try-with-resources statement. If the same phase is measured for multiple
+     * times, the times are summed. As the timer variable is then never referenced in the body of the {@code try},
+     * the methods doing this suppress the {@code "try"} lint warning.
+     */
+    Timer startPhase(String phaseName) {
+        return new Timer(phaseName);
+    }
+
+    synchronized void addPhaseTime(String phaseName, long nanos) {
+        Phase phase = phases.get(phaseName);
+        if (phase == null) {
+            phase = new Phase(phaseName);
+            phases.put(phaseName, phase);
+        }
+        phase.nanos += nanos;
+        phase.count++;
+    }
+
+    /**
+     * Records the rendering of a single page (with its accompanying pages, if any); the time is also added to the
+     * {@link #PHASE_RENDER_PAGE} phase.
+     */
+    synchronized void addPageRendering(String fileName, int htmlFileCount, long nanos) {
+        addPhaseTime(PHASE_RENDER_PAGE, nanos);
+        pagesGenerated += htmlFileCount;
+
+        slowestPages.add(new PageTiming(fileName, nanos));
+        slowestPages.sort(Comparator.comparingLong((PageTiming it) -> it.nanos).reversed());
+        if (slowestPages.size() > SLOWEST_PAGES_LISTED) {
+            slowestPages.remove(SLOWEST_PAGES_LISTED);
+        }
+    }
+
+    synchronized void addPagesSkipped(int count) {
+        pagesSkipped += count;
+    }
+
+    /**
+     * Records how many times the lookups in a cache were successful. If the same cache is recorded for multiple
+     * times, the counts are summed.
+     */
+    synchronized void addCacheStatistics(String cacheName, int hits, int misses) {
+        CacheStatistics cache = caches.get(cacheName);
+        if (cache == null) {
+            cache = new CacheStatistics(cacheName);
+            caches.put(cacheName, cache);
+        }
+        cache.hits += hits;
+        cache.misses += misses;
+    }
+
+    @Override
+    public synchronized void addWrittenFile(File file) {
+        filesWritten++;
+        bytesWritten += file.length();
+    }
+
+    @Override
+    public synchronized void addUnchangedFile(File file) {
+        filesUnchanged++;
+    }
+
+    synchronized void writeJSON(File file) throws IOException {
+        long totalNanos = System.nanoTime() - startNanos;
+        try (Writer w = FileUtil.newFileWriter(file)) {
+            w.write("{\n");
+            w.write("  \"version\": " + VERSION + ",\n");
+            w.write("  \"totalMillis\": " + formatMillis(totalNanos) + ",\n");
+            w.write("  \"pagesGenerated\": " + pagesGenerated + ",\n");
+            w.write("  \"pagesSkipped\": " + pagesSkipped + ",\n");
+            w.write("  \"pagesPerSecond\": " + formatDecimal(getPagesPerSecond()) + ",\n");
+            w.write("  \"filesWritten\": " + filesWritten + ",\n");
+            w.write("  \"bytesWritten\": " + bytesWritten + ",\n");
+            w.write("  \"filesUnchanged\": " + filesUnchanged + ",\n");
+            w.write("  \"phases\": [");
+            boolean first = true;
+            for (Phase phase : phases.values()) {
+                w.write(first ? "\n" : ",\n");
+                first = false;
+                w.write("    {\"name\": " + jsonString(phase.name)
+                        + ", \"millis\": " + formatMillis(phase.nanos)
+                        + ", \"count\": " + phase.count + "}");
+            }
+            w.write("\n  ],\n");
+            w.write("  \"caches\": [");
+            first = true;
+            for (CacheStatistics cache : caches.values()) {
+                w.write(first ? "\n" : ",\n");
+                first = false;
+                w.write("    {\"name\": " + jsonString(cache.name)
+                        + ", \"hits\": " + cache.hits
+                        + ", \"misses\": " + cache.misses
+                        + ", \"hitPercent\": " + formatDecimal(cache.getHitRate() * 100) + "}");
+            }
+            w.write("\n  ],\n");
+            w.write("  \"slowestPages\": [");
+            first = true;
+            for (PageTiming page : slowestPages) {
+                w.write(first ? "\n" : ",\n");
+                first = false;
+                w.write("    {\"file\": " + jsonString(page.fileName)
+                        + ", \"millis\": " + formatMillis(page.nanos) + "}");
+            }
+            w.write("\n  ]\n");
+            w.write("}\n");
+        }
+    }
+
+    synchronized String formatSummary() {
+        long totalNanos = System.nanoTime() - startNanos;
+        StringBuilder sb = new StringBuilder();
+        sb.append("Build report:\n");
+        sb.append(String.format(Locale.ROOT, "  %-36s %12s %8s%n", "Phase", "Time (ms)", "Count"));
+        for (Phase phase : phases.values()) {
+            sb.append(String.format(Locale.ROOT, "  %-36s %12s %8d%n",
+                    phase.name, formatMillis(phase.nanos), phase.count));
+        }
+        sb.append(String.format(Locale.ROOT, "  %-36s %12s%n", "Total", formatMillis(totalNanos)));
+        sb.append(String.format(Locale.ROOT,
+                "  Pages: %d generated, %d skipped, %s pages/s; %d bytes written in %d files, %d files unchanged",
+                pagesGenerated, pagesSkipped, formatDecimal(getPagesPerSecond()), bytesWritten, filesWritten,
+                filesUnchanged));
+        for (CacheStatistics cache : caches.values()) {
+            if (cache.hits + cache.misses != 0) {
+                sb.append(String.format(Locale.ROOT, "%n  Cache %s: %d hits, %d misses (%s%% hit rate)",
+                        cache.name, cache.hits, cache.misses, formatDecimal(cache.getHitRate() * 100)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private double getPagesPerSecond() {
+        Phase htmlPhase = phases.get(PHASE_HTML_FILES);
+        return htmlPhase == null || htmlPhase.nanos == 0 ? 0 : pagesGenerated / (htmlPhase.nanos / 1e9);
+    }
+
+    private static String formatMillis(long nanos) {
+        return formatDecimal(nanos / 1e6);
+    }
+
+    private static String formatDecimal(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String jsonString(String s) {
+        return "\"" + StringUtil.jsonStringEnc(s) + "\"";
+    }
+
+    final class Timer implements AutoCloseable {
+        private final String phaseName;
+        private final long startNanos = System.nanoTime();
+
+        private Timer(String phaseName) {
+            this.phaseName = phaseName;
+        }
+
+        @Override
+        public void close() {
+            addPhaseTime(phaseName, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static final class Phase {
+        private final String name;
+        private long nanos;
+        private int count;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class CacheStatistics {
+        private final String name;
+        private int hits;
+        private int misses;
+
+        private CacheStatistics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The ratio of hits among all lookups, from 0 to 1.
+         */
+        private double getHitRate() {
+            int lookups = hits + misses;
+            return lookups == 0 ? 0 : hits / (double) lookups;
+        }
+    }
+
+    private static final class PageTiming {
+        private final String fileName;
+        private final long nanos;
+
+        private PageTiming(String fileName, long nanos) {
+            this.fileName = fileName;
+            this.nanos = nanos;
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the stages of the output generation that come after the DOM was built (like the ToC JSON, the pages, and the
+ * copying of the static files), so that each starts as soon as the stages it depends on are done. Thus, stages that
+ * are bound by I/O can overlap with those that are bound by the CPU. The timing of the stages can be printed with
+ * {@link #formatSummary()}.
+ */
+final class BuildTaskGraph {
+
+    private final List<Task> tasks = new ArrayList<>();
+    private int threads;
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * Adds a task; as the dependencies must be added earlier, the order in which the tasks are added is always a
+     * possible order of execution.
+     *
+     * @param dependencies
+     *            The tasks that must be finished before this task starts; {@code null}-s are ignored, which is
+     *            convenient for tasks that are optional.
+     */
+    Task add(String name, Action action, Task... dependencies) {
+        return add(name, false, action, dependencies);
+    }
+
+    /**
+     * Same as {@link #add(String, Action, Task...)}, but the task will always run on the thread that calls
+     * {@link #run(int)}. This is for the tasks that use the DOM; as that isn't safe for concurrent reads (see
+     * {@link DocumentReplica}), such tasks must run one at a time, and so they are kept on the same thread that has
+     * built the DOM, instead of being passed between the threads of the pool.
+     */
+    Task addOnCallingThread(String name, Action action, Task... dependencies) {
+        return add(name, true, action, dependencies);
+    }
+
+    private Task add(String name, boolean onCallingThread, Action action, Task... dependencies) {
+        List<Task> nonNullDependencies = new ArrayList<>();
+        for (Task dependency : dependencies) {
+            if (dependency != null) {
+                if (!tasks.contains(dependency)) {
+                    throw new BugException("Dependency task " + dependency.name + " isn't in this graph");
+                }
+                nonNullDependencies.add(dependency);
+            }
+        }
+        Task task = new Task(name, onCallingThread, action, nonNullDependencies);
+        for (Task dependency : nonNullDependencies) {
+            dependency.dependents.add(task);
+        }
+        tasks.add(task);
+        return task;
+    }
+
+    List<Task> getTasks() {
+        return Collections.unmodifiableList(tasks);
+    }
+
+    /**
+     * Runs all the tasks, and waits until they are finished. If a task fails, the tasks that haven't been started
+     * yet won't be, but the ones already running are waited for, and then the exception of the failed task is thrown.
+     * (If multiple tasks fail, the exception of the one added earliest is thrown.)
+     *
+     * @param threads
+     *            The maximum number of tasks that run concurrently. If 1, the tasks are run on the current thread, in
+     *            the order they were added. Otherwise, the tasks added with
+     *            {@link #addOnCallingThread(String, Action, Task...)} run on the current thread, and the others on a
+     *            thread pool, which has one less thread if there are such tasks.
+     */
+    void run(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, but was " + threads);
+        }
+        threads = Math.min(threads, Math.max(tasks.size(), 1));
+        this.threads = threads;
+        startNanos = System.nanoTime();
+        try {
+            if (threads == 1) {
+                for (Task task : tasks) {
+                    task.run();
+                    if (task.failure != null) {
+                        rethrow(task.failure);
+                    }
+                }
+            } else {
+                new ConcurrentRun(threads).run();
+            }
+        } finally {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * The state of a {@link #run(int)} with multiple threads; all fields are guarded by the monitor of this object.
+     */
+    private final class ConcurrentRun {
+        private final ExecutorService executor;
+        private final Deque<Task> readyOnCallingThread = new ArrayDeque<>();
+        /** The number of tasks that were scheduled, but haven't finished yet. */
+        private int unfinished;
+        private boolean stopScheduling;
+
+        private ConcurrentRun(int threads) {
+            boolean hasTasksOnCallingThread = tasks.stream().anyMatch(task -> task.onCallingThread);
+            executor = Executors.newFixedThreadPool(hasTasksOnCallingThread ? threads - 1 : threads);
+        }
+
+        private void run() throws IOException {
+            try {
+                synchronized (this) {
+                    for (Task task : tasks) {
+                        if (task.dependencies.isEmpty()) {
+                            schedule(task);
+                        }
+                    }
+                }
+
+                while (true) {
+                    Task task;
+                    synchronized (this) {
+                        while (readyOnCallingThread.isEmpty() && unfinished != 0) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                stopScheduling = true;
+                                Thread.currentThread().interrupt();
+                                throw new DocgenException("Interrupted while waiting for build tasks to finish", e);
+                            }
+                        }
+                        task = readyOnCallingThread.poll();
+                    }
+                    if (task == null) {
+                        break;
+                    }
+                    task.run();
+                    synchronized (this) {
+                        onFinished(task);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            synchronized (this) {
+                for (Task task : tasks) {
+                    if (task.failure != null) {
+                        rethrow(task.failure);
+                    }
+                }
+            }
+        }
+
+        private void schedule(Task task) {
+            unfinished++;
+            if (task.onCallingThread) {
+                readyOnCallingThread.add(task);
+            } else {
+                executor.execute(() -> {
+                    task.run();
+                    synchronized (this) {
+                        onFinished(task);
+                    }
+                });
+            }
+        }
+
+        private void onFinished(Task task) {
+            unfinished--;
+            if (task.failure != null && !stopScheduling) {
+                stopScheduling = true;
+                unfinished -= readyOnCallingThread.size();
+                readyOnCallingThread.clear();
+            }
+            if (!stopScheduling) {
+                for (Task dependent : task.dependents) {
+                    if (++dependent.finishedDependencies == dependent.dependencies.size()) {
+                        schedule(dependent);
+                    }
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new BugException("Unexpected exception in build task", failure);
+    }
+
+    /**
+     * Formats the task graph, and the timing of the tasks, for the log; call it after {@link #run(int)}.
+     */
+    String formatSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Build tasks (%d thread%s, %s ms):%n",
+                threads, threads == 1 ? "" : "s", formatMillis(endNanos - startNanos)));
+        sb.append(String.format(Locale.ROOT, "  %-20s %-36s %10s %10s",
+                "Task", "Depends on", "Start (ms)", "Time (ms)"));
+        for (Task task : tasks) {
+            String dependencies = task.dependencies.isEmpty()
+                    ? "-"
+                    : task.dependencies.stream().map(it -> it.name).collect(Collectors.joining(", "));
+            sb.append(String.format(Locale.ROOT, "%n  %-20s %-36s %10s %10s",
+                    task.name, dependencies,
+                    task.endNanos != 0 ? formatMillis(task.startNanos - startNanos) : "-",
+                    task.endNanos != 0 ? formatMillis(task.endNanos - task.startNanos) : "not run"));
+        }
+        return sb.toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    @FunctionalInterface
+    interface Action {
+        void run() throws IOException;
+    }
+
+    static final class Task {
+        private final String name;
+        private final boolean onCallingThread;
+        private final Action action;
+        private final List<Task> dependencies;
+        private final List<Task> dependents = new ArrayList<>();
+        /** Guarded by the {@link ConcurrentRun} during concurrent execution. */
+        private int finishedDependencies;
+        // These are written by the thread that runs the task, and read after the task was finished:
+        private long startNanos;
+        private long endNanos;
+        private Throwable failure;
+
+        private Task(String name, boolean onCallingThread, Action action, List<Task> dependencies) {
+            this.name = name;
+            this.onCallingThread = onCallingThread;
+            this.action = action;
+            this.dependencies = dependencies;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<Task> getDependencies() {
+            return Collections.unmodifiableList(dependencies);
+        }
+
+        private void run() {
+            startNanos = System.nanoTime();
+            try {
+                action.run();
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                endNanos = System.nanoTime();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+}
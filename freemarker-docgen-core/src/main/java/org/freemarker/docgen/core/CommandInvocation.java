@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A command to execute for {@code [docgen.insertWithOutput]} or {@code [docgen.checkCommand]}, with everything
+ * resolved that's needed to execute it. Two invocations are equal if they execute the same command with the same
+ * arguments and system properties, in which case their output is assumed to be the same too.
+ */
+final class CommandInvocation {
+
+    private final String cmdKey;
+    private final Transform.InsertableOutputCommandProperties cmdProps;
+    private final Method mainMethod;
+    private final List<String> cmdArgs;
+    private final Map<String, String> directiveSystemProperties;
+
+    /**
+     * @param mainMethod
+     *            The already validated main method of the command.
+     * @param cmdArgs
+     *            The final arguments, after adding the prepended and appended arguments, and substituting
+     *            {@code [docgen.wd]}.
+     * @param directiveSystemProperties
+     *            The system properties set with the {@code systemProperties} parameter of the directive, or
+     *            {@code null}.
+     */
+    CommandInvocation(
+            String cmdKey, Transform.InsertableOutputCommandProperties cmdProps, Method mainMethod,
+            List<String> cmdArgs, Map<String, String> directiveSystemProperties) {
+        this.cmdKey = cmdKey;
+        this.cmdProps = cmdProps;
+        this.mainMethod = mainMethod;
+        this.cmdArgs = cmdArgs;
+        this.directiveSystemProperties = directiveSystemProperties != null
+                ? directiveSystemProperties : Collections.emptyMap();
+    }
+
+    String getCmdKey() {
+        return cmdKey;
+    }
+
+    Transform.InsertableOutputCommandProperties getCmdProps() {
+        return cmdProps;
+    }
+
+    Method getMainMethod() {
+        return mainMethod;
+    }
+
+    List<String> getCmdArgs() {
+        return cmdArgs;
+    }
+
+    Map<String, String> getDirectiveSystemProperties() {
+        return directiveSystemProperties;
+    }
+
+    /**
+     * The system properties to set during the execution of the command, in the order they have to be set; the
+     * properties set by the directive come after (and so override) those coming from the settings. A {@code null}
+     * value means that the system property has to be cleared.
+     */
+    Map<String, String> getEffectiveSystemProperties() {
+        Map<String, String> systemProperties = new LinkedHashMap<>(cmdProps.getSystemProperties());
+        systemProperties.putAll(directiveSystemProperties);
+        return systemProperties;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        CommandInvocation that = (CommandInvocation) o;
+        return cmdKey.equals(that.cmdKey)
+                && cmdArgs.equals(that.cmdArgs)
+                && directiveSystemProperties.equals(that.directiveSystemProperties);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(cmdKey, cmdArgs, directiveSystemProperties);
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the output of the commands inserted with {@code [docgen.insertWithOutput]} (and checked with
+ * {@code [docgen.checkCommand]}) in a directory, so that later builds needn't execute them again. The entries are
+ * content-addressed, that is, the file name is the hash of everything that the output can depend on (as far as we can
+ * tell); see {@link #computeKey(String, Transform.InsertableOutputCommandProperties, Class, List, Map)}. So entries
+ * never have to be invalidated, but the unused ones must be evicted with {@link #evict()}, which deletes the least
+ * recently used entries when the total size exceeds the limit.
+ *
+ * <p>The output of failed commands isn't stored. All methods are thread-safe, and multiple processes can use the same
+ * cache directory at the same time.
+ */
+final class CommandOutputCache {
+
+    /** Increase this if the way the entries are stored, or what's part of the key, has changed. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** The name used in the {@link BuildReport}. */
+    static final String CACHE_NAME = "commandOutput";
+
+    private static final String ENTRY_FILE_NAME_SUFFIX = ".out";
+    private static final String TEMP_FILE_NAME_SUFFIX = ".tmp";
+
+    /**
+     * The content hash of the class path entry files, shared by all instances, so that the same jar-s aren't hashed
+     * again and again (in watch mode, or if multiple books are built in the same JVM).
+     */
+    private static final Map<Path, FileHash> CLASS_PATH_FILE_HASHES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxSize;
+
+    /** As directories can change without their last modification time changing, these are only hashed once per build. */
+    private final Map<Path, String> directoryHashes = new ConcurrentHashMap<>();
+    private final Map<Class<?>, String> classPathHashes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger stores = new AtomicInteger();
+    private int evictedEntries;
+    private int remainingEntries;
+    private long remainingSize;
+
+    /**
+     * @param directory
+     *            The directory where the entries are stored; created if it doesn't exist.
+     * @param maxSize
+     *            The maximum total size of the entries in bytes, that's enforced by {@link #evict()}.
+     */
+    CommandOutputCache(File directory, long maxSize) throws IOException {
+        this.directory = directory.toPath().toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+        Files.createDirectories(this.directory);
+    }
+
+    /**
+     * Computes the cache key of a command execution. This contains the command key, the main class and method, the
+     * arguments (after the prepended and appended arguments were added, and {@code [docgen.wd]} was substituted), the
+     * system properties set for the command, the content of the {@code docgenWdReplacedWith} directory, the content of
+     * the class path entries from where the main class can load classes, and the Java version.
+     *
+     * @param directiveSystemProperties
+     *            The system properties set with the {@code systemProperties} parameter of the directive; can be
+     *            {@code null}. Values can be {@code null}, which means that the system property is cleared.
+     */
+    String computeKey(
+            String cmdKey, Transform.InsertableOutputCommandProperties cmdProps, Class<?> mainClass,
+            List<String> cmdArgs, Map<String, String> directiveSystemProperties) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(FORMAT_VERSION);
+
+        fingerprint.add(cmdKey);
+        fingerprint.add(cmdProps.getMainClassName());
+        fingerprint.add(cmdProps.getMainMethodName());
+
+        fingerprint.add(cmdArgs.size());
+        for (String cmdArg : cmdArgs) {
+            fingerprint.add(cmdArg);
+        }
+
+        addSystemProperties(fingerprint, cmdProps.getSystemProperties());
+        addSystemProperties(fingerprint, directiveSystemProperties);
+
+        Path wdSubst = cmdProps.getWdSubstitution();
+        fingerprint.add(wdSubst != null ? wdSubst.toString() : null);
+        if (wdSubst != null) {
+            fingerprint.add(getDirectoryHash(wdSubst));
+        }
+
+        fingerprint.add(getClassPathHash(mainClass));
+
+        fingerprint.add(System.getProperty("java.version"));
+        // The output of the command is decoded with this:
+        fingerprint.add(Charset.defaultCharset().name());
+
+        return fingerprint.getHash();
+    }
+
+    private static void addSystemProperties(Fingerprint fingerprint, Map<String, String> systemProperties) {
+        if (systemProperties == null) {
+            fingerprint.add(0);
+            return;
+        }
+        Map<String, String> sortedSystemProperties = new TreeMap<>(systemProperties);
+        fingerprint.add(sortedSystemProperties.size());
+        sortedSystemProperties.forEach((name, value) -> {
+            fingerprint.add(name);
+            fingerprint.add(value);
+        });
+    }
+
+    private String getDirectoryHash(Path dir) throws IOException {
+        String hash = directoryHashes.get(dir);
+        if (hash == null) {
+            Fingerprint fingerprint = new Fingerprint();
+            fingerprint.add(Files.isDirectory(dir));
+            if (Files.isDirectory(dir)) {
+                fingerprint.addDirectoryContent(dir);
+            }
+            hash = fingerprint.getHash();
+            directoryHashes.put(dir, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes the content of the class path entries that are visible for the class (see
+     * {@link CommandRunner#getClassPath(Class)}). This might contain some entries that the command doesn't use, but
+     * that only means that the cache is invalidated more often than necessary.
+     */
+    private String getClassPathHash(Class<?> mainClass) throws IOException {
+        String hash = classPathHashes.get(mainClass);
+        if (hash == null) {
+            Fingerprint fingerprint = new Fingerprint();
+            for (Path classPathEntry : CommandRunner.getClassPath(mainClass)) {
+                fingerprint.add(classPathEntry.toString());
+                if (Files.isDirectory(classPathEntry)) {
+                    fingerprint.add(getDirectoryHash(classPathEntry));
+                } else if (Files.isRegularFile(classPathEntry)) {
+                    fingerprint.add(getFileHash(classPathEntry));
+                } else {
+                    fingerprint.add(null);
+                }
+            }
+            hash = fingerprint.getHash();
+            classPathHashes.put(mainClass, hash);
+        }
+        return hash;
+    }
+
+    private static String getFileHash(Path file) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        FileHash fileHash = CLASS_PATH_FILE_HASHES.get(file);
+        if (fileHash == null || fileHash.size != size || fileHash.lastModified != lastModified) {
+            fileHash = new FileHash(size, lastModified, new Fingerprint().addFileContent(file).getHash());
+            CLASS_PATH_FILE_HASHES.put(file, fileHash);
+        }
+        return fileHash.hash;
+    }
+
+    /**
+     * Returns the stored output for the key, or {@code null} if there's no such entry. Also marks the entry as
+     * recently used.
+     */
+    String get(String key) throws IOException {
+        Path entryFile = getEntryFile(key);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(entryFile);
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entryFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects which entries are evicted first
+        }
+        hits.incrementAndGet();
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores the output for the key, replacing the earlier entry, if there was any.
+     */
+    void put(String key, String output) throws IOException {
+        Path entryFile = getEntryFile(key);
+        // Other processes may write the same entry concurrently, so we need a unique temporary file:
+        Path tempFile = Files.createTempFile(directory, key, TEMP_FILE_NAME_SUFFIX);
+        try {
+            Files.write(tempFile, output.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, entryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        stores.incrementAndGet();
+    }
+
+    private Path getEntryFile(String key) {
+        return directory.resolve(key + ENTRY_FILE_NAME_SUFFIX);
+    }
+
+    /**
+     * Deletes the least recently used entries, until the total size of the entries doesn't exceed the maximum size.
+     * Call this after the build, so that the entries used during it count as recently used.
+     */
+    synchronized void evict() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ENTRY_FILE_NAME_SUFFIX)) {
+            for (Path file : files) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue; // Deleted concurrently
+                }
+                if (attrs.isRegularFile()) {
+                    entries.add(new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+            }
+        }
+        entries.sort(Comparator.comparingLong((Entry it) -> it.lastModified).reversed());
+
+        long totalSize = 0;
+        int keptEntries = 0;
+        for (Entry entry : entries) {
+            if (totalSize + entry.size <= maxSize) {
+                totalSize += entry.size;
+                keptEntries++;
+            } else {
+                Files.deleteIfExists(entry.file);
+                evictedEntries++;
+            }
+        }
+        remainingEntries = keptEntries;
+        remainingSize = totalSize;
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    int getStores() {
+        return stores.get();
+    }
+
+    synchronized int getEvictedEntries() {
+        return evictedEntries;
+    }
+
+    /**
+     * Returns a one-line summary of the hits and misses, and of the last {@link #evict()}, for the build log.
+     */
+    synchronized String formatStatistics() {
+        int hits = getHits();
+        int lookups = hits + getMisses();
+        return String.format(Locale.ROOT,
+                "Command output cache: %d hits, %d misses (%.1f%% hit rate), %d stored, %d evicted; "
+                        + "%d entries, %d bytes in %s",
+                hits, getMisses(), lookups != 0 ? hits * 100.0 / lookups : 0.0, getStores(), evictedEntries,
+                remainingEntries, remainingSize, directory);
+    }
+
+    private static final class FileHash {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        private FileHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(Path file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
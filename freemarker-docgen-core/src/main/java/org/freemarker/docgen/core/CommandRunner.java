@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.input.ClosedInputStream;
+
+/**
+ * Executes the commands of {@code [docgen.insertWithOutput]} and {@code [docgen.checkCommand]}, using the
+ * {@link CommandOutputCache} if there's one. By default the commands are executed in the Docgen JVM, where they can't
+ * run concurrently, as {@link System#out} and such are global. If there are command workers (see
+ * {@link Transform#setCommandWorkers(int)}), then the commands are executed in a pool of forked JVM-s
+ * ({@link CommandWorkerPool}), and can be started in the background with {@link #start(CommandInvocation)} before
+ * the pages are rendered. All methods are thread-safe.
+ */
+final class CommandRunner implements Closeable {
+
+    // System.out, System.err, System.in, and the system properties are global, so commands can't run concurrently in
+    // the same JVM, even if pages are rendered concurrently:
+    private static final Object COMMAND_EXECUTION_LOCK = new Object();
+
+    private final CommandOutputCache cache;
+    private final CommandWorkerPool workerPool;
+    /** {@code null} if there's no {@link #workerPool}. */
+    private final ExecutorService executor;
+    private final Map<CommandInvocation, Future<Result>> startedInvocations = new ConcurrentHashMap<>();
+
+    /**
+     * @param cache
+     *            {@code null} if the command output shouldn't be cached.
+     * @param workers
+     *            The maximum number of forked JVM-s to execute the commands in, or 0 if the commands should be
+     *            executed in the current JVM.
+     */
+    CommandRunner(CommandOutputCache cache, int workers) {
+        this.cache = cache;
+        if (workers > 0) {
+            workerPool = new CommandWorkerPool(workers);
+            executor = Executors.newFixedThreadPool(workers, runnable -> {
+                Thread thread = new Thread(runnable, "docgen-command-starter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            workerPool = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Tells if {@link #start(CommandInvocation)} does anything.
+     */
+    boolean canStartInBackground() {
+        return executor != null;
+    }
+
+    /**
+     * Starts executing the command in the background, if the commands can be executed concurrently, so that a later
+     * {@link #run(CommandInvocation)} call with an equal invocation finds the result ready. Starting the same
+     * invocation for multiple times only executes it once.
+     */
+    void start(CommandInvocation invocation) {
+        if (executor == null) {
+            return;
+        }
+        startedInvocations.computeIfAbsent(invocation, it -> executor.submit(() -> execute(it)));
+    }
+
+    /**
+     * Returns the result of the command; either the result of the execution started earlier with
+     * {@link #start(CommandInvocation)}, or executes the command now.
+     */
+    Result run(CommandInvocation invocation) throws IOException {
+        Future<Result> future = startedInvocations.get(invocation);
+        if (future == null) {
+            return execute(invocation);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocgenException("Interrupted while waiting for a command to finish", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BugException("Unexpected exception during command execution", cause);
+        }
+    }
+
+    private Result execute(CommandInvocation invocation) throws IOException {
+        String cacheKey;
+        if (cache != null) {
+            cacheKey = cache.computeKey(
+                    invocation.getCmdKey(), invocation.getCmdProps(),
+                    invocation.getMainMethod().getDeclaringClass(),
+                    invocation.getCmdArgs(), invocation.getDirectiveSystemProperties());
+            String cachedOutput = cache.get(cacheKey);
+            if (cachedOutput != null) {
+                return new Result(cachedOutput, null, null);
+            }
+        } else {
+            cacheKey = null;
+        }
+
+        Result result = workerPool != null
+                ? workerPool.execute(invocation)
+                : invokeMainMethod(
+                        invocation.getMainMethod(), invocation.getCmdArgs(),
+                        invocation.getEffectiveSystemProperties());
+
+        if (cacheKey != null && result.isSuccessful()) {
+            cache.put(cacheKey, result.getOutput());
+        }
+        return result;
+    }
+
+    /**
+     * Invokes the main method of a command in the current JVM, and captures what it prints to the standard output and
+     * error. The main method is invoked while holding a global lock, so only one command runs at once.
+     *
+     * @param systemProperties
+     *            The system properties to set during the execution (and then restore); {@code null} values mean that
+     *            the system property has to be cleared.
+     */
+    static Result invokeMainMethod(Method mainMethod, List<String> cmdArgs, Map<String, String> systemProperties) {
+        synchronized (COMMAND_EXECUTION_LOCK) {
+            PrintStream prevOut = System.out;
+            PrintStream prevErr = System.err;
+            InputStream prevIn = System.in;
+            Map<String, String> prevSystemProperties = new HashMap<>();
+            try {
+                ByteArrayOutputStream outCapturer = new ByteArrayOutputStream();
+                PrintStream outCapturerPrintStream = new PrintStream(outCapturer);
+                System.setOut(outCapturerPrintStream);
+                System.setErr(outCapturerPrintStream);
+                System.setIn(ClosedInputStream.INSTANCE);
+
+                systemProperties.forEach((k, v) -> {
+                    String prevValue = setOrClearSystemProperty(k, v);
+                    prevSystemProperties.putIfAbsent(k, prevValue);
+                });
+
+                Object cmdExitCode;
+                Exception cmdException;
+                try {
+                    cmdExitCode = mainMethod.invoke(null, (Object) cmdArgs.toArray(new String[0]));
+                    cmdException = null;
+                } catch (Exception e) {
+                    cmdExitCode = null;
+                    cmdException = e;
+                }
+
+                outCapturerPrintStream.flush();
+                return new Result(
+                        outCapturer.toString(Charset.defaultCharset()),
+                        cmdExitCode instanceof Integer ? (Integer) cmdExitCode : null,
+                        cmdException);
+            } finally {
+                prevSystemProperties.forEach(CommandRunner::setOrClearSystemProperty);
+                System.setIn(prevIn);
+                System.setErr(prevErr);
+                System.setOut(prevOut);
+            }
+        }
+    }
+
+    private static String setOrClearSystemProperty(String k, String v) {
+        return v != null ? System.setProperty(k, v) : System.clearProperty(k);
+    }
+
+    /**
+     * Returns the class path entries from where the class can load classes, as far as we can tell: the one from where
+     * the class was loaded, the URL-s of the {@link URLClassLoader}-s in the class loader hierarchy, and the entries of
+     * the {@code java.class.path} system property.
+     */
+    static Set<Path> getClassPath(Class<?> cl) {
+        Set<Path> classPath = new LinkedHashSet<>();
+
+        CodeSource codeSource = cl.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            addClassPathEntry(classPath, codeSource.getLocation());
+        }
+
+        for (ClassLoader classLoader = cl.getClassLoader(); classLoader != null;
+                classLoader = classLoader.getParent()) {
+            if (classLoader instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                    addClassPathEntry(classPath, url);
+                }
+            }
+        }
+
+        String javaClassPath = System.getProperty("java.class.path");
+        if (javaClassPath != null) {
+            for (String classPathEntry : javaClassPath.split(File.pathSeparator)) {
+                if (!classPathEntry.isEmpty()) {
+                    classPath.add(Paths.get(classPathEntry).toAbsolutePath().normalize());
+                }
+            }
+        }
+
+        return classPath;
+    }
+
+    private static void addClassPathEntry(Set<Path> classPath, URL url) {
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return;
+        }
+        try {
+            classPath.add(Paths.get(url.toURI()).toAbsolutePath().normalize());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // Not a local file; ignore it
+        }
+    }
+
+    /**
+     * Stops the command executions that weren't finished yet, and the command workers.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (workerPool != null) {
+            workerPool.close();
+        }
+    }
+
+    /**
+     * The outcome of a command execution.
+     */
+    static final class Result {
+        private final String output;
+        private final Integer exitCode;
+        private final Exception exception;
+
+        /**
+         * @param exitCode
+         *            {@code null} if the main method has thrown exception, or has {@code void} return type.
+         * @param exception
+         *            {@code null} if the main method has returned normally.
+         */
+        Result(String output, Integer exitCode, Exception exception) {
+            this.output = output;
+            this.exitCode = exitCode;
+            this.exception = exception;
+        }
+
+        /**
+         * What the command has printed to the standard output and error (until it has failed, if it has failed).
+         */
+        String getOutput() {
+            return output;
+        }
+
+        Integer getExitCode() {
+            return exitCode;
+        }
+
+        Exception getException() {
+            return exception;
+        }
+
+        boolean isSuccessful() {
+            return exception == null && (exitCode == null || exitCode == 0);
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The main class of the forked JVM-s that {@link CommandWorkerPool} uses to execute commands. It reads the command
+ * invocations from the standard input, and writes the results to the standard output, one after the other, until
+ * the standard input is closed. What the commands print is captured by
+ * {@link CommandRunner#invokeMainMethod(Method, List, Map)}, so it doesn't interfere with the responses.
+ *
+ * <p>This isn't a public API; it's only public so that it can be launched.
+ */
+public final class CommandWorker {
+
+    private static final int RESULT_RETURNED = 0;
+    private static final int RESULT_THROWN = 1;
+
+    private CommandWorker() {
+        // Not meant to be instantiated
+    }
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // Nothing else may write to the standard output, as that's where the responses go:
+        System.setOut(System.err);
+
+        while (true) {
+            String mainClassName;
+            try {
+                mainClassName = readString(in);
+            } catch (EOFException e) {
+                return; // The Docgen JVM has closed the worker
+            }
+            String mainMethodName = readString(in);
+            int argCount = in.readInt();
+            List<String> cmdArgs = new ArrayList<>(argCount);
+            for (int i = 0; i < argCount; i++) {
+                cmdArgs.add(readString(in));
+            }
+            int systemPropertyCount = in.readInt();
+            Map<String, String> systemProperties = new LinkedHashMap<>();
+            for (int i = 0; i < systemPropertyCount; i++) {
+                systemProperties.put(readString(in), readString(in));
+            }
+
+            CommandRunner.Result result;
+            try {
+                Method mainMethod = Class.forName(mainClassName).getMethod(mainMethodName, String[].class);
+                result = CommandRunner.invokeMainMethod(mainMethod, cmdArgs, systemProperties);
+            } catch (ReflectiveOperationException e) {
+                result = new CommandRunner.Result("", null, e);
+            }
+            writeResult(out, result);
+            out.flush();
+        }
+    }
+
+    static void writeInvocation(DataOutputStream out, CommandInvocation invocation) throws IOException {
+        Transform.InsertableOutputCommandProperties cmdProps = invocation.getCmdProps();
+        writeString(out, cmdProps.getMainClassName());
+        writeString(out, cmdProps.getMainMethodName());
+        List<String> cmdArgs = invocation.getCmdArgs();
+        out.writeInt(cmdArgs.size());
+        for (String cmdArg : cmdArgs) {
+            writeString(out, cmdArg);
+        }
+        Map<String, String> systemProperties = invocation.getEffectiveSystemProperties();
+        out.writeInt(systemProperties.size());
+        for (Map.Entry<String, String> systemProperty : systemProperties.entrySet()) {
+            writeString(out, systemProperty.getKey());
+            writeString(out, systemProperty.getValue());
+        }
+    }
+
+    private static void writeResult(DataOutputStream out, CommandRunner.Result result) throws IOException {
+        writeString(out, result.getOutput());
+        Exception exception = result.getException();
+        if (exception == null) {
+            out.writeByte(RESULT_RETURNED);
+            Integer exitCode = result.getExitCode();
+            out.writeBoolean(exitCode != null);
+            if (exitCode != null) {
+                out.writeInt(exitCode);
+            }
+        } else {
+            out.writeByte(RESULT_THROWN);
+            writeString(out, exception.toString());
+            byte[] serializedException;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream objOut = new ObjectOutputStream(bytes)) {
+                    objOut.writeObject(exception);
+                }
+                serializedException = bytes.toByteArray();
+            } catch (IOException e) {
+                serializedException = new byte[0]; // Not serializable; the toString() will be used
+            }
+            out.writeInt(serializedException.length);
+            out.write(serializedException);
+        }
+    }
+
+    static CommandRunner.Result readResult(DataInputStream in) throws IOException {
+        String output = readString(in);
+        int resultType = in.readByte();
+        if (resultType == RESULT_RETURNED) {
+            Integer exitCode = in.readBoolean() ? in.readInt() : null;
+            return new CommandRunner.Result(output, exitCode, null);
+        } else if (resultType == RESULT_THROWN) {
+            String exceptionDescription = readString(in);
+            byte[] serializedException = new byte[in.readInt()];
+            in.readFully(serializedException);
+            return new CommandRunner.Result(
+                    output, null, deserializeException(serializedException, exceptionDescription));
+        } else {
+            throw new IOException("Malformed response from command worker; unknown result type: " + resultType);
+        }
+    }
+
+    private static Exception deserializeException(byte[] serializedException, String exceptionDescription) {
+        if (serializedException.length != 0) {
+            try (ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(serializedException)) {
+                @Override
+                protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                    return Class.forName(desc.getName(), false, CommandWorker.class.getClassLoader());
+                }
+            }) {
+                return (Exception) objIn.readObject();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // Fall back to the description
+            }
+        }
+        return new ForkedCommandException(exceptionDescription);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stands for an exception thrown in the command worker JVM that couldn't be transferred to the Docgen JVM.
+     */
+    static final class ForkedCommandException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String description;
+
+        ForkedCommandException(String description) {
+            super(description);
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+}
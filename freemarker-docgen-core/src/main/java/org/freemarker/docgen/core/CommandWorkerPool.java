@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Executes commands in forked JVM-s (running {@link CommandWorker}), so that they can run concurrently, and can't
+ * interfere with the Docgen JVM (like by calling {@link System#exit(int)}). The JVM-s are started lazily, up to the
+ * maximum number of workers, and are reused for multiple commands. Each worker JVM executes one command at a time.
+ */
+final class CommandWorkerPool implements Closeable {
+
+    private static final long WORKER_EXIT_TIMEOUT_MILLIS = 5000;
+
+    private final int maxWorkers;
+    private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+    /** All live workers, idle or not; guarded by {@code this}. */
+    private final List<Worker> workers = new ArrayList<>();
+    /** Guarded by {@code this}. */
+    private boolean closed;
+
+    CommandWorkerPool(int maxWorkers) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be at least 1, but was " + maxWorkers);
+        }
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * Executes the command on an idle worker; waits for one if all are busy. If the worker JVM dies during the
+     * execution, that's reported in the result as the exception of the command, and the worker is replaced.
+     */
+    CommandRunner.Result execute(CommandInvocation invocation) throws IOException {
+        Worker worker = acquireWorker();
+        boolean workerUsable = false;
+        try {
+            CommandRunner.Result result;
+            try {
+                result = worker.execute(invocation);
+            } catch (IOException e) {
+                return new CommandRunner.Result(
+                        "", null,
+                        new IOException("The command worker JVM has terminated unexpectedly (maybe the command has "
+                                + "called System.exit).", e));
+            }
+            workerUsable = true;
+            return result;
+        } finally {
+            if (workerUsable) {
+                idleWorkers.add(worker);
+            } else {
+                discardWorker(worker);
+            }
+        }
+    }
+
+    private Worker acquireWorker() throws IOException {
+        while (true) {
+            Worker worker;
+            try {
+                worker = idleWorkers.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an idle command worker");
+            }
+            if (worker != null) {
+                return worker;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The command worker pool was already closed");
+                }
+                if (workers.size() < maxWorkers) {
+                    worker = new Worker();
+                    workers.add(worker);
+                    return worker;
+                }
+            }
+        }
+    }
+
+    private void discardWorker(Worker worker) {
+        synchronized (this) {
+            workers.remove(worker);
+        }
+        worker.close();
+    }
+
+    /**
+     * Closes all workers; the commands being executed at the moment will fail.
+     */
+    @Override
+    public void close() {
+        List<Worker> workersToClose;
+        synchronized (this) {
+            closed = true;
+            workersToClose = new ArrayList<>(workers);
+            workers.clear();
+        }
+        idleWorkers.clear();
+        for (Worker worker : workersToClose) {
+            worker.close();
+        }
+    }
+
+    private static List<String> getWorkerCommandLine() {
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        commandLine.add("-cp");
+        commandLine.add(CommandRunner.getClassPath(CommandWorker.class).stream()
+                .map(Path::toString)
+                .collect(Collectors.joining(File.pathSeparator)));
+        // The output of the commands is decoded with the default charset, like in the Docgen JVM:
+        commandLine.add("-Dfile.encoding=" + Charset.defaultCharset().name());
+        commandLine.add(CommandWorker.class.getName());
+        return commandLine;
+    }
+
+    private static final class Worker {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private Worker() throws IOException {
+            process = new ProcessBuilder(getWorkerCommandLine())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        private CommandRunner.Result execute(CommandInvocation invocation) throws IOException {
+            CommandWorker.writeInvocation(out, invocation);
+            out.flush();
+            return CommandWorker.readResult(in);
+        }
+
+        private void close() {
+            try {
+                // The worker exits when its standard input is closed:
+                out.close();
+            } catch (IOException e) {
+                // Will be destroyed below
+            }
+            try {
+                if (!process.waitFor(WORKER_EXIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
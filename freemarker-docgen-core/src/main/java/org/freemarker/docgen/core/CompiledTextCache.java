@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.freemarker.docgen.core.PrintTextWithDocgenSubstitutionsDirective.CompiledText;
+
+/**
+ * Caches the texts compiled by {@link PrintTextWithDocgenSubstitutionsDirective}, keyed by the text. As the texts come
+ * from the nodes of the loaded document, lookups usually find the very same {@link String} object, so they are cheap.
+ * The cache lives as long as the {@link Transform}, so in watch mode the output generations after the first reuse the
+ * compiled texts. To not grow without limit as the book is edited, only the entries used in the current or in the
+ * previous output generation are kept. All methods are thread-safe.
+ */
+final class CompiledTextCache {
+
+    static final String CACHE_NAME = "compiledText";
+
+    private volatile Map<String, CompiledText> currentGeneration = new ConcurrentHashMap<>();
+    private volatile Map<String, CompiledText> previousGeneration = Collections.emptyMap();
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Returns the compiled text from the cache, or compiles it with the {@code compiler} and caches it.
+     */
+    CompiledText get(String text, Function<String, CompiledText> compiler) {
+        Map<String, CompiledText> currentGeneration = this.currentGeneration;
+        CompiledText compiledText = currentGeneration.get(text);
+        if (compiledText == null) {
+            compiledText = previousGeneration.get(text);
+            if (compiledText == null) {
+                misses.incrementAndGet();
+                compiledText = compiler.apply(text);
+            } else {
+                hits.incrementAndGet();
+            }
+            currentGeneration.put(text, compiledText);
+        } else {
+            hits.incrementAndGet();
+        }
+        return compiledText;
+    }
+
+    /**
+     * Called when a new output generation starts; drops the entries that weren't used in the last output generation,
+     * and resets the statistics.
+     */
+    void startGeneration() {
+        previousGeneration = currentGeneration;
+        currentGeneration = new ConcurrentHashMap<>();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    int size() {
+        return currentGeneration.size();
+    }
+
+    void addStatisticsTo(BuildReport report) {
+        report.addCacheStatistics(CACHE_NAME, hits.get(), misses.get());
+    }
+
+}
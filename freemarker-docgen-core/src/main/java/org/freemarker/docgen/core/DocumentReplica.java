@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A copy of the preprocessed DOM that's used by one page rendering thread at a time. This is needed as W3C DOM
+ * implementations (Xerces included) aren't safe for concurrent reading; for example, {@code NodeList}-s cache the
+ * last accessed position. The {@link Element}-s of the copy are mapped to the {@link Element}-s of the original
+ * document and back, so the lookup tables built during the preprocessing (which refer to the original nodes) can be
+ * used with any copy.
+ */
+final class DocumentReplica {
+
+    private final Document document;
+    /** {@code null} if this is not a copy, but the original document. */
+    private final Map<Element, Element> originalToReplica;
+    /** {@code null} if this is not a copy, but the original document. */
+    private final Map<Element, Element> replicaToOriginal;
+
+    private DocumentReplica(
+            Document document,
+            Map<Element, Element> originalToReplica, Map<Element, Element> replicaToOriginal) {
+        this.document = document;
+        this.originalToReplica = originalToReplica;
+        this.replicaToOriginal = replicaToOriginal;
+    }
+
+    /**
+     * Creates a "replica" that's just the original document itself; used when rendering happens on a single thread.
+     */
+    static DocumentReplica ofOriginal(Document doc) {
+        return new DocumentReplica(doc, null, null);
+    }
+
+    /**
+     * Creates a deep copy of the document. The original document must not be modified meanwhile; reading it from
+     * other threads is fine, as only the sibling and parent links and the attributes are read from it.
+     */
+    static DocumentReplica copyOf(Document doc) {
+        Document copy = (Document) doc.cloneNode(true);
+        XMLUtil.copyLoadedResources(doc, copy);
+        Map<Element, Element> originalToReplica = new IdentityHashMap<>();
+        Map<Element, Element> replicaToOriginal = new IdentityHashMap<>();
+        mapElements(doc, copy, originalToReplica, replicaToOriginal);
+        return new DocumentReplica(copy, originalToReplica, replicaToOriginal);
+    }
+
+    /**
+     * Creates a deep copy of the document that's independent of the original, like for generating another variant of
+     * the output from it (see {@link SharedDocumentSource}). The same restrictions apply as for {@link #copyOf}.
+     */
+    static Document copyDocument(Document doc) {
+        Document copy = (Document) doc.cloneNode(true);
+        XMLUtil.copyLoadedResources(doc, copy);
+        mapElements(doc, copy, null, null);
+        return copy;
+    }
+
+    /**
+     * @param originalToReplica
+     *            {@code null} if only the element locations are to be copied
+     * @param replicaToOriginal
+     *            {@code null} if only the element locations are to be copied
+     */
+    private static void mapElements(
+            Node original, Node replica,
+            Map<Element, Element> originalToReplica, Map<Element, Element> replicaToOriginal) {
+        if (original instanceof Element) {
+            Element originalElem = (Element) original;
+            Element replicaElem = (Element) replica;
+            if (originalToReplica != null) {
+                originalToReplica.put(originalElem, replicaElem);
+                replicaToOriginal.put(replicaElem, originalElem);
+            }
+
+            // User data isn't cloned, but we need the locations for the error messages:
+            Object location = originalElem.getUserData(ValidatingDOMBuilderWithLocations.KEY_LOCATION);
+            if (location != null) {
+                replicaElem.setUserData(ValidatingDOMBuilderWithLocations.KEY_LOCATION, location, null);
+            }
+        }
+
+        Node originalChild = original.getFirstChild();
+        Node replicaChild = replica.getFirstChild();
+        while (originalChild != null) {
+            if (replicaChild == null) {
+                throw new BugException("The DOM copy has less child nodes than the original.");
+            }
+            mapElements(originalChild, replicaChild, originalToReplica, replicaToOriginal);
+            originalChild = originalChild.getNextSibling();
+            replicaChild = replicaChild.getNextSibling();
+        }
+        if (replicaChild != null) {
+            throw new BugException("The DOM copy has more child nodes than the original.");
+        }
+    }
+
+    Document getDocument() {
+        return document;
+    }
+
+    boolean isOriginal() {
+        return originalToReplica == null;
+    }
+
+    /**
+     * Translates an element of the original document to the corresponding element of this replica. {@code null}
+     * is returned as is.
+     */
+    Element toReplica(Element originalElem) {
+        if (originalElem == null || originalToReplica == null) {
+            return originalElem;
+        }
+        Element replicaElem = originalToReplica.get(originalElem);
+        if (replicaElem == null) {
+            throw new BugException("Element is not part of the original document: "
+                    + XMLUtil.theSomethingElement(originalElem));
+        }
+        return replicaElem;
+    }
+
+    /**
+     * Translates an element of this replica back to the element of the original document. Elements that aren't
+     * part of this replica (like elements of the original document) are returned as is.
+     */
+    Element toOriginal(Element elem) {
+        if (elem == null || replicaToOriginal == null) {
+            return elem;
+        }
+        Element originalElem = replicaToOriginal.get(elem);
+        return originalElem != null ? originalElem : elem;
+    }
+
+}
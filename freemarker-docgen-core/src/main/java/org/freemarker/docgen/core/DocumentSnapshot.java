@@ -0,0 +1,762 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.freemarker.docgen.core.ValidatingDOMBuilderWithLocations.Location;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The document as it's after the preprocessing done by {@link Transform} (the DOM, and the lookup tables built from
+ * it), stored in a binary file (see {@link Transform#setDocumentSnapshotFile(File)}). Loading this is much faster
+ * than parsing, validating and preprocessing the XML again.
+ *
+ * <p>The file starts with the fingerprint of the inputs that the preprocessed document depends on, so a snapshot of
+ * outdated inputs is never used. It's an internal format that can change in any Docgen version; in that case the
+ * snapshot is ignored.
+ */
+final class DocumentSnapshot {
+
+    private static final int MAGIC = 0x44474453; // "DGDS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int END_MAGIC = 0x454E4421; // "END!"
+
+    private static final int NODE_END = 0;
+    private static final int NODE_ELEMENT = 1;
+    private static final int NODE_ELEMENT_NO_NS = 2;
+    private static final int NODE_TEXT = 3;
+    private static final int NODE_CDATA = 4;
+    private static final int NODE_COMMENT = 5;
+    private static final int NODE_PROCESSING_INSTRUCTION = 6;
+
+    private static final int ATTRIBUTE_NS = 1;
+    private static final int ATTRIBUTE_NO_NS = 2;
+
+    private final String inputsFingerprint;
+    private final Document document;
+    private final Map<String, Element> elementsById = new LinkedHashMap<>();
+    private final List<TOCEntry> tocEntries = new ArrayList<>();
+    private final Map<String, List<Element>> primaryIndexTerms = new LinkedHashMap<>();
+    private final Map<String, SortedMap<String, List<Element>>> secondaryIndexTerms = new LinkedHashMap<>();
+    private final List<String> indexEntries = new ArrayList<>();
+    private final Map<Path, FileMetadata> externalInputFiles = new LinkedHashMap<>();
+
+    /**
+     * @param inputsFingerprint
+     *            The fingerprint of all inputs that the preprocessed document depends on.
+     */
+    DocumentSnapshot(String inputsFingerprint, Document document) {
+        this.inputsFingerprint = inputsFingerprint;
+        this.document = document;
+    }
+
+    String getInputsFingerprint() {
+        return inputsFingerprint;
+    }
+
+    Document getDocument() {
+        return document;
+    }
+
+    Map<String, Element> getElementsById() {
+        return Collections.unmodifiableMap(elementsById);
+    }
+
+    void putElementById(String id, Element element) {
+        elementsById.put(id, element);
+    }
+
+    /**
+     * The ToC nodes in traversal order.
+     */
+    List<TOCEntry> getTOCEntries() {
+        return Collections.unmodifiableList(tocEntries);
+    }
+
+    void addTOCEntry(TOCEntry tocEntry) {
+        tocEntries.add(tocEntry);
+    }
+
+    Map<String, List<Element>> getPrimaryIndexTerms() {
+        return Collections.unmodifiableMap(primaryIndexTerms);
+    }
+
+    void putPrimaryIndexTerms(String primaryText, List<Element> indexTerms) {
+        primaryIndexTerms.put(primaryText, indexTerms);
+    }
+
+    Map<String, SortedMap<String, List<Element>>> getSecondaryIndexTerms() {
+        return Collections.unmodifiableMap(secondaryIndexTerms);
+    }
+
+    void putSecondaryIndexTerms(String primaryText, SortedMap<String, List<Element>> indexTermsBySecondaryText) {
+        secondaryIndexTerms.put(primaryText, indexTermsBySecondaryText);
+    }
+
+    /**
+     * The sorted primary index term texts.
+     */
+    List<String> getIndexEntries() {
+        return Collections.unmodifiableList(indexEntries);
+    }
+
+    void setIndexEntries(List<String> indexEntries) {
+        this.indexEntries.clear();
+        this.indexEntries.addAll(indexEntries);
+    }
+
+    /**
+     * Adds a file that the document was loaded from, but which isn't covered by the inputs fingerprint (like a file
+     * outside the source directory that was included with XInclude). If the file changes, the snapshot won't be
+     * used.
+     */
+    void addExternalInputFile(Path file) throws IOException {
+        externalInputFiles.put(file, FileMetadata.of(file));
+    }
+
+    /**
+     * Loads the snapshot from the given file.
+     *
+     * @return {@code null} if there's no snapshot file, or if it can't be used (for example, because it was made from
+     *         different inputs, or by a different Docgen version).
+     */
+    static DocumentSnapshot load(File file, String inputsFingerprint, DocgenLogger logger) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        SnapshotReader in = new SnapshotReader(Files.readAllBytes(file.toPath()));
+        try {
+            if (in.readInt() != MAGIC) {
+                logger.warning("Ignoring " + file + ", as it's not a Docgen document snapshot.");
+                return null;
+            }
+            if (in.readInt() != FORMAT_VERSION) {
+                logger.info("Ignoring " + file + ", as it was written by a different Docgen version.");
+                return null;
+            }
+            if (!inputsFingerprint.equals(in.readString())) {
+                logger.info("Ignoring " + file + ", as the inputs have changed since it was written.");
+                return null;
+            }
+
+            int externalInputFileCount = in.readCount();
+            Map<Path, FileMetadata> externalInputFiles = new LinkedHashMap<>();
+            for (int i = 0; i < externalInputFileCount; i++) {
+                Path externalInputFile = Paths.get(in.readString());
+                FileMetadata metadata = new FileMetadata(in.readLong(), in.readLong());
+                if (!metadata.equals(FileMetadata.of(externalInputFile))) {
+                    logger.info("Ignoring " + file + ", as " + externalInputFile
+                            + " has changed since it was written.");
+                    return null;
+                }
+                externalInputFiles.put(externalInputFile, metadata);
+            }
+
+            DocumentSnapshot snapshot = new DocumentSnapshot(inputsFingerprint, in.readDocument());
+            snapshot.externalInputFiles.putAll(externalInputFiles);
+
+            int idCount = in.readCount();
+            for (int i = 0; i < idCount; i++) {
+                snapshot.elementsById.put(in.readString(), in.readElementRef());
+            }
+
+            int tocEntryCount = in.readCount();
+            for (int i = 0; i < tocEntryCount; i++) {
+                Element element = in.readElementRef();
+                int parentIndex = in.readCount() - 1;
+                boolean fileElement = in.readBoolean();
+                String outputFileName = in.readString();
+                snapshot.tocEntries.add(new TOCEntry(element, parentIndex, fileElement, outputFileName));
+            }
+
+            int primaryCount = in.readCount();
+            for (int i = 0; i < primaryCount; i++) {
+                snapshot.primaryIndexTerms.put(in.readString(), in.readElementRefs());
+            }
+            int secondaryCount = in.readCount();
+            for (int i = 0; i < secondaryCount; i++) {
+                String primaryText = in.readString();
+                SortedMap<String, List<Element>> bySecondaryText = new TreeMap<>();
+                int bySecondaryTextCount = in.readCount();
+                for (int j = 0; j < bySecondaryTextCount; j++) {
+                    bySecondaryText.put(in.readString(), in.readElementRefs());
+                }
+                snapshot.secondaryIndexTerms.put(primaryText, bySecondaryText);
+            }
+            int indexEntryCount = in.readCount();
+            for (int i = 0; i < indexEntryCount; i++) {
+                snapshot.indexEntries.add(in.readString());
+            }
+
+            if (in.readInt() != END_MAGIC) {
+                return malformed(file, "missing end marker", logger);
+            }
+            return snapshot;
+        } catch (MalformedSnapshotException e) {
+            return malformed(file, e.getMessage(), logger);
+        }
+    }
+
+    private static DocumentSnapshot malformed(File file, String problem, DocgenLogger logger) {
+        logger.warning("Ignoring malformed " + file + " (" + problem + ").");
+        return null;
+    }
+
+    /**
+     * The file into which {@link #save(File)} writes first, before it's moved into the place of the snapshot file.
+     */
+    static File getTempFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * Saves the snapshot into the given file. The file is replaced atomically, if the file system allows that.
+     */
+    void save(File file) throws IOException {
+        Path path = file.toPath();
+        Path tempFile = getTempFile(file).toPath();
+        SnapshotWriter out = new SnapshotWriter();
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeString(inputsFingerprint);
+
+        out.writeCount(externalInputFiles.size());
+        for (Entry<Path, FileMetadata> ent : externalInputFiles.entrySet()) {
+            out.writeString(ent.getKey().toString());
+            out.writeLong(ent.getValue().size);
+            out.writeLong(ent.getValue().lastModified);
+        }
+
+        out.writeDocument(document);
+
+        out.writeCount(elementsById.size());
+        for (Entry<String, Element> ent : elementsById.entrySet()) {
+            out.writeString(ent.getKey());
+            out.writeElementRef(ent.getValue());
+        }
+
+        out.writeCount(tocEntries.size());
+        for (TOCEntry tocEntry : tocEntries) {
+            out.writeElementRef(tocEntry.getElement());
+            out.writeCount(tocEntry.getParentIndex() + 1);
+            out.writeBoolean(tocEntry.isFileElement());
+            out.writeString(tocEntry.getOutputFileName());
+        }
+
+        out.writeCount(primaryIndexTerms.size());
+        for (Entry<String, List<Element>> ent : primaryIndexTerms.entrySet()) {
+            out.writeString(ent.getKey());
+            out.writeElementRefs(ent.getValue());
+        }
+        out.writeCount(secondaryIndexTerms.size());
+        for (Entry<String, SortedMap<String, List<Element>>> ent : secondaryIndexTerms.entrySet()) {
+            out.writeString(ent.getKey());
+            out.writeCount(ent.getValue().size());
+            for (Entry<String, List<Element>> bySecondaryTextEnt : ent.getValue().entrySet()) {
+                out.writeString(bySecondaryTextEnt.getKey());
+                out.writeElementRefs(bySecondaryTextEnt.getValue());
+            }
+        }
+        out.writeCount(indexEntries.size());
+        for (String indexEntry : indexEntries) {
+            out.writeString(indexEntry);
+        }
+
+        out.writeInt(END_MAGIC);
+        // The directory may not exist yet, like if the file is in the output directory, and this is the first build:
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        out.writeTo(tempFile);
+        try {
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * What we store about a {@link Transform.TOCNode}; the links between the nodes are restored from the traversal
+     * order and the parent index.
+     */
+    static final class TOCEntry {
+        private final Element element;
+        private final int parentIndex;
+        private final boolean fileElement;
+        private final String outputFileName;
+
+        /**
+         * @param parentIndex
+         *            The index of the parent in the traversal order, or -1 if there's no parent.
+         */
+        TOCEntry(Element element, int parentIndex, boolean fileElement, String outputFileName) {
+            this.element = element;
+            this.parentIndex = parentIndex;
+            this.fileElement = fileElement;
+            this.outputFileName = outputFileName;
+        }
+
+        Element getElement() {
+            return element;
+        }
+
+        int getParentIndex() {
+            return parentIndex;
+        }
+
+        boolean isFileElement() {
+            return fileElement;
+        }
+
+        String getOutputFileName() {
+            return outputFileName;
+        }
+    }
+
+    private static final class FileMetadata {
+        private final long size;
+        private final long lastModified;
+
+        private FileMetadata(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Size -1 is used for missing files.
+         */
+        static FileMetadata of(Path file) throws IOException {
+            if (!Files.isRegularFile(file)) {
+                return new FileMetadata(-1, 0);
+            }
+            return new FileMetadata(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileMetadata)) {
+                return false;
+            }
+            FileMetadata that = (FileMetadata) o;
+            return size == that.size && lastModified == that.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+
+    /**
+     * Writes the values in a compact form: counts are variable length integers, and repeated strings (like element
+     * and attribute names) are written only once, and are referred by index later. Elements are referred by their
+     * index in document order.
+     */
+    private static final class SnapshotWriter {
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final Map<Element, Integer> elementIndexes = new IdentityHashMap<>();
+        private byte[] buffer = new byte[64 * 1024];
+        private int size;
+
+        void writeDocument(Document doc) {
+            writeString(doc.getDocumentURI());
+            writeChildren(doc);
+        }
+
+        private void writeChildren(Node parent) {
+            for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+                switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement((Element) child);
+                    break;
+                case Node.TEXT_NODE:
+                    writeByte(NODE_TEXT);
+                    writeLongString(child.getNodeValue());
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    writeByte(NODE_CDATA);
+                    writeLongString(child.getNodeValue());
+                    break;
+                case Node.COMMENT_NODE:
+                    writeByte(NODE_COMMENT);
+                    writeLongString(child.getNodeValue());
+                    break;
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    writeByte(NODE_PROCESSING_INSTRUCTION);
+                    writeString(child.getNodeName());
+                    writeLongString(child.getNodeValue());
+                    break;
+                case Node.DOCUMENT_TYPE_NODE:
+                    // Not used after parsing
+                    break;
+                default:
+                    throw new BugException("Unsupported node type in the document: " + child.getNodeType());
+                }
+            }
+            writeByte(NODE_END);
+        }
+
+        private void writeElement(Element elem) {
+            elementIndexes.put(elem, elementIndexes.size());
+            if (elem.getLocalName() != null) {
+                writeByte(NODE_ELEMENT);
+                writeString(elem.getNamespaceURI());
+            } else {
+                writeByte(NODE_ELEMENT_NO_NS);
+            }
+            writeString(elem.getNodeName());
+
+            NamedNodeMap attrs = elem.getAttributes();
+            int attrCount = attrs.getLength();
+            writeCount(attrCount);
+            for (int i = 0; i < attrCount; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                if (attr.getLocalName() != null) {
+                    writeByte(ATTRIBUTE_NS);
+                    writeString(attr.getNamespaceURI());
+                } else {
+                    writeByte(ATTRIBUTE_NO_NS);
+                }
+                writeString(attr.getName());
+                writeString(attr.getValue());
+            }
+
+            Location location = (Location) elem.getUserData(ValidatingDOMBuilderWithLocations.KEY_LOCATION);
+            writeBoolean(location != null);
+            if (location != null) {
+                writeString(location.getSystemId());
+                writeInt(location.getLine());
+                writeInt(location.getColumn());
+            }
+
+            writeChildren(elem);
+        }
+
+        void writeElementRef(Element elem) {
+            Integer index = elementIndexes.get(elem);
+            if (index == null) {
+                throw new BugException("Element is not part of the document: " + XMLUtil.theSomethingElement(elem));
+            }
+            writeCount(index);
+        }
+
+        void writeElementRefs(List<Element> elems) {
+            writeCount(elems.size());
+            for (Element elem : elems) {
+                writeElementRef(elem);
+            }
+        }
+
+        /**
+         * Writes a string that's possibly repeated; 0 stands for {@code null}, other numbers for the index of an
+         * earlier written string plus 1, or if it's the next unused index, then the string follows.
+         */
+        void writeString(String s) {
+            if (s == null) {
+                writeCount(0);
+                return;
+            }
+            Integer index = stringIndexes.get(s);
+            if (index != null) {
+                writeCount(index + 1);
+            } else {
+                index = stringIndexes.size();
+                stringIndexes.put(s, index);
+                writeCount(index + 1);
+                writeLongString(s);
+            }
+        }
+
+        /**
+         * Writes a string that's unlikely to be repeated (like a text node), so it's not added to the string table.
+         */
+        void writeLongString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeCount(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeCount(int n) {
+            if (n < 0) {
+                throw new BugException("Negative count: " + n);
+            }
+            while ((n & ~0x7F) != 0) {
+                writeByte((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            writeByte(n);
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void writeBoolean(boolean b) {
+            writeByte(b ? 1 : 0);
+        }
+
+        void writeInt(int n) {
+            ensureCapacity(4);
+            buffer[size++] = (byte) (n >>> 24);
+            buffer[size++] = (byte) (n >>> 16);
+            buffer[size++] = (byte) (n >>> 8);
+            buffer[size++] = (byte) n;
+        }
+
+        void writeLong(long n) {
+            writeInt((int) (n >>> 32));
+            writeInt((int) n);
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensureCapacity(int extraSize) {
+            if (size + extraSize > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extraSize));
+            }
+        }
+
+        void writeTo(Path file) throws IOException {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(buffer, 0, size);
+            }
+        }
+    }
+
+    /**
+     * Reads what {@link SnapshotWriter} has written.
+     */
+    private static final class SnapshotReader {
+        private final byte[] data;
+        private int position;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Element> elements = new ArrayList<>();
+        private Document doc;
+
+        private SnapshotReader(byte[] data) {
+            this.data = data;
+        }
+
+        Document readDocument() throws IOException {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            try {
+                doc = dbf.newDocumentBuilder().newDocument();
+            } catch (ParserConfigurationException e) {
+                throw new BugException("Failed to create DOM document (see cause exception).", e);
+            }
+            doc.setDocumentURI(readString());
+            // The names were already checked when the document was parsed:
+            doc.setStrictErrorChecking(false);
+            readChildren(doc);
+            doc.setStrictErrorChecking(true);
+            return doc;
+        }
+
+        private void readChildren(Node parent) throws IOException {
+            while (true) {
+                int nodeType = readByte();
+                switch (nodeType) {
+                case NODE_END:
+                    return;
+                case NODE_ELEMENT:
+                case NODE_ELEMENT_NO_NS:
+                    parent.appendChild(readElement(nodeType == NODE_ELEMENT));
+                    break;
+                case NODE_TEXT:
+                    parent.appendChild(doc.createTextNode(readLongString()));
+                    break;
+                case NODE_CDATA:
+                    parent.appendChild(doc.createCDATASection(readLongString()));
+                    break;
+                case NODE_COMMENT:
+                    parent.appendChild(doc.createComment(readLongString()));
+                    break;
+                case NODE_PROCESSING_INSTRUCTION:
+                    String target = readString();
+                    parent.appendChild(doc.createProcessingInstruction(target, readLongString()));
+                    break;
+                default:
+                    throw new MalformedSnapshotException("unknown node type " + nodeType);
+                }
+            }
+        }
+
+        private Element readElement(boolean namespaceAware) throws IOException {
+            Element elem = namespaceAware
+                    ? doc.createElementNS(readString(), readString())
+                    : doc.createElement(readString());
+            elements.add(elem);
+
+            int attrCount = readCount();
+            for (int i = 0; i < attrCount; i++) {
+                int attrKind = readByte();
+                if (attrKind == ATTRIBUTE_NS) {
+                    String namespaceURI = readString();
+                    String qName = readString();
+                    elem.setAttributeNS(namespaceURI, qName, readString());
+                } else if (attrKind == ATTRIBUTE_NO_NS) {
+                    String name = readString();
+                    elem.setAttribute(name, readString());
+                } else {
+                    throw new MalformedSnapshotException("unknown attribute kind " + attrKind);
+                }
+            }
+
+            if (readBoolean()) {
+                String systemId = readString();
+                int line = readInt();
+                int column = readInt();
+                elem.setUserData(
+                        ValidatingDOMBuilderWithLocations.KEY_LOCATION, new Location(systemId, line, column), null);
+            }
+
+            readChildren(elem);
+            return elem;
+        }
+
+        Element readElementRef() throws IOException {
+            int index = readCount();
+            if (index >= elements.size()) {
+                throw new MalformedSnapshotException("element index out of bounds");
+            }
+            return elements.get(index);
+        }
+
+        List<Element> readElementRefs() throws IOException {
+            int count = readCount();
+            List<Element> elems = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                elems.add(readElementRef());
+            }
+            return elems;
+        }
+
+        String readString() throws IOException {
+            int ref = readCount();
+            if (ref == 0) {
+                return null;
+            }
+            int index = ref - 1;
+            if (index < strings.size()) {
+                return strings.get(index);
+            }
+            if (index != strings.size()) {
+                throw new MalformedSnapshotException("string index out of bounds");
+            }
+            String s = readLongString();
+            strings.add(s);
+            return s;
+        }
+
+        String readLongString() throws IOException {
+            int length = readCount();
+            ensureAvailable(length);
+            String s = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        int readCount() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readUnsignedByte();
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (n < 0) {
+                        throw new MalformedSnapshotException("negative count");
+                    }
+                    return n;
+                }
+            }
+            throw new MalformedSnapshotException("too long variable length integer");
+        }
+
+        int readUnsignedByte() throws IOException {
+            ensureAvailable(1);
+            return data[position++] & 0xFF;
+        }
+
+        byte readByte() throws IOException {
+            ensureAvailable(1);
+            return data[position++];
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        int readInt() throws IOException {
+            ensureAvailable(4);
+            int n = (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+                    | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+            position += 4;
+            return n;
+        }
+
+        long readLong() throws IOException {
+            return (long) readInt() << 32 | readInt() & 0xFFFFFFFFL;
+        }
+
+        private void ensureAvailable(int length) throws MalformedSnapshotException {
+            if (length > data.length - position) {
+                throw new MalformedSnapshotException("unexpected end of file");
+            }
+        }
+    }
+
+    private static final class MalformedSnapshotException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private MalformedSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+}
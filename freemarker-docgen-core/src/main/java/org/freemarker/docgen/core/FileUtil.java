@@ -23,19 +23,36 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
-import freemarker.template.utility.StringUtil;
-
 final class FileUtil {
     
     private static final int READ_BUFFER_SIZE = 4096;
@@ -62,6 +79,19 @@ final class FileUtil {
             Class<?> srcBaseClass, String srcBaseDir,
             String srcRelativePath, File destDir)
             throws IOException {
+        copyResourceIntoFile(srcBaseClass, srcBaseDir, srcRelativePath, destDir, false);
+    }
+
+    /**
+     * Same as {@link #copyResourceIntoFile(Class, String, String, File)}, but if {@code skipIfUnchanged} is
+     * {@code true}, and the destination file already has the same content, then it won't be written.
+     *
+     * @return Whether the destination file was written.
+     */
+    static boolean copyResourceIntoFile(
+            Class<?> srcBaseClass, String srcBaseDir,
+            String srcRelativePath, File destDir, boolean skipIfUnchanged)
+            throws IOException {
         File dstFile = new File(
                 destDir,
                 srcRelativePath.replace('/', File.separatorChar));
@@ -86,6 +116,10 @@ final class FileUtil {
                     + Transform.class.getPackage().getName());
         }
         try {
+            if (skipIfUnchanged) {
+                return writeFile(dstFile, in.readAllBytes(), true);
+            }
+            deleteBeforeWriting(dstFile.toPath());
             OutputStream out = new FileOutputStream(dstFile);
             try {
                 int ln;
@@ -95,125 +129,332 @@ final class FileUtil {
             } finally {
                 out.close();
             }
+            return true;
         } finally {
             in.close();
         }
     }
 
+    /**
+     * Writes the content into the file. If {@code skipIfUnchanged} is {@code true}, and the file already has
+     * exactly this content, then the file is not written (so its last modification time stays the same).
+     *
+     * @return Whether the file was written.
+     */
+    static boolean writeFile(File file, byte[] content, boolean skipIfUnchanged) throws IOException {
+        if (skipIfUnchanged && hasContent(file, content)) {
+            return false;
+        }
+        deleteBeforeWriting(file.toPath());
+        Files.write(file.toPath(), content);
+        return true;
+    }
+
+    /**
+     * Deletes the file if it exists, so that it will be written as a new file, not in place. Otherwise, if the file
+     * is a hard link (see the {@code useHardLinks} parameter of
+     * {@link #copyDir(File, File, Collection, boolean, boolean, OutputFileListener)}), like because a custom static
+     * file has the same name as a generated file, or had it in an earlier build, we would overwrite the source file.
+     */
+    private static void deleteBeforeWriting(Path file) throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static boolean hasContent(File file, byte[] content) throws IOException {
+        // Checking the length first, as then we needn't read the file in most cases where it has changed.
+        return file.isFile() && file.length() == content.length
+                && Arrays.equals(Files.readAllBytes(file.toPath()), content);
+    }
+
+    private static boolean hasSameContent(File file1, File file2) throws IOException {
+        if (!file2.isFile() || file1.length() != file2.length()) {
+            return false;
+        }
+        byte[] buffer1 = new byte[COPY_BUFFER_SIZE];
+        byte[] buffer2 = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in1 = new FileInputStream(file1); InputStream in2 = new FileInputStream(file2)) {
+            while (true) {
+                int ln1 = in1.readNBytes(buffer1, 0, buffer1.length);
+                int ln2 = in2.readNBytes(buffer2, 0, buffer2.length);
+                if (ln1 != ln2) {
+                    return false;
+                }
+                if (ln1 == 0) {
+                    return true;
+                }
+                if (!Arrays.equals(buffer1, 0, ln1, buffer2, 0, ln2)) {
+                    return false;
+                }
+            }
+        }
+    }
+
     static int copyDir(
             File srcDir, File destDir) throws IOException {
-        return copyDir(srcDir, destDir, srcDir, Collections.emptySet());
+        return copyDir(srcDir, destDir, Collections.emptySet(), false, false, null);
     }
 
     static int copyDir(
             File srcDir, File destDir, Collection<Pattern> ignoredFilePathPatterns)
             throws IOException {
-        return copyDir(srcDir, destDir, srcDir, ignoredFilePathPatterns);
+        return copyDir(srcDir, destDir, ignoredFilePathPatterns, false, false, null);
     }
-    
+
     /**
-     * @return the number of files copied.
+     * Copies the files of the source directory tree into the destination directory, except the files that match
+     * any of the ignored file path patterns, or that are {@linkplain #isUsualIgnorableFileOrDirectory(String) usually
+     * ignored} or {@linkplain #isDocgenFile(String) belong to Docgen}. The directory tree is walked first, then the
+     * files are copied in parallel. The destination files get the last modification time of the source files, and
+     * files whose destination already has the same size and last modification time are left untouched.
+     *
+     * @param ignoredFilePathPatterns Matched against the path of the file relative to {@code srcDir}, with
+     *     {@code /} separators, and starting with {@code /}.
+     * @param skipUnchangedFiles If {@code true}, files whose destination already has the same content (but maybe
+     *     different last modification time) aren't written either.
+     * @param useHardLinks If {@code true}, the destination files will be hard links to the source files, instead of
+     *     copies, where the file system allows that. Otherwise the files are copied. The methods of this class that
+     *     write files never write into an existing file in place, so they won't modify the source files through
+     *     such links.
+     * @param outputFileListener Notified about each destination file (from multiple threads); possibly
+     *     {@code null}. Files that weren't written are reported as unchanged.
+     *
+     * @return the number of files in the destination directory that come from the source directory, including
+     *     those that weren't written as they were already up to date; use the {@code outputFileListener} to tell them
+     *     apart.
      */
-    private static int copyDir(
-            File srcDir, File destDir, File srcBaseDir, Collection<Pattern> ignoredFilePathPatterns)
+    static int copyDir(
+            File srcDir, File destDir, Collection<Pattern> ignoredFilePathPatterns,
+            boolean skipUnchangedFiles, boolean useHardLinks, OutputFileListener outputFileListener)
             throws IOException {
-        int fileCounter = 0;
-        
-        destDir = destDir.getAbsoluteFile();
-        srcDir = srcDir.getAbsoluteFile();
-        String srcBaseDirPath = ensureEndsWithFileSeparator(srcBaseDir.getAbsolutePath());
-        
-        if (!destDir.isDirectory()) {
-            if (destDir.exists()) {
-                throw new IOException("Can't create directory, because a "
-                        + "file with the same name already exists: "
-                        + destDir.getAbsolutePath());
-            }
-            if (!destDir.mkdir()) {
-                throw new IOException("Failed to create directory: "
-                        + destDir.getAbsolutePath());
+        Path srcDirPath = srcDir.toPath().toAbsolutePath();
+        Path destDirPath = destDir.toPath().toAbsolutePath();
+        Pattern ignoredFilePathPattern = combinePatterns(ignoredFilePathPatterns);
+
+        List<Path> srcFiles = new ArrayList<>();
+        Files.walkFileTree(
+                srcDirPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                            throws IOException {
+                        if (!dir.equals(srcDirPath) && isIgnorableName(dir)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        Path destSubdir = destDirPath.resolve(srcDirPath.relativize(dir));
+                        if (!Files.isDirectory(destSubdir)) {
+                            if (Files.exists(destSubdir)) {
+                                throw new IOException("Can't create directory, because a "
+                                        + "file with the same name already exists: "
+                                        + destSubdir);
+                            }
+                            Files.createDirectory(destSubdir);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (isIgnorableName(file)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (!attrs.isRegularFile()) {
+                            throw new IOException(
+                                    "Failed decide if it's a file or a directory: " + file);
+                        }
+                        if (ignoredFilePathPattern == null || !ignoredFilePathPattern.matcher(
+                                "/" + pathToUnixStyle(srcDirPath.relativize(file).toString())).matches()) {
+                            srcFiles.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+
+        return copyFiles(srcDirPath, destDirPath, srcFiles, skipUnchangedFiles, useHardLinks, outputFileListener);
+    }
+
+    /**
+     * Copies the listed files of the source directory into the destination directory, like
+     * {@link #copyDir(File, File, Collection, boolean, boolean, OutputFileListener)} does, but without walking the
+     * directory tree, so other files in the source directory are ignored.
+     *
+     * @param relativePaths The paths of the files relative to {@code srcDir}, with {@code /} separators. The files
+     *     must exist.
+     *
+     * @return the number of files copied, including those that weren't written as they were already up to date.
+     */
+    static int copyFiles(
+            File srcDir, File destDir, Collection<String> relativePaths,
+            boolean skipUnchangedFiles, boolean useHardLinks, OutputFileListener outputFileListener)
+            throws IOException {
+        Path srcDirPath = srcDir.toPath().toAbsolutePath();
+        Path destDirPath = destDir.toPath().toAbsolutePath();
+
+        List<Path> srcFiles = new ArrayList<>(relativePaths.size());
+        for (String relativePath : relativePaths) {
+            Path srcFile = srcDirPath.resolve(relativePath);
+            if (!Files.isRegularFile(srcFile)) {
+                throw new IOException("File to copy doesn't exist: " + srcFile);
             }
+            srcFiles.add(srcFile);
+            Files.createDirectories(destDirPath.resolve(relativePath).getParent());
         }
-        
-        File[] ls = srcDir.listFiles();
-        if (ls == null) {
-            throw new IOException("Failed to list directory: "
-                    + srcDir.getAbsolutePath());
+
+        return copyFiles(srcDirPath, destDirPath, srcFiles, skipUnchangedFiles, useHardLinks, outputFileListener);
+    }
+
+    /**
+     * Copies the files in parallel; the destination directories must already exist.
+     */
+    private static int copyFiles(
+            Path srcDirPath, Path destDirPath, List<Path> srcFiles,
+            boolean skipUnchangedFiles, boolean useHardLinks, OutputFileListener outputFileListener)
+            throws IOException {
+        AtomicInteger fileCounter = new AtomicInteger();
+        List<Callable<Void>> copyTasks = new ArrayList<>(srcFiles.size());
+        for (Path srcFile : srcFiles) {
+            copyTasks.add(() -> {
+                Path destFile = destDirPath.resolve(srcDirPath.relativize(srcFile));
+                fileCounter.incrementAndGet();
+                if (copyFile(srcFile, destFile, skipUnchangedFiles, useHardLinks)) {
+                    if (outputFileListener != null) {
+                        outputFileListener.addWrittenFile(destFile.toFile());
+                    }
+                } else if (outputFileListener != null) {
+                    outputFileListener.addUnchangedFile(destFile.toFile());
+                }
+                return null;
+            });
         }
-        for (File f : srcDir.listFiles()) {
-            String fName = f.getName(); 
-            if (isUsualIgnorableFileOrDirectory(fName) || isDocgenFile(fName)) {
-                continue;
+        invokeAll(copyTasks);
+
+        return fileCounter.get();
+    }
+
+    /**
+     * Tells if {@link #copyDir(File, File, Collection, boolean, boolean, OutputFileListener)} would copy the given
+     * file (assuming it exists).
+     *
+     * @param relativePath The path of the file relative to {@code srcDir}, with {@code /} separators.
+     */
+    static boolean isCopiedByCopyDir(String relativePath, Collection<Pattern> ignoredFilePathPatterns) {
+        for (String name : relativePath.split("/")) {
+            if (isUsualIgnorableFileOrDirectory(name) || isDocgenFile(name)) {
+                return false;
+            }
+        }
+        Pattern ignoredFilePathPattern = combinePatterns(ignoredFilePathPatterns);
+        return ignoredFilePathPattern == null || !ignoredFilePathPattern.matcher("/" + relativePath).matches();
+    }
+
+    private static boolean isIgnorableName(Path path) {
+        String fName = path.getFileName().toString();
+        return isUsualIgnorableFileOrDirectory(fName) || isDocgenFile(fName);
+    }
+
+    /**
+     * Runs the tasks on as many threads as many processors we have (but at most as many as many tasks we have), and
+     * waits until all of them has finished.
+     */
+    private static void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), tasks.size());
+        if (threads <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new BugException(e);
+                }
             }
-            File dest = new File(destDir, fName);
-            if (f.isFile()) {
-                if (!isIgnoredFile(f, srcBaseDirPath, ignoredFilePathPatterns)) {
-                    copyFile(f, dest);
-                    fileCounter++;
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new BugException(cause);
                 }
-            } else if (f.isDirectory()) {
-                fileCounter += copyDir(f, dest, srcBaseDir, ignoredFilePathPatterns);
-            } else {
-                throw new IOException(
-                        "Failed decide if it's a file or a directory: "
-                        + f.getAbsolutePath());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying files");
+        } finally {
+            executor.shutdownNow();
         }
-        
-        return fileCounter;
     }
 
-    private static boolean isIgnoredFile(File f, String srcBaseDirPath, Collection<Pattern> ignoredFilePathPatterns)
-            throws IOException {
-        if (ignoredFilePathPatterns.isEmpty()) {
-            return false;
+    /**
+     * Combines the patterns into a single pattern that matches if any of them matches, so that a path is matched
+     * with a single regular expression. 
+     *
+     * @return {@code null} if {@code patterns} is empty.
+     */
+    static Pattern combinePatterns(Collection<Pattern> patterns) {
+        if (patterns.isEmpty()) {
+            return null;
         }
-        
-        srcBaseDirPath = ensureEndsWithFileSeparator(srcBaseDirPath);
-        
-        String filePath = f.getAbsolutePath();
-        if (!filePath.startsWith(srcBaseDirPath)) {
-            throw new IOException("Unexpected: " + StringUtil.jQuote(filePath) + " doesn't start with "
-                    + StringUtil.jQuote(srcBaseDirPath));
+        if (patterns.size() == 1) {
+            return patterns.iterator().next();
         }
-        String slashRelFilePath = pathToUnixStyle(filePath.substring(srcBaseDirPath.length() - 1));
-        for (Pattern pattern : ignoredFilePathPatterns) {
-            if (pattern.matcher(slashRelFilePath).matches()) {
-                return true;
+        StringBuilder sb = new StringBuilder();
+        for (Pattern pattern : patterns) {
+            if (sb.length() != 0) {
+                sb.append('|');
             }
+            sb.append("(?:").append(pattern.pattern()).append(')');
         }
-        return false;
+        return Pattern.compile(sb.toString());
     }
 
-    private static void copyFile(File src, File dst) throws IOException {
-        byte[] buffer = new byte[COPY_BUFFER_SIZE];
-        InputStream in = new FileInputStream(src);
+    /**
+     * Copies (or links) the file, unless the destination is already up to date.
+     *
+     * @return Whether the destination file was written.
+     */
+    private static boolean copyFile(Path src, Path dst, boolean skipUnchangedFiles, boolean useHardLinks)
+            throws IOException {
+        BasicFileAttributes srcAttrs = Files.readAttributes(src, BasicFileAttributes.class);
+        BasicFileAttributes dstAttrs;
         try {
-            long srcLMD = 0L;
-            srcLMD = src.lastModified();
-            if (srcLMD == 0) {
-                throw new IOException("Failed to get the last modification "
-                        + "time of " + src.getAbsolutePath());
+            dstAttrs = Files.readAttributes(dst, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            dstAttrs = null;
+        }
+        if (dstAttrs != null && dstAttrs.isRegularFile() && dstAttrs.size() == srcAttrs.size()) {
+            if (dstAttrs.lastModifiedTime().toMillis() == srcAttrs.lastModifiedTime().toMillis()
+                    || skipUnchangedFiles && hasSameContent(src.toFile(), dst.toFile())) {
+                return false;
             }
-            OutputStream out = new FileOutputStream(dst);
+        }
+
+        if (useHardLinks) {
+            Files.deleteIfExists(dst);
             try {
-                int ln;
-                while ((ln = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, ln);
-                }
-            } finally {
-                out.close();
-            }
-            if (srcLMD != 0L) {
-                if (!dst.setLastModified(srcLMD)) {
-                    throw new IOException(
-                            "Failed to set last-modification-date for: "
-                            + dst.getAbsolutePath());
-                }
+                Files.createLink(dst, src);
+                return true;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // Falls back to copying, like when the destination is on another file system.
             }
-        } finally {
-            in.close();
         }
+
+        // Files.copy lets the JDK use the most efficient copying method that the OS offers.
+        Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(dst, srcAttrs.lastModifiedTime());
+        return true;
     }
     
     static boolean isDocgenFile(String fName) {
@@ -351,6 +592,7 @@ final class FileUtil {
     }
 
     public static Writer newFileWriter(File outputFile) throws IOException {
+        deleteBeforeWriting(outputFile.toPath());
         return Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8);
     }
 }
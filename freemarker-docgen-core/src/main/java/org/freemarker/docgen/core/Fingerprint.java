@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Builds a hash (fingerprint) from the things that the output depends on, so that we can tell if something has
+ * changed since the last run. Values are added in an unambiguous way (for example, strings are length-prefixed), so
+ * different sequences of values give different fingerprints.
+ */
+final class Fingerprint {
+
+    private final Hasher hasher = Hashing.sha256().newHasher();
+    private String hash;
+
+    Fingerprint add(String s) {
+        if (s == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(s.length());
+            hasher.putString(s, StandardCharsets.UTF_8);
+        }
+        return this;
+    }
+
+    Fingerprint add(boolean b) {
+        hasher.putBoolean(b);
+        return this;
+    }
+
+    Fingerprint add(int i) {
+        hasher.putInt(i);
+        return this;
+    }
+
+    Fingerprint addFileContent(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        hasher.putInt(content.length);
+        hasher.putBytes(content);
+        return this;
+    }
+
+    /**
+     * Adds the relative path and the content of all files in the directory, recursively.
+     */
+    Fingerprint addDirectoryContent(Path dir) throws IOException {
+        for (Path file : listFilesSorted(dir)) {
+            add(dir.relativize(file).toString());
+            addFileContent(file);
+        }
+        return this;
+    }
+
+    /**
+     * Adds the size and the last modification time of the file, or of all files in the directory, recursively. This
+     * is much faster than {@link #addFileContent(Path)}, but can have false negatives.
+     */
+    Fingerprint addFileMetadata(Path file) throws IOException {
+        if (Files.isDirectory(file)) {
+            for (Path dirFile : listFilesSorted(file)) {
+                add(file.relativize(dirFile).toString());
+                addFileMetadata(dirFile);
+            }
+        } else {
+            hasher.putLong(Files.size(file));
+            hasher.putLong(Files.getLastModifiedTime(file).toMillis());
+        }
+        return this;
+    }
+
+    /**
+     * Like {@link #addFileMetadata(Path)} with a directory, but the given files and directories (with their contents)
+     * are left out.
+     *
+     * @param excludedPaths
+     *            Absolute and normalized paths.
+     */
+    Fingerprint addDirectoryMetadata(Path dir, Collection<Path> excludedPaths) throws IOException {
+        Path absDir = dir.toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(absDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) {
+                return excludedPaths.contains(subdir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !excludedPaths.contains(file)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        for (Path file : files) {
+            add(absDir.relativize(file).toString());
+            hasher.putLong(Files.size(file));
+            hasher.putLong(Files.getLastModifiedTime(file).toMillis());
+        }
+        return this;
+    }
+
+    private static List<Path> listFilesSorted(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Adds the node and all its descendants. Child nodes are read with {@link Node#getFirstChild()} and
+     * {@link Node#getNextSibling()} only.
+     */
+    Fingerprint addNode(Node node) {
+        return addNode(node, null);
+    }
+
+    /**
+     * Like {@link #addNode(Node)}, but calls the {@link ElementVisitor} for each element, which can add more
+     * information, or can prevent adding the descendants of the element.
+     */
+    Fingerprint addNode(Node node, ElementVisitor elementVisitor) {
+        if (node == null) {
+            hasher.putInt(-1);
+            return this;
+        }
+
+        hasher.putInt(node.getNodeType());
+        boolean addChildren = true;
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            Element elem = (Element) node;
+            add(elem.getNamespaceURI());
+            add(elem.getLocalName());
+            NamedNodeMap attrs = elem.getAttributes();
+            int attrCount = attrs.getLength();
+            hasher.putInt(attrCount);
+            for (int i = 0; i < attrCount; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                add(attr.getNamespaceURI());
+                add(attr.getLocalName() != null ? attr.getLocalName() : attr.getName());
+                add(attr.getValue());
+            }
+            if (elementVisitor != null) {
+                addChildren = elementVisitor.visit(elem, this);
+            }
+            break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+        case Node.COMMENT_NODE:
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            add(node.getNodeName());
+            add(node.getNodeValue());
+            break;
+        default:
+            add(node.getNodeName());
+        }
+
+        if (addChildren) {
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                addNode(child, elementVisitor);
+            }
+        }
+        // Marks the end of the children, so "a(b)c" differs from "a(bc)":
+        hasher.putInt(0);
+        return this;
+    }
+
+    /**
+     * Returns the fingerprint as hexadecimal string. After this was called, nothing can be added anymore.
+     */
+    String getHash() {
+        if (hash == null) {
+            hash = hasher.hash().toString();
+        }
+        return hash;
+    }
+
+    /**
+     * Called by {@link Fingerprint#addNode(Node, ElementVisitor)} for each element, after the name and the
+     * attributes of the element were added.
+     */
+    interface ElementVisitor {
+        /**
+         * @return Whether the descendants of the element should be added.
+         */
+        boolean visit(Element elem, Fingerprint fingerprint);
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip compressed sibling (with {@code .gz} suffix) for the output files, as they are produced, so that web
+ * servers can serve them without compressing on the fly (like with {@code gzip_static} of nginx). The compression
+ * is done on a bounded thread pool, so it overlaps with the rest of the output generation; call {@link #finish()}
+ * to wait for it. If an output file isn't to be compressed (anymore), its gzip file, if there's one from an earlier
+ * build, is deleted, as otherwise the web server would serve that outdated content.
+ */
+final class GzipOutputCompressor implements OutputFileListener {
+
+    static final String FILE_NAME_SUFFIX = ".gz";
+
+    private final Set<String> extensions;
+    private final int minimumSize;
+    private final int compressionLevel;
+    private final boolean skipIfUnchanged;
+    private final OutputFileListener gzipFileListener;
+    private final ThreadPoolExecutor executor;
+    private final List<Future<?>> futures = new ArrayList<>();
+
+    /**
+     * @param extensions
+     *            The lower case file name extensions (without dot) of the files to compress.
+     * @param skipIfUnchanged
+     *            Whether to leave the gzip file untouched if its content would be the same.
+     * @param gzipFileListener
+     *            Notified about the gzip files.
+     */
+    GzipOutputCompressor(
+            Set<String> extensions, int minimumSize, int compressionLevel, boolean skipIfUnchanged,
+            OutputFileListener gzipFileListener) {
+        this.extensions = extensions;
+        this.minimumSize = minimumSize;
+        this.compressionLevel = compressionLevel;
+        this.skipIfUnchanged = skipIfUnchanged;
+        this.gzipFileListener = gzipFileListener;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        // If the queue is full, the producer thread will compress, which slows down the production of more files.
+        executor = new ThreadPoolExecutor(
+                threads, threads, 1, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 4),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void addWrittenFile(File file) {
+        if (isToBeCompressed(file)) {
+            submit(file);
+        } else {
+            deleteStaleGzipFile(file);
+        }
+    }
+
+    @Override
+    public void addUnchangedFile(File file) {
+        if (isToBeCompressed(file)) {
+            File gzipFile = getGzipFile(file);
+            if (gzipFile.isFile() && gzipFile.lastModified() >= file.lastModified()) {
+                gzipFileListener.addUnchangedFile(gzipFile);
+            } else {
+                submit(file);
+            }
+        } else {
+            deleteStaleGzipFile(file);
+        }
+    }
+
+    /**
+     * Deletes the gzip file of a file that's not to be compressed, like because it became smaller than the minimum
+     * size, or because its extension was removed from the compressed extensions.
+     */
+    private static void deleteStaleGzipFile(File file) {
+        File gzipFile = getGzipFile(file);
+        if (gzipFile.isFile() && !gzipFile.delete() && gzipFile.exists()) {
+            throw new DocgenException("Failed to delete outdated gzip file: " + gzipFile);
+        }
+    }
+
+    private boolean isToBeCompressed(File file) {
+        String name = file.getName();
+        int dotIdx = name.lastIndexOf('.');
+        return dotIdx != -1
+                && extensions.contains(name.substring(dotIdx + 1).toLowerCase(Locale.ROOT))
+                && file.length() >= minimumSize;
+    }
+
+    private static File getGzipFile(File file) {
+        return new File(file.getPath() + FILE_NAME_SUFFIX);
+    }
+
+    private void submit(File file) {
+        Future<?> future = executor.submit(() -> {
+            compress(file);
+            return null;
+        });
+        synchronized (futures) {
+            futures.add(future);
+        }
+    }
+
+    private void compress(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (GZIPOutputStream out = new LeveledGZIPOutputStream(compressed, compressionLevel)) {
+            out.write(content);
+        }
+        File gzipFile = getGzipFile(file);
+        if (FileUtil.writeFile(gzipFile, compressed.toByteArray(), skipIfUnchanged)) {
+            gzipFileListener.addWrittenFile(gzipFile);
+        } else {
+            gzipFileListener.addUnchangedFile(gzipFile);
+        }
+    }
+
+    /**
+     * Waits until all files were compressed, then shuts down the thread pool.
+     *
+     * @throws IOException
+     *             If compressing any of the files has failed.
+     */
+    void finish() throws IOException {
+        try {
+            while (true) {
+                Future<?> future;
+                synchronized (futures) {
+                    if (futures.isEmpty()) {
+                        break;
+                    }
+                    future = futures.remove(futures.size() - 1);
+                }
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DocgenException("Interrupted while waiting for gzip compression to finish", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new BugException("Unexpected exception during gzip compression", cause);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops the compression without waiting for it to finish; used when the output generation has failed.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * {@link GZIPOutputStream} doesn't allow setting the compression level otherwise.
+     */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        private LeveledGZIPOutputStream(ByteArrayOutputStream out, int compressionLevel) throws IOException {
+            super(out);
+            def.setLevel(compressionLevel);
+        }
+    }
+
+    static void checkCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("The gzip compression level must be between "
+                    + Deflater.BEST_SPEED + " and " + Deflater.BEST_COMPRESSION + ", but was " + compressionLevel);
+        }
+    }
+
+}
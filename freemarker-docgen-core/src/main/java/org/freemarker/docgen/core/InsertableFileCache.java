@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Caches the content of the files inserted with {@code [docgen.insertFile]} during a single output generation, and
+ * the result of cutting them with the {@code from} and {@code to} parameters, as the same files (and often the same
+ * parts of them) are inserted for many times. Entries are keyed by the path, the charset, and the last modification
+ * time and size of the file, so a changed file is read again. All methods are thread-safe.
+ */
+final class InsertableFileCache {
+
+    /** Files at least this big are read with memory mapped I/O. */
+    static final int MEMORY_MAPPING_THRESHOLD = 1024 * 1024;
+
+    static final String CONTENT_CACHE_NAME = "insertableFileContent";
+    static final String CUT_CACHE_NAME = "insertableFileCut";
+
+    private final Map<FileKey, String> contents = new ConcurrentHashMap<>();
+    private final Map<CutKey, CutResult> cutResults = new ConcurrentHashMap<>();
+
+    private final AtomicInteger contentHits = new AtomicInteger();
+    private final AtomicInteger contentMisses = new AtomicInteger();
+    private final AtomicInteger cutHits = new AtomicInteger();
+    private final AtomicInteger cutMisses = new AtomicInteger();
+
+    /**
+     * Returns the content of the file, decoded with the given charset. If the file is an FTL file, the copyright
+     * comment is removed from it (see {@link PrintTextWithDocgenSubstitutionsDirective#removeFTLCopyrightComment}).
+     */
+    String getContent(Path file, Charset charset) throws IOException {
+        return getContent(getFileKey(file, charset));
+    }
+
+    private String getContent(FileKey fileKey) throws IOException {
+        String content = contents.get(fileKey);
+        if (content != null) {
+            contentHits.incrementAndGet();
+            return content;
+        }
+        contentMisses.incrementAndGet();
+
+        content = readFile(fileKey.file, fileKey.charset, fileKey.size);
+        String fileExt = FilenameUtils.getExtension(fileKey.file.getFileName().toString());
+        if (fileExt != null && fileExt.toLowerCase().startsWith("ftl")) {
+            content = PrintTextWithDocgenSubstitutionsDirective.removeFTLCopyrightComment(content);
+        }
+        contents.put(fileKey, content);
+        return content;
+    }
+
+    /**
+     * Returns the content of the file (as {@link #getContent(Path, Charset)}), cut with {@link #cut}.
+     */
+    CutResult getCutContent(Path file, Charset charset, Pattern from, Pattern to) throws IOException {
+        FileKey fileKey = getFileKey(file, charset);
+        CutKey cutKey = new CutKey(fileKey, from, to);
+        CutResult cutResult = cutResults.get(cutKey);
+        if (cutResult != null) {
+            cutHits.incrementAndGet();
+            return cutResult;
+        }
+        cutMisses.incrementAndGet();
+
+        cutResult = cut(getContent(fileKey), from, to);
+        cutResults.put(cutKey, cutResult);
+        return cutResult;
+    }
+
+    private static FileKey getFileKey(Path file, Charset charset) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return new FileKey(file, charset, attrs.lastModifiedTime().toMillis(), attrs.size());
+    }
+
+    private static String readFile(Path file, Charset charset, long size) throws IOException {
+        if (size < MEMORY_MAPPING_THRESHOLD) {
+            return new String(Files.readAllBytes(file), charset);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return charset.decode(buffer).toString();
+        }
+    }
+
+    /**
+     * Cuts the part before the first match of {@code from}, and the part starting with the first match of {@code to}
+     * (searched after applying {@code from}), and marks the cuts with {@code [...]}. Whether a missing match is an
+     * error is up to the caller.
+     *
+     * @param from
+     *            Can be {@code null}
+     * @param to
+     *            Can be {@code null}
+     */
+    static CutResult cut(String content, Pattern from, Pattern to) {
+        boolean fromFound = true;
+        if (from != null) {
+            Matcher matcher = from.matcher(content);
+            if (matcher.find()) {
+                String remaining = content.substring(matcher.start());
+                content = "[\u2026]"
+                        + (remaining.startsWith("\n") || remaining.startsWith("\r") ? "" : "\n")
+                        + remaining;
+            } else {
+                fromFound = false;
+            }
+        }
+
+        boolean toFound = true;
+        if (to != null) {
+            Matcher matcher = to.matcher(content);
+            if (matcher.find()) {
+                String remaining = content.substring(0, matcher.start());
+                content = remaining
+                        + (remaining.endsWith("\n") || remaining.endsWith("\r") ? "" : "\n")
+                        + "[\u2026]";
+            } else {
+                toFound = false;
+            }
+        }
+
+        return new CutResult(content, fromFound, toFound);
+    }
+
+    /**
+     * Adds the hit and miss counts to the build report.
+     */
+    void addStatisticsTo(BuildReport report) {
+        report.addCacheStatistics(CONTENT_CACHE_NAME, contentHits.get(), contentMisses.get());
+        report.addCacheStatistics(CUT_CACHE_NAME, cutHits.get(), cutMisses.get());
+    }
+
+    /**
+     * The result of {@link InsertableFileCache#cut}.
+     */
+    static final class CutResult {
+        private final String content;
+        private final boolean fromFound;
+        private final boolean toFound;
+
+        private CutResult(String content, boolean fromFound, boolean toFound) {
+            this.content = content;
+            this.fromFound = fromFound;
+            this.toFound = toFound;
+        }
+
+        String getContent() {
+            return content;
+        }
+
+        /**
+         * Whether {@code from} had a match; {@code true} if there was no {@code from}.
+         */
+        boolean isFromFound() {
+            return fromFound;
+        }
+
+        /**
+         * Whether {@code to} had a match; {@code true} if there was no {@code to}.
+         */
+        boolean isToFound() {
+            return toFound;
+        }
+    }
+
+    private static final class FileKey {
+        private final Path file;
+        private final Charset charset;
+        private final long lastModified;
+        private final long size;
+
+        private FileKey(Path file, Charset charset, long lastModified, long size) {
+            this.file = file;
+            this.charset = charset;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileKey)) {
+                return false;
+            }
+            FileKey that = (FileKey) o;
+            return lastModified == that.lastModified
+                    && size == that.size
+                    && file.equals(that.file)
+                    && charset.equals(that.charset);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, charset, lastModified, size);
+        }
+    }
+
+    private static final class CutKey {
+        private final FileKey fileKey;
+        private final String from;
+        private final int fromFlags;
+        private final String to;
+        private final int toFlags;
+
+        private CutKey(FileKey fileKey, Pattern from, Pattern to) {
+            this.fileKey = fileKey;
+            this.from = from != null ? from.pattern() : null;
+            this.fromFlags = from != null ? from.flags() : 0;
+            this.to = to != null ? to.pattern() : null;
+            this.toFlags = to != null ? to.flags() : 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CutKey)) {
+                return false;
+            }
+            CutKey that = (CutKey) o;
+            return fromFlags == that.fromFlags
+                    && toFlags == that.toFlags
+                    && fileKey.equals(that.fileKey)
+                    && Objects.equals(from, that.from)
+                    && Objects.equals(to, that.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, from, fromFlags, to, toFlags);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xml.sax.SAXException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Generates several variants of the output of the same book in one go, typically the offline and the online variant
+ * (see {@link Transform#setOffline(Boolean)}). Compared to executing the {@link Transform}-s one after the other, the
+ * book XML is only loaded and validated once, and the variants are generated concurrently. Each variant is still
+ * preprocessed separately (as {@code removeNodesWhenOnline} is only applied to the online variant), on its own copy of
+ * the loaded XML, and is generated into its own destination directory.
+ */
+public final class MultiVariantBuild {
+
+    private final List<Transform> variants;
+
+    /**
+     * @param variants
+     *            The fully configured {@link Transform}-s, one for each variant. They must have the same source
+     *            directory, but different destination directories, none inside another (and different other output
+     *            files, like {@link Transform#setDocumentSnapshotFile(File)}). To also share the template cache,
+     *            create them with the same {@link TransformEngine}.
+     */
+    public MultiVariantBuild(List<Transform> variants) {
+        this.variants = ImmutableList.copyOf(variants);
+    }
+
+    /**
+     * Generates all the variants; like {@link Transform#execute()}, this can only be called once.
+     */
+    public void execute() throws DocgenException, IOException, SAXException {
+        if (variants.isEmpty()) {
+            throw new DocgenException("No variants were specified.");
+        }
+        checkOutputFilesDiffer();
+
+        // The settings are loaded first, so that errors in them are reported before the long running part starts:
+        File srcDir = null;
+        for (Transform variant : variants) {
+            variant.prepareExecution();
+            File variantSrcDir = variant.getSourceDirectory().getAbsoluteFile();
+            if (srcDir == null) {
+                srcDir = variantSrcDir;
+            } else if (!srcDir.equals(variantSrcDir)) {
+                throw new DocgenException(
+                        "All variants must have the same source directory, but we have both "
+                                + srcDir + " and " + variantSrcDir + ".");
+            }
+        }
+
+        SharedDocumentSource sharedDocumentSource = new SharedDocumentSource(variants.size());
+        for (Transform variant : variants) {
+            variant.setSharedDocumentSource(sharedDocumentSource);
+        }
+
+        if (variants.size() == 1) {
+            generateVariant(variants.get(0));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(variants.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<>(variants.size());
+            for (Transform variant : variants) {
+                futures.add(executor.submit(() -> {
+                    generateVariant(variant);
+                    return null;
+                }));
+            }
+
+            // Errors are reported in the order of the variants, but we wait for all of them to finish:
+            Throwable firstError = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DocgenException("Interrupted while waiting for the variants to be generated", e);
+                } catch (ExecutionException e) {
+                    if (firstError == null) {
+                        firstError = e.getCause();
+                    } else {
+                        firstError.addSuppressed(e.getCause());
+                    }
+                }
+            }
+            if (firstError != null) {
+                rethrow(firstError);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void generateVariant(Transform variant) throws DocgenException, IOException, SAXException {
+        variant.loadDocument();
+        variant.generateOutput();
+    }
+
+    private void checkOutputFilesDiffer() {
+        Map<File, String> outputFiles = new HashMap<>();
+        for (int i = 0; i < variants.size(); i++) {
+            Transform variant = variants.get(i);
+            String ofVariant = " of variant " + (i + 1);
+            checkDestinationDirectoriesNotNested(i);
+            checkOutputFileDiffers(
+                    outputFiles, variant.getDestinationDirectory(), "the destination directory" + ofVariant);
+            checkOutputFileDiffers(
+                    outputFiles, variant.getDocumentSnapshotFile(), "the document snapshot file" + ofVariant);
+            checkOutputFileDiffers(
+                    outputFiles, variant.getBuildReportFile(), "the build report file" + ofVariant);
+            checkOutputFileDiffers(
+                    outputFiles, variant.getChangeSetFile(), "the change set file" + ofVariant);
+        }
+    }
+
+    /**
+     * As a variant can delete the files in its destination directory that it hasn't generated (see
+     * {@link Transform#setPruneStaleOutputFiles(boolean)}), no destination directory can be inside another.
+     */
+    private void checkDestinationDirectoriesNotNested(int variantIndex) {
+        File destDir = variants.get(variantIndex).getDestinationDirectory();
+        if (destDir == null) {
+            return;
+        }
+        Path destPath = destDir.toPath().toAbsolutePath().normalize();
+        for (int i = 0; i < variantIndex; i++) {
+            File otherDestDir = variants.get(i).getDestinationDirectory();
+            if (otherDestDir == null) {
+                continue;
+            }
+            Path otherDestPath = otherDestDir.toPath().toAbsolutePath().normalize();
+            if (destPath.startsWith(otherDestPath) || otherDestPath.startsWith(destPath)) {
+                throw new DocgenException(
+                        "The destination directories of the variants must not be the same or inside each other, but "
+                                + "variant " + (i + 1) + " has " + otherDestPath + ", and variant " + (variantIndex + 1)
+                                + " has " + destPath + ".");
+            }
+        }
+    }
+
+    private static void checkOutputFileDiffers(Map<File, String> outputFiles, File file, String description) {
+        if (file == null) {
+            return;
+        }
+        String otherDescription = outputFiles.putIfAbsent(file.getAbsoluteFile(), description);
+        if (otherDescription != null) {
+            throw new DocgenException(
+                    "The variants must have different output files, but " + file.getAbsolutePath()
+                            + " is both " + otherDescription + ", and " + description + ".");
+        }
+    }
+
+    private static void rethrow(Throwable e) throws IOException, SAXException {
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof SAXException) {
+            throw (SAXException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new BugException("Unexpected exception while generating a variant", e);
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import freemarker.template.utility.StringUtil;
+
+/**
+ * Tracks which files of the output directory were added, modified, or left unchanged during an output generation,
+ * and which files weren't produced by it at all (stale files, like the output of a section that was since removed or
+ * renamed). The stale files can be deleted with {@link #pruneStaleFiles()}, and the changes can be written as JSON
+ * with {@link #writeJSON(File)}, so that deployment tools can upload only the changed files. All methods are
+ * thread-safe, as pages can be rendered concurrently.
+ *
+ * <p>Paths are relative to the output directory, and use {@code /} as separator.
+ */
+final class OutputChangeSet implements OutputFileListener {
+
+    static final int VERSION = 1;
+
+    private final Path destDir;
+    /** The files that were in the output directory before the output generation. */
+    private final Set<String> filesBefore;
+    private final Set<String> producedFiles = new HashSet<>();
+    private final Set<String> ignoredFiles = new HashSet<>();
+    /** The relative paths of the ignored directories, each ending with {@code /}. */
+    private final Set<String> ignoredDirPrefixes = new HashSet<>();
+    private final Set<String> addedFiles = new TreeSet<>();
+    private final Set<String> modifiedFiles = new TreeSet<>();
+    private final Set<String> deletedFiles = new TreeSet<>();
+    private boolean pruned;
+
+    /**
+     * Must be created before anything is written into the output directory.
+     */
+    OutputChangeSet(File destDir) throws IOException {
+        this.destDir = destDir.toPath().toAbsolutePath().normalize();
+        filesBefore = listFiles(this.destDir);
+    }
+
+    private static Set<String> listFiles(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptySet();
+        }
+        // Symbolic links aren't followed, so we never touch anything outside the output directory.
+        try (Stream<Path> paths = Files.walk(dir)) {
+            return paths
+                    .filter(path -> Files.isRegularFile(path) || Files.isSymbolicLink(path))
+                    .map(path -> toRelativePath(dir, path))
+                    .collect(Collectors.toCollection(HashSet::new));
+        }
+    }
+
+    private static String toRelativePath(Path dir, Path path) {
+        return FileUtil.pathToUnixStyle(dir.relativize(path).toString());
+    }
+
+    /**
+     * @return {@code null} if the file is not inside the output directory.
+     */
+    private String toRelativePath(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(destDir) || path.equals(destDir)) {
+            return null;
+        }
+        return toRelativePath(destDir, path);
+    }
+
+    @Override
+    public synchronized void addWrittenFile(File file) {
+        String relPath = toRelativePath(file);
+        if (relPath == null || isInIgnoredDirectory(relPath) || !producedFiles.add(relPath)) {
+            return;
+        }
+        if (filesBefore.contains(relPath)) {
+            modifiedFiles.add(relPath);
+        } else {
+            addedFiles.add(relPath);
+        }
+    }
+
+    @Override
+    public synchronized void addUnchangedFile(File file) {
+        String relPath = toRelativePath(file);
+        if (relPath != null) {
+            producedFiles.add(relPath);
+        }
+    }
+
+    /**
+     * Excludes a file from the change set, and from pruning; used for the files that Docgen writes for its own
+     * purposes, like the build manifest.
+     */
+    synchronized void ignoreFile(File file) {
+        String relPath = toRelativePath(file);
+        if (relPath != null) {
+            ignoredFiles.add(relPath);
+            addedFiles.remove(relPath);
+            modifiedFiles.remove(relPath);
+        }
+    }
+
+    /**
+     * Excludes everything inside a directory from the change set, and from pruning; used for the directories that
+     * Docgen maintains for its own purposes, like a cache directory.
+     */
+    synchronized void ignoreDirectory(File dir) {
+        String relPath = toRelativePath(dir);
+        if (relPath != null) {
+            String prefix = relPath + "/";
+            ignoredDirPrefixes.add(prefix);
+            addedFiles.removeIf(it -> it.startsWith(prefix));
+            modifiedFiles.removeIf(it -> it.startsWith(prefix));
+            producedFiles.removeIf(it -> it.startsWith(prefix));
+        }
+    }
+
+    private boolean isInIgnoredDirectory(String relPath) {
+        for (String prefix : ignoredDirPrefixes) {
+            if (relPath.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the files that were in the output directory before the output generation, but weren't produced by it.
+     */
+    synchronized Set<String> getStaleFiles() {
+        Set<String> staleFiles = new TreeSet<>(filesBefore);
+        staleFiles.removeAll(producedFiles);
+        staleFiles.removeAll(ignoredFiles);
+        staleFiles.removeIf(this::isInIgnoredDirectory);
+        return staleFiles;
+    }
+
+    /**
+     * Deletes the {@linkplain #getStaleFiles() stale files}, and then the directories that became empty because of
+     * that.
+     *
+     * @return The number of files deleted.
+     */
+    synchronized int pruneStaleFiles() throws IOException {
+        Set<Path> parentDirs = new HashSet<>();
+        for (String relPath : getStaleFiles()) {
+            Path path = destDir.resolve(relPath);
+            Files.deleteIfExists(path);
+            deletedFiles.add(relPath);
+            for (Path dir = path.getParent(); dir != null && !dir.equals(destDir); dir = dir.getParent()) {
+                parentDirs.add(dir);
+            }
+        }
+        pruned = true;
+
+        // Deepest first, so that a directory that only contained empty directories is deleted too:
+        List<Path> sortedParentDirs = new ArrayList<>(parentDirs);
+        sortedParentDirs.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path dir : sortedParentDirs) {
+            if (isEmptyDirectory(dir)) {
+                Files.delete(dir);
+            }
+        }
+        return deletedFiles.size();
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        try (Stream<Path> entries = Files.list(dir)) {
+            return !entries.findAny().isPresent();
+        }
+    }
+
+    synchronized int getAddedFileCount() {
+        return addedFiles.size();
+    }
+
+    synchronized int getModifiedFileCount() {
+        return modifiedFiles.size();
+    }
+
+    synchronized int getUnchangedFileCount() {
+        int count = 0;
+        for (String relPath : producedFiles) {
+            if (!addedFiles.contains(relPath) && !modifiedFiles.contains(relPath) && !ignoredFiles.contains(relPath)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void writeJSON(File file) throws IOException {
+        try (Writer w = FileUtil.newFileWriter(file)) {
+            w.write("{\n");
+            w.write("  \"version\": " + VERSION + ",\n");
+            writeJSONArray(w, "added", addedFiles);
+            w.write(",\n");
+            writeJSONArray(w, "modified", modifiedFiles);
+            w.write(",\n");
+            writeJSONArray(w, "deleted", deletedFiles);
+            w.write(",\n");
+            // Stale files are only listed if they weren't deleted:
+            writeJSONArray(w, "stale", pruned ? Collections.emptySet() : getStaleFiles());
+            w.write(",\n");
+            w.write("  \"unchangedCount\": " + getUnchangedFileCount() + "\n");
+            w.write("}\n");
+        }
+    }
+
+    private static void writeJSONArray(Writer w, String name, Collection<String> items) throws IOException {
+        w.write("  \"" + name + "\": [");
+        boolean first = true;
+        for (String item : items) {
+            w.write(first ? "\n" : ",\n");
+            first = false;
+            w.write("    \"" + StringUtil.jsonStringEnc(item) + "\"");
+        }
+        w.write(first ? "]" : "\n  ]");
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes an output file with UTF-8 encoding, and notifies the {@link OutputFileListener} when closed. If the file
+ * should be skipped when unchanged, then the content is collected in memory, and is only written into the file on
+ * {@link #close()}, if it differs from the current content of the file.
+ */
+final class OutputFileWriter extends Writer {
+
+    private final File file;
+    private final OutputFileListener listener;
+    /** Either writes to the file, or to {@link #buffer}. */
+    private final Writer out;
+    private final StringBuilder buffer;
+    private boolean closed;
+
+    OutputFileWriter(File file, boolean skipIfUnchanged, OutputFileListener listener) throws IOException {
+        this.file = file;
+        this.listener = listener;
+        if (skipIfUnchanged) {
+            buffer = new StringBuilder(16 * 1024);
+            out = null;
+        } else {
+            buffer = null;
+            out = FileUtil.newFileWriter(file);
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (buffer != null) {
+            buffer.append((char) c);
+        } else {
+            out.write(c);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (buffer != null) {
+            buffer.append(cbuf, off, len);
+        } else {
+            out.write(cbuf, off, len);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (buffer != null) {
+            buffer.append(str, off, off + len);
+        } else {
+            out.write(str, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (buffer != null) {
+            if (FileUtil.writeFile(file, buffer.toString().getBytes(StandardCharsets.UTF_8), true)) {
+                listener.addWrittenFile(file);
+            } else {
+                listener.addUnchangedFile(file);
+            }
+        } else {
+            out.close();
+            listener.addWrittenFile(file);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.freemarker.docgen.core.Transform.TOCNode;
+
+import freemarker.core.Environment;
+
+/**
+ * Stores the state that's specific to the generation of a single output file (page). It's attached to the
+ * FreeMarker {@link Environment} that processes the page template, so the methods and directives called from the
+ * templates can find out what the current page is, even if multiple pages are rendered concurrently.
+ */
+final class PageRenderingContext {
+
+    private final TOCNode fileTOCNode;
+    private final DocumentReplica replica;
+    private final Set<Path> insertedFiles = new LinkedHashSet<>();
+    private boolean executesCommands;
+
+    PageRenderingContext(TOCNode fileTOCNode, DocumentReplica replica) {
+        this.fileTOCNode = fileTOCNode;
+        this.replica = replica;
+    }
+
+    /**
+     * Returns the context of the page that's being rendered on the current thread, or {@code null} if we aren't
+     * inside page rendering.
+     */
+    static PageRenderingContext getCurrent() {
+        Environment env = Environment.getCurrentEnvironment();
+        return env != null ? (PageRenderingContext) env.getCustomState(PageRenderingContext.class) : null;
+    }
+
+    void attachTo(Environment env) {
+        env.setCustomState(PageRenderingContext.class, this);
+    }
+
+    /**
+     * The {@link TOCNode} of the file element whose output file is being generated.
+     */
+    TOCNode getFileTOCNode() {
+        return fileTOCNode;
+    }
+
+    /**
+     * The copy of the document that the templates of this page are allowed to read.
+     */
+    DocumentReplica getReplica() {
+        return replica;
+    }
+
+    /**
+     * Called when a file was inserted into the page, so that incremental builds can tell if the page has to be
+     * generated again.
+     */
+    void recordInsertedFile(Path file) {
+        insertedFiles.add(file);
+    }
+
+    /**
+     * The files recorded with {@link #recordInsertedFile(Path)}, in the order they were first recorded.
+     */
+    Set<Path> getInsertedFiles() {
+        return Collections.unmodifiableSet(insertedFiles);
+    }
+
+    /**
+     * Called when an external command was executed, whose output was possibly inserted into the page. As we can't
+     * tell what the output depends on, incremental builds must always generate such pages again.
+     */
+    void recordCommandExecution() {
+        executesCommands = true;
+    }
+
+    boolean getExecutesCommands() {
+        return executesCommands;
+    }
+
+}
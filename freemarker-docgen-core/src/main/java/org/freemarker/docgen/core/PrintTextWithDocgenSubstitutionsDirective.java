@@ -22,9 +22,6 @@ package org.freemarker.docgen.core;
 import static org.freemarker.docgen.core.PrintTextWithDocgenSubstitutionsDirective.InsertDirectiveType.*;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Executable;
 import java.lang.reflect.Method;
@@ -34,25 +31,17 @@ import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.ClosedInputStream;
-import org.apache.commons.io.output.WriterOutputStream;
 
 import com.google.common.collect.ImmutableList;
 
@@ -129,7 +118,58 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
             throw new TemplateException("Directive doesn't support nested content", env);
         }
 
-        new DocgenSubstitutionInterpreter(text, env).execute();
+        if (text.indexOf(DOCGEN_TAG_START) == -1) {
+            // Fast path for the typical text, which has no Docgen tags
+            HTMLOutputFormat.INSTANCE.output(text, env.getOut());
+            return;
+        }
+
+        CompiledText compiledText = transform.getCompiledTextCache().get(text, this::compile);
+        DocgenSubstitutionInterpreter interpreter = new DocgenSubstitutionInterpreter(text, env);
+        if (compiledText.instructions != null) {
+            for (Instruction instruction : compiledText.instructions) {
+                interpreter.execute(instruction);
+            }
+        } else {
+            // Parse it again, so that the output and the side effects before the erroneous tag are the same as
+            // without compilation, and the error is reported with the Environment.
+            interpreter.parse(interpreter::execute);
+        }
+    }
+
+    /**
+     * Parses the text into a {@link CompiledText}. If the text has errors, the result has no instructions.
+     */
+    private CompiledText compile(String text) {
+        List<Instruction> instructions = new ArrayList<>();
+        try {
+            new DocgenSubstitutionInterpreter(text, null).parse(instructions::add);
+        } catch (TemplateException | IOException e) {
+            return new CompiledText(null);
+        }
+        return new CompiledText(ImmutableList.copyOf(instructions));
+    }
+
+    /**
+     * Starts executing the commands of the {@code insertWithOutput} and {@code checkCommand} tags in the text in the
+     * background (see {@link CommandRunner#start(CommandInvocation)}), so that their output is possibly ready when
+     * the text is rendered. Malformed tags are ignored here, as they will be reported when the text is rendered.
+     */
+    void startCommands(String text) {
+        CommandRunner commandRunner = transform.getCommandRunner();
+        if (commandRunner == null || !commandRunner.canStartInBackground()
+                || text.indexOf(DOCGEN_TAG_START) == -1) {
+            return;
+        }
+        CompiledText compiledText = transform.getCompiledTextCache().get(text, this::compile);
+        if (compiledText.instructions == null) {
+            return;
+        }
+        try {
+            new DocgenSubstitutionInterpreter(text, null).startCommands(commandRunner, compiledText.instructions);
+        } catch (TemplateException e) {
+            // Ignored; see above
+        }
     }
 
     private static final String WD = "wd";
@@ -143,13 +183,21 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
         private int cursor;
         private int lastDocgenTagStart;
 
+        /**
+         * @param env
+         *            {@code null} if we only {@link #parse} the text, or call {@link #startCommands}.
+         */
         public DocgenSubstitutionInterpreter(String text, Environment env) {
             this.text = text;
             this.env = env;
-            this.out = env.getOut();
+            this.out = env != null ? env.getOut() : NullWriter.INSTANCE;
         }
 
-        private void execute() throws TemplateException, IOException {
+        /**
+         * Parses the text, and passes each instruction to the consumer as soon as it was parsed; so if the consumer
+         * executes them, the text is interpreted without compiling it first.
+         */
+        private void parse(InstructionConsumer consumer) throws TemplateException, IOException {
             int lastUnprintedIdx = 0;
             parseText: while (true) {
                 cursor = findNextDocgenTagStart(lastUnprintedIdx);
@@ -159,32 +207,33 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
                     lastDocgenTagStart = cursor;
                 }
 
-                HTMLOutputFormat.INSTANCE.output(text.substring(lastUnprintedIdx, cursor), out);
+                consumeLiteral(lastUnprintedIdx, cursor, consumer);
                 lastUnprintedIdx = cursor;
 
                 cursor += DOCGEN_TAG_START.length();
                 skipRequiredToken(".");
                 String subvarName = fetchRequiredVariableName();
 
+                Instruction instruction;
                 if (Transform.VAR_CUSTOM_VARIABLES.equals(subvarName)) {
                     skipRequiredToken(".");
                     String customVarName = fetchRequiredVariableName();
                     skipRequiredToken(DOCGEN_TAG_END);
-                    lastUnprintedIdx = cursor;
-
-                    insertCustomVariable(customVarName);
+                    instruction = new Instruction(
+                            InstructionType.CUSTOM_VARIABLE, customVarName, null, null,
+                            lastDocgenTagStart, cursor);
                 } else if (INSERT_FILE.directiveName.equals(subvarName)) {
                     InsertDirectiveArgs args = fetchInsertDirectiveArgs(subvarName, INSERT_FILE);
-                    lastUnprintedIdx = cursor;
-                    insertFile(args);
+                    instruction = new Instruction(
+                            InstructionType.INSERT, null, INSERT_FILE, args, lastDocgenTagStart, cursor);
                 } else if (INSERT_WITH_OUTPUT.directiveName.equals(subvarName)) {
                     InsertDirectiveArgs args = fetchInsertDirectiveArgs(subvarName, INSERT_WITH_OUTPUT);
-                    lastUnprintedIdx = cursor;
-                    insertCommandAndOutput(INSERT_WITH_OUTPUT, args);
+                    instruction = new Instruction(
+                            InstructionType.INSERT, null, INSERT_WITH_OUTPUT, args, lastDocgenTagStart, cursor);
                 } else if (CHECK_COMMAND.directiveName.equals(subvarName)) {
                     InsertDirectiveArgs args = fetchInsertDirectiveArgs(subvarName, CHECK_COMMAND);
-                    lastUnprintedIdx = cursor;
-                    insertCommandAndOutput(CHECK_COMMAND, args);
+                    instruction = new Instruction(
+                            InstructionType.INSERT, null, CHECK_COMMAND, args, lastDocgenTagStart, cursor);
                 } else if (subvarName.equals(WD)) {
                     throw new TemplateException(
                             "The " + WD + " docgen subvariable can only be used in the nested content of Docgen "
@@ -193,9 +242,55 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
                     throw new TemplateException(
                             "Unsupported docgen subvariable " + StringUtil.jQuote(subvarName) + ".", env);
                 }
+                lastUnprintedIdx = cursor;
+                consumer.accept(instruction);
+            }
+            consumeLiteral(lastUnprintedIdx, text.length(), consumer);
+        }
+
+        private void consumeLiteral(int start, int end, InstructionConsumer consumer)
+                throws TemplateException, IOException {
+            if (start < end) {
+                consumer.accept(new Instruction(
+                        InstructionType.LITERAL,
+                        HTMLOutputFormat.INSTANCE.escapePlainText(text.substring(start, end)), null, null,
+                        start, end));
+            }
+        }
+
+        private void execute(Instruction instruction) throws TemplateException, IOException {
+            if (instruction.type == InstructionType.LITERAL) {
+                out.write(instruction.value);
+                return;
+            }
+
+            // So that error messages show the tag like when it was parsed:
+            lastDocgenTagStart = instruction.tagStart;
+            cursor = instruction.tagEnd;
 
+            if (instruction.type == InstructionType.CUSTOM_VARIABLE) {
+                insertCustomVariable(instruction.value);
+            } else if (instruction.insertDirectiveType == INSERT_FILE) {
+                insertFile(instruction.insertDirectiveArgs);
+            } else {
+                insertCommandAndOutput(instruction.insertDirectiveType, instruction.insertDirectiveArgs);
+            }
+        }
+
+        /**
+         * Starts the commands of the instructions (see
+         * {@link PrintTextWithDocgenSubstitutionsDirective#startCommands(String)}).
+         */
+        private void startCommands(CommandRunner commandRunner, List<Instruction> instructions)
+                throws TemplateException {
+            for (Instruction instruction : instructions) {
+                if (instruction.insertDirectiveType == INSERT_WITH_OUTPUT
+                        || instruction.insertDirectiveType == CHECK_COMMAND) {
+                    lastDocgenTagStart = instruction.tagStart;
+                    cursor = instruction.tagEnd;
+                    commandRunner.start(newCommandInvocation(instruction.insertDirectiveArgs));
+                }
             }
-            HTMLOutputFormat.INSTANCE.output(text.substring(lastUnprintedIdx, text.length()), out);
         }
 
         private void insertCustomVariable(String customVarName) throws TemplateException, IOException {
@@ -277,6 +372,10 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
             if (!Files.isRegularFile(resolvedFilePath)) {
                 throw newErrorInDocgenTag("Not an existing file: " + resolvedFilePath);
             }
+            PageRenderingContext context = PageRenderingContext.getCurrent();
+            if (context != null) {
+                context.recordInsertedFile(resolvedFilePath);
+            }
 
             Charset charset;
             if (args.charset != null) {
@@ -289,113 +388,56 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
                 charset = StandardCharsets.UTF_8;
             }
 
-            try (InputStream in = Files.newInputStream(resolvedFilePath)) {
-                String fileContent = IOUtils.toString(in, charset);
-                String fileExt = FilenameUtils.getExtension(resolvedFilePath.getFileName().toString());
-                if (fileExt != null && fileExt.toLowerCase().startsWith("ftl")) {
-                    fileContent = removeFTLCopyrightComment(fileContent);
-                }
-
-                cutAndInsertContent(args, fileContent);
+            InsertableFileCache insertableFileCache = transform.getInsertableFileCache();
+            if (insertableFileCache == null) {
+                throw new BugException("No insertable file cache available");
             }
+            insertCutContent(args, insertableFileCache.getCutContent(resolvedFilePath, charset, args.from, args.to));
         }
 
         private void insertCommandAndOutput(InsertDirectiveType insertDirectiveType, InsertDirectiveArgs args)
                 throws TemplateException, IOException {
+            PageRenderingContext context = PageRenderingContext.getCurrent();
+            if (context != null) {
+                context.recordCommandExecution();
+            }
+
             if (args.printCommand || insertDirectiveType == CHECK_COMMAND) {
                 out.write("> ");
                 out.write(DOCGEN_WD_TAG_AND_SLASH_PATTERN.matcher(StringUtil.chomp(args.body)).replaceAll(""));
                 out.write("\n");
             }
 
-            List<String> splitCmdLine = BashCommandLineArgsParser.parse(args.body);
-            if (splitCmdLine.isEmpty()) {
-                throw newErrorInDocgenTag("Command to execute was empty");
-            }
-            String cmdKey = splitCmdLine.get(0);
-            Map<String, Transform.InsertableOutputCommandProperties> cmdPropsMap =
-                    transform.getInsertableOutputCommands();
-            Transform.InsertableOutputCommandProperties cmdProps = cmdPropsMap.get(cmdKey);
-            if (cmdProps == null) {
-                throw newErrorInDocgenTag(
-                        "The " + Transform.SETTING_INSERTABLE_OUTPUT_COMMANDS
-                                + " configuration setting doesn't have entry with key " + StringUtil.jQuote(cmdKey)
-                                + ". "
-                                + (cmdPropsMap.isEmpty()
-                                        ? "That setting is empty."
-                                        : "It has these keys: " + String.join(", ", cmdPropsMap.keySet())));
+            CommandInvocation invocation = newCommandInvocation(args);
+            CommandRunner commandRunner = transform.getCommandRunner();
+            if (commandRunner == null) {
+                throw new BugException("No command runner available");
             }
-
-            Method mainMethod = getMainMethod(cmdKey, cmdProps);
+            CommandRunner.Result result = commandRunner.run(invocation);
 
             String cmdRunExceptionShortMessage;
             TemplateException cmdRunException;
-            Writer outCapturer;
-            PrintStream prevOut = System.out;
-            PrintStream prevErr = System.err;
-            InputStream prevIn = System.in;
-            Map<String, String> prevSystemProperties = new HashMap<>();
-            try {
-                outCapturer = insertDirectiveType != CHECK_COMMAND ? new StringWriter() : NullWriter.INSTANCE;
-                PrintStream outCapturerPrintStream = new PrintStream(
-                        new WriterOutputStream(outCapturer, Charset.defaultCharset()));
-                System.setOut(outCapturerPrintStream);
-                System.setErr(outCapturerPrintStream);
-                System.setIn(ClosedInputStream.CLOSED_INPUT_STREAM);
-
-                cmdProps.getSystemProperties().forEach((k, v) -> {
-                    String prevValue = setOrClearSystemProperty(k, v);
-                    prevSystemProperties.put(k, prevValue);
-                });
-
-                List<String> rawCmdArgs = splitCmdLine.subList(1, splitCmdLine.size());
-                List<String> cmdArgs = ImmutableList.<String>builder()
-                        .addAll(cmdProps.getPrependedArguments())
-                        .addAll(rawCmdArgs)
-                        .addAll(cmdProps.getAppendedArguments())
-                        .build().stream()
-                        .map(cmdArg -> {
-                            Path wdSubst = cmdProps.getWdSubstitution();
-                            if (wdSubst == null) {
-                                return cmdArg;
-                            }
-                            return cmdArg.replace(DOCGEN_WD_TAG, wdSubst.toString());
-                        })
-                        .collect(Collectors.toList());
-
-                Map<String, String> systemPropertiesToRestore = new HashMap<>();
-                try {
-                    Object cmdExitCode = withSystemPropertiesOverridden(
-                            Optional.ofNullable(args.systemProperties).orElse(Collections.emptyMap()),
-                            () -> mainMethod.invoke(null, (Object) cmdArgs.toArray(new String[0])));
-                    if (cmdExitCode instanceof Integer && ((Integer) cmdExitCode) != 0) {
-                        cmdRunExceptionShortMessage = "Command execution has returned with non-0 exit code " + cmdExitCode + ".";
-                        cmdRunException = newErrorInInsertOutputCommandException(
-                                cmdRunExceptionShortMessage,
-                                cmdProps, cmdArgs,
-                                null);
-                    } else {
-                        cmdRunExceptionShortMessage = null;
-                        cmdRunException = null;
-                    }
-                } catch (Exception e) {
-                    cmdRunExceptionShortMessage = "The main method has thrown this exception:\n" + e;
-                    cmdRunException = newErrorInInsertOutputCommandException(
-                            cmdRunExceptionShortMessage,
-                            cmdProps, cmdArgs,
-                            e);
-                }
-
-                outCapturerPrintStream.flush();
-            } finally {
-                prevSystemProperties.forEach(PrintTextWithDocgenSubstitutionsDirective::setOrClearSystemProperty);
-                System.setIn(prevIn);
-                System.setErr(prevErr);
-                System.setOut(prevOut);
+            if (result.getException() != null) {
+                cmdRunExceptionShortMessage = "The main method has thrown this exception:\n" + result.getException();
+                cmdRunException = newErrorInInsertOutputCommandException(
+                        cmdRunExceptionShortMessage,
+                        invocation.getCmdProps(), invocation.getCmdArgs(),
+                        result.getException());
+            } else if (result.getExitCode() != null && result.getExitCode() != 0) {
+                cmdRunExceptionShortMessage = "Command execution has returned with non-0 exit code "
+                        + result.getExitCode() + ".";
+                cmdRunException = newErrorInInsertOutputCommandException(
+                        cmdRunExceptionShortMessage,
+                        invocation.getCmdProps(), invocation.getCmdArgs(),
+                        null);
+            } else {
+                cmdRunExceptionShortMessage = null;
+                cmdRunException = null;
             }
+
             if (cmdRunException == null) {
                 if (insertDirectiveType != CHECK_COMMAND) {
-                    cutAndInsertContent(args, outCapturer.toString());
+                    cutAndInsertContent(args, result.getOutput());
                 }
             } else {
                 out.write(
@@ -405,40 +447,59 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
                                 + "The command was:\n"
                                 + StringUtil.chomp(args.body) + "\n\n"
                                 + "The output of the command (if any) until it failed:\n\n");
-                HTMLOutputFormat.INSTANCE.output(outCapturer.toString(), out);
+                HTMLOutputFormat.INSTANCE.output(result.getOutput(), out);
                 throw cmdRunException;
             }
         }
 
-        private <T> T withSystemPropertiesOverridden(Map<String, String> systemPropertyOverrides, Callable<T> body)
-                throws Exception {
-            Map<String, String> systemPropertiesToRestore = new HashMap<>();
-            systemPropertyOverrides.forEach((key, value) -> {
-                systemPropertiesToRestore.put(key, System.getProperty(key));
-                if (value != null) {
-                    System.setProperty(key, value);
-                } else {
-                    System.clearProperty(key);
-                }
-            });
-            try {
-                return body.call();
-            } finally {
-                systemPropertiesToRestore.forEach((key, value) -> {
-                    if (value == null) {
-                        System.clearProperty(key);
-                    } else {
-                        System.setProperty(key, value);
-                    }
-                });
+        /**
+         * Resolves the command of an {@code insertWithOutput} or {@code checkCommand} tag.
+         */
+        private CommandInvocation newCommandInvocation(InsertDirectiveArgs args) throws TemplateException {
+            List<String> splitCmdLine = BashCommandLineArgsParser.parse(args.body);
+            if (splitCmdLine.isEmpty()) {
+                throw newErrorInDocgenTag("Command to execute was empty");
             }
+            String cmdKey = splitCmdLine.get(0);
+            Map<String, Transform.InsertableOutputCommandProperties> cmdPropsMap =
+                    transform.getInsertableOutputCommands();
+            Transform.InsertableOutputCommandProperties cmdProps = cmdPropsMap.get(cmdKey);
+            if (cmdProps == null) {
+                throw newErrorInDocgenTag(
+                        "The " + Transform.SETTING_INSERTABLE_OUTPUT_COMMANDS
+                                + " configuration setting doesn't have entry with key " + StringUtil.jQuote(cmdKey)
+                                + ". "
+                                + (cmdPropsMap.isEmpty()
+                                        ? "That setting is empty."
+                                        : "It has these keys: " + String.join(", ", cmdPropsMap.keySet())));
+            }
+
+            Method mainMethod = getMainMethod(cmdKey, cmdProps);
+
+            List<String> rawCmdArgs = splitCmdLine.subList(1, splitCmdLine.size());
+            List<String> cmdArgs = ImmutableList.<String>builder()
+                    .addAll(cmdProps.getPrependedArguments())
+                    .addAll(rawCmdArgs)
+                    .addAll(cmdProps.getAppendedArguments())
+                    .build().stream()
+                    .map(cmdArg -> {
+                        Path wdSubst = cmdProps.getWdSubstitution();
+                        if (wdSubst == null) {
+                            return cmdArg;
+                        }
+                        return cmdArg.replace(DOCGEN_WD_TAG, wdSubst.toString());
+                    })
+                    .collect(Collectors.toList());
+
+            return new CommandInvocation(cmdKey, cmdProps, mainMethod, cmdArgs, args.systemProperties);
         }
 
         private TemplateException newErrorInInsertOutputCommandException(
                 String specificMessage,
                 Transform.InsertableOutputCommandProperties cmdProps, List<String> cmdArgs,
                 Throwable e) {
-            String outputFileName = transform.getCurrentFileTOCNode().getOutputFileName();
+            PageRenderingContext context = PageRenderingContext.getCurrent();
+            String outputFileName = context != null ? context.getFileTOCNode().getOutputFileName() : null;
             return newErrorInDocgenTag(
                     specificMessage
                             + "\nCommand main method: "
@@ -457,33 +518,21 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
 
         private void cutAndInsertContent(InsertDirectiveArgs args, String content)
                 throws TemplateException, IOException {
-            if (args.from != null) {
-                Matcher matcher = args.from.matcher(content);
-                if (matcher.find()) {
-                    String remaining = content.substring(matcher.start());
-                    content = "[\u2026]"
-                            + (remaining.startsWith("\n") || remaining.startsWith("\r") ? "" : "\n")
-                            + remaining;
-                } else if (!args.fromOptional) {
-                    throw newErrorInDocgenTag(
-                            "\"from\" regular expression has no match in the file content: " + args.from);
-                }
-            }
+            insertCutContent(args, InsertableFileCache.cut(content, args.from, args.to));
+        }
 
-            if (args.to != null) {
-                Matcher matcher = args.to.matcher(content);
-                if (matcher.find()) {
-                    String remaining = content.substring(0, matcher.start());
-                    content = remaining
-                            + (remaining.endsWith("\n") || remaining.endsWith("\r") ? "" : "\n")
-                            + "[\u2026]";
-                } else if (!args.toOptional) {
-                    throw newErrorInDocgenTag(
-                            "\"to\" regular expression has no match in the file content: " + args.to);
-                }
+        private void insertCutContent(InsertDirectiveArgs args, InsertableFileCache.CutResult cutResult)
+                throws TemplateException, IOException {
+            if (!cutResult.isFromFound() && !args.fromOptional) {
+                throw newErrorInDocgenTag(
+                        "\"from\" regular expression has no match in the file content: " + args.from);
+            }
+            if (!cutResult.isToFound() && !args.toOptional) {
+                throw newErrorInDocgenTag(
+                        "\"to\" regular expression has no match in the file content: " + args.to);
             }
 
-            HTMLOutputFormat.INSTANCE.output(content, out);
+            HTMLOutputFormat.INSTANCE.output(cutResult.getContent(), out);
         }
 
         private Method getMainMethod(String cmdKey, Transform.InsertableOutputCommandProperties cmdProps) throws
@@ -856,10 +905,6 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
 
     }
 
-    private static String setOrClearSystemProperty(String k, String v) {
-        return v != null ? System.setProperty(k, v) : System.clearProperty(k);
-    }
-
     public static String removeFTLCopyrightComment(String ftl) {
         int copyrightPartIdx = ftl.indexOf("Licensed to the Apache Software Foundation");
         if (copyrightPartIdx == -1) {
@@ -908,6 +953,54 @@ public class PrintTextWithDocgenSubstitutionsDirective implements TemplateDirect
         return ftl.substring(0, commentFirstIdx) + ftl.substring(commentLastIdx + afterCommentNLChars + 1);
     }
 
+    /**
+     * The result of parsing a {@code text}; immutable, so it can be shared between threads and output generations.
+     */
+    static final class CompiledText {
+        /** {@code null} if the text has errors, in which case it will be interpreted without compilation. */
+        private final List<Instruction> instructions;
+
+        private CompiledText(List<Instruction> instructions) {
+            this.instructions = instructions;
+        }
+    }
+
+    private enum InstructionType {
+        /** Text to print as is; the value is already HTML-escaped. */
+        LITERAL,
+        /** Prints the custom variable whose name is the value. */
+        CUSTOM_VARIABLE,
+        /** Executes an {@link InsertDirectiveType}. */
+        INSERT
+    }
+
+    private static final class Instruction {
+        private final InstructionType type;
+        private final String value;
+        private final InsertDirectiveType insertDirectiveType;
+        private final InsertDirectiveArgs insertDirectiveArgs;
+        /** The part of the text that error messages show, like {@code text.substring(tagStart, tagEnd)}. */
+        private final int tagStart;
+        private final int tagEnd;
+
+        private Instruction(
+                InstructionType type, String value,
+                InsertDirectiveType insertDirectiveType, InsertDirectiveArgs insertDirectiveArgs,
+                int tagStart, int tagEnd) {
+            this.type = type;
+            this.value = value;
+            this.insertDirectiveType = insertDirectiveType;
+            this.insertDirectiveArgs = insertDirectiveArgs;
+            this.tagStart = tagStart;
+            this.tagEnd = tagEnd;
+        }
+    }
+
+    @FunctionalInterface
+    private interface InstructionConsumer {
+        void accept(Instruction instruction) throws TemplateException, IOException;
+    }
+
     static class InsertDirectiveArgs {
         private String path;
         private String charset;
@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -33,6 +34,7 @@ import javax.xml.parsers.SAXParserFactory;
 
 import org.w3c.dom.Document;
 import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
@@ -70,6 +72,16 @@ final class RelaxNGValidator {
         ELEMENTS_WITH_LOCATION = Collections.unmodifiableSet(elemWithLocation);
     }
 
+    private static final String[] DOCBOOK_SCHEMA_RESOURCE_AND_FALLBACKS = {
+            "/org/docbook/schemas/5.0/rng/docbook.rng",
+            "/schema/5.0/rng/docbook.rng" };
+
+    /**
+     * The compiled Relax NG schemas, with {@link SchemaKey} keys. Jing {@link Schema}-s are immutable and thread-safe,
+     * so they can be shared by all {@link Transform}-s in the JVM.
+     */
+    private static final SchemaCache<SchemaKey, Schema> SCHEMA_CACHE = new SchemaCache<>();
+
     // Can't be instantiated
     private RelaxNGValidator() {
         // Nop
@@ -78,8 +90,10 @@ final class RelaxNGValidator {
     /**
      * Builds W3C DOM tree from an XML file while it validates it with Relax NG.
      * Supports XInclude.
+     *
+     * @param entityResolver Used by the parser, including for the XInclude-s; maybe {@code null}.
      */
-    public static Document load(File f, DocgenValidationOptions validationOps)
+    public static Document load(File f, DocgenValidationOptions validationOps, EntityResolver entityResolver)
             throws IOException, SAXException {
         CollectingErrorHandler collErrorHandler
                 = new CollectingErrorHandler(15);
@@ -93,28 +107,8 @@ final class RelaxNGValidator {
         
         // Jing-specific stuff:
         
-        // - Create the DocBook Relax NG schema:
-        PropertyMapBuilder schemaProps = new PropertyMapBuilder();
-        ValidateProperty.XML_READER_CREATOR.put(
-                schemaProps, new Jaxp11XMLReaderCreator());
-        ValidateProperty.ERROR_HANDLER.put(
-                schemaProps, new DraconianErrorHandler());
-        RngProperty.CHECK_ID_IDREF.add(schemaProps);
-        SchemaReader scemaReader = new AutoSchemaReader();
-        Schema schema;
-        try {
-            URL rngUrl = getRequiredResource(
-                    "/org/docbook/schemas/5.0/rng/docbook.rng",
-                    "/schema/5.0/rng/docbook.rng");
-            schema = scemaReader.createSchema(
-                    ValidationDriver.uriOrFileInputSource(rngUrl.toString()),
-                    schemaProps.toPropertyMap());
-        } catch (IncorrectSchemaException e) {
-            throw new BugException(
-                    "Failed to load DocBook Realx NG schema "
-                    + "(see cause exception).",
-                    e);
-        }
+        // - Get the DocBook Relax NG schema:
+        Schema schema = getDocBookSchema(true);
         
         // - Create the validator:
         PropertyMapBuilder valiadtorProps = new PropertyMapBuilder();
@@ -141,6 +135,9 @@ final class RelaxNGValidator {
         }
         XMLReader xr = sp.getXMLReader();
         xr.setErrorHandler(collErrorHandler); // used for well-formedness errors
+        if (entityResolver != null) {
+            xr.setEntityResolver(entityResolver);
+        }
         
         // - Inject the Realx NG validator plus the DOM builder: 
         ValidatingDOMBuilder domBuilder;
@@ -189,6 +186,46 @@ final class RelaxNGValidator {
         return domBuilder.getDocument();
     }
 
+    /**
+     * Ensures that the DocBook Relax NG schema used by {@link #load(File, DocgenValidationOptions)} is in the cache, so
+     * that the next {@link #load(File, DocgenValidationOptions)} needn't compile it.
+     */
+    public static void prewarmSchemaCache() throws IOException, SAXException {
+        getDocBookSchema(true);
+    }
+
+    /**
+     * Returns the DocBook Relax NG schema, which is only compiled for the first call in the JVM, as that's slow.
+     */
+    private static Schema getDocBookSchema(boolean checkIdIdref) throws IOException, SAXException {
+        URL rngUrl = getRequiredResource(DOCBOOK_SCHEMA_RESOURCE_AND_FALLBACKS);
+        return SCHEMA_CACHE.get(
+                new SchemaKey(rngUrl.toString(), checkIdIdref),
+                () -> compileSchema(rngUrl, checkIdIdref));
+    }
+
+    private static Schema compileSchema(URL rngUrl, boolean checkIdIdref) throws IOException, SAXException {
+        PropertyMapBuilder schemaProps = new PropertyMapBuilder();
+        ValidateProperty.XML_READER_CREATOR.put(
+                schemaProps, new Jaxp11XMLReaderCreator());
+        ValidateProperty.ERROR_HANDLER.put(
+                schemaProps, new DraconianErrorHandler());
+        if (checkIdIdref) {
+            RngProperty.CHECK_ID_IDREF.add(schemaProps);
+        }
+        SchemaReader scemaReader = new AutoSchemaReader();
+        try {
+            return scemaReader.createSchema(
+                    ValidationDriver.uriOrFileInputSource(rngUrl.toString()),
+                    schemaProps.toPropertyMap());
+        } catch (IncorrectSchemaException e) {
+            throw new BugException(
+                    "Failed to load DocBook Realx NG schema "
+                    + "(see cause exception).",
+                    e);
+        }
+    }
+
     private static URL getRequiredResource(String... resourceAndFallbacks) throws IOException {
         for (String attemptedResource : resourceAndFallbacks) {
             URL url = RelaxNGValidator.class.getResource(attemptedResource);
@@ -199,4 +236,34 @@ final class RelaxNGValidator {
         throw new IOException("Resource was not found on any of these locations: " + Arrays.asList(resourceAndFallbacks));
     }
 
+    /**
+     * Identifies a compiled schema by its source, and by the options that influence the compilation.
+     */
+    private static final class SchemaKey {
+        private final String schemaUrl;
+        private final boolean checkIdIdref;
+
+        private SchemaKey(String schemaUrl, boolean checkIdIdref) {
+            this.schemaUrl = schemaUrl;
+            this.checkIdIdref = checkIdIdref;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SchemaKey)) {
+                return false;
+            }
+            SchemaKey that = (SchemaKey) o;
+            return checkIdIdref == that.checkIdIdref && schemaUrl.equals(that.schemaUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(schemaUrl, checkIdIdref);
+        }
+    }
+
 }
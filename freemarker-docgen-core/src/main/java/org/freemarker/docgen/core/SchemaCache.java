@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.xml.sax.SAXException;
+
+/**
+ * JVM-wide cache of compiled schemas (or of anything that's immutable and slow to create). Can be used by multiple
+ * threads (like by multiple {@link Transform}-s) concurrently. When multiple threads need the same missing value at
+ * the same time, it's only created once, and the other threads wait for that. If creating a value fails, the failure
+ * isn't cached, so the next call tries again.
+ */
+final class SchemaCache<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached value for the key, or creates it with the loader if it's not yet in the cache.
+     */
+    V get(K key, SchemaLoader<V> loader) throws IOException, SAXException {
+        FutureTask<V> task = entries.get(key);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<>(loader::load);
+            task = entries.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                newTask.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            entries.remove(key, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BugException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the schema to be loaded");
+        }
+    }
+
+    boolean contains(K key) {
+        FutureTask<V> task = entries.get(key);
+        return task != null && task.isDone();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    @FunctionalInterface
+    interface SchemaLoader<V> {
+        V load() throws IOException, SAXException;
+    }
+
+}
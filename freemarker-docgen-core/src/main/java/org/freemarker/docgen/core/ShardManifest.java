@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import freemarker.template.utility.StringUtil;
+
+/**
+ * The file that {@link Transform} writes into the output directory of a shard (see {@link Transform#setShardIndex(int)}),
+ * so that the merge step (see {@link Transform#setShardDirectories(java.util.Collection)}) can check if the shards are
+ * complete, and were built from the same inputs.
+ *
+ * <p>The format is a simple line based one, with tab separated fields, like of {@link BuildManifest}.
+ */
+final class ShardManifest {
+
+    static final String FILE_NAME = ".docgen-shard";
+
+    private static final String FORMAT_VERSION = "2";
+
+    private static final String HEADER_LINE = "# Docgen shard manifest. Don't edit it!";
+    private static final String K_VERSION = "version";
+    private static final String K_SHARD = "shard";
+    private static final String K_INPUTS = "inputs";
+    private static final String K_PAGE = "page";
+    private static final String K_FILE = "file";
+
+    private final int shardIndex;
+    private final int shardCount;
+    private final String inputsFingerprint;
+    private final List<String> pages = new ArrayList<>();
+    private final List<String> outputFiles = new ArrayList<>();
+
+    /**
+     * @param shardIndex
+     *            1-based
+     * @param inputsFingerprint
+     *            The fingerprint of everything that the pages depend on, including the whole document and the
+     *            generation time.
+     */
+    ShardManifest(int shardIndex, int shardCount, String inputsFingerprint) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.inputsFingerprint = inputsFingerprint;
+    }
+
+    int getShardIndex() {
+        return shardIndex;
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    String getInputsFingerprint() {
+        return inputsFingerprint;
+    }
+
+    /**
+     * The output file names of the pages that the shard has generated (not including the accompanying HTML-s, like
+     * the detailed ToC).
+     */
+    List<String> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+
+    void addPage(String outputFileName) {
+        pages.add(outputFileName);
+    }
+
+    /**
+     * All the files that the shard has written (or left unchanged, as they were up to date) into its output directory,
+     * with {@code /} separated paths relative to that directory. Unlike {@link #getPages()}, this includes the
+     * accompanying HTML-s. Only these files are merged, so files left in the directory by earlier builds are ignored.
+     */
+    List<String> getOutputFiles() {
+        return Collections.unmodifiableList(outputFiles);
+    }
+
+    void addOutputFile(String relativePath) {
+        outputFiles.add(relativePath);
+    }
+
+    /**
+     * Loads the manifest from the given shard output directory.
+     *
+     * @throws DocgenException
+     *             If the file is missing or malformed, as then we can't merge the shard.
+     */
+    static ShardManifest load(File shardDir) throws IOException {
+        Path file = shardDir.toPath().resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            throw new DocgenException("Missing " + file + "; is this the output directory of a fully built shard?");
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            boolean versionChecked = false;
+            int shardIndex = 0;
+            int shardCount = 0;
+            ShardManifest manifest = null;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", -1);
+                String key = fields[0];
+                if (!versionChecked) {
+                    if (!key.equals(K_VERSION) || fields.length != 2) {
+                        throw malformed(file, lineNumber);
+                    }
+                    if (!fields[1].equals(FORMAT_VERSION)) {
+                        throw new DocgenException(file + " was written by a different Docgen version.");
+                    }
+                    versionChecked = true;
+                } else if (key.equals(K_SHARD) && fields.length == 3 && shardCount == 0) {
+                    try {
+                        shardIndex = Integer.parseInt(fields[1]);
+                        shardCount = Integer.parseInt(fields[2]);
+                    } catch (NumberFormatException e) {
+                        throw malformed(file, lineNumber);
+                    }
+                } else if (key.equals(K_INPUTS) && fields.length == 2 && shardCount != 0 && manifest == null) {
+                    manifest = new ShardManifest(shardIndex, shardCount, fields[1]);
+                } else if (key.equals(K_PAGE) && fields.length == 2 && manifest != null) {
+                    manifest.addPage(fields[1]);
+                } else if (key.equals(K_FILE) && fields.length == 2 && manifest != null) {
+                    manifest.addOutputFile(fields[1]);
+                } else {
+                    throw malformed(file, lineNumber);
+                }
+            }
+            if (manifest == null) {
+                throw malformed(file, lineNumber);
+            }
+            return manifest;
+        }
+    }
+
+    private static DocgenException malformed(Path file, int lineNumber) {
+        return new DocgenException("Malformed " + file + " (problem found in line " + lineNumber + ").");
+    }
+
+    /**
+     * Saves the manifest into the given shard output directory.
+     */
+    void save(File shardDir) throws IOException {
+        try (Writer writer = FileUtil.newFileWriter(new File(shardDir, FILE_NAME))) {
+            writer.write(HEADER_LINE);
+            writer.write("\n");
+            writeLine(writer, K_VERSION, FORMAT_VERSION);
+            writeLine(writer, K_SHARD, String.valueOf(shardIndex), String.valueOf(shardCount));
+            writeLine(writer, K_INPUTS, inputsFingerprint);
+            for (String page : pages) {
+                writeLine(writer, K_PAGE, page);
+            }
+            for (String outputFile : outputFiles) {
+                writeLine(writer, K_FILE, outputFile);
+            }
+        }
+    }
+
+    private static void writeLine(Writer writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i];
+            if (field.indexOf('\t') != -1 || field.indexOf('\n') != -1 || field.indexOf('\r') != -1) {
+                throw new DocgenException("Can't store value in " + FILE_NAME + ", as it contains tab or "
+                        + "line-break: " + StringUtil.jQuote(field));
+            }
+            if (i != 0) {
+                writer.write('\t');
+            }
+            writer.write(field);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Deletes the manifest from the given output directory, if it exists.
+     */
+    static void delete(File destDir) throws IOException {
+        Files.deleteIfExists(destDir.toPath().resolve(FILE_NAME));
+    }
+
+    /**
+     * Assigns the pages to shards, so that the total estimated weight of the shards is about the same. The result
+     * only depends on the weights, so all shards will come to the same result independently.
+     *
+     * @param pageWeights
+     *            The estimated rendering cost of each page, in document order.
+     *
+     * @return The 0-based shard index of each page.
+     */
+    static int[] assignPagesToShards(long[] pageWeights, int shardCount) {
+        // Greedy "longest processing time first": the heaviest remaining page goes to the lightest shard.
+        Integer[] order = new Integer[pageWeights.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // The sort is stable, so pages with the same weight remain in document order.
+        Arrays.sort(order, (a, b) -> Long.compare(pageWeights[b], pageWeights[a]));
+
+        long[] shardWeights = new long[shardCount];
+        int[] pageShards = new int[pageWeights.length];
+        for (int pageIdx : order) {
+            int lightestShard = 0;
+            for (int shard = 1; shard < shardCount; shard++) {
+                if (shardWeights[shard] < shardWeights[lightestShard]) {
+                    lightestShard = shard;
+                }
+            }
+            pageShards[pageIdx] = lightestShard;
+            shardWeights[lightestShard] += pageWeights[pageIdx];
+        }
+        return pageShards;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Loads and validates the book XML only once for several {@link Transform}-s that generate different variants of the
+ * output of the same book (see {@link MultiVariantBuild}). As the rest of the preprocessing modifies the DOM
+ * differently for each variant (like {@code removeNodesWhenOnline} does), each {@link Transform} gets its own copy.
+ * All methods are thread-safe.
+ */
+final class SharedDocumentSource {
+
+    private int consumersLeft;
+    private String loadedDocumentKey;
+    /** The loaded document, which is only copied, until it's given to the last consumer. */
+    private Document loadedDocument;
+
+    /**
+     * @param consumers
+     *            The number of {@link Transform}-s that will (at most) call {@link #getDocument}; the last one gets
+     *            the loaded document itself instead of a copy.
+     */
+    SharedDocumentSource(int consumers) {
+        this.consumersLeft = consumers;
+    }
+
+    /**
+     * Returns the document as {@link Transform#loadAndSimplifyDocument} would; the parameters have the same meaning
+     * too. If the parameters differ from those of the earlier call, the document is loaded again for this call.
+     */
+    @SuppressWarnings("try")
+    synchronized Document getDocument(
+            File docFile, boolean validate, DocgenValidationOptions validationOps,
+            DocgenLogger logger, BuildReport report)
+            throws SAXException, IOException, DocgenException {
+        consumersLeft--;
+
+        String key = getDocumentKey(docFile, validate, validationOps);
+        if (loadedDocument == null) {
+            loadedDocument = Transform.loadAndSimplifyDocument(docFile, validate, validationOps, logger, report);
+            loadedDocumentKey = key;
+        } else if (!key.equals(loadedDocumentKey)) {
+            return Transform.loadAndSimplifyDocument(docFile, validate, validationOps, logger, report);
+        } else {
+            logger.info("Using the already loaded " + docFile.getAbsolutePath());
+        }
+
+        if (consumersLeft <= 0) {
+            Document doc = loadedDocument;
+            loadedDocument = null;
+            return doc;
+        }
+        try (BuildReport.Timer timer = report.startPhase("copyDocument")) {
+            return DocumentReplica.copyDocument(loadedDocument);
+        }
+    }
+
+    private static String getDocumentKey(File docFile, boolean validate, DocgenValidationOptions validationOps) {
+        return docFile.getAbsolutePath()
+                + "|" + validate
+                + "|" + validationOps.getProgramlistingRequiresRole()
+                + "|" + validationOps.getProgramlistingRequiresLanguage()
+                + "|" + validationOps.getOutputFilesCanUseAutoID()
+                + "|" + validationOps.getMaximumProgramlistingWidth();
+    }
+
+}
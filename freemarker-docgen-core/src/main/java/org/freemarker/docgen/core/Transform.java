@@ -26,18 +26,27 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -50,8 +59,18 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -60,14 +79,12 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.cache.FileTemplateLoader;
-import freemarker.cache.MultiTemplateLoader;
-import freemarker.cache.TemplateLoader;
+import freemarker.core.Environment;
 import freemarker.ext.dom.NodeModel;
-import freemarker.log.Logger;
 import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
 import freemarker.template.SimpleHash;
 import freemarker.template.SimpleScalar;
 import freemarker.template.Template;
@@ -375,14 +392,34 @@ public final class Transform {
         PREFACE_LIKE_ELEMENTS = Collections.unmodifiableSet(sinlgeFileElems);
     }
 
+    /**
+     * Attributes that refer to other elements by id; used in incremental mode to find the pages that link to an
+     * element whose title has changed.
+     */
+    private static final Set<String> ID_REFERENCE_ATTRIBUTES = ImmutableSet.of(
+            "linkend", "linkends", "endterm", "otherterm");
+
+    /**
+     * Child elements that can be used as the label of the parent element, when it's linked or shown in the ToC.
+     */
+    private static final Set<String> TITLE_LIKE_ELEMENTS = ImmutableSet.of(
+            E_TITLE, E_TITLEABBREV, E_SUBTITLE, E_INFO, "glossterm");
+
     private static final String XMLNS_DOCGEN = "http://freemarker.org/docgen";
     private static final String E_SEARCHRESULTS = "searchresults";
     private static final String SEARCH_RESULTS_PAGE_TITLE = "Search results";
     private static final String SEARCH_RESULTS_ELEMENT_ID = "searchresults";
 
+    /** The estimated rendering cost of a page without content (see {@link #estimateContentWeight(Element)}). */
+    private static final long PAGE_BASE_WEIGHT = 2000;
+    /** The estimated rendering cost of an element, in addition to its content. */
+    private static final long ELEMENT_WEIGHT = 20;
+
     // -------------------------------------------------------------------------
     // Settings:
 
+    private TransformEngine engine;
+
     private File cfgFile;
 
     private File destDir;
@@ -435,6 +472,55 @@ public final class Transform {
 
     private boolean printProgress;
 
+    private int renderingThreads = 1;
+
+    private int buildTaskThreads = 2;
+
+    private ExecutorService renderingExecutor;
+
+    private boolean incremental;
+
+    private boolean skipUnchangedOutputFiles;
+
+    private boolean hardLinkStaticFiles;
+
+    private boolean pruneStaleOutputFiles;
+
+    private File changeSetFile;
+
+    private boolean gzipOutputFiles;
+
+    private Set<String> gzipExtensions = new HashSet<>(Arrays.asList(
+            "html", "js", "css", "json", "xml", "svg", "txt"));
+
+    private int gzipMinimumSize = 256;
+
+    private int gzipCompressionLevel = Deflater.BEST_COMPRESSION;
+
+    private File buildReportFile;
+
+    private File documentSnapshotFile;
+
+    private File commandOutputCacheDirectory;
+
+    private long commandOutputCacheMaxSize = 64 * 1024 * 1024;
+
+    private int commandWorkers;
+
+    private List<String> pageSelection;
+
+    private boolean includeNeighborPages;
+
+    private boolean skipCustomStaticFiles;
+
+    private boolean skipTOCJSON;
+
+    private int shardIndex;
+
+    private int shardCount;
+
+    private List<File> shardDirectories;
+
     private final LinkedHashMap<String, String> internalBookmarks = new LinkedHashMap<>();
     private final LinkedHashMap<String, String> externalBookmarks = new LinkedHashMap<>();
     private Map<String, Map<String, String>> footerSiteMap = new LinkedHashMap<>();;
@@ -467,6 +553,9 @@ public final class Transform {
 
     private DocgenValidationOptions validationOps = new DocgenValidationOptions();
 
+    /** Files whose content was loaded into some setting values; the settings must be reloaded if these change. */
+    private final Set<File> filesReferredBySettings = new LinkedHashSet<>();
+
     String eclipseLinkTo;
 
     // -------------------------------------------------------------------------
@@ -479,14 +568,105 @@ public final class Transform {
     private Map<String, SortedMap<String, List<NodeModel>>> secondaryIndexTermLookup;
     private Map<String, Element> elementsById;
     private List<TOCNode> tocNodes;
+    /** Maps the file elements to their {@link TOCNode}; built by {@link #preprocessDOM_buildTOC_buildLinkIndex()}. */
+    private Map<Element, TOCNode> fileTOCNodesByElement;
+    /** Maps the element id-s to their link target; built by {@link #preprocessDOM_buildTOC_buildLinkIndex()}. */
+    private Map<String, LinkTarget> linkTargetsById;
     private List<String> indexEntries;
     private Map<String, Path> insertableFiles;
+    /** Cache of the fingerprints of the files inserted into the pages; used in incremental mode. */
+    private Map<Path, String> insertedFileFingerprints;
     private Configuration fmConfig;
+    /** The data-model variables that are the same for all templates; set in {@link #generateOutput()}. */
+    private Map<String, TemplateModel> commonVariables;
+    private boolean settingsLoaded;
+    private File templatesDir;
+    private File bookFile;
+    private URLSettings unresolvedURLSettings;
+    private Document document;
+    /** Collects the statistics of the work done since the output was last generated. */
+    private BuildReport report = new BuildReport();
+    /** Not {@code null} during {@link #generateOutput()}, if the stale files or the changes are needed. */
+    private OutputChangeSet outputChangeSet;
+    /** Not {@code null} during {@link #generateOutput()}, if {@link #setGzipOutputFiles(boolean)} was enabled. */
+    private GzipOutputCompressor gzipOutputCompressor;
+    /** Not {@code null} during {@link #generateOutput()}, if {@link #setCommandOutputCacheDirectory(File)} was set. */
+    private CommandOutputCache commandOutputCache;
+    /** Not {@code null} during {@link #generateOutput()}, if there are insertable output commands. */
+    private CommandRunner commandRunner;
+    /** Not {@code null} during {@link #generateOutput()}. */
+    private InsertableFileCache insertableFileCache;
+    /**
+     * If not {@code null}, the book XML is got from this instead of loading it; see {@link MultiVariantBuild}.
+     */
+    private SharedDocumentSource sharedDocumentSource;
+    /**
+     * Not {@code null} if this is used by a {@link TransformPreview}, in which case the output files are stored here,
+     * keyed by their path relative to the output directory, instead of being written. The pages are only rendered
+     * when they are first requested.
+     */
+    private Map<String, byte[]> previewFiles;
+    /**
+     * Not {@code null} when building a shard, in which case the paths of the output files (relative to the output
+     * directory) are collected here for the {@link ShardManifest}.
+     */
+    private Set<String> shardOutputFiles;
+    /**
+     * The file element {@link TOCNode}-s by output file name; not {@code null} after a successful
+     * {@link #startPreview()}.
+     */
+    private Map<String, TOCNode> previewPages;
+    private RenderingWorker previewWorker;
+    /** Kept between output generations, so that in watch mode the texts needn't be compiled again. */
+    private final CompiledTextCache compiledTextCache = new CompiledTextCache();
+    /** Forwards to the {@link #report} and the {@link #outputChangeSet}. */
+    private final OutputFileListener outputFileRecorder = new OutputFileListener() {
+        @Override
+        public void addWrittenFile(File file) {
+            report.addWrittenFile(file);
+            OutputChangeSet outputChangeSet = Transform.this.outputChangeSet;
+            if (outputChangeSet != null) {
+                outputChangeSet.addWrittenFile(file);
+            }
+        }
 
-    // -------------------------------------------------------------------------
-    // Output-file-specific state:
+        @Override
+        public void addUnchangedFile(File file) {
+            report.addUnchangedFile(file);
+            OutputChangeSet outputChangeSet = Transform.this.outputChangeSet;
+            if (outputChangeSet != null) {
+                outputChangeSet.addUnchangedFile(file);
+            }
+        }
+    };
+    /**
+     * Notified about all output files; forwards to the {@link #outputFileRecorder} and the gzip compressor, and
+     * collects the {@link #shardOutputFiles}.
+     */
+    private final OutputFileListener outputFileListener = new OutputFileListener() {
+        @Override
+        public void addWrittenFile(File file) {
+            outputFileRecorder.addWrittenFile(file);
+            addShardOutputFile(file);
+            GzipOutputCompressor gzipOutputCompressor = Transform.this.gzipOutputCompressor;
+            if (gzipOutputCompressor != null) {
+                gzipOutputCompressor.addWrittenFile(file);
+            }
+        }
+
+        @Override
+        public void addUnchangedFile(File file) {
+            outputFileRecorder.addUnchangedFile(file);
+            addShardOutputFile(file);
+            GzipOutputCompressor gzipOutputCompressor = Transform.this.gzipOutputCompressor;
+            if (gzipOutputCompressor != null) {
+                gzipOutputCompressor.addUnchangedFile(file);
+            }
+        }
+    };
 
-    private TOCNode currentFileTOCNode;
+    // Note: Output-file-specific state is stored in PageRenderingContext, as multiple files can be generated
+    // concurrently.
 
     // -------------------------------------------------------------------------
     // Misc. fields:
@@ -511,6 +691,20 @@ public final class Transform {
     // -------------------------------------------------------------------------
     // Methods:
 
+    /**
+     * Compiles the DocBook schema used for validating the source XML, and puts it into the JVM-wide cache, so that
+     * the first {@link #execute()} with {@link #setValidate(boolean) validate} enabled needn't wait for that. The
+     * compiled schema is shared by all {@link Transform}-s in the JVM (as far as they were loaded by the same class
+     * loader), so calling this is only useful if you run several transformations in the same JVM, and can do this in
+     * the background, or at a point where you don't wait for a transformation.
+     *
+     * @throws IOException If the schema can't be read.
+     * @throws SAXException If the schema can't be parsed.
+     */
+    public static void prewarmSchemaCache() throws IOException, SAXException {
+        XMLUtil.prewarmDocBook5SchemaCache();
+    }
+
     /**
      * Loads the source XML and generates the output in the destination
      * directory. Don't forget to set JavaBean properties first.
@@ -523,6 +717,17 @@ public final class Transform {
      */
     public void execute()
             throws DocgenException, IOException, SAXException {
+        prepareExecution();
+        loadDocument();
+        generateOutput();
+    }
+
+    /**
+     * The part of {@link #execute()} before {@link #loadDocument()}; ensures that this is only executed once, and
+     * loads the settings.
+     */
+    @SuppressWarnings("try")
+    void prepareExecution() throws DocgenException, IOException {
         if (executed) {
             throw new DocgenException(
                     "This transformation was alrady executed; "
@@ -530,8 +735,20 @@ public final class Transform {
         }
         executed  = true;
 
+        try (BuildReport.Timer timer = report.startPhase("loadSettings")) {
+            loadSettings();
+        }
+    }
+
+    /**
+     * Checks the JavaBean properties, loads the settings file, and sets up FreeMarker.
+     */
+    private void loadSettings() throws DocgenException, IOException {
         // Check Java Bean properties:
 
+        if (srcDir == null && engine != null) {
+            srcDir = engine.getSourceDirectory();
+        }
         if (srcDir == null) {
             throw new DocgenException(
                     "The source directory (the DocBook XML) wasn't specified.");
@@ -542,15 +759,21 @@ public final class Transform {
                     + srcDir.getAbsolutePath());
         }
 
-        if (destDir == null) {
+        if (destDir == null && previewFiles == null) {
             throw new DocgenException(
                     "The destination directory wasn't specified.");
         }
         // Note: This directory will be created automatically if missing.
 
-        // Load configuration file:
+        if (engine == null) {
+            engine = new TransformEngine(srcDir);
+        } else if (!engine.getSourceDirectory().getAbsoluteFile().equals(srcDir.getAbsoluteFile())) {
+            throw new DocgenException(
+                    "The source directory of the engine (" + engine.getSourceDirectory().getAbsolutePath()
+                    + ") differs from the source directory of the transformation (" + srcDir.getAbsolutePath() + ").");
+        }
 
-        File templatesDir = null;
+        // Load configuration file:
 
         cfgFile = new File(srcDir, FILE_SETTINGS);
         if (cfgFile.exists()) {
@@ -874,15 +1097,33 @@ public final class Transform {
             maxMainTOFDisplayDepth = maxTOFDisplayDepth;
         }
 
-        templatesDir = new File(srcDir, DIR_TEMPLATES);
-        if (!templatesDir.exists()) {
-            templatesDir = null;
-        }
+        templatesDir = engine.getTemplatesDirectory();
 
         if (contentDir == null) {
             contentDir = srcDir;
         }
 
+        logger.info("Using FreeMarker " + Configuration.getVersion());
+        fmConfig = engine.getFreeMarkerConfiguration();
+
+        settingsLoaded = true;
+    }
+
+    /**
+     * Loads and validates the book XML, and then builds the lookup tables. In watch mode this is called again when the
+     * XML has changed, after the earlier output was generated.
+     */
+    @SuppressWarnings("try")
+    void loadDocument() throws DocgenException, IOException, SAXException {
+        document = null;
+
+        // Setting values that contain Docgen URL-s are resolved in-place, so we have to start from the original values:
+        if (unresolvedURLSettings == null) {
+            unresolvedURLSettings = new URLSettings();
+        } else {
+            unresolvedURLSettings.restore();
+        }
+
         // Initialize state fields
 
         primaryIndexTermLookup = new HashMap<>();
@@ -891,33 +1132,6 @@ public final class Transform {
         tocNodes = new ArrayList<>();
         indexEntries = new ArrayList<>();
 
-        // Setup FreeMarker:
-
-        try {
-            Logger.selectLoggerLibrary(Logger.LIBRARY_NONE);
-        } catch (ClassNotFoundException e) {
-            throw new BugException(e);
-        }
-
-        logger.info("Using FreeMarker " + Configuration.getVersion());
-        fmConfig = new Configuration(Configuration.VERSION_2_3_25);
-
-        TemplateLoader templateLoader = new ClassTemplateLoader(
-                Transform.class, "templates");
-        if (templatesDir != null) {
-            templateLoader = new MultiTemplateLoader(
-                    new TemplateLoader[] { new FileTemplateLoader(templatesDir), templateLoader });
-        }
-        fmConfig.setTemplateLoader(templateLoader);
-
-        fmConfig.setLocale(locale);
-        fmConfig.setTimeZone(timeZone);
-
-        fmConfig.setDefaultEncoding(UTF_8.name());
-        fmConfig.setOutputEncoding(UTF_8.name());
-
-        // Do the actual job:
-
         // - Load and validate the book XML
         final File docFile;
         {
@@ -934,54 +1148,81 @@ public final class Transform {
                 }
             }
         }
-        Document doc = XMLUtil.loadDocBook5XML(
-                docFile, validate, validationOps, logger);
-        ignoredFilePathPatterns.add(FileUtil.globToRegexp(docFile.getName()));
-
-        // - Post-edit and examine the DOM:
-        preprocessDOM(doc);
-
-        // Resolve Docgen URL schemes in setting values:
-        // Olinks must come first:
-        if (olinks != null) {
-            for (Entry<String, String> olinkEnt : olinks.entrySet()) {
-                olinkEnt.setValue(resolveDocgenURL(SETTING_OLINKS, olinkEnt.getValue()));
-            }
-        }
-        if (tabs != null) {
-            for (Entry<String, String> tabEnt : tabs.entrySet()) {
-                tabEnt.setValue(resolveDocgenURL(SETTING_TABS, tabEnt.getValue()));
+        Document doc = null;
+        String snapshotInputsFingerprint = null;
+        if (documentSnapshotFile != null) {
+            try (BuildReport.Timer timer = report.startPhase("loadDocumentSnapshot")) {
+                snapshotInputsFingerprint = computeDocumentSnapshotInputsFingerprint(docFile);
+                DocumentSnapshot snapshot = DocumentSnapshot.load(
+                        documentSnapshotFile, snapshotInputsFingerprint, logger);
+                if (snapshot != null) {
+                    logger.info("Loaded the preprocessed document from " + documentSnapshotFile.getAbsolutePath());
+                    doc = applyDocumentSnapshot(snapshot);
+                }
             }
         }
-        for (Map<String, String> secondaryTab : secondaryTabs.values()) {
-            secondaryTab.put("href", resolveDocgenURL(SETTING_SECONDARY_TABS, secondaryTab.get("href")));
-        }
-        if (externalBookmarks != null) {
-            for (Entry<String, String> bookmarkEnt : externalBookmarks.entrySet()) {
-                bookmarkEnt.setValue(resolveDocgenURL(SETTING_EXTERNAL_BOOKMARKS, bookmarkEnt.getValue()));
+        if (doc == null) {
+            if (sharedDocumentSource != null) {
+                doc = sharedDocumentSource.getDocument(docFile, validate, validationOps, logger, report);
+            } else {
+                doc = loadAndSimplifyDocument(docFile, validate, validationOps, logger, report);
             }
-        }
-        for (Map<String, String> tab : socialLinks.values()) {
-            tab.put("href", resolveDocgenURL(SETTING_SOCIAL_LINKS, tab.get("href")));
-        }
-        for (Map<String, String> links : footerSiteMap.values()) {
-            for (Map.Entry<String, String> link : links.entrySet()) {
-                link.setValue(resolveDocgenURL(SETTING_FOOTER_SITEMAP, link.getValue()));
+
+            // - Post-edit and examine the DOM:
+            preprocessDOM(doc);
+
+            if (documentSnapshotFile != null) {
+                try (BuildReport.Timer timer = report.startPhase("saveDocumentSnapshot")) {
+                    DocumentSnapshot snapshot = createDocumentSnapshot(doc, snapshotInputsFingerprint);
+                    if (snapshot != null) {
+                        snapshot.save(documentSnapshotFile);
+                    } else {
+                        Files.deleteIfExists(documentSnapshotFile.toPath());
+                    }
+                }
             }
         }
-        if (logo != null) {
-            resolveLogoHref(logo);
-        }
-        for (Logo logo : sideTOCLogos) {
-            resolveLogoHref(logo);
+        if (!docFile.equals(bookFile)) {
+            ignoredFilePathPatterns.add(FileUtil.globToRegexp(docFile.getName()));
+            bookFile = docFile;
         }
 
-        // - Create destination directory:
-        if (!destDir.isDirectory() && !destDir.mkdirs()) {
-            throw new IOException("Failed to create destination directory: "
-                    + destDir.getAbsolutePath());
+        // Resolve Docgen URL schemes in setting values:
+        try (BuildReport.Timer timer = report.startPhase("resolveSettingURLs")) {
+            // Olinks must come first:
+            if (olinks != null) {
+                for (Entry<String, String> olinkEnt : olinks.entrySet()) {
+                    olinkEnt.setValue(resolveDocgenURL(SETTING_OLINKS, olinkEnt.getValue()));
+                }
+            }
+            if (tabs != null) {
+                for (Entry<String, String> tabEnt : tabs.entrySet()) {
+                    tabEnt.setValue(resolveDocgenURL(SETTING_TABS, tabEnt.getValue()));
+                }
+            }
+            for (Map<String, String> secondaryTab : secondaryTabs.values()) {
+                secondaryTab.put("href", resolveDocgenURL(SETTING_SECONDARY_TABS, secondaryTab.get("href")));
+            }
+            if (externalBookmarks != null) {
+                for (Entry<String, String> bookmarkEnt : externalBookmarks.entrySet()) {
+                    bookmarkEnt.setValue(resolveDocgenURL(SETTING_EXTERNAL_BOOKMARKS, bookmarkEnt.getValue()));
+                }
+            }
+            for (Map<String, String> tab : socialLinks.values()) {
+                tab.put("href", resolveDocgenURL(SETTING_SOCIAL_LINKS, tab.get("href")));
+            }
+            for (Map<String, String> links : footerSiteMap.values()) {
+                for (Map.Entry<String, String> link : links.entrySet()) {
+                    link.setValue(resolveDocgenURL(SETTING_FOOTER_SITEMAP, link.getValue()));
+                }
+            }
+            if (logo != null) {
+                resolveLogoHref(logo);
+            }
+            for (Logo logo : sideTOCLogos) {
+                resolveLogoHref(logo);
+            }
         }
-        logger.info("Output directory: " + destDir.getAbsolutePath());
 
         // - Check internal book-marks:
         for (Entry<String, String> ent : internalBookmarks.entrySet()) {
@@ -993,235 +1234,673 @@ public final class Transform {
             }
         }
 
-        insertableFiles = computeInsertableFiles();
+        document = doc;
+    }
 
-        // - Setup common data-model variables:
+    /**
+     * Generates the output from the document loaded by {@link #loadDocument()}. In watch mode this is called again
+     * when anything that can affect the output has changed.
+     */
+    void generateOutput() throws DocgenException, IOException {
+        gzipOutputCompressor = gzipOutputFiles ? newGzipOutputCompressor() : null;
+        commandOutputCache = commandOutputCacheDirectory != null && !insertableOutputCommands.isEmpty()
+                ? new CommandOutputCache(commandOutputCacheDirectory, commandOutputCacheMaxSize)
+                : null;
+        commandRunner = !insertableOutputCommands.isEmpty()
+                ? new CommandRunner(commandOutputCache, commandWorkers)
+                : null;
+        insertableFileCache = new InsertableFileCache();
+        compiledTextCache.startGeneration();
         try {
-            // Settings:
-            fmConfig.setSharedVariable(
-                    VAR_OFFLINE, offline);
-            fmConfig.setSharedVariable(
-                    VAR_SIMPLE_NAVIGATION_MODE, simpleNavigationMode);
-            fmConfig.setSharedVariable(
-                    VAR_DEPLOY_URL, deployUrl);
-            fmConfig.setSharedVariable(
-                    VAR_ONLINE_TRACKER_HTML, onlineTrackerHTML);
-            fmConfig.setSharedVariable(
-                    VAR_COOKIE_CONSENT_SCRIPT_URL, cookieConstentScriptURL);
-            fmConfig.setSharedVariable(
-                    VAR_SHOW_EDITORAL_NOTES, showEditoralNotes);
-            fmConfig.setSharedVariable(
-                    VAR_SHOW_XXE_LOGO, showXXELogo);
-            fmConfig.setSharedVariable(
-                    VAR_SEARCH_KEY, searchKey);
-            fmConfig.setSharedVariable(
-                    VAR_DISABLE_JAVASCRIPT, disableJavaScript);
-            fmConfig.setSharedVariable(
-                    VAR_OLINKS, olinks);
-            fmConfig.setSharedVariable(
-                    VAR_NUMBERED_SECTIONS, numberedSections);
-            fmConfig.setSharedVariable(
-                    VAR_LOGO, logo);
-            fmConfig.setSharedVariable(
-                    VAR_SIDE_TOC_LOGOS, sideTOCLogos);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_HOLDER, copyrightHolder);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_HOLDER_SITE, copyrightHolderSite);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_SUFFIX, copyrightSuffix);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_START_YEAR, copyrightStartYear);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_COMMENT, copyrightComment);
-            fmConfig.setSharedVariable(
-                    VAR_COPYRIGHT_JAVA_COMMENT, copyrightJavaComment);
-            fmConfig.setSharedVariable(
-                    VAR_TABS, tabs);
-            fmConfig.setSharedVariable(
-                    VAR_SECONDARY_TABS, secondaryTabs);
-            fmConfig.setSharedVariable(
-                    VAR_SOCIAL_LINKS, socialLinks);
-            fmConfig.setSharedVariable(
-                    VAR_FOOTER_SITEMAP, footerSiteMap);
-            fmConfig.setSharedVariable(
-                    VAR_EXTERNAL_BOOKMARDS, externalBookmarks);
-            fmConfig.setSharedVariable(
-                    VAR_INTERNAL_BOOKMARDS, internalBookmarks);
-            fmConfig.setSharedVariable(
-                    VAR_ROOT_ELEMENT, doc.getDocumentElement());
-            fmConfig.setSharedVariable(
-                    VAR_CUSTOM_VARIABLES, computeCustomVariables());
+            generateOutput_inner();
+        } finally {
+            insertableFileCache = null;
+            if (commandRunner != null) {
+                commandRunner.close();
+                commandRunner = null;
+            }
+            commandOutputCache = null;
+            if (gzipOutputCompressor != null) {
+                gzipOutputCompressor.close();
+                gzipOutputCompressor = null;
+            }
+        }
+    }
 
-            fmConfig.setSharedVariable(
-                    "printTextWithDocgenSubstitutions",
-                    new PrintTextWithDocgenSubstitutionsDirective(this));
-            fmConfig.setSharedVariable(
-                    "chopLinebreak",
-                    ChopLinebreakDirective.INSTANCE);
+    private GzipOutputCompressor newGzipOutputCompressor() {
+        return new GzipOutputCompressor(
+                gzipExtensions, gzipMinimumSize, gzipCompressionLevel, skipUnchangedOutputFiles,
+                outputFileRecorder);
+    }
 
-            // Calculated data:
-            {
-                Date generationTime;
-                String generationTimeStr = System.getProperty(SYSPROP_GENERATION_TIME);
-                if (generationTimeStr == null) {
-                    generationTime = new Date();
-                } else {
-                    try {
-                        generationTime = DateUtil.parseISO8601DateTime(generationTimeStr, DateUtil.UTC,
-                                new DateUtil.TrivialCalendarFieldsToDateConverter());
-                    } catch (DateParseException e) {
-                        throw new DocgenException(
-                                "Malformed \"" + SYSPROP_GENERATION_TIME
-                                + "\" system property value: " + generationTimeStr, e);
-                    }
-                }
-                fmConfig.setSharedVariable(VAR_TRANSFORM_START_TIME, generationTime);
-            }
-            fmConfig.setSharedVariable(
-                    VAR_INDEX_ENTRIES, indexEntries);
-            int tofCntLv1 = countTOFEntries(tocNodes.get(0), 1);
-            int tofCntLv2 = countTOFEntries(tocNodes.get(0), 2);
-            fmConfig.setSharedVariable(
-                    VAR_SHOW_NAVIGATION_BAR,
-                    tofCntLv1 != 0
-                            || internalBookmarks.size() != 0
-                            || externalBookmarks.size() != 0);
-            fmConfig.setSharedVariable(
-                    VAR_SHOW_BREADCRUMB, tofCntLv1 != tofCntLv2);
+    /**
+     * Makes this {@link Transform} keep the output files in memory, and generate the pages on demand; see
+     * {@link TransformPreview}. Must be called before {@link #prepareExecution()}.
+     */
+    void enablePreview() {
+        previewFiles = new ConcurrentHashMap<>();
+    }
 
-            // Helper methods and directives:
-            fmConfig.setSharedVariable(
-                    "NodeFromID", nodeFromID);
-            fmConfig.setSharedVariable(
-                    "CreateLinkFromID", createLinkFromID);
-            fmConfig.setSharedVariable(
-                    "primaryIndexTermLookup", primaryIndexTermLookup);
-            fmConfig.setSharedVariable(
-                    "secondaryIndexTermLookup", secondaryIndexTermLookup);
-            fmConfig.setSharedVariable(
-                    "CreateLinkFromNode", createLinkFromNode);
-        } catch (TemplateModelException e) {
-            throw new BugException(e);
-        }
+    /**
+     * The counterpart of {@link #execute()} when {@link #enablePreview()} was called.
+     */
+    void executePreview() throws DocgenException, IOException, SAXException {
+        prepareExecution();
+        loadDocument();
+        startPreview();
+    }
 
-        // - Generate ToC JSON-s:
-        {
-            logger.info("Generating ToC JSON...");
-            Template template = fmConfig.getTemplate(FILE_TOC_JSON_TEMPLATE);
-            try (Writer wr = FileUtil.newFileWriter(new File(destDir, FILE_TOC_JSON_OUTPUT))) {
-                try {
-                    SimpleHash dataModel = new SimpleHash(fmConfig.getObjectWrapper());
-                    dataModel.put(VAR_JSON_TOC_ROOT, tocNodes.get(0));
-                    template.process(dataModel, wr, null, NodeModel.wrap(doc));
-                } catch (TemplateException e) {
-                    throw new BugException("Failed to generate ToC JSON "
-                            + "(see cause exception).", e);
-                }
-            }
-        }
+    /**
+     * The counterpart of {@link #generateOutput()} when {@link #enablePreview()} was called. It only generates the
+     * output files that all pages use; the pages are generated when they are first requested with
+     * {@link #getPreviewFile(String)}. Must be called again after the document was reloaded, or the templates or the
+     * insertable files were changed, as it drops all the files generated earlier.
+     */
+    void startPreview() throws DocgenException, IOException {
+        stopPreview();
+
+        Document doc = document;
+        if (doc == null) {
+            throw new BugException("The document wasn't successfully loaded");
+        }
+
+        commandOutputCache = commandOutputCacheDirectory != null && !insertableOutputCommands.isEmpty()
+                ? new CommandOutputCache(commandOutputCacheDirectory, commandOutputCacheMaxSize)
+                : null;
+        commandRunner = !insertableOutputCommands.isEmpty()
+                ? new CommandRunner(commandOutputCache, commandWorkers)
+                : null;
+        insertableFileCache = new InsertableFileCache();
+        compiledTextCache.startGeneration();
+        insertableFiles = computeInsertableFiles();
+        setUpCommonVariables(doc, getGenerationTime());
 
-        // - Generate Sitemap XML:
-        {
-            logger.info("Generating Sitemap XML...");
-            Template template = fmConfig.getTemplate(FILE_SITEMAP_XML_TEMPLATE);
-            try (Writer wr = FileUtil.newFileWriter(new File(destDir, FILE_SITEMAP_XML_OUTPUT))) {
-                try {
-                    SimpleHash dataModel = new SimpleHash(fmConfig.getObjectWrapper());
-                    dataModel.put(VAR_JSON_TOC_ROOT, tocNodes.get(0));
-                    template.process(dataModel, wr, null, NodeModel.wrap(doc));
-                } catch (TemplateException e) {
-                    throw new BugException("Failed to generate Sitemap XML"
-                            + "(see cause exception).", e);
-                }
-            }
+        generateTOCJSONFile(doc);
+        generateSitemapXMLFile(doc);
+        for (String staticFileName : getCommonStaticFileNames()) {
+            previewFiles.put("docgen-resources/" + staticFileName, loadCommonStatic(staticFileName));
         }
 
-
-        // - Generate the HTML-s:
-        logger.info("Generating HTML files...");
-        int htmlFileCounter = 0;
+        Map<String, TOCNode> pages = new HashMap<>();
         for (TOCNode tocNode : tocNodes) {
             if (tocNode.getOutputFileName() != null) {
-                try {
-                    currentFileTOCNode = tocNode;
-                    try {
-                        // All output-file-specific processing comes here.
-                        htmlFileCounter += generateHTMLFile();
-                    } finally {
-                        currentFileTOCNode = null;
-                    }
-                } catch (freemarker.core.StopException e) {
-                    throw new DocgenException(e.getMessage());
-                } catch (DocgenTagException e) {
-                    throw new DocgenException("Docgen tag evaluation in document text failed; see cause exception", e);
-                } catch (TemplateException e) {
-                    throw new BugException(e);
-                }
+                pages.put(tocNode.getOutputFileName(), tocNode);
             }
         }
+        previewWorker = newRenderingWorker(doc, false);
+        previewPages = pages;
+    }
 
-        if (!offline && searchKey != null) {
-            try {
-                generateSearchResultsHTMLFile(doc);
-                htmlFileCounter++;
-            } catch (freemarker.core.StopException e) {
-                throw new DocgenException(e.getMessage());
-            } catch (TemplateException e) {
-                throw new BugException(e);
-            }
-        }
+    /**
+     * Drops the files generated since {@link #startPreview()}, and releases the resources used for generating them.
+     */
+    void stopPreview() {
+        previewPages = null;
+        previewWorker = null;
+        previewFiles.clear();
+        insertableFileCache = null;
+        if (commandRunner != null) {
+            commandRunner.close();
+            commandRunner = null;
+        }
+        commandOutputCache = null;
+    }
 
-        // - Copy the standard statics:
-        logger.info("Copying common static files...");
-        copyCommonStatic("docgen.min.css");
-        copyCommonStatic("img/patterned-bg.png");
+    /**
+     * Returns the content of an output file when {@link #enablePreview()} was called. Pages are generated when they
+     * are first requested, and then kept until the next {@link #startPreview()}. Must not be called concurrently.
+     *
+     * @param path
+     *            The path of the file relative to the output directory, with {@code /} separators.
+     *
+     * @return {@code null} if there's no such output file.
+     *
+     * @throws DocgenException
+     *             If the last {@link #startPreview()} has failed, or if generating the page has failed.
+     */
+    byte[] getPreviewFile(String path) throws DocgenException, IOException {
+        Map<String, TOCNode> pages = previewPages;
+        if (pages == null) {
+            throw new DocgenException("Nothing can be previewed, as the last build has failed; see the log.");
+        }
 
-        copyCommonStatic("fonts/icomoon.eot");
-        copyCommonStatic("fonts/icomoon.svg");
-        copyCommonStatic("fonts/icomoon.ttf");
-        copyCommonStatic("fonts/icomoon.woff");
-        copyCommonStatic("fonts/NOTICE");
+        byte[] content = previewFiles.get(path);
+        if (content != null) {
+            return content;
+        }
 
-        if (showXXELogo) {
-            copyCommonStatic("img/xxe.png");
+        TOCNode fileTOCNode = pages.get(path);
+        if (fileTOCNode == null && path.equals(FILE_DETAILED_TOC_HTML)) {
+            // If it's needed at all, it's generated together with the page of the document element.
+            fileTOCNode = tocNodes.stream()
+                    .filter(tocNode -> tocNode.getElement().getParentNode() instanceof Document)
+                    .findFirst().orElse(null);
+            if (fileTOCNode != null && previewFiles.containsKey(fileTOCNode.getOutputFileName())) {
+                return null;
+            }
         }
-        if (!disableJavaScript) {
-          copyCommonStatic("main.min.js");
+        if (fileTOCNode != null) {
+            try {
+                new HTMLPageJob(fileTOCNode, null).run(previewWorker);
+            } catch (IOException | RuntimeException e) {
+                // Don't serve the partially generated files later:
+                previewFiles.remove(fileTOCNode.getOutputFileName());
+                if (fileTOCNode.getElement().getParentNode() instanceof Document) {
+                    previewFiles.remove(FILE_DETAILED_TOC_HTML);
+                }
+                throw e;
+            }
+            return previewFiles.get(path);
         }
 
-        // - Copy the custom statics:
-        logger.info("Copying custom static files...");
-        int bookSpecStaticFileCounter = FileUtil.copyDir(contentDir, destDir, ignoredFilePathPatterns);
+        if (path.equals(FILE_SEARCH_RESULTS_HTML) && !offline && searchKey != null) {
+            try {
+                generateSearchResultsHTMLFile(document, previewWorker);
+            } catch (freemarker.core.StopException e) {
+                previewFiles.remove(path);
+                throw new DocgenException(e.getMessage());
+            } catch (TemplateException e) {
+                previewFiles.remove(path);
+                throw new BugException(e);
+            }
+            return previewFiles.get(path);
+        }
 
-        // - Eclipse ToC:
-        if (generateEclipseTOC) {
-            if (simpleNavigationMode) {
-                throw new DocgenException("Eclipse ToC generation is untested/unsupported with simpleNavigationMode=true.");
+        // Custom static files are served from the content directory, as in watch mode they are not copied either.
+        if (!FileUtil.isCopiedByCopyDir(path, ignoredFilePathPatterns)) {
+            return null;
+        }
+        Path contentDirPath = contentDir.toPath().toAbsolutePath().normalize();
+        Path file = contentDirPath.resolve(path).normalize();
+        if (!file.startsWith(contentDirPath) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        return Files.readAllBytes(file);
+    }
+
+    @SuppressWarnings("try")
+    private void generateOutput_inner() throws DocgenException, IOException {
+        Document doc = document;
+        if (doc == null) {
+            throw new BugException("The document wasn't successfully loaded");
+        }
+
+        // - Create destination directory:
+        if (!destDir.isDirectory() && !destDir.mkdirs()) {
+            throw new IOException("Failed to create destination directory: "
+                    + destDir.getAbsolutePath());
+        }
+        logger.info("Output directory: " + destDir.getAbsolutePath());
+
+        if (pruneStaleOutputFiles) {
+            Path absSrcDir = srcDir.toPath().toAbsolutePath().normalize();
+            Path absDestDir = destDir.toPath().toAbsolutePath().normalize();
+            if (absSrcDir.startsWith(absDestDir)) {
+                throw new DocgenException("Refusing to prune stale output files, as the source directory ("
+                        + absSrcDir + ") is inside the output directory (" + absDestDir + ").");
+            }
+        }
+        if (shardCount != 0 || shardIndex != 0 || shardDirectories != null) {
+            checkShardingSettings();
+        }
+        if (pageSelection != null && (pruneStaleOutputFiles || changeSetFile != null)) {
+            throw new DocgenException("The pruneStaleOutputFiles and changeSetFile settings can't be used together "
+                    + "with pageSelection, as then the pages that weren't selected would be considered as stale.");
+        }
+        outputChangeSet = pruneStaleOutputFiles || changeSetFile != null ? new OutputChangeSet(destDir) : null;
+
+        insertableFiles = computeInsertableFiles();
+
+        Date generationTime = getGenerationTime();
+        setUpCommonVariables(doc, generationTime);
+
+        // - Find out what has changed since the last run:
+        BuildManifest manifest = incremental ? new BuildManifest(computeInputsFingerprint(generationTime)) : null;
+        BuildManifest previousManifest = incremental ? loadUsablePreviousManifest(manifest) : null;
+        // If we fail before the new manifest is saved, the old one must not be used, as some pages were regenerated.
+        // Also, if we aren't in incremental mode, the old one would get out of date.
+        BuildManifest.delete(destDir);
+        // Similarly, a shard that has failed must not be merged.
+        ShardManifest.delete(destDir);
+        shardOutputFiles = shardCount != 0 ? ConcurrentHashMap.newKeySet() : null;
+        insertedFileFingerprints = new ConcurrentHashMap<>();
+
+        Set<TOCNode> selectedPages = pageSelection != null ? selectPages()
+                : shardCount != 0 ? selectShardPages()
+                : null;
+
+        // - Generate the output files:
+        // The tasks that use the DOM must run one after the other, as the DOM isn't safe for concurrent reads (see
+        // DocumentReplica), but copying the static files can overlap with them. The DOM tasks run on the current
+        // thread, so only the copying of the static files is moved to another thread.
+        AtomicInteger htmlFileCounter = new AtomicInteger();
+        AtomicInteger bookSpecStaticFileCounter = new AtomicInteger();
+        BuildTaskGraph taskGraph = new BuildTaskGraph();
+        BuildTaskGraph.Task lastDOMTask = null;
+
+        // When building a shard, the files that aren't pages are left to the merge.
+        if (!skipTOCJSON && shardCount == 0) {
+            lastDOMTask = taskGraph.addOnCallingThread("tocJSON", () -> generateTOCJSONFile(doc), lastDOMTask);
+        }
+        if (shardCount == 0) {
+            lastDOMTask = taskGraph.addOnCallingThread("sitemapXML", () -> generateSitemapXMLFile(doc), lastDOMTask);
+        }
+
+        if (shardDirectories == null) {
+            lastDOMTask = taskGraph.addOnCallingThread(BuildReport.PHASE_HTML_FILES, () -> {
+                logger.info("Generating HTML files...");
+                try (BuildReport.Timer timer = report.startPhase(BuildReport.PHASE_HTML_FILES)) {
+                    htmlFileCounter.addAndGet(generateHTMLFiles(doc, selectedPages, previousManifest, manifest));
+                }
+            }, lastDOMTask);
+        } else {
+            lastDOMTask = taskGraph.addOnCallingThread("mergeShards", () -> {
+                logger.info("Merging the HTML files of " + shardDirectories.size() + " shard(s)...");
+                try (BuildReport.Timer timer = report.startPhase("mergeShards")) {
+                    htmlFileCounter.addAndGet(mergeShards(doc, generationTime));
+                }
+            }, lastDOMTask);
+        }
+
+        if (!offline && searchKey != null && pageSelection == null && shardCount == 0) {
+            lastDOMTask = taskGraph.addOnCallingThread("searchResultsPage", () -> {
+                try (BuildReport.Timer timer = report.startPhase("searchResultsPage")) {
+                    generateSearchResultsHTMLFile(doc, newRenderingWorker(doc, false));
+                    htmlFileCounter.incrementAndGet();
+                } catch (freemarker.core.StopException e) {
+                    throw new DocgenException(e.getMessage());
+                } catch (TemplateException e) {
+                    throw new BugException(e);
+                }
+            }, lastDOMTask);
+        }
+
+        if (generateEclipseTOC && shardCount == 0) {
+            lastDOMTask = taskGraph.addOnCallingThread("eclipseToC", () -> generateEclipseTOCFile(doc), lastDOMTask);
+        }
+
+        if (shardCount == 0) {
+            BuildTaskGraph.Task commonStaticsTask = taskGraph.add("commonStatics", this::copyCommonStaticFiles);
+            // Custom static files overwrite the common ones, and also generated files, if the names clash.
+            taskGraph.add(
+                    "customStatics", () -> bookSpecStaticFileCounter.set(copyCustomStaticFiles()),
+                    commonStaticsTask, customStaticFileOverwritesGeneratedFile() ? lastDOMTask : null);
+        }
+
+        taskGraph.run(buildTaskThreads);
+        logger.info(taskGraph.formatSummary());
+
+        if (shardCount != 0) {
+            ShardManifest shardManifest = new ShardManifest(
+                    shardIndex, shardCount, computeShardInputsFingerprint(doc, generationTime));
+            for (TOCNode page : selectedPages) {
+                shardManifest.addPage(page.getOutputFileName());
+            }
+            for (String outputFile : new TreeSet<>(shardOutputFiles)) {
+                shardManifest.addOutputFile(outputFile);
+            }
+            shardManifest.save(destDir);
+        }
+
+        if (manifest != null) {
+            manifest.save(destDir);
+        }
+
+        if (gzipOutputCompressor != null) {
+            try (BuildReport.Timer timer = report.startPhase("gzipFinish")) {
+                gzipOutputCompressor.finish();
+            }
+        }
+
+        // - Stale files and change set:
+        if (outputChangeSet != null) {
+            outputChangeSet.ignoreFile(new File(destDir, BuildManifest.FILE_NAME));
+            if (buildReportFile != null) {
+                outputChangeSet.ignoreFile(buildReportFile);
+            }
+            if (changeSetFile != null) {
+                outputChangeSet.ignoreFile(changeSetFile);
+            }
+            if (commandOutputCacheDirectory != null) {
+                outputChangeSet.ignoreDirectory(commandOutputCacheDirectory);
+            }
+            if (documentSnapshotFile != null) {
+                outputChangeSet.ignoreFile(documentSnapshotFile);
+                outputChangeSet.ignoreFile(DocumentSnapshot.getTempFile(documentSnapshotFile));
+            }
+
+            String staleFilesInfo;
+            if (pruneStaleOutputFiles) {
+                try (BuildReport.Timer timer = report.startPhase("pruneStaleOutputFiles")) {
+                    staleFilesInfo = outputChangeSet.pruneStaleFiles() + " deleted";
+                }
+            } else {
+                staleFilesInfo = outputChangeSet.getStaleFiles().size() + " stale (not deleted)";
+            }
+            logger.info("Output changes: "
+                    + outputChangeSet.getAddedFileCount() + " added, "
+                    + outputChangeSet.getModifiedFileCount() + " modified, "
+                    + outputChangeSet.getUnchangedFileCount() + " unchanged, "
+                    + staleFilesInfo);
+            if (changeSetFile != null) {
+                outputChangeSet.writeJSON(changeSetFile);
+                logger.info("Change set written to " + changeSetFile.getAbsolutePath());
+            }
+            outputChangeSet = null;
+        }
+
+        if (commandOutputCache != null) {
+            try (BuildReport.Timer timer = report.startPhase("evictCommandOutputCache")) {
+                commandOutputCache.evict();
+            }
+            logger.info(commandOutputCache.formatStatistics());
+            report.addCacheStatistics(
+                    CommandOutputCache.CACHE_NAME, commandOutputCache.getHits(), commandOutputCache.getMisses());
+        }
+        insertableFileCache.addStatisticsTo(report);
+        compiledTextCache.addStatisticsTo(report);
+
+        // - Report summary:
+        logger.info(
+                "Done: "
+                + htmlFileCounter.get() + " HTML-s + "
+                + bookSpecStaticFileCounter.get() + " custom statics + commons"
+                + (generateEclipseTOC ? " + Eclipse ToC" : ""));
+
+        logger.info(report.formatSummary());
+        if (buildReportFile != null) {
+            report.writeJSON(buildReportFile);
+            logger.info("Build report written to " + buildReportFile.getAbsolutePath());
+        }
+        // If the output is generated again (in watch mode), only the work done for that will be reported:
+        report = new BuildReport();
+    }
+
+    private Date getGenerationTime() throws DocgenException {
+        String generationTimeStr = System.getProperty(SYSPROP_GENERATION_TIME);
+        if (generationTimeStr == null) {
+            return new Date();
+        } else {
+            try {
+                return DateUtil.parseISO8601DateTime(generationTimeStr, DateUtil.UTC,
+                        new DateUtil.TrivialCalendarFieldsToDateConverter());
+            } catch (DateParseException e) {
+                throw new DocgenException(
+                        "Malformed \"" + SYSPROP_GENERATION_TIME
+                        + "\" system property value: " + generationTimeStr, e);
+            }
+        }
+    }
+
+    /**
+     * Sets up the data-model variables that are common for all templates.
+     */
+    private void setUpCommonVariables(Document doc, Date generationTime) throws DocgenException {
+        // - Setup common data-model variables:
+        // (These aren't shared variables, as the FreeMarker configuration is shared by all transformations that use
+        // the same engine.)
+        try {
+            Map<String, Object> variables = new HashMap<>();
+
+            // Settings:
+            variables.put(
+                    VAR_OFFLINE, offline);
+            variables.put(
+                    VAR_SIMPLE_NAVIGATION_MODE, simpleNavigationMode);
+            variables.put(
+                    VAR_DEPLOY_URL, deployUrl);
+            variables.put(
+                    VAR_ONLINE_TRACKER_HTML, onlineTrackerHTML);
+            variables.put(
+                    VAR_COOKIE_CONSENT_SCRIPT_URL, cookieConstentScriptURL);
+            variables.put(
+                    VAR_SHOW_EDITORAL_NOTES, showEditoralNotes);
+            variables.put(
+                    VAR_SHOW_XXE_LOGO, showXXELogo);
+            variables.put(
+                    VAR_SEARCH_KEY, searchKey);
+            variables.put(
+                    VAR_DISABLE_JAVASCRIPT, disableJavaScript);
+            variables.put(
+                    VAR_OLINKS, olinks);
+            variables.put(
+                    VAR_NUMBERED_SECTIONS, numberedSections);
+            variables.put(
+                    VAR_LOGO, logo);
+            variables.put(
+                    VAR_SIDE_TOC_LOGOS, sideTOCLogos);
+            variables.put(
+                    VAR_COPYRIGHT_HOLDER, copyrightHolder);
+            variables.put(
+                    VAR_COPYRIGHT_HOLDER_SITE, copyrightHolderSite);
+            variables.put(
+                    VAR_COPYRIGHT_SUFFIX, copyrightSuffix);
+            variables.put(
+                    VAR_COPYRIGHT_START_YEAR, copyrightStartYear);
+            variables.put(
+                    VAR_COPYRIGHT_COMMENT, copyrightComment);
+            variables.put(
+                    VAR_COPYRIGHT_JAVA_COMMENT, copyrightJavaComment);
+            variables.put(
+                    VAR_TABS, tabs);
+            variables.put(
+                    VAR_SECONDARY_TABS, secondaryTabs);
+            variables.put(
+                    VAR_SOCIAL_LINKS, socialLinks);
+            variables.put(
+                    VAR_FOOTER_SITEMAP, footerSiteMap);
+            variables.put(
+                    VAR_EXTERNAL_BOOKMARDS, externalBookmarks);
+            variables.put(
+                    VAR_INTERNAL_BOOKMARDS, internalBookmarks);
+            variables.put(
+                    VAR_ROOT_ELEMENT, doc.getDocumentElement());
+            variables.put(
+                    VAR_CUSTOM_VARIABLES, computeCustomVariables());
+
+            variables.put(
+                    "printTextWithDocgenSubstitutions",
+                    new PrintTextWithDocgenSubstitutionsDirective(this));
+            variables.put(
+                    "chopLinebreak",
+                    ChopLinebreakDirective.INSTANCE);
+
+            // Calculated data:
+            variables.put(VAR_TRANSFORM_START_TIME, generationTime);
+            variables.put(
+                    VAR_INDEX_ENTRIES, indexEntries);
+            int tofCntLv1 = countTOFEntries(tocNodes.get(0), 1);
+            int tofCntLv2 = countTOFEntries(tocNodes.get(0), 2);
+            variables.put(
+                    VAR_SHOW_NAVIGATION_BAR,
+                    tofCntLv1 != 0
+                            || internalBookmarks.size() != 0
+                            || externalBookmarks.size() != 0);
+            variables.put(
+                    VAR_SHOW_BREADCRUMB, tofCntLv1 != tofCntLv2);
+
+            // Helper methods and directives:
+            variables.put(
+                    "NodeFromID", nodeFromID);
+            variables.put(
+                    "CreateLinkFromID", createLinkFromID);
+            variables.put(
+                    "primaryIndexTermLookup", primaryIndexTermLookup);
+            variables.put(
+                    "secondaryIndexTermLookup", secondaryIndexTermLookup);
+            variables.put(
+                    "CreateLinkFromNode", createLinkFromNode);
+
+            ObjectWrapper objectWrapper = fmConfig.getObjectWrapper();
+            Map<String, TemplateModel> commonVariables = new HashMap<>();
+            for (Entry<String, Object> variable : variables.entrySet()) {
+                commonVariables.put(variable.getKey(), objectWrapper.wrap(variable.getValue()));
+            }
+            this.commonVariables = commonVariables;
+        } catch (TemplateModelException e) {
+            throw new BugException(e);
+        }
+    }
+
+    /**
+     * Loads the manifest of the previous build, if it can be used to skip generating the pages that are up to date.
+     */
+    private BuildManifest loadUsablePreviousManifest(BuildManifest manifest) throws IOException {
+        BuildManifest previousManifest = BuildManifest.load(destDir, logger);
+        if (previousManifest == null) {
+            logger.info("No usable " + BuildManifest.FILE_NAME + " found; all HTML files will be generated.");
+        } else if (!previousManifest.getInputsFingerprint().equals(manifest.getInputsFingerprint())) {
+            logger.info("Inputs shared by all pages (settings, templates, navigation) have changed; "
+                    + "all HTML files will be generated.");
+            previousManifest = null;
+        }
+        return previousManifest;
+    }
+
+    @SuppressWarnings("try")
+    private void generateTOCJSONFile(Document doc) throws IOException {
+        // - Generate ToC JSON-s:
+        try (BuildReport.Timer timer = report.startPhase("tocJSON")) {
+            logger.info("Generating ToC JSON...");
+            Template template = getTemplate(FILE_TOC_JSON_TEMPLATE);
+            File outputFile = new File(destDir, FILE_TOC_JSON_OUTPUT);
+            try (Writer wr = newOutputFileWriter(outputFile)) {
+                try {
+                    SimpleHash dataModel = newDataModel();
+                    dataModel.put(VAR_JSON_TOC_ROOT, tocNodes.get(0));
+                    processTemplate(template, dataModel, wr, doc);
+                } catch (TemplateException e) {
+                    throw new BugException("Failed to generate ToC JSON "
+                            + "(see cause exception).", e);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void generateSitemapXMLFile(Document doc) throws IOException {
+        // - Generate Sitemap XML:
+        try (BuildReport.Timer timer = report.startPhase("sitemapXML")) {
+            logger.info("Generating Sitemap XML...");
+            Template template = getTemplate(FILE_SITEMAP_XML_TEMPLATE);
+            File outputFile = new File(destDir, FILE_SITEMAP_XML_OUTPUT);
+            try (Writer wr = newOutputFileWriter(outputFile)) {
+                try {
+                    SimpleHash dataModel = newDataModel();
+                    dataModel.put(VAR_JSON_TOC_ROOT, tocNodes.get(0));
+                    processTemplate(template, dataModel, wr, doc);
+                } catch (TemplateException e) {
+                    throw new BugException("Failed to generate Sitemap XML"
+                            + "(see cause exception).", e);
+                }
             }
+        }
+    }
 
-            logger.info("Generating Eclipse ToC...");
-            Template template = fmConfig.getTemplate(FILE_ECLIPSE_TOC_TEMPLATE);
-            try (Writer wr = FileUtil.newFileWriter(new File(destDir, FILE_ECLIPSE_TOC_OUTPUT))) {
+    @SuppressWarnings("try")
+    private void generateEclipseTOCFile(Document doc) throws IOException {
+        if (simpleNavigationMode) {
+            throw new DocgenException("Eclipse ToC generation is untested/unsupported with simpleNavigationMode=true.");
+        }
+
+        logger.info("Generating Eclipse ToC...");
+        try (BuildReport.Timer timer = report.startPhase("eclipseToC")) {
+            Template template = getTemplate(FILE_ECLIPSE_TOC_TEMPLATE);
+            File outputFile = new File(destDir, FILE_ECLIPSE_TOC_OUTPUT);
+            try (Writer wr = newOutputFileWriter(outputFile)) {
                 try {
-                    SimpleHash dataModel = new SimpleHash(fmConfig.getObjectWrapper());
+                    SimpleHash dataModel = newDataModel();
                     if (eclipseLinkTo != null) {
                         dataModel.put(VAR_ECLIPSE_LINK_TO, eclipseLinkTo);
                     }
-                    template.process(dataModel, wr, null, NodeModel.wrap(doc));
+                    processTemplate(template, dataModel, wr, doc);
                 } catch (TemplateException e) {
                     throw new BugException("Failed to generate Eclipse ToC "
                             + "(see cause exception).", e);
                 }
             }
         }
+    }
 
-        // - Report summary:
-        logger.info(
-                "Done: "
-                + htmlFileCounter + " HTML-s + "
-                + bookSpecStaticFileCounter + " custom statics + commons"
-                + (generateEclipseTOC ? " + Eclipse ToC" : ""));
+    /**
+     * Copies the static files that come with Docgen, and the static files of the book (from the content directory)
+     * into the output directory, and also compresses them if {@link #setGzipOutputFiles(boolean)} is {@code true}. In
+     * watch mode this is called when only such static files have changed (outside {@link #generateOutput()}).
+     *
+     * @return The number of static files copied from the content directory.
+     */
+    int copyStaticFiles() throws IOException {
+        gzipOutputCompressor = gzipOutputFiles ? newGzipOutputCompressor() : null;
+        try {
+            copyCommonStaticFiles();
+            int bookSpecStaticFileCounter = copyCustomStaticFiles();
+            if (gzipOutputCompressor != null) {
+                gzipOutputCompressor.finish();
+            }
+            return bookSpecStaticFileCounter;
+        } finally {
+            if (gzipOutputCompressor != null) {
+                gzipOutputCompressor.close();
+                gzipOutputCompressor = null;
+            }
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void copyCommonStaticFiles() throws IOException {
+        logger.info("Copying common static files...");
+        try (BuildReport.Timer timer = report.startPhase("commonStatics")) {
+            for (String staticFileName : getCommonStaticFileNames()) {
+                copyCommonStatic(staticFileName);
+            }
+        }
+    }
+
+    /**
+     * @return The number of static files copied from the content directory.
+     */
+    @SuppressWarnings("try")
+    private int copyCustomStaticFiles() throws IOException {
+        if (skipCustomStaticFiles) {
+            logger.info("Skipped copying custom static files.");
+            return 0;
+        }
+        logger.info("Copying custom static files...");
+        try (BuildReport.Timer timer = report.startPhase("customStatics")) {
+            return FileUtil.copyDir(
+                    contentDir, destDir, ignoredFilePathPatterns,
+                    skipUnchangedOutputFiles, hardLinkStaticFiles, outputFileListener);
+        }
+    }
+
+    /**
+     * Tells if a custom static file has the same name as a file that's generated from the DOM (like a page), in which
+     * case the custom static file wins, so it must be copied after the other was generated.
+     */
+    private boolean customStaticFileOverwritesGeneratedFile() {
+        if (skipCustomStaticFiles) {
+            return false;
+        }
+        String[] contentDirFileNames = contentDir.list();
+        if (contentDirFileNames == null) {
+            return false;
+        }
+        Set<String> generatedFileNames = new HashSet<>(Arrays.asList(
+                FILE_TOC_JSON_OUTPUT, FILE_SITEMAP_XML_OUTPUT, FILE_ECLIPSE_TOC_OUTPUT,
+                FILE_DETAILED_TOC_HTML, FILE_SEARCH_RESULTS_HTML));
+        for (TOCNode tocNode : tocNodes) {
+            if (tocNode.getOutputFileName() != null) {
+                generatedFileNames.add(tocNode.getOutputFileName());
+            }
+        }
+        for (String fileName : contentDirFileNames) {
+            if (generatedFileNames.contains(fileName)
+                    && FileUtil.isCopiedByCopyDir(fileName, ignoredFilePathPatterns)
+                    && new File(contentDir, fileName).isFile()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private Map<String, Object> computeCustomVariables() throws DocgenException {
@@ -1357,6 +2036,7 @@ public final class Transform {
                     settingName,
                     "File not found: " + f.toPath());
         }
+        filesReferredBySettings.add(f);
         try {
             return FileUtil.loadString(f, UTF_8);
         } catch (IOException e) {
@@ -1367,87 +2047,172 @@ public final class Transform {
         }
     }
 
+    /**
+     * The path of the static files that come with Docgen, relatively to the {@code docgen-resources} output directory.
+     */
+    private List<String> getCommonStaticFileNames() {
+        List<String> staticFileNames = new ArrayList<>();
+        staticFileNames.add("docgen.min.css");
+        staticFileNames.add("img/patterned-bg.png");
+
+        staticFileNames.add("fonts/icomoon.eot");
+        staticFileNames.add("fonts/icomoon.svg");
+        staticFileNames.add("fonts/icomoon.ttf");
+        staticFileNames.add("fonts/icomoon.woff");
+        staticFileNames.add("fonts/NOTICE");
+
+        if (showXXELogo) {
+            staticFileNames.add("img/xxe.png");
+        }
+        if (!disableJavaScript) {
+            staticFileNames.add("main.min.js");
+        }
+        return staticFileNames;
+    }
+
     private void copyCommonStatic(String staticFileName) throws IOException {
+        if (isTextCommonStatic(staticFileName)) {
+            Path destSubdir = destDir.toPath().resolve("docgen-resources");
+            Files.createDirectories(destSubdir);
+            File destFile = destSubdir.resolve(staticFileName).toFile();
+            recordOutputFile(
+                    destFile,
+                    FileUtil.writeFile(destFile, loadCommonStatic(staticFileName), skipUnchangedOutputFiles));
+        } else {
+            String resourcePath = "statics/" + staticFileName;
+            try (InputStream in = Transform.class.getResourceAsStream(resourcePath)) {
+                if (in == null) {
+                    throw newMissingResourceException(resourcePath);
+                }
+            }
+            File destSubdir = new File(destDir, "docgen-resources");
+            boolean written = FileUtil.copyResourceIntoFile(
+                    Transform.class, "statics", staticFileName,
+                    destSubdir, skipUnchangedOutputFiles);
+            recordOutputFile(
+                    new File(destSubdir, staticFileName.replace('/', File.separatorChar)), written);
+        }
+    }
+
+    /**
+     * Loads a static file that comes with Docgen, doing the same modifications as {@link #copyCommonStatic(String)}.
+     */
+    private byte[] loadCommonStatic(String staticFileName) throws IOException {
         String resourcePath = "statics/" + staticFileName;
         try (InputStream in = Transform.class.getResourceAsStream(resourcePath)) {
             if (in == null) {
-                throw new IOException("Failed to open class-loader resource: " + resourcePath + " relatively to "
-                        + Transform.class.getPackage().getName());
+                throw newMissingResourceException(resourcePath);
+            }
+            if (!isTextCommonStatic(staticFileName)) {
+                return in.readAllBytes();
             }
 
-            if (staticFileName.endsWith(".css") || staticFileName.endsWith(".js")) {
-                // ISO-8859-1 will be good enough as far as the resource isn't UTF-16 or EBCDIC:
-                final Charset fileCharset = StandardCharsets.ISO_8859_1;
-                String content = FileUtil.loadString(in, fileCharset);
-                final String eol = TextUtil.detectEOL(content, "\n");
+            // ISO-8859-1 will be good enough as far as the resource isn't UTF-16 or EBCDIC:
+            final Charset fileCharset = StandardCharsets.ISO_8859_1;
+            String content = FileUtil.loadString(in, fileCharset);
+            final String eol = TextUtil.detectEOL(content, "\n");
 
-                // If we have an initial comment, then that must be a copyright header, which we will remove.
-                if (content.startsWith("/*")) {
-                    int commentEnd = content.indexOf("*/");
-                    if (commentEnd == -1) {
-                        throw new BugException("Unclosed initial \"/*\" in resource " + resourcePath);
-                    }
-                    commentEnd += 2;
-                    String comment = content.substring(0, commentEnd);
-                    if (!comment.contains("Copyright") && !comment.contains("copyright")
-                            && !comment.contains("License") && !comment.contains("license")) {
-                        throw new BugException("The initial /*...*/ comments doesn't look like a copyright header "
-                                + "in resource " + resourcePath);
-                    }
+            // If we have an initial comment, then that must be a copyright header, which we will remove.
+            if (content.startsWith("/*")) {
+                int commentEnd = content.indexOf("*/");
+                if (commentEnd == -1) {
+                    throw new BugException("Unclosed initial \"/*\" in resource " + resourcePath);
+                }
+                commentEnd += 2;
+                String comment = content.substring(0, commentEnd);
+                if (!comment.contains("Copyright") && !comment.contains("copyright")
+                        && !comment.contains("License") && !comment.contains("license")) {
+                    throw new BugException("The initial /*...*/ comments doesn't look like a copyright header "
+                            + "in resource " + resourcePath);
+                }
 
-                    // Include an EOL after the comment, if there's any.
-                    for (int i = 0; i < 2; i++) {
-                        if (commentEnd < content.length()) {
-                            char c = content.charAt(commentEnd);
-                            if (c == '\n') {
-                                commentEnd++;
-                            } else if (c == '\r') {
+                // Include an EOL after the comment, if there's any.
+                for (int i = 0; i < 2; i++) {
+                    if (commentEnd < content.length()) {
+                        char c = content.charAt(commentEnd);
+                        if (c == '\n') {
+                            commentEnd++;
+                        } else if (c == '\r') {
+                            commentEnd++;
+                            if (commentEnd < content.length() && content.charAt(commentEnd) == '\n') {
                                 commentEnd++;
-                                if (commentEnd < content.length() && content.charAt(commentEnd) == '\n') {
-                                    commentEnd++;
-                                }
                             }
                         }
                     }
-
-                    // Remove existing copyright header:
-                    content = content.substring(commentEnd);
                 }
 
-                if (offline && copyrightComment != null) {
-                    // Add copyright comment:
-                    StringBuilder sb = new StringBuilder(TextUtil.normalizeEOL(copyrightJavaComment, eol));
+                // Remove existing copyright header:
+                content = content.substring(commentEnd);
+            }
+
+            if (offline && copyrightComment != null) {
+                // Add copyright comment:
+                StringBuilder sb = new StringBuilder(TextUtil.normalizeEOL(copyrightJavaComment, eol));
+                sb.append(eol);
+                if (content.length() > 0 && content.charAt(0) != '\n' && content.charAt(0) != '\r') {
                     sb.append(eol);
-                    if (content.length() > 0 && content.charAt(0) != '\n' && content.charAt(0) != '\r') {
-                        sb.append(eol);
-                    }
-                    sb.append(content);
-                    content = sb.toString();
                 }
-
-                Path destSubdir = destDir.toPath().resolve("docgen-resources");
-                Files.createDirectories(destSubdir);
-                Files.write(destSubdir.resolve(staticFileName), content.getBytes(fileCharset));
-            } else {
-                FileUtil.copyResourceIntoFile(
-                        Transform.class, "statics", staticFileName,
-                        new File(destDir, "docgen-resources"));
+                sb.append(content);
+                content = sb.toString();
             }
+
+            return content.getBytes(fileCharset);
         }
     }
 
+    private static boolean isTextCommonStatic(String staticFileName) {
+        return staticFileName.endsWith(".css") || staticFileName.endsWith(".js");
+    }
+
+    private static IOException newMissingResourceException(String resourcePath) {
+        return new IOException("Failed to open class-loader resource: " + resourcePath + " relatively to "
+                + Transform.class.getPackage().getName());
+    }
+
     /**
      * Adds attribute <tt>id</tt> to elements that are in
      * <code>idAttrElements</code>, but has no id attribute yet.
      * Adding id-s is useful to create more precise HTML cross-links later.
      */
+    /**
+     * Loads (and possibly validates) the book XML, and does the part of the preprocessing that doesn't depend on the
+     * settings other than the parameters; this is what {@link SharedDocumentSource} shares between
+     * {@link Transform}-s.
+     */
+    @SuppressWarnings("try")
+    static Document loadAndSimplifyDocument(
+            File docFile, boolean validate, DocgenValidationOptions validationOps,
+            DocgenLogger logger, BuildReport report)
+            throws SAXException, IOException, DocgenException {
+        Document doc;
+        // Note that the Relax NG validation is done during the parsing, so it can't be timed separately.
+        try (BuildReport.Timer timer = report.startPhase(validate ? "loadAndValidateXML" : "loadXML")) {
+            doc = XMLUtil.loadDocBook5XML(docFile, validate, validationOps, logger);
+        }
+        try (BuildReport.Timer timer = report.startPhase("preprocessDOM_simplify")) {
+            NodeModel.simplify(doc);
+        }
+        return doc;
+    }
+
+    /**
+     * Does the preprocessing that follows {@link #loadAndSimplifyDocument}.
+     */
+    @SuppressWarnings("try")
     private void preprocessDOM(Document doc)
             throws SAXException, DocgenException {
-        NodeModel.simplify(doc);
-        preprocessDOM_applyRemoveNodesWhenOnlineSetting(doc);
-        preprocessDOM_addRanks(doc);
-        preprocessDOM_misc(doc);
-        preprocessDOM_buildTOC(doc);
+        try (BuildReport.Timer timer = report.startPhase("preprocessDOM_removeNodesWhenOnline")) {
+            preprocessDOM_applyRemoveNodesWhenOnlineSetting(doc);
+        }
+        try (BuildReport.Timer timer = report.startPhase("preprocessDOM_addRanks")) {
+            preprocessDOM_addRanks(doc);
+        }
+        try (BuildReport.Timer timer = report.startPhase("preprocessDOM_misc")) {
+            preprocessDOM_misc(doc);
+        }
+        try (BuildReport.Timer timer = report.startPhase("preprocessDOM_buildTOC")) {
+            preprocessDOM_buildTOC(doc);
+        }
     }
 
     private static final class PreprocessDOMMisc_GlobalState {
@@ -1831,6 +2596,32 @@ public final class Transform {
                 }
             }
         }
+
+        // Must be the last, as the output file names are final only now:
+        preprocessDOM_buildTOC_buildLinkIndex();
+    }
+
+    /**
+     * Builds the lookup tables used by {@link #createElementLinkURL(Element)}, so that creating a link doesn't require
+     * scanning the {@link TOCNode}-s.
+     */
+    private void preprocessDOM_buildTOC_buildLinkIndex() {
+        fileTOCNodesByElement = new IdentityHashMap<>();
+        for (TOCNode tocNode : tocNodes) {
+            if (tocNode.isFileElement()) {
+                fileTOCNodesByElement.putIfAbsent(tocNode.getElement(), tocNode);
+            }
+        }
+
+        linkTargetsById = new HashMap<>();
+        for (Entry<String, Element> idAndElem : elementsById.entrySet()) {
+            Element idElem = idAndElem.getValue();
+            TOCNode fileTOCNode = getEnclosingFileTOCNode(idElem);
+            // Elements in pages without output file are left out, so that the error is reported when linked.
+            if (fileTOCNode != null && fileTOCNode.getOutputFileName() != null) {
+                linkTargetsById.put(idAndElem.getKey(), new LinkTarget(idElem, fileTOCNode, idAndElem.getKey()));
+            }
+        }
     }
 
     private static final String COMMON_TOC_TOPOLOGY_ERROR_HINT
@@ -2143,13 +2934,10 @@ public final class Transform {
     }
 
     private Element getTitle(Element elem) {
-        NodeList children = elem.getChildNodes();
-        int ln = children.getLength();
-        for (int i = 0; i < ln; i++) {
-            Node child = children.item(i);
-            if (child instanceof Element
-                    && child.getLocalName().equals("title")) {
-                return (Element) child;  // !! found it
+        // Note: Not using NodeList, as that's not safe for concurrent reads (see DocumentReplica).
+        for (Element child : XMLUtil.childrenElementsOf(elem)) {
+            if (child.getLocalName().equals("title")) {
+                return child;  // !! found it
             }
         }
         return null;
@@ -2184,11 +2972,21 @@ public final class Transform {
      * after {@link #createLookupTables(Node, LookupCreatingState)}.
      */
     private TOCNode getFileTOCNodeFor(Element elem) {
-        for (TOCNode tocNode : tocNodes) {
-            if (tocNode.isFileElement()
-                    && tocNode.getElement().isSameNode(elem)) {
-                return tocNode;
+        return fileTOCNodesByElement.get(elem);
+    }
+
+    /**
+     * Returns the {@link TOCNode} of the file element that contains the element (or is the element itself), or
+     * {@code null} if there's no such element.
+     */
+    private TOCNode getEnclosingFileTOCNode(Element elem) {
+        Node node = elem;
+        while (node instanceof Element) {
+            TOCNode fileTOCNode = getFileTOCNodeFor((Element) node);
+            if (fileTOCNode != null) {
+                return fileTOCNode;
             }
+            node = node.getParentNode();
         }
         return null;
     }
@@ -2235,37 +3033,881 @@ public final class Transform {
     }
 
     /**
-     * Generates a HTML file for the {@link #currentFileTOCNode}, maybe with
-     * some accompanying HTML-s.
+     * Generates the HTML files of all the file-element {@link TOCNode}-s that has an output file name, either on the
+     * current thread, or concurrently, depending on {@link #setRenderingThreads(int)} and
+     * {@link #setRenderingExecutor(ExecutorService)}. The output is the same in both cases.
+     *
+     * @param selectedPages
+     *            If not {@code null}, only these pages are generated; see {@link #setPageSelection(Collection)}, and
+     *            {@link #setShardIndex(int)}.
+     * @param previousManifest
+     *            If not {@code null}, pages that are up to date according to this are not generated again.
+     * @param manifest
+     *            If not {@code null}, the entries of the pages are added to it. The entries of the pages that weren't
+     *            selected are taken over from the {@code previousManifest}, if that's not {@code null}.
+     *
+     * @return The number of HTML files generated.
      */
-    private int generateHTMLFile()
-            throws IOException, TemplateException {
-        SimpleHash dataModel = new SimpleHash(fmConfig.getObjectWrapper());
+    @SuppressWarnings("try")
+    private int generateHTMLFiles(
+            Document doc, Set<TOCNode> selectedPages, BuildManifest previousManifest, BuildManifest manifest)
+            throws IOException {
+        List<HTMLPageJob> allJobs = new ArrayList<>();
+        List<HTMLPageJob> jobsToRun = new ArrayList<>();
+        for (TOCNode tocNode : tocNodes) {
+            if (tocNode.getOutputFileName() != null) {
+                if (selectedPages != null && !selectedPages.contains(tocNode)) {
+                    if (manifest != null && previousManifest != null) {
+                        BuildManifest.PageEntry previousPageEntry
+                                = previousManifest.getPage(tocNode.getOutputFileName());
+                        if (previousPageEntry != null) {
+                            manifest.putPage(tocNode.getOutputFileName(), previousPageEntry);
+                        }
+                    }
+                    continue;
+                }
+                HTMLPageJob job = new HTMLPageJob(
+                        tocNode, manifest != null ? computePageFingerprint(tocNode) : null);
+                allJobs.add(job);
+                if (previousManifest == null || !job.reuseIfUpToDate(previousManifest)) {
+                    jobsToRun.add(job);
+                }
+            }
+        }
+        if (shardCount != 0) {
+            logger.info("Shard " + shardIndex + "/" + shardCount + ": " + allJobs.size() + " page(s) will be "
+                    + "generated.");
+        } else if (selectedPages != null) {
+            logger.info("Only the " + allJobs.size() + " selected page(s) will be generated.");
+        }
+        report.addPagesSkipped(allJobs.size() - jobsToRun.size());
+        if (jobsToRun.size() != allJobs.size()) {
+            logger.info("Skipping " + (allJobs.size() - jobsToRun.size()) + " of the " + allJobs.size()
+                    + " pages, as they are up to date.");
+        }
 
-        TOCNode otherTOCNode;
+        if (commandRunner != null && commandRunner.canStartInBackground()) {
+            try (BuildReport.Timer timer = report.startPhase("startCommands")) {
+                PrintTextWithDocgenSubstitutionsDirective directive = new PrintTextWithDocgenSubstitutionsDirective(this);
+                for (HTMLPageJob job : jobsToRun) {
+                    startCommands(job.fileTOCNode.getElement(), directive);
+                }
+            }
+        }
+
+        int htmlFileCounter = 0;
+        if (renderingExecutor == null && renderingThreads <= 1) {
+            RenderingWorker worker = newRenderingWorker(doc, false);
+            for (HTMLPageJob job : jobsToRun) {
+                htmlFileCounter += job.run(worker);
+            }
+        } else {
+            htmlFileCounter += runHTMLPageJobsConcurrently(doc, jobsToRun);
+        }
+
+        if (manifest != null) {
+            for (HTMLPageJob job : allJobs) {
+                manifest.putPage(job.fileTOCNode.getOutputFileName(), job.pageEntry);
+            }
+        }
+        return htmlFileCounter;
+    }
+
+    /**
+     * Finds the pages selected by {@link #setPageSelection(Collection)}, and if {@link #setIncludeNeighborPages(boolean)}
+     * is enabled, their neighbor pages.
+     */
+    private Set<TOCNode> selectPages() throws DocgenException {
+        Set<TOCNode> selectedPages = new LinkedHashSet<>();
+        for (String selector : pageSelection) {
+            Element elem = elementsById.get(selector);
+            TOCNode fileTOCNode = elem != null ? getEnclosingFileTOCNode(elem) : null;
+            if (fileTOCNode != null && fileTOCNode.getOutputFileName() != null) {
+                selectedPages.add(fileTOCNode);
+                continue;
+            }
+
+            Pattern pattern = FileUtil.globToRegexp(selector);
+            boolean matched = false;
+            for (TOCNode tocNode : tocNodes) {
+                String outputFileName = tocNode.getOutputFileName();
+                if (outputFileName != null && pattern.matcher("/" + outputFileName).matches()) {
+                    selectedPages.add(tocNode);
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                throw new DocgenException("The " + StringUtil.jQuote(selector) + " item of the pageSelection setting "
+                        + "is neither the id of an element that's on a page, nor a glob that matches the output file "
+                        + "name of a page.");
+            }
+        }
+
+        if (includeNeighborPages) {
+            for (TOCNode fileTOCNode : new ArrayList<>(selectedPages)) {
+                for (TOCNode neighbor : Arrays.asList(
+                        getPreviousFileTOCNode(fileTOCNode),
+                        getNextFileTOCNode(fileTOCNode),
+                        fileTOCNode.getParent())) {
+                    if (neighbor != null && neighbor.getOutputFileName() != null) {
+                        selectedPages.add(neighbor);
+                    }
+                }
+            }
+        }
+        return selectedPages;
+    }
+
+    private void checkShardingSettings() throws DocgenException {
+        if (shardDirectories != null) {
+            if (shardCount != 0 || shardIndex != 0) {
+                throw new DocgenException("The shardDirectories setting (for merging shards) can't be used together "
+                        + "with shardIndex and shardCount (for building a shard).");
+            }
+        } else {
+            if (shardCount < 1) {
+                throw new DocgenException("The shardIndex setting was set, but shardCount wasn't.");
+            }
+            if (shardIndex < 1 || shardIndex > shardCount) {
+                throw new DocgenException("The shardIndex setting must be between 1 and shardCount (" + shardCount
+                        + "), but was " + shardIndex + ".");
+            }
+            if (pruneStaleOutputFiles || changeSetFile != null || gzipOutputFiles) {
+                throw new DocgenException("The pruneStaleOutputFiles, changeSetFile, and gzipOutputFiles settings "
+                        + "can't be used when building a shard; use them when merging the shards.");
+            }
+        }
+        if (pageSelection != null || incremental) {
+            throw new DocgenException("The pageSelection and incremental settings can't be used together with "
+                    + "sharding.");
+        }
+    }
+
+    /**
+     * Finds the pages that belong to the shard selected by {@link #setShardIndex(int)}. The pages are distributed
+     * among the shards so that the estimated rendering cost of the shards is about the same.
+     */
+    private Set<TOCNode> selectShardPages() {
+        List<TOCNode> pages = new ArrayList<>();
+        for (TOCNode tocNode : tocNodes) {
+            if (tocNode.getOutputFileName() != null) {
+                pages.add(tocNode);
+            }
+        }
+        long[] pageWeights = new long[pages.size()];
+        for (int i = 0; i < pageWeights.length; i++) {
+            pageWeights[i] = PAGE_BASE_WEIGHT + estimateContentWeight(pages.get(i).getElement());
+        }
+        int[] pageShards = ShardManifest.assignPagesToShards(pageWeights, shardCount);
+
+        Set<TOCNode> selectedPages = new LinkedHashSet<>();
+        for (int i = 0; i < pageShards.length; i++) {
+            if (pageShards[i] == shardIndex - 1) {
+                selectedPages.add(pages.get(i));
+            }
+        }
+        return selectedPages;
+    }
+
+    /**
+     * Estimates the cost of rendering the content shown on the page of the file element, as the number of characters
+     * in it, plus some for each element.
+     */
+    private static long estimateContentWeight(Element fileElem) {
+        long weight = 0;
+        for (Node child = fileElem.getFirstChild(); child != null; child = child.getNextSibling()) {
+            short nodeType = child.getNodeType();
+            if (nodeType == Node.TEXT_NODE || nodeType == Node.CDATA_SECTION_NODE) {
+                weight += child.getNodeValue().length();
+            } else if (nodeType == Node.ELEMENT_NODE) {
+                Element elem = (Element) child;
+                // The content of other file elements is shown on their own pages:
+                if (!elem.hasAttribute(A_DOCGEN_FILE_ELEMENT)) {
+                    weight += ELEMENT_WEIGHT + estimateContentWeight(elem);
+                }
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * The fingerprint of everything that the pages depend on, including the whole document, and the exact generation
+     * time; the shards and the merge must agree on this.
+     */
+    private String computeShardInputsFingerprint(Document doc, Date generationTime) throws IOException {
+        return new Fingerprint()
+                .add(computeInputsFingerprint(generationTime))
+                .add(String.valueOf(generationTime.getTime()))
+                .addNode(doc.getDocumentElement())
+                .getHash();
+    }
+
+    /**
+     * Instead of generating the pages, copies them from the output directories of the shards (see
+     * {@link #setShardDirectories(Collection)}), after checking that all the shards are there, and that they were
+     * built from the same inputs as this merge.
+     *
+     * @return The number of HTML files copied.
+     */
+    private int mergeShards(Document doc, Date generationTime) throws IOException {
+        String inputsFingerprint = computeShardInputsFingerprint(doc, generationTime);
+
+        Set<String> expectedPages = new LinkedHashSet<>();
+        for (TOCNode tocNode : tocNodes) {
+            if (tocNode.getOutputFileName() != null) {
+                expectedPages.add(tocNode.getOutputFileName());
+            }
+        }
+
+        Map<Integer, File> shardDirsByIndex = new TreeMap<>();
+        int expectedShardCount = 0;
+        Set<String> mergedPages = new HashSet<>();
+        Set<String> mergedOutputFiles = new HashSet<>();
+        Map<File, ShardManifest> shardManifests = new HashMap<>();
+        for (File shardDir : shardDirectories) {
+            ShardManifest shardManifest = ShardManifest.load(shardDir);
+            shardManifests.put(shardDir, shardManifest);
+            if (expectedShardCount == 0) {
+                expectedShardCount = shardManifest.getShardCount();
+            } else if (shardManifest.getShardCount() != expectedShardCount) {
+                throw new DocgenException("The shards were built with different shardCount settings; "
+                        + shardDir + " was built with " + shardManifest.getShardCount() + ", instead of "
+                        + expectedShardCount + ".");
+            }
+            File otherShardDir = shardDirsByIndex.put(shardManifest.getShardIndex(), shardDir);
+            if (otherShardDir != null) {
+                throw new DocgenException("Both " + otherShardDir + " and " + shardDir + " contain shard "
+                        + shardManifest.getShardIndex() + ".");
+            }
+            if (!shardManifest.getInputsFingerprint().equals(inputsFingerprint)) {
+                throw new DocgenException("The shard in " + shardDir + " was built from different inputs than "
+                        + "what the merge uses (like a different document, settings, templates, Docgen version, or "
+                        + "generation time). Note that the \"" + SYSPROP_GENERATION_TIME + "\" system property must "
+                        + "be set to the same value for all the shards and for the merge.");
+            }
+            for (String page : shardManifest.getPages()) {
+                if (!expectedPages.contains(page) || !mergedPages.add(page)) {
+                    throw new DocgenException("Unexpected page in shard " + shardDir + ": " + page);
+                }
+            }
+            for (String outputFile : shardManifest.getOutputFiles()) {
+                if (!mergedOutputFiles.add(outputFile)) {
+                    throw new DocgenException("Multiple shards contain " + outputFile + "; the last is " + shardDir
+                            + ".");
+                }
+            }
+        }
+        if (shardDirsByIndex.size() != expectedShardCount) {
+            throw new DocgenException("Only " + shardDirsByIndex.size() + " of the " + expectedShardCount
+                    + " shards were specified for merging.");
+        }
+        if (mergedPages.size() != expectedPages.size()) {
+            throw new BugException("The shards haven't generated all the pages");
+        }
 
-        otherTOCNode = currentFileTOCNode;
+        // Only the files listed in the manifests are copied, as the shard directories may contain stale files from
+        // earlier builds.
+        int htmlFileCounter = 0;
+        for (File shardDir : shardDirsByIndex.values()) {
+            htmlFileCounter += FileUtil.copyFiles(
+                    shardDir, destDir, shardManifests.get(shardDir).getOutputFiles(),
+                    skipUnchangedOutputFiles, false, outputFileListener);
+        }
+        return htmlFileCounter;
+    }
+
+    /**
+     * Adds the output file to the {@link #shardOutputFiles}, if we are building a shard.
+     */
+    private void addShardOutputFile(File file) {
+        Set<String> shardOutputFiles = this.shardOutputFiles;
+        if (shardOutputFiles != null) {
+            shardOutputFiles.add(FileUtil.pathToUnixStyle(destDir.toPath().relativize(file.toPath()).toString()));
+        }
+    }
+
+    private static TOCNode getPreviousFileTOCNode(TOCNode fileTOCNode) {
+        TOCNode otherTOCNode = fileTOCNode;
         do {
             otherTOCNode = otherTOCNode.getPreviousInTraversarOrder();
         } while (!(otherTOCNode == null || otherTOCNode.isFileElement()));
-        dataModel.put(
-                VAR_PREVIOUS_FILE_ELEMENT,
-                otherTOCNode != null ? otherTOCNode.getElement() : null);
+        return otherTOCNode;
+    }
 
-        otherTOCNode = currentFileTOCNode;
+    private static TOCNode getNextFileTOCNode(TOCNode fileTOCNode) {
+        TOCNode otherTOCNode = fileTOCNode;
         do {
             otherTOCNode = otherTOCNode.getNextInTraversarOrder();
         } while (!(otherTOCNode == null || otherTOCNode.isFileElement()));
+        return otherTOCNode;
+    }
+
+    /**
+     * Starts the commands in the text of the page of the file element, so they run while the pages are rendered.
+     */
+    private void startCommands(Element fileElem, PrintTextWithDocgenSubstitutionsDirective directive) {
+        for (Node child = fileElem.getFirstChild(); child != null; child = child.getNextSibling()) {
+            short nodeType = child.getNodeType();
+            if (nodeType == Node.TEXT_NODE || nodeType == Node.CDATA_SECTION_NODE) {
+                String text = child.getNodeValue();
+                if (text.contains("[docgen.")) {
+                    directive.startCommands(text);
+                }
+            } else if (nodeType == Node.ELEMENT_NODE) {
+                Element elem = (Element) child;
+                // The content of other file elements is shown on their own pages:
+                if (!elem.hasAttribute(A_DOCGEN_FILE_ELEMENT)) {
+                    startCommands(elem, directive);
+                }
+            }
+        }
+    }
+
+    private int runHTMLPageJobsConcurrently(Document doc, List<HTMLPageJob> jobs) throws IOException {
+        ExecutorService executor = renderingExecutor;
+        boolean ownExecutor = executor == null;
+        if (ownExecutor) {
+            executor = Executors.newFixedThreadPool(renderingThreads);
+        }
+        try {
+            // Workers (DOM copies) are created lazily, so we only create as many as the concurrency requires:
+            BlockingQueue<RenderingWorker> idleWorkers = new LinkedBlockingQueue<>();
+            List<Future<Integer>> futures = new ArrayList<>(jobs.size());
+            for (HTMLPageJob job : jobs) {
+                futures.add(executor.submit(() -> {
+                    RenderingWorker worker = idleWorkers.poll();
+                    if (worker == null) {
+                        worker = newRenderingWorker(doc, true);
+                    }
+                    try {
+                        return job.run(worker);
+                    } finally {
+                        idleWorkers.add(worker);
+                    }
+                }));
+            }
+
+            // Errors are reported in document order, just like with single threaded rendering:
+            int htmlFileCounter = 0;
+            try {
+                for (Future<Integer> future : futures) {
+                    htmlFileCounter += getRenderingResult(future);
+                }
+            } finally {
+                for (Future<Integer> future : futures) {
+                    future.cancel(false);
+                }
+            }
+            return htmlFileCounter;
+        } finally {
+            if (ownExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static int getRenderingResult(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocgenException("Interrupted while waiting for page rendering to finish", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BugException("Unexpected exception during page rendering", cause);
+        }
+    }
+
+    /**
+     * The generation of the HTML file(s) of a single file-element {@link TOCNode}.
+     */
+    private final class HTMLPageJob {
+        private final TOCNode fileTOCNode;
+        /** {@code null} if we aren't in incremental mode. */
+        private final String fingerprint;
+        /** {@code null} until the job was run, or was found to be up to date, or if we aren't in incremental mode. */
+        private BuildManifest.PageEntry pageEntry;
+
+        private HTMLPageJob(TOCNode fileTOCNode, String fingerprint) {
+            this.fileTOCNode = fileTOCNode;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Checks if the output file generated earlier is still up to date, in which case that will be reused.
+         *
+         * @return Whether the output file is up to date, and so the job need not be run.
+         */
+        private boolean reuseIfUpToDate(BuildManifest previousManifest) throws IOException {
+            String outputFileName = fileTOCNode.getOutputFileName();
+            BuildManifest.PageEntry previousPageEntry = previousManifest.getPage(outputFileName);
+            if (previousPageEntry == null
+                    || previousPageEntry.getExecutesCommands()
+                    || !previousPageEntry.getFingerprint().equals(fingerprint)
+                    || !new File(destDir, outputFileName).isFile()) {
+                return false;
+            }
+            for (Entry<String, String> ent : previousPageEntry.getInsertedFiles().entrySet()) {
+                Path insertedFile = Paths.get(ent.getKey());
+                if (!Files.isRegularFile(insertedFile)
+                        || !getInsertedFileFingerprint(insertedFile).equals(ent.getValue())) {
+                    return false;
+                }
+            }
+            pageEntry = previousPageEntry;
+
+            outputFileListener.addUnchangedFile(new File(destDir, outputFileName));
+            if (fileTOCNode.getElement().getParentNode() instanceof Document) {
+                // See generateHTMLFile; we don't know if it was generated for the reused page, but if so, keep it.
+                File detailedTOCFile = new File(destDir, FILE_DETAILED_TOC_HTML);
+                if (detailedTOCFile.isFile()) {
+                    outputFileListener.addUnchangedFile(detailedTOCFile);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The number of HTML files generated.
+         */
+        private int run(RenderingWorker worker) throws IOException {
+            PageRenderingContext context = new PageRenderingContext(fileTOCNode, worker.replica);
+            int htmlFileCounter;
+            long startNanos = System.nanoTime();
+            try {
+                // All output-file-specific processing comes here.
+                htmlFileCounter = generateHTMLFile(context, worker);
+            } catch (freemarker.core.StopException e) {
+                throw new DocgenException(e.getMessage());
+            } catch (DocgenTagException e) {
+                throw new DocgenException("Docgen tag evaluation in document text failed; see cause exception", e);
+            } catch (TemplateException e) {
+                throw new BugException(e);
+            }
+            report.addPageRendering(fileTOCNode.getOutputFileName(), htmlFileCounter, System.nanoTime() - startNanos);
+
+            if (fingerprint != null) {
+                BuildManifest.PageEntry pageEntry = new BuildManifest.PageEntry(fingerprint);
+                for (Path insertedFile : context.getInsertedFiles()) {
+                    pageEntry.addInsertedFile(insertedFile.toString(), getInsertedFileFingerprint(insertedFile));
+                }
+                pageEntry.setExecutesCommands(context.getExecutesCommands());
+                this.pageEntry = pageEntry;
+            }
+            return htmlFileCounter;
+        }
+    }
+
+    private String getInsertedFileFingerprint(Path file) throws IOException {
+        String fingerprint = insertedFileFingerprints.get(file);
+        if (fingerprint == null) {
+            fingerprint = new Fingerprint().addFileContent(file).getHash();
+            insertedFileFingerprints.put(file, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Computes the fingerprint of everything that the preprocessed document depends on, and hence decides if the
+     * {@link DocumentSnapshot} can be used. As we don't know which files were included with XInclude before parsing,
+     * the size and last modification time of all files in the content directory are added, except of the templates,
+     * and of the files that Docgen writes. (The files loaded from outside the content directory, like with XInclude,
+     * are recorded while parsing, and are stored in the snapshot by {@link #createDocumentSnapshot(Document, String)}.)
+     */
+    private String computeDocumentSnapshotInputsFingerprint(File docFile) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+        addDocgenFingerprint(fingerprint);
+
+        fingerprint.add(cfgFile.exists());
+        if (cfgFile.exists()) {
+            fingerprint.addFileContent(cfgFile.toPath());
+        }
+
+        // Settings that can be set outside the settings file:
+        fingerprint.add(offline);
+        fingerprint.add(simpleNavigationMode);
+        fingerprint.add(validate);
+        fingerprint.add(locale.toString());
+
+        fingerprint.add(docFile.getAbsolutePath());
+        Set<Path> excludedPaths = new HashSet<>();
+        for (File excludedFile : new File[] {
+                destDir, templatesDir, documentSnapshotFile, buildReportFile, changeSetFile,
+                commandOutputCacheDirectory }) {
+            if (excludedFile != null) {
+                excludedPaths.add(excludedFile.toPath().toAbsolutePath().normalize());
+            }
+        }
+        excludedPaths.add(DocumentSnapshot.getTempFile(documentSnapshotFile).toPath().toAbsolutePath().normalize());
+        fingerprint.addDirectoryMetadata(contentDir.toPath(), excludedPaths);
+
+        return fingerprint.getHash();
+    }
+
+    /**
+     * Creates the {@link DocumentSnapshot} from the just preprocessed document, and from the lookup tables built by
+     * the preprocessing.
+     *
+     * @return {@code null} if no snapshot should be used, as a resource was loaded with the document (like with
+     *         XInclude) that we can't check for changes later.
+     */
+    private DocumentSnapshot createDocumentSnapshot(Document doc, String inputsFingerprint) throws IOException {
+        DocumentSnapshot snapshot = new DocumentSnapshot(inputsFingerprint, doc);
+
+        for (Entry<String, Element> ent : elementsById.entrySet()) {
+            snapshot.putElementById(ent.getKey(), ent.getValue());
+        }
+
+        for (TOCNode tocNode : tocNodes) {
+            snapshot.addTOCEntry(new DocumentSnapshot.TOCEntry(
+                    tocNode.getElement(),
+                    tocNode.getParent() != null ? tocNode.getParent().traversalIndex : -1,
+                    tocNode.isFileElement(),
+                    tocNode.getOutputFileName()));
+        }
+
+        for (Entry<String, List<NodeModel>> ent : primaryIndexTermLookup.entrySet()) {
+            snapshot.putPrimaryIndexTerms(ent.getKey(), toElements(ent.getValue()));
+        }
+        for (Entry<String, SortedMap<String, List<NodeModel>>> ent : secondaryIndexTermLookup.entrySet()) {
+            SortedMap<String, List<Element>> bySecondaryText = new TreeMap<>();
+            for (Entry<String, List<NodeModel>> bySecondaryTextEnt : ent.getValue().entrySet()) {
+                bySecondaryText.put(bySecondaryTextEnt.getKey(), toElements(bySecondaryTextEnt.getValue()));
+            }
+            snapshot.putSecondaryIndexTerms(ent.getKey(), bySecondaryText);
+        }
+        snapshot.setIndexEntries(indexEntries);
+
+        // Files included from outside the content directory aren't covered by the inputs fingerprint:
+        Set<String> loadedResources = XMLUtil.getLoadedResources(doc);
+        if (loadedResources == null) {
+            throw new BugException("The resources loaded with the document weren't recorded");
+        }
+        Path contentDirPath = contentDir.toPath().toAbsolutePath().normalize();
+        Set<Path> externalInputFiles = new TreeSet<>();
+        for (String loadedResource : loadedResources) {
+            Path file = toFileIfPossible(loadedResource);
+            if (file == null) {
+                logger.warning("The document snapshot can't be used, as changes in this resource can't be tracked: "
+                        + loadedResource);
+                return null;
+            }
+            if (!file.startsWith(contentDirPath)) {
+                externalInputFiles.add(file);
+            }
+        }
+        for (Path externalInputFile : externalInputFiles) {
+            snapshot.addExternalInputFile(externalInputFile);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Converts a {@code file:} URI to a normalized absolute path; returns {@code null} for any other URI.
+     */
+    private static Path toFileIfPossible(String uri) {
+        if (!uri.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return Paths.get(new URI(uri)).toAbsolutePath().normalize();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static List<Element> toElements(List<NodeModel> nodeModels) {
+        List<Element> elements = new ArrayList<>(nodeModels.size());
+        for (NodeModel nodeModel : nodeModels) {
+            elements.add((Element) nodeModel.getNode());
+        }
+        return elements;
+    }
+
+    /**
+     * Restores the state that {@link #preprocessDOM(Document)} would have produced from the snapshot.
+     *
+     * @return The preprocessed document.
+     */
+    private Document applyDocumentSnapshot(DocumentSnapshot snapshot) {
+        elementsById.putAll(snapshot.getElementsById());
+
+        for (DocumentSnapshot.TOCEntry tocEntry : snapshot.getTOCEntries()) {
+            TOCNode tocNode = new TOCNode(tocEntry.getElement(), tocNodes.size());
+            tocNode.setFileElement(tocEntry.isFileElement());
+            if (tocEntry.isFileElement()) {
+                tocNode.setOutputFileName(tocEntry.getOutputFileName());
+            }
+            // As the nodes are in traversal order, the children are added in the same order as originally:
+            if (tocEntry.getParentIndex() != -1) {
+                TOCNode parent = tocNodes.get(tocEntry.getParentIndex());
+                tocNode.setParent(parent);
+                TOCNode lastChild = parent.getLastChild();
+                if (lastChild != null) {
+                    tocNode.setPrevious(lastChild);
+                    lastChild.setNext(tocNode);
+                } else {
+                    parent.setFirstChild(tocNode);
+                }
+                parent.setLastChild(tocNode);
+            }
+            tocNodes.add(tocNode);
+        }
+
+        for (Entry<String, List<Element>> ent : snapshot.getPrimaryIndexTerms().entrySet()) {
+            primaryIndexTermLookup.put(ent.getKey(), toNodeModels(ent.getValue()));
+        }
+        for (Entry<String, SortedMap<String, List<Element>>> ent : snapshot.getSecondaryIndexTerms().entrySet()) {
+            SortedMap<String, List<NodeModel>> bySecondaryText = new TreeMap<>();
+            for (Entry<String, List<Element>> bySecondaryTextEnt : ent.getValue().entrySet()) {
+                bySecondaryText.put(bySecondaryTextEnt.getKey(), toNodeModels(bySecondaryTextEnt.getValue()));
+            }
+            secondaryIndexTermLookup.put(ent.getKey(), bySecondaryText);
+        }
+        indexEntries = new ArrayList<>(snapshot.getIndexEntries());
+
+        preprocessDOM_buildTOC_buildLinkIndex();
+
+        return snapshot.getDocument();
+    }
+
+    private static List<NodeModel> toNodeModels(List<Element> elements) {
+        List<NodeModel> nodeModels = new ArrayList<>(elements.size());
+        for (Element element : elements) {
+            nodeModels.add(NodeModel.wrap(element));
+        }
+        return nodeModels;
+    }
+
+    /**
+     * Adds the identity of the Docgen classes and templates, as those influence everything.
+     */
+    private static void addDocgenFingerprint(Fingerprint fingerprint) throws IOException {
+        CodeSource docgenCodeSource = Transform.class.getProtectionDomain().getCodeSource();
+        URL docgenLocation = docgenCodeSource != null ? docgenCodeSource.getLocation() : null;
+        fingerprint.add(docgenLocation != null ? docgenLocation.toString() : null);
+        if (docgenLocation != null && docgenLocation.getProtocol().equals("file")) {
+            try {
+                Path docgenPath = Paths.get(docgenLocation.toURI());
+                if (Files.exists(docgenPath)) {
+                    fingerprint.addFileMetadata(docgenPath);
+                }
+            } catch (URISyntaxException e) {
+                // Ignored; the location was already added
+            }
+        }
+    }
+
+    /**
+     * Computes the fingerprint of everything that all pages depend on, most importantly the settings, the templates,
+     * and the navigation (ToC, breadcrumb, previous/next links), which is shown on all pages. The generation time is
+     * deliberately not part of this (except its year, which is shown in the copyright notice), so the pages that
+     * aren't generated again will keep showing the earlier time.
+     */
+    private String computeInputsFingerprint(Date generationTime) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+
+        // Docgen itself, with its templates:
+        addDocgenFingerprint(fingerprint);
+
+        fingerprint.add(cfgFile.exists());
+        if (cfgFile.exists()) {
+            fingerprint.addFileContent(cfgFile.toPath());
+        }
+        for (File file : filesReferredBySettings) {
+            fingerprint.add(file.getPath());
+            fingerprint.addFileContent(file.toPath());
+        }
+        fingerprint.add(templatesDir != null);
+        if (templatesDir != null) {
+            fingerprint.addDirectoryContent(templatesDir.toPath());
+        }
+
+        // Settings that can be set outside the settings file:
+        fingerprint.add(offline);
+        fingerprint.add(simpleNavigationMode);
+        fingerprint.add(showEditoralNotes);
+        fingerprint.add(timeZone.getID());
+        fingerprint.add(new TreeMap<>(customVariableOverrides).toString());
+        fingerprint.add(new TreeMap<>(insertableFiles).toString());
+        Calendar generationTimeCal = Calendar.getInstance(timeZone, locale);
+        generationTimeCal.setTime(generationTime);
+        fingerprint.add(generationTimeCal.get(Calendar.YEAR));
+
+        // Navigation:
+        for (TOCNode tocNode : tocNodes) {
+            fingerprint.add(tocNode.getParent() != null ? tocNode.getParent().traversalIndex : -1);
+            fingerprint.add(tocNode.isFileElement());
+            fingerprint.add(tocNode.getOutputFileName());
+            Element elem = tocNode.getElement();
+            fingerprint.add(elem.getLocalName());
+            fingerprint.add(XMLUtil.getAttribute(elem, "id"));
+            addTitleFingerprint(fingerprint, elem);
+        }
+
+        return fingerprint.getHash();
+    }
+
+    /**
+     * Computes the fingerprint of the part of the document that the page of the given file-element
+     * {@link TOCNode} shows, including the titles (and other attributes) of the elements it links to. Things that are
+     * shown on all pages are in {@link #computeInputsFingerprint(Date)} instead.
+     */
+    private String computePageFingerprint(TOCNode fileTOCNode) {
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.add(fileTOCNode.getOutputFileName());
+        Element fileElem = fileTOCNode.getElement();
+        fingerprint.addNode(fileElem, (elem, fp) -> {
+            for (String refAttName : ID_REFERENCE_ATTRIBUTES) {
+                String ids = XMLUtil.getAttribute(elem, refAttName);
+                if (ids != null) {
+                    for (String id : ids.trim().split("\\s+")) {
+                        addLinkTargetFingerprint(fp, elementsById.get(id));
+                    }
+                }
+            }
+
+            if (E_INDEX.equals(elem.getLocalName())) {
+                // The index lists the index terms of the whole document:
+                for (String indexEntry : indexEntries) {
+                    fp.add(indexEntry);
+                    for (NodeModel indexTerm : primaryIndexTermLookup.get(indexEntry)) {
+                        addLinkTargetFingerprint(fp, (Element) indexTerm.getNode());
+                    }
+                    SortedMap<String, List<NodeModel>> secondaryTerms = secondaryIndexTermLookup.get(indexEntry);
+                    if (secondaryTerms != null) {
+                        for (Entry<String, List<NodeModel>> secondaryTerm : secondaryTerms.entrySet()) {
+                            fp.add(secondaryTerm.getKey());
+                            for (NodeModel indexTerm : secondaryTerm.getValue()) {
+                                addLinkTargetFingerprint(fp, (Element) indexTerm.getNode());
+                            }
+                        }
+                    }
+                }
+            }
+
+            // The content of other file elements is shown on their own pages:
+            return elem == fileElem || !elem.hasAttribute(A_DOCGEN_FILE_ELEMENT);
+        });
+        return fingerprint.getHash();
+    }
+
+    /**
+     * Adds what a link to the element depends on: the URL, and the labels that can be used as the link text.
+     */
+    private void addLinkTargetFingerprint(Fingerprint fingerprint, Element target) {
+        fingerprint.add(target != null);
+        if (target == null) {
+            return;
+        }
+
+        String url;
+        try {
+            url = createElementLinkURL(target);
+        } catch (DocgenException e) {
+            // Will fail again when generating the page
+            url = null;
+        }
+        fingerprint.add(url);
+
+        Node node = target;
+        while (node instanceof Element) {
+            Element elem = (Element) node;
+            fingerprint.add(XMLUtil.getAttribute(elem, "id"));
+            fingerprint.add(XMLUtil.getAttribute(elem, A_XREFLABEL));
+            addTitleFingerprint(fingerprint, elem);
+            node = node.getParentNode();
+        }
+    }
+
+    private void addTitleFingerprint(Fingerprint fingerprint, Element elem) {
+        for (Element child : XMLUtil.childrenElementsOf(elem)) {
+            if (TITLE_LIKE_ELEMENTS.contains(child.getLocalName())) {
+                fingerprint.addNode(child);
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link RenderingWorker}. Must not be called concurrently, as it reads the document.
+     *
+     * @param copyDocument Whether the worker should use a copy of the document, which is needed if there will be
+     *      multiple workers used concurrently.
+     */
+    private synchronized RenderingWorker newRenderingWorker(Document doc, boolean copyDocument) {
+        if (!copyDocument) {
+            return new RenderingWorker(DocumentReplica.ofOriginal(doc), Collections.emptyMap());
+        }
+
+        DocumentReplica replica = DocumentReplica.copyOf(doc);
+
+        // Override the shared variables that refer to nodes of the original document:
+        Map<String, Object> variables = new HashMap<>();
+        variables.put(VAR_ROOT_ELEMENT, replica.getDocument().getDocumentElement());
+        Map<String, List<NodeModel>> replicaPrimaryIndexTermLookup = new HashMap<>();
+        for (Entry<String, List<NodeModel>> ent : primaryIndexTermLookup.entrySet()) {
+            replicaPrimaryIndexTermLookup.put(ent.getKey(), toReplicaNodeModels(ent.getValue(), replica));
+        }
+        variables.put("primaryIndexTermLookup", replicaPrimaryIndexTermLookup);
+        Map<String, SortedMap<String, List<NodeModel>>> replicaSecondaryIndexTermLookup = new HashMap<>();
+        for (Entry<String, SortedMap<String, List<NodeModel>>> ent : secondaryIndexTermLookup.entrySet()) {
+            SortedMap<String, List<NodeModel>> replicaValue = new TreeMap<>();
+            for (Entry<String, List<NodeModel>> subEnt : ent.getValue().entrySet()) {
+                replicaValue.put(subEnt.getKey(), toReplicaNodeModels(subEnt.getValue(), replica));
+            }
+            replicaSecondaryIndexTermLookup.put(ent.getKey(), replicaValue);
+        }
+        variables.put("secondaryIndexTermLookup", replicaSecondaryIndexTermLookup);
+
+        return new RenderingWorker(replica, variables);
+    }
+
+    private static List<NodeModel> toReplicaNodeModels(List<NodeModel> nodeModels, DocumentReplica replica) {
+        List<NodeModel> result = new ArrayList<>(nodeModels.size());
+        for (NodeModel nodeModel : nodeModels) {
+            result.add(NodeModel.wrap(replica.toReplica((Element) nodeModel.getNode())));
+        }
+        return result;
+    }
+
+    /**
+     * Generates a HTML file for the file-element {@link TOCNode} of the context, maybe with some accompanying HTML-s.
+     */
+    private int generateHTMLFile(PageRenderingContext context, RenderingWorker worker)
+            throws IOException, TemplateException {
+        TOCNode fileTOCNode = context.getFileTOCNode();
+        DocumentReplica replica = context.getReplica();
+        SimpleHash dataModel = newDataModel();
+        worker.variables.forEach(dataModel::put);
+
+        TOCNode otherTOCNode;
+
+        otherTOCNode = getPreviousFileTOCNode(fileTOCNode);
+        dataModel.put(
+                VAR_PREVIOUS_FILE_ELEMENT,
+                otherTOCNode != null ? replica.toReplica(otherTOCNode.getElement()) : null);
+
+        otherTOCNode = getNextFileTOCNode(fileTOCNode);
         dataModel.put(
                 VAR_NEXT_FILE_ELEMENT,
-                otherTOCNode != null ? otherTOCNode.getElement() : null);
+                otherTOCNode != null ? replica.toReplica(otherTOCNode.getElement()) : null);
 
-        otherTOCNode = currentFileTOCNode.getParent();
+        otherTOCNode = fileTOCNode.getParent();
         dataModel.put(
                 VAR_PARENT_FILE_ELEMENT,
-                otherTOCNode != null ? otherTOCNode.getElement() : null);
+                otherTOCNode != null ? replica.toReplica(otherTOCNode.getElement()) : null);
 
-        Element curElem = currentFileTOCNode.getElement();
+        Element curElem = fileTOCNode.getElement();
         final boolean isTheDocumentElement
                 = curElem.getParentNode() instanceof Document;
         dataModel.put(
@@ -2274,9 +3916,9 @@ public final class Transform {
                         ? maxTOFDisplayDepth : maxMainTOFDisplayDepth);
 
         if (seoMeta != null) {
-            Map<String, String> seoMetaMap = seoMeta.get("file:" + currentFileTOCNode.getOutputFileName());
+            Map<String, String> seoMetaMap = seoMeta.get("file:" + fileTOCNode.getOutputFileName());
             if (seoMetaMap == null) {
-                String id = XMLUtil.getAttribute(currentFileTOCNode.getElement(), "id");
+                String id = XMLUtil.getAttribute(fileTOCNode.getElement(), "id");
                 if (id != null) {
                     seoMetaMap = seoMeta.get(id);
                 }
@@ -2298,7 +3940,7 @@ public final class Transform {
         if (isTheDocumentElement) {
             // Find out if a detailed ToC will be useful:
             int mainTOFEntryCount = countTOFEntries(
-                    currentFileTOCNode, maxMainTOFDisplayDepth);
+                    fileTOCNode, maxMainTOFDisplayDepth);
             if (mainTOFEntryCount != 0  // means, not a single-page output
                     && mainTOFEntryCount < tocNodes.size() * 0.75) {
                 generateDetailedTOC = true;
@@ -2311,69 +3953,215 @@ public final class Transform {
             }
         }
 
-        generateHTMLFile_inner(dataModel, currentFileTOCNode.getOutputFileName());
+        generateHTMLFile_inner(dataModel, fileTOCNode.getOutputFileName(), context);
 
         if (generateDetailedTOC) {
             dataModel.put(VAR_PAGE_TYPE, PAGE_TYPE_DETAILED_TOC);
             dataModel.put(
                     VAR_ALTERNATIVE_TOC_LINK,
-                    currentFileTOCNode.getOutputFileName());
+                    fileTOCNode.getOutputFileName());
             dataModel.put(
                     VAR_ALTERNATIVE_TOC_LABEL,
                     "show simplified");
-            generateHTMLFile_inner(dataModel, FILE_DETAILED_TOC_HTML);
+            generateHTMLFile_inner(dataModel, FILE_DETAILED_TOC_HTML, context);
             return 2;
         } else {
-            return 1;
+            return 1;
+        }
+    }
+
+    /**
+     * Must not be called concurrently with {@link #generateHTMLFiles(Document)}, as it temporarily modifies the
+     * document.
+     */
+    private void generateSearchResultsHTMLFile(Document doc, RenderingWorker worker)
+            throws TemplateException, IOException, DocgenException {
+        SimpleHash dataModel = newDataModel();
+        worker.variables.forEach(dataModel::put);
+
+        dataModel.put(VAR_PAGE_TYPE, PAGE_TYPE_SEARCH_RESULTS);
+        dataModel.put(VAR_TOC_DISPLAY_DEPTH, maxMainTOFDisplayDepth);
+
+        // Create docgen:searchresults element that's no really in the XML file:
+        Element searchresultsElem = doc.createElementNS(XMLNS_DOCGEN, E_SEARCHRESULTS);
+        {
+            // Docgen templates may expect page-elements to have an id:
+            if (elementsById.containsKey(SEARCH_RESULTS_ELEMENT_ID)) {
+                throw new DocgenException("Reserved element id \"" + SEARCH_RESULTS_ELEMENT_ID + "\" was already taken");
+            }
+            searchresultsElem.setAttribute("id", SEARCH_RESULTS_ELEMENT_ID);
+
+            searchresultsElem.setAttribute(A_DOCGEN_RANK, E_SECTION);
+
+            // Docgen templates may expect page-elements to have a title:
+            Element titleElem = doc.createElementNS(XMLNS_DOCBOOK5, E_TITLE);
+            titleElem.setTextContent(SEARCH_RESULTS_PAGE_TITLE);
+            searchresultsElem.appendChild(titleElem);
+        }
+
+        // We must add it to the document so that .node?root and such will work.
+        doc.getDocumentElement().appendChild(searchresultsElem);
+        try {
+            TOCNode searchresultsTOCNode = new TOCNode(searchresultsElem, 0);
+            searchresultsTOCNode.setFileElement(true);
+            searchresultsTOCNode.setOutputFileName(FILE_SEARCH_RESULTS_HTML);
+
+            generateHTMLFile_inner(
+                    dataModel, searchresultsTOCNode.getOutputFileName(),
+                    new PageRenderingContext(searchresultsTOCNode, worker.replica));
+        } finally {
+            doc.getDocumentElement().removeChild(searchresultsElem);
+        }
+    }
+
+    private void generateHTMLFile_inner(SimpleHash dataModel, String fileName, PageRenderingContext context)
+            throws TemplateException, IOException {
+        Template template = getTemplate("page.ftlh");
+        File outputFile = new File(destDir, fileName);
+        try (Writer writer = newOutputFileWriter(outputFile)) {
+            Environment env = createProcessingEnvironment(template, dataModel, writer);
+            env.setCurrentVisitorNode(NodeModel.wrap(
+                    context.getReplica().toReplica(context.getFileTOCNode().getElement())));
+            context.attachTo(env);
+            env.process();
+        }
+    }
+
+    /**
+     * Creates the {@link Writer} used for generated output files; this takes care of
+     * {@link #setSkipUnchangedOutputFiles(boolean)}, and of notifying the {@link #outputFileListener}.
+     */
+    private Writer newOutputFileWriter(File outputFile) throws IOException {
+        if (previewFiles != null) {
+            // All such files are directly in the output directory:
+            return new PreviewFileWriter(outputFile.getName());
+        }
+        return new OutputFileWriter(outputFile, skipUnchangedOutputFiles, outputFileListener);
+    }
+
+    /**
+     * Stores the output file into {@link #previewFiles} when closed.
+     */
+    private final class PreviewFileWriter extends StringWriter {
+        private final String path;
+
+        private PreviewFileWriter(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void close() {
+            previewFiles.put(path, toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void recordOutputFile(File outputFile, boolean written) {
+        if (written) {
+            outputFileListener.addWrittenFile(outputFile);
+        } else {
+            outputFileListener.addUnchangedFile(outputFile);
         }
     }
 
-    private void generateSearchResultsHTMLFile(Document doc) throws TemplateException, IOException, DocgenException {
+    /**
+     * Creates a data-model that already contains the variables common for all templates.
+     */
+    private SimpleHash newDataModel() {
         SimpleHash dataModel = new SimpleHash(fmConfig.getObjectWrapper());
+        commonVariables.forEach(dataModel::put);
+        return dataModel;
+    }
 
-        dataModel.put(VAR_PAGE_TYPE, PAGE_TYPE_SEARCH_RESULTS);
-        dataModel.put(VAR_TOC_DISPLAY_DEPTH, maxMainTOFDisplayDepth);
+    private Template getTemplate(String name) throws IOException {
+        return fmConfig.getTemplate(name, locale);
+    }
 
-        // Create docgen:searchresults element that's no really in the XML file:
-        Element searchresultsElem = doc.createElementNS(XMLNS_DOCGEN, E_SEARCHRESULTS);
-        {
-            // Docgen templates may expect page-elements to have an id:
-            if (elementsById.containsKey(SEARCH_RESULTS_ELEMENT_ID)) {
-                throw new DocgenException("Reserved element id \"" + SEARCH_RESULTS_ELEMENT_ID + "\" was already taken");
+    private Environment createProcessingEnvironment(Template template, SimpleHash dataModel, Writer out)
+            throws TemplateException, IOException {
+        Environment env = template.createProcessingEnvironment(dataModel, out, null);
+        // The engine's FreeMarker configuration is shared, so it has no book-specific settings:
+        env.setTimeZone(timeZone);
+        return env;
+    }
+
+    private void processTemplate(Template template, SimpleHash dataModel, Writer out, Node visitorNode)
+            throws TemplateException, IOException {
+        Environment env = createProcessingEnvironment(template, dataModel, out);
+        env.setCurrentVisitorNode(NodeModel.wrap(visitorNode));
+        env.process();
+    }
+
+    /**
+     * The original values of the settings that can contain Docgen URL-s (like {@code "id:foo"}), as those are resolved
+     * in-place by {@link #loadDocument()}.
+     */
+    private final class URLSettings {
+        private final Map<String, String> olinks = new LinkedHashMap<>(Transform.this.olinks);
+        private final Map<String, String> tabs = new LinkedHashMap<>(Transform.this.tabs);
+        private final Map<String, Map<String, String>> secondaryTabs = deepCopy(Transform.this.secondaryTabs);
+        private final Map<String, String> externalBookmarks = new LinkedHashMap<>(Transform.this.externalBookmarks);
+        private final Map<String, Map<String, String>> socialLinks = deepCopy(Transform.this.socialLinks);
+        private final Map<String, Map<String, String>> footerSiteMap = deepCopy(Transform.this.footerSiteMap);
+        private final String logoHref = logo != null ? logo.getHref() : null;
+        private final List<String> sideTOCLogoHrefs = sideTOCLogos.stream()
+                .map(Logo::getHref).collect(Collectors.toList());
+
+        private void restore() {
+            restore(Transform.this.olinks, olinks);
+            restore(Transform.this.tabs, tabs);
+            restore(Transform.this.secondaryTabs, deepCopy(secondaryTabs));
+            restore(Transform.this.externalBookmarks, externalBookmarks);
+            restore(Transform.this.socialLinks, deepCopy(socialLinks));
+            restore(Transform.this.footerSiteMap, deepCopy(footerSiteMap));
+            if (logo != null) {
+                logo.setHref(logoHref);
             }
-            searchresultsElem.setAttribute("id", SEARCH_RESULTS_ELEMENT_ID);
+            for (int i = 0; i < sideTOCLogos.size(); i++) {
+                sideTOCLogos.get(i).setHref(sideTOCLogoHrefs.get(i));
+            }
+        }
 
-            searchresultsElem.setAttribute(A_DOCGEN_RANK, E_SECTION);
+        private <V> void restore(Map<String, V> target, Map<String, V> originalValues) {
+            target.clear();
+            target.putAll(originalValues);
+        }
 
-            // Docgen templates may expect page-elements to have a title:
-            Element titleElem = doc.createElementNS(XMLNS_DOCBOOK5, E_TITLE);
-            titleElem.setTextContent(SEARCH_RESULTS_PAGE_TITLE);
-            searchresultsElem.appendChild(titleElem);
+        private Map<String, Map<String, String>> deepCopy(Map<String, Map<String, String>> map) {
+            Map<String, Map<String, String>> result = new LinkedHashMap<>();
+            for (Entry<String, Map<String, String>> ent : map.entrySet()) {
+                result.put(ent.getKey(), new LinkedHashMap<>(ent.getValue()));
+            }
+            return result;
         }
+    }
 
-        // We must add it to the document so that .node?root and such will work.
-        doc.getDocumentElement().appendChild(searchresultsElem);
-        try {
-            TOCNode searchresultsTOCNode = new TOCNode(searchresultsElem, 0);
-            searchresultsTOCNode.setFileElement(true);
-            searchresultsTOCNode.setOutputFileName(FILE_SEARCH_RESULTS_HTML);
-            currentFileTOCNode = searchresultsTOCNode;
+    /**
+     * Where a link to an element with id points to.
+     */
+    private static final class LinkTarget {
+        private final Element element;
+        private final String fileName;
+        /** {@code null} if the element is the file element itself, so the link points to the whole page. */
+        private final String fragment;
 
-            generateHTMLFile_inner(dataModel, currentFileTOCNode.getOutputFileName());
-        } finally {
-            doc.getDocumentElement().removeChild(searchresultsElem);
+        private LinkTarget(Element element, TOCNode fileTOCNode, String id) {
+            this.element = element;
+            this.fileName = fileTOCNode.getOutputFileName();
+            this.fragment = fileTOCNode.getElement() == element ? null : id;
         }
     }
 
-    private void generateHTMLFile_inner(SimpleHash dataModel, String fileName)
-            throws TemplateException, IOException {
-        Template template = fmConfig.getTemplate("page.ftlh");
-        File outputFile = new File(destDir, fileName);
-        try (Writer writer = FileUtil.newFileWriter(outputFile)) {
-            template.process(
-                    dataModel,
-                    writer, null,
-                    NodeModel.wrap(currentFileTOCNode.getElement()));
+    /**
+     * The objects needed to render pages on a single thread.
+     */
+    private static final class RenderingWorker {
+        private final DocumentReplica replica;
+        /** Data-model variables that override the shared variables that refer to the original document. */
+        private final Map<String, Object> variables;
+
+        private RenderingWorker(DocumentReplica replica, Map<String, Object> variables) {
+            this.replica = replica;
+            this.variables = variables;
         }
     }
 
@@ -2413,7 +4201,13 @@ public final class Transform {
         return false;
     }
 
-    private String createElementLinkURL(final Element elem) {
+    private String createElementLinkURL(Element elem) {
+        // The lookup tables store the elements of the original document, but the templates might see a copy of it:
+        PageRenderingContext context = PageRenderingContext.getCurrent();
+        if (context != null) {
+            elem = context.getReplica().toOriginal(elem);
+        }
+
         if (elem.hasAttribute(A_DOCGEN_NOT_ADDRESSABLE)) {
             return null;
         }
@@ -2443,28 +4237,27 @@ public final class Transform {
         }
         final Element idElem = (Element) node;
 
-        String fileName = null;
-        Element curElem = idElem;
-        do {
-            TOCNode fileTOCNode = getFileTOCNodeFor(curElem);
-            if (fileTOCNode == null) {
-                curElem = (Element) curElem.getParentNode();
-            } else {
-                fileName = fileTOCNode.getOutputFileName();
-                if (fileName == null) throw new IllegalStateException("fileTOCNode with null outputFileName");
+        LinkTarget target = linkTargetsById.get(id);
+        if (target == null || target.element != idElem) {
+            // Not indexed, like the elements added during the output generation
+            TOCNode fileTOCNode = getEnclosingFileTOCNode(idElem);
+            if (fileTOCNode.getOutputFileName() == null) {
+                throw new IllegalStateException("fileTOCNode with null outputFileName");
             }
-        } while (fileName == null);
+            target = new LinkTarget(idElem, fileTOCNode, id);
+        }
+        final String fileName = target.fileName;
 
         String link;
-        if (currentFileTOCNode != null
-                && fileName.equals(currentFileTOCNode.getOutputFileName())) {
+        if (context != null
+                && fileName.equals(context.getFileTOCNode().getOutputFileName())) {
             link = "";
         } else {
             link = fileName;
         }
 
-        if (getFileTOCNodeFor(idElem) == null) {
-            link = link + "#" + id;
+        if (target.fragment != null) {
+            link = link + "#" + target.fragment;
         }
 
         // IE6 doesn't like empty href-s:
@@ -2564,8 +4357,12 @@ public final class Transform {
         @Override
         public Object exec(@SuppressWarnings("rawtypes") List args)
                 throws TemplateModelException {
-            Node node = elementsById.get(getArgString(args, 0));
-            return NodeModel.wrap(node);
+            Element elem = elementsById.get(getArgString(args, 0));
+            PageRenderingContext context = PageRenderingContext.getCurrent();
+            if (context != null) {
+                elem = context.getReplica().toReplica(elem);
+            }
+            return NodeModel.wrap(elem);
         }
 
     };
@@ -2576,8 +4373,42 @@ public final class Transform {
         return insertableFiles;
     }
 
-    TOCNode getCurrentFileTOCNode() {
-        return currentFileTOCNode;
+    boolean isSettingsLoaded() {
+        return settingsLoaded;
+    }
+
+    boolean isDocumentLoaded() {
+        return document != null;
+    }
+
+    File getSettingsFile() {
+        return cfgFile;
+    }
+
+    Set<File> getFilesReferredBySettings() {
+        return filesReferredBySettings;
+    }
+
+    /**
+     * The directory of the templates that override or extend the standard templates, or {@code null} if there's none.
+     */
+    File getTemplatesDirectory() {
+        return templatesDir;
+    }
+
+    File getContentDirectory() {
+        return contentDir;
+    }
+
+    DocgenLogger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Ensures that the templates will be loaded again, in case they were changed.
+     */
+    void clearTemplateCache() {
+        engine.clearTemplateCache();
     }
 
     // -------------------------------------------------------------------------
@@ -2586,6 +4417,46 @@ public final class Transform {
         return insertableOutputCommands;
     }
 
+    /**
+     * Returns the object that executes the insertable output commands, or {@code null} if we aren't inside
+     * {@link #generateOutput()}, or there are no such commands.
+     */
+    CommandRunner getCommandRunner() {
+        return commandRunner;
+    }
+
+    /**
+     * Returns the cache of the files inserted with {@code [docgen.insertFile]}, or {@code null} if we aren't inside
+     * {@link #generateOutput()}.
+     */
+    InsertableFileCache getInsertableFileCache() {
+        return insertableFileCache;
+    }
+
+    void setSharedDocumentSource(SharedDocumentSource sharedDocumentSource) {
+        this.sharedDocumentSource = sharedDocumentSource;
+    }
+
+    /**
+     * Returns the cache of the texts compiled by {@link PrintTextWithDocgenSubstitutionsDirective}; never
+     * {@code null}.
+     */
+    CompiledTextCache getCompiledTextCache() {
+        return compiledTextCache;
+    }
+
+    public TransformEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the {@link TransformEngine} to use, which can be shared by multiple {@link Transform}-s. If this is not set,
+     * a new engine will be created for this {@link Transform} only.
+     */
+    public void setEngine(TransformEngine engine) {
+        this.engine = engine;
+    }
+
     public File getDestinationDirectory() {
         return destDir;
     }
@@ -2672,6 +4543,410 @@ public final class Transform {
         this.printProgress = printProgress;
     }
 
+    public int getRenderingThreads() {
+        return renderingThreads;
+    }
+
+    /**
+     * Sets the number of threads used for generating the HTML pages. Defaults to 1, which means that the pages are
+     * generated on the thread that calls {@link #execute()}. If it's more than 1, each thread will use its own copy of
+     * the DOM, so memory usage grows with this. Ignored if {@link #setRenderingExecutor(ExecutorService)} was set.
+     * The output is the same regardless of this setting.
+     */
+    public void setRenderingThreads(int renderingThreads) {
+        if (renderingThreads < 1) {
+            throw new IllegalArgumentException("renderingThreads must be at least 1, but was " + renderingThreads);
+        }
+        this.renderingThreads = renderingThreads;
+    }
+
+    public int getBuildTaskThreads() {
+        return buildTaskThreads;
+    }
+
+    /**
+     * Sets the maximum number of build tasks (like generating the ToC JSON, generating the HTML pages, copying the
+     * static files) that can run concurrently. The tasks that use the DOM still run one after the other, on the
+     * thread that calls {@link #execute()}, so currently this only allows copying the static files (bound by I/O) to
+     * overlap with the template rendering (bound by the CPU), by copying them on another thread. Defaults to 2. If 1,
+     * all tasks run on the thread that calls {@link #execute()}. The task graph and the timing of the tasks is printed
+     * into the log. The output is the same regardless of this setting.
+     */
+    public void setBuildTaskThreads(int buildTaskThreads) {
+        if (buildTaskThreads < 1) {
+            throw new IllegalArgumentException("buildTaskThreads must be at least 1, but was " + buildTaskThreads);
+        }
+        this.buildTaskThreads = buildTaskThreads;
+    }
+
+    public ExecutorService getRenderingExecutor() {
+        return renderingExecutor;
+    }
+
+    /**
+     * Sets the {@link ExecutorService} used for generating the HTML pages concurrently, instead of creating a thread
+     * pool based on {@link #setRenderingThreads(int)}. This is useful if you want to share the threads with other
+     * tasks. The executor won't be shut down by {@link #execute()}. Defaults to {@code null}.
+     */
+    public void setRenderingExecutor(ExecutorService renderingExecutor) {
+        this.renderingExecutor = renderingExecutor;
+    }
+
+    public boolean getIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Sets if {@link #execute()} should only generate those HTML pages again whose inputs have changed since the last
+     * run into the same output directory. For this, a manifest file ({@value BuildManifest#FILE_NAME}) is written into
+     * the output directory, which stores the fingerprints of the inputs. Pages are generated again if the part of the
+     * document they show, the titles of the elements they link to, or the files they insert have changed. If
+     * anything that all pages depend on (settings, templates, the navigation, Docgen itself) has changed, all pages
+     * are generated. Pages that execute commands (like {@code [docgen.insertWithOutput ...]}) are always generated.
+     * Defaults to {@code false}.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean getSkipUnchangedOutputFiles() {
+        return skipUnchangedOutputFiles;
+    }
+
+    /**
+     * Sets if output files that already exist with the same content should be left untouched, instead of being
+     * written again. This keeps the last modification time of unchanged files, so tools that deploy or synchronize
+     * the output directory (like rsync) only have to transfer the changed files. When this is {@code true}, each
+     * generated file is first rendered into memory, and then compared with the existing file. The number of
+     * written and unchanged files is shown in the build report. Defaults to {@code false}.
+     */
+    public void setSkipUnchangedOutputFiles(boolean skipUnchangedOutputFiles) {
+        this.skipUnchangedOutputFiles = skipUnchangedOutputFiles;
+    }
+
+    public boolean getHardLinkStaticFiles() {
+        return hardLinkStaticFiles;
+    }
+
+    /**
+     * Sets if the custom static files (the files in the source directory that are copied into the output as is)
+     * should be hard linked into the output directory, instead of being copied. This saves time and disk space when
+     * there are many or big static files. Where hard links aren't supported (like if the output directory is on
+     * another file system than the source directory), the files are copied anyway. As the linked output files share
+     * their content with the source files, the output files shouldn't be modified in place by other tools. (Docgen
+     * itself always replaces output files instead of writing into them, so a source file is safe even if it has the
+     * same path as a generated file, or had in an earlier build.) Defaults to {@code false}.
+     */
+    public void setHardLinkStaticFiles(boolean hardLinkStaticFiles) {
+        this.hardLinkStaticFiles = hardLinkStaticFiles;
+    }
+
+    public boolean getPruneStaleOutputFiles() {
+        return pruneStaleOutputFiles;
+    }
+
+    /**
+     * Sets if the files in the output directory that weren't produced by {@link #execute()} (like the output of a
+     * section that was since removed or renamed) should be deleted after the output was generated. Directories that
+     * become empty because of that are deleted too. Note that this deletes anything that isn't Docgen output, so the
+     * output directory shouldn't contain other files. Defaults to {@code false}.
+     */
+    public void setPruneStaleOutputFiles(boolean pruneStaleOutputFiles) {
+        this.pruneStaleOutputFiles = pruneStaleOutputFiles;
+    }
+
+    public File getChangeSetFile() {
+        return changeSetFile;
+    }
+
+    /**
+     * If not {@code null}, a JSON file will be written here that lists the paths (relative to the output directory)
+     * of the files that {@link #execute()} has added, modified, or deleted (see
+     * {@link #setPruneStaleOutputFiles(boolean)}), and of the stale files that weren't deleted. This allows deploying
+     * only the changes. Unless {@link #setSkipUnchangedOutputFiles(boolean)} is {@code true}, all files that already
+     * existed are listed as modified, except the static files that were already up to date. Defaults to {@code null}.
+     */
+    public void setChangeSetFile(File changeSetFile) {
+        this.changeSetFile = changeSetFile;
+    }
+
+    public boolean getGzipOutputFiles() {
+        return gzipOutputFiles;
+    }
+
+    /**
+     * Sets if a gzip compressed copy (with {@code .gz} suffix) should be written next to the output files, so that web
+     * servers can serve them without compressing them on the fly (like nginx with {@code gzip_static on}). Only files
+     * with {@linkplain #setGzipExtensions(Collection) the specified extensions}, and with at least
+     * {@linkplain #setGzipMinimumSize(int) the minimum size} are compressed. The compression is done in parallel with
+     * generating the output. If {@link #setSkipUnchangedOutputFiles(boolean)} is {@code true}, then the gzip files of
+     * unchanged files aren't written again either. The gzip file of an output file that's not compressed (like because
+     * it's smaller than the minimum size) is deleted, if it exists from an earlier build, so the output directory
+     * shouldn't contain other {@code .gz} files with such names. Defaults to {@code false}.
+     */
+    public void setGzipOutputFiles(boolean gzipOutputFiles) {
+        this.gzipOutputFiles = gzipOutputFiles;
+    }
+
+    public Set<String> getGzipExtensions() {
+        return Collections.unmodifiableSet(gzipExtensions);
+    }
+
+    /**
+     * Sets the file name extensions (without dot, case insensitive) of the files that
+     * {@link #setGzipOutputFiles(boolean)} compresses. Defaults to {@code html}, {@code js}, {@code css},
+     * {@code json}, {@code xml}, {@code svg}, {@code txt}.
+     */
+    public void setGzipExtensions(Collection<String> gzipExtensions) {
+        Set<String> normalizedExtensions = new HashSet<>();
+        for (String extension : gzipExtensions) {
+            extension = extension.trim().toLowerCase(Locale.ROOT);
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            if (!extension.isEmpty()) {
+                normalizedExtensions.add(extension);
+            }
+        }
+        this.gzipExtensions = normalizedExtensions;
+    }
+
+    public int getGzipMinimumSize() {
+        return gzipMinimumSize;
+    }
+
+    /**
+     * Sets the minimum size in bytes of the files that {@link #setGzipOutputFiles(boolean)} compresses, as compressing
+     * very small files isn't worth it. Defaults to 256.
+     */
+    public void setGzipMinimumSize(int gzipMinimumSize) {
+        if (gzipMinimumSize < 0) {
+            throw new IllegalArgumentException("gzipMinimumSize can't be negative, but was " + gzipMinimumSize);
+        }
+        this.gzipMinimumSize = gzipMinimumSize;
+    }
+
+    public int getGzipCompressionLevel() {
+        return gzipCompressionLevel;
+    }
+
+    /**
+     * Sets the compression level used by {@link #setGzipOutputFiles(boolean)}, from 1 (fastest) to 9 (smallest).
+     * Defaults to 9, as the files are compressed only once, but are served many times.
+     */
+    public void setGzipCompressionLevel(int gzipCompressionLevel) {
+        GzipOutputCompressor.checkCompressionLevel(gzipCompressionLevel);
+        this.gzipCompressionLevel = gzipCompressionLevel;
+    }
+
+    public File getBuildReportFile() {
+        return buildReportFile;
+    }
+
+    /**
+     * If not {@code null}, a JSON file will be written here that contains how long each phase of the transformation
+     * took, how many pages were generated per second, and how many bytes were written. A summary of the same is
+     * printed regardless of this setting (if {@link #setPrintProgress(boolean)} is {@code true}). Defaults to
+     * {@code null}.
+     */
+    public void setBuildReportFile(File buildReportFile) {
+        this.buildReportFile = buildReportFile;
+    }
+
+    public File getDocumentSnapshotFile() {
+        return documentSnapshotFile;
+    }
+
+    /**
+     * If not {@code null}, the document (as it's after parsing, validating and preprocessing it) is stored into this
+     * file, and the next run loads it from there instead of processing the XML again, if nothing that can affect
+     * the result has changed since then. This speeds up the builds where only the templates, or other output related
+     * settings have changed. What counts as change is decided based on the settings file, the Docgen version, and
+     * the size and last modification time of the files in the source directory. The file shouldn't be in the source
+     * directory, unless its name starts with {@code docgen-}, as otherwise it's copied into the output. It can be in
+     * the output directory; it's then not considered to be a stale file by {@link #setPruneStaleOutputFiles(boolean)}
+     * and {@link #setChangeSetFile(File)}. Defaults to {@code null}.
+     */
+    public void setDocumentSnapshotFile(File documentSnapshotFile) {
+        this.documentSnapshotFile = documentSnapshotFile;
+    }
+
+    public File getCommandOutputCacheDirectory() {
+        return commandOutputCacheDirectory;
+    }
+
+    /**
+     * If not {@code null}, the output of the commands executed by {@code [docgen.insertWithOutput]} and
+     * {@code [docgen.checkCommand]} is stored in this directory, and later builds use the stored output instead of
+     * executing the same command again. The stored output is only used if the command key, the main class and method,
+     * the arguments, the system properties set for the command, the content of the {@code docgenWdReplacedWith}
+     * directory, and the content of the class path are all the same (so commands that depend on anything else, like
+     * on the current time, shouldn't be used with this). The directory can be shared by multiple books, and by
+     * concurrent builds. It shouldn't be inside the source directory. It can be inside the output directory; its
+     * content is then not considered to be stale by {@link #setPruneStaleOutputFiles(boolean)} and
+     * {@link #setChangeSetFile(File)}. Defaults to {@code null}.
+     *
+     * @see #setCommandOutputCacheMaxSize(long)
+     */
+    public void setCommandOutputCacheDirectory(File commandOutputCacheDirectory) {
+        this.commandOutputCacheDirectory = commandOutputCacheDirectory;
+    }
+
+    public long getCommandOutputCacheMaxSize() {
+        return commandOutputCacheMaxSize;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of the entries in the {@link #setCommandOutputCacheDirectory(File)}. When
+     * this is exceeded at the end of the build, the least recently used entries are deleted. Defaults to 64 MiB.
+     */
+    public void setCommandOutputCacheMaxSize(long commandOutputCacheMaxSize) {
+        if (commandOutputCacheMaxSize < 0) {
+            throw new IllegalArgumentException(
+                    "commandOutputCacheMaxSize can't be negative, but was " + commandOutputCacheMaxSize);
+        }
+        this.commandOutputCacheMaxSize = commandOutputCacheMaxSize;
+    }
+
+    public int getCommandWorkers() {
+        return commandWorkers;
+    }
+
+    /**
+     * Sets the maximum number of JVM-s that Docgen forks to execute the commands of {@code [docgen.insertWithOutput]}
+     * and {@code [docgen.checkCommand]} in. If this is more than 0, the commands found in the pages to generate are
+     * started concurrently before the pages are rendered, and the rendering only waits for their results. If it's 0,
+     * then the commands are executed in the Docgen JVM, one after the other, when the page that contains them is
+     * rendered. The forked JVM-s use the same class path as Docgen, but they don't inherit the system properties set in
+     * the Docgen JVM (except of those specified by the {@code insertableOutputCommands} setting, or by the
+     * tag). The forked JVM-s only live until the end of the output generation. Defaults to 0.
+     */
+    public void setCommandWorkers(int commandWorkers) {
+        if (commandWorkers < 0) {
+            throw new IllegalArgumentException("commandWorkers can't be negative, but was " + commandWorkers);
+        }
+        this.commandWorkers = commandWorkers;
+    }
+
+    public List<String> getPageSelection() {
+        return pageSelection;
+    }
+
+    /**
+     * Sets which pages to generate; {@code null} means all of them, which is the default. This is for speeding up
+     * the build while working on a part of the book. Each item is either the id of an element, which selects the page
+     * that contains the element, or a glob (like {@code "ref_*.html"}) that's matched against the output file names
+     * of the pages. The links are still resolved against the whole book, so links to pages that weren't generated in
+     * this run will work as far as those were generated earlier. The search results page is not generated. Can't be
+     * used together with {@link #setPruneStaleOutputFiles(boolean)} and {@link #setChangeSetFile(File)}. In
+     * {@linkplain #setIncremental(boolean) incremental mode} the pages that weren't selected keep their entries in the
+     * manifest.
+     */
+    public void setPageSelection(Collection<String> pageSelection) {
+        if (pageSelection == null) {
+            this.pageSelection = null;
+            return;
+        }
+        List<String> normalizedPageSelection = new ArrayList<>();
+        for (String item : pageSelection) {
+            item = item.trim();
+            if (!item.isEmpty()) {
+                normalizedPageSelection.add(item);
+            }
+        }
+        this.pageSelection = normalizedPageSelection;
+    }
+
+    public boolean getIncludeNeighborPages() {
+        return includeNeighborPages;
+    }
+
+    /**
+     * Sets if the previous, next and parent pages of the pages selected with {@link #setPageSelection(Collection)}
+     * are also generated. Defaults to {@code false}.
+     */
+    public void setIncludeNeighborPages(boolean includeNeighborPages) {
+        this.includeNeighborPages = includeNeighborPages;
+    }
+
+    public boolean getSkipCustomStaticFiles() {
+        return skipCustomStaticFiles;
+    }
+
+    /**
+     * Sets if copying the static files of the book (the files in the content directory) is skipped; useful together
+     * with {@link #setPageSelection(Collection)}, when the static files were already copied by an earlier build.
+     * Defaults to {@code false}.
+     */
+    public void setSkipCustomStaticFiles(boolean skipCustomStaticFiles) {
+        this.skipCustomStaticFiles = skipCustomStaticFiles;
+    }
+
+    public boolean getSkipTOCJSON() {
+        return skipTOCJSON;
+    }
+
+    /**
+     * Sets if the generation of the ToC JavaScript ({@value #FILE_TOC_JSON_OUTPUT}) is skipped; useful together with
+     * {@link #setPageSelection(Collection)}, when the structure of the book wasn't changed since an earlier build.
+     * Defaults to {@code false}.
+     */
+    public void setSkipTOCJSON(boolean skipTOCJSON) {
+        this.skipTOCJSON = skipTOCJSON;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * Sets which shard to build (1-based), if the pages are rendered by multiple processes, possibly on multiple
+     * machines; must be used together with {@link #setShardCount(int)}. The pages are assigned to the shards
+     * deterministically, so that the shards have about the same work, based on the size of the content of the pages.
+     * A shard only generates its pages into the destination directory, along with a {@value ShardManifest#FILE_NAME}
+     * file; the other output files (like the ToC JavaScript, the sitemap, and the static files) are generated by the
+     * merge step (see {@link #setShardDirectories(Collection)}). Only the files listed in the
+     * {@value ShardManifest#FILE_NAME} file are merged, so the destination directory of a shard can contain files from
+     * earlier builds. The result of the merge is the same as of building
+     * the book in a single process, as far as the {@code docgen.generationTime} system property was set to the same
+     * value for all the shards and the merge, and the book is at the same path on all machines. Can't be used together
+     * with {@link #setPageSelection(Collection)}, {@link #setIncremental(boolean)},
+     * {@link #setPruneStaleOutputFiles(boolean)}, {@link #setChangeSetFile(File)}, and
+     * {@link #setGzipOutputFiles(boolean)} (the last three can be used for the merge).
+     */
+    public void setShardIndex(int shardIndex) {
+        this.shardIndex = shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets the number of shards; see {@link #setShardIndex(int)}. Defaults to 0, which means that the build isn't
+     * sharded.
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount < 0) {
+            throw new IllegalArgumentException("shardCount can't be negative, but was " + shardCount);
+        }
+        this.shardCount = shardCount;
+    }
+
+    public List<File> getShardDirectories() {
+        return shardDirectories;
+    }
+
+    /**
+     * Sets the output directories of all the shards (see {@link #setShardIndex(int)}), in which case this
+     * {@link Transform} merges those into its destination directory, instead of generating the pages itself. The
+     * other output files (like the ToC JavaScript, the sitemap, and the static files) are generated as usual.
+     * Defaults to {@code null}, which means that no shards are merged.
+     */
+    public void setShardDirectories(Collection<File> shardDirectories) {
+        this.shardDirectories = shardDirectories != null ? new ArrayList<>(shardDirectories) : null;
+    }
+
     public boolean getGenerateEclipseToC() {
         return generateEclipseTOC;
     }
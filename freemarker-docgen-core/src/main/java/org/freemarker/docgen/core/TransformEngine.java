@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.FileTemplateLoader;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.log.Logger;
+import freemarker.template.Configuration;
+
+/**
+ * The part of the transformation setup that doesn't depend on the individual builds, and so can be reused by any
+ * number of {@link Transform}-s, even concurrently. This holds the FreeMarker {@link Configuration} with its template
+ * cache, so the templates are only parsed once. (The DocBook schema is also only compiled once per JVM, and so are the
+ * standard templates, if the book doesn't have its own templates directory.)
+ *
+ * <p>Objects of this class are immutable and thread-safe. The settings file is still loaded by each {@link Transform},
+ * as its content can depend on the settings of the build (like on {@link Transform#addCustomVariableOverrides(java.util.Map)}).
+ */
+public final class TransformEngine {
+
+    /** See {@link #getStandardTemplatesFreeMarkerConfiguration()}. */
+    private static Configuration standardTemplatesFMConfig;
+
+    private final File srcDir;
+    private final File templatesDir;
+    private final Configuration fmConfig;
+
+    /**
+     * @param srcDir
+     *            The source directory of the book, the same as {@link Transform#setSourceDirectory(File)}.
+     */
+    @SuppressWarnings("deprecation") // Logger.selectLoggerLibrary; the alternative is a JVM-wide system property
+    public TransformEngine(File srcDir) throws IOException {
+        if (srcDir == null) {
+            throw new DocgenException(
+                    "The source directory (the DocBook XML) wasn't specified.");
+        }
+        if (!srcDir.isDirectory()) {
+            throw new IOException(
+                    "Source directory doesn't exist: "
+                    + srcDir.getAbsolutePath());
+        }
+        this.srcDir = srcDir;
+
+        File templatesDir = new File(srcDir, Transform.DIR_TEMPLATES);
+        this.templatesDir = templatesDir.exists() ? templatesDir : null;
+
+        try {
+            Logger.selectLoggerLibrary(Logger.LIBRARY_NONE);
+        } catch (ClassNotFoundException e) {
+            throw new BugException(e);
+        }
+
+        fmConfig = this.templatesDir != null
+                ? newFreeMarkerConfiguration(this.templatesDir)
+                : getStandardTemplatesFreeMarkerConfiguration();
+    }
+
+    /**
+     * Returns the configuration that's shared by the engines of all books that have no templates directory, as their
+     * configurations would be identical anyway. So when several books are built in the same JVM (like in batch mode),
+     * the standard templates are only parsed once.
+     */
+    private static synchronized Configuration getStandardTemplatesFreeMarkerConfiguration() throws IOException {
+        if (standardTemplatesFMConfig == null) {
+            standardTemplatesFMConfig = newFreeMarkerConfiguration(null);
+        }
+        return standardTemplatesFMConfig;
+    }
+
+    /**
+     * @param templatesDir
+     *            {@code null} if the book has no templates directory
+     */
+    private static Configuration newFreeMarkerConfiguration(File templatesDir) throws IOException {
+        // Note that the settings that depend on the settings file (like the locale and time zone) are set on the
+        // Environment by the Transform, as the Configuration is shared.
+        Configuration fmConfig = new Configuration(Configuration.VERSION_2_3_25);
+
+        TemplateLoader templateLoader = new ClassTemplateLoader(
+                Transform.class, "templates");
+        if (templatesDir != null) {
+            templateLoader = new MultiTemplateLoader(
+                    new TemplateLoader[] { new FileTemplateLoader(templatesDir), templateLoader });
+        }
+        fmConfig.setTemplateLoader(templateLoader);
+
+        fmConfig.setDefaultEncoding(UTF_8.name());
+        fmConfig.setOutputEncoding(UTF_8.name());
+        return fmConfig;
+    }
+
+    /**
+     * Creates a new {@link Transform} that uses this engine. The source directory of the {@link Transform} is already
+     * set, but its other settings have to be set as usual.
+     */
+    public Transform newTransform() {
+        Transform transform = new Transform();
+        transform.setSourceDirectory(srcDir);
+        transform.setEngine(this);
+        return transform;
+    }
+
+    public File getSourceDirectory() {
+        return srcDir;
+    }
+
+    /**
+     * Ensures that the templates will be loaded again, in case they were changed. This affects all {@link Transform}-s
+     * that use this engine. If the book has no templates directory, this does nothing, as then all templates come
+     * from the Docgen jar, and the shared configuration of such books should remain warm.
+     */
+    public void clearTemplateCache() {
+        if (templatesDir != null) {
+            fmConfig.clearTemplateCache();
+        }
+    }
+
+    /**
+     * Tells if the engine can still be used for the book, that is, if the templates directory wasn't created or
+     * deleted since the engine was created. (Changes inside the templates directory are handled by
+     * {@link #clearTemplateCache()}.)
+     */
+    public boolean isUpToDate() {
+        return (templatesDir != null) == new File(srcDir, Transform.DIR_TEMPLATES).exists();
+    }
+
+    /**
+     * The directory of the templates that override or extend the standard templates, or {@code null} if there's none.
+     */
+    File getTemplatesDirectory() {
+        return templatesDir;
+    }
+
+    /**
+     * The shared FreeMarker configuration; must not be modified.
+     */
+    Configuration getFreeMarkerConfiguration() {
+        return fmConfig;
+    }
+
+}
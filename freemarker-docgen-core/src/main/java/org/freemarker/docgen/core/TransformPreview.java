@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a book in memory for previewing it, like in a local HTTP server. Unlike with {@link TransformWatcher}, the
+ * pages aren't generated up front, but when they are first requested with {@link #getFile(String)}, and then they are
+ * kept in memory until a change of an input file makes them out of date. The files used by all pages (like the ToC
+ * JavaScript, and the static files that come with Docgen) are also kept in memory. So after a change, only the XML
+ * loading and preprocessing has to be done again (if the XML was changed at all), and then the page being viewed.
+ *
+ * <p>The input files are watched for changes by {@link #run()}, just like {@link TransformWatcher#run()} does, and
+ * {@link #getFile(String)} can be called from other threads meanwhile.
+ */
+public final class TransformPreview {
+
+    private final TransformWatcher watcher;
+
+    /**
+     * @param transformFactory
+     *            Creates a new, fully configured {@link Transform}, except that its
+     *            {@linkplain Transform#setDestinationDirectory(java.io.File) destination directory} needn't be set. This will
+     *            be called initially, and then again each time the settings were changed.
+     */
+    public TransformPreview(Supplier<Transform> transformFactory) {
+        watcher = new TransformWatcher(() -> {
+            Transform transform = transformFactory.get();
+            transform.enablePreview();
+            return transform;
+        }, true);
+    }
+
+    /**
+     * Loads the book, and then reloads the affected parts whenever the input changes. This method only returns if the
+     * thread is interrupted.
+     */
+    public void run() throws IOException {
+        watcher.run();
+    }
+
+    /**
+     * Returns the content of an output file, generating it if it's not already in memory. Requests are served one
+     * after the other, and not while the book is being reloaded after a change.
+     *
+     * @param path
+     *            The path of the file relative to the output directory, with {@code /} separators, like
+     *            {@code "index.html"}, or {@code "docgen-resources/docgen.min.css"}.
+     *
+     * @return {@code null} if there's no such output file.
+     *
+     * @throws DocgenException
+     *             If the book couldn't be loaded, or generating the page has failed.
+     */
+    public byte[] getFile(String path) throws DocgenException, IOException {
+        return watcher.getPreviewFile(path);
+    }
+
+    public long getQuietPeriodMillis() {
+        return watcher.getQuietPeriodMillis();
+    }
+
+    /**
+     * See {@link TransformWatcher#setQuietPeriodMillis(long)}.
+     */
+    public void setQuietPeriodMillis(long quietPeriodMillis) {
+        watcher.setQuietPeriodMillis(quietPeriodMillis);
+    }
+
+    public Consumer<Exception> getErrorHandler() {
+        return watcher.getErrorHandler();
+    }
+
+    /**
+     * Called when loading the book has failed; the watching continues after that. Defaults to printing the stack
+     * trace.
+     */
+    public void setErrorHandler(Consumer<Exception> errorHandler) {
+        watcher.setErrorHandler(errorHandler);
+    }
+
+}
@@ -0,0 +1,372 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a {@link Transform} in memory, and re-runs it when its input files change. Unlike when a new
+ * {@link Transform} is executed for each change, the schema, the FreeMarker template cache and the loaded book XML are
+ * reused, and only the stages affected by the change are re-run:
+ *
+ * <ul>
+ *   <li>Change of the settings file, or of a file referred by it: everything is redone with a new {@link Transform}
+ *       instance, as created by the factory.
+ *   <li>Change of an XML file: the book XML is loaded again, and the output is generated.
+ *   <li>Change in the {@value Transform#DIR_TEMPLATES} directory: the templates are reloaded, and the output is
+ *       generated, but the XML is not loaded again.
+ *   <li>Change of an insertable file: the output is generated.
+ *   <li>Change of other files in the content directory: only the static files are copied.
+ * </ul>
+ *
+ * <p>It's recommended to enable {@link Transform#setIncremental(boolean)} on the {@link Transform}-s created by the
+ * factory, so that only the pages affected by a change are written again.
+ */
+public final class TransformWatcher {
+
+    private final Supplier<Transform> transformFactory;
+    private final boolean preview;
+
+    private long quietPeriodMillis = 300;
+    private Consumer<Exception> errorHandler = Exception::printStackTrace;
+
+    private Transform transform;
+    private WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    /**
+     * @param transformFactory
+     *            Creates a new, fully configured {@link Transform}. This will be called initially, and then again each
+     *            time the settings were changed.
+     */
+    public TransformWatcher(Supplier<Transform> transformFactory) {
+        this(transformFactory, false);
+    }
+
+    /**
+     * @param preview
+     *            If {@code true}, instead of writing the output files, they are kept in memory, and the pages are only
+     *            generated when requested; see {@link TransformPreview}.
+     */
+    TransformWatcher(Supplier<Transform> transformFactory, boolean preview) {
+        this.transformFactory = transformFactory;
+        this.preview = preview;
+    }
+
+    /**
+     * Generates the output, and then re-generates it whenever the input changes. This method only returns if the
+     * thread is interrupted.
+     */
+    public void run() throws IOException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            this.watchService = watchService;
+            try {
+                fullBuild();
+                registerWatchedDirectories();
+                getLogger().info("Watching for changes...");
+
+                while (true) {
+                    WatchKey firstKey = watchService.take();
+                    Set<Path> changedFiles = new LinkedHashSet<>();
+                    boolean overflow = pollEvents(firstKey, changedFiles);
+
+                    // Wait until the events stop coming, as editors and VCS-es tend to change several files in a row:
+                    WatchKey key;
+                    while ((key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS)) != null) {
+                        overflow |= pollEvents(key, changedFiles);
+                    }
+
+                    if (!overflow && changedFiles.isEmpty()) {
+                        continue;
+                    }
+                    rebuild(changedFiles, overflow);
+                    registerWatchedDirectories();
+                    getLogger().info("Watching for changes...");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                this.watchService = null;
+                watchedDirs.clear();
+            }
+        }
+    }
+
+    /**
+     * @return Whether events were lost, and so we can't know exactly what has changed.
+     */
+    private boolean pollEvents(WatchKey key, Set<Path> changedFiles) {
+        boolean overflow = false;
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+            } else if (dir != null) {
+                Path changedFile = dir.resolve((Path) event.context());
+                if (!isInDestinationDirectory(changedFile)) {
+                    changedFiles.add(changedFile);
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+        return overflow;
+    }
+
+    private synchronized void rebuild(Set<Path> changedFiles, boolean overflow) {
+        if (overflow || !transform.isSettingsLoaded() || anyOf(changedFiles, this::isSettingsFile)) {
+            getLogger().info("Settings were changed; doing a full rebuild.");
+            fullBuild();
+            return;
+        }
+
+        try {
+            if (!transform.isDocumentLoaded() || anyOf(changedFiles, this::isDocumentFile)) {
+                getLogger().info("XML was changed; reloading it.");
+                transform.clearTemplateCache();
+                if (preview) {
+                    // If the XML can't be loaded, the pages of the earlier XML shouldn't be shown.
+                    transform.stopPreview();
+                }
+                transform.loadDocument();
+                generateOutput();
+            } else if (anyOf(changedFiles, this::isTemplateFile)) {
+                getLogger().info("Templates were changed; reloading them.");
+                transform.clearTemplateCache();
+                generateOutput();
+            } else if (anyOf(changedFiles, this::isInsertableFile)) {
+                getLogger().info("Insertable files were changed.");
+                generateOutput();
+            } else if (anyOf(changedFiles, this::isContentFile)) {
+                if (preview) {
+                    // They are served directly from the content directory
+                    getLogger().info("Static files were changed.");
+                } else {
+                    getLogger().info("Static files were changed; copied " + transform.copyStaticFiles() + " file(s).");
+                }
+            }
+        } catch (Exception e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    private synchronized void fullBuild() {
+        try {
+            if (preview && transform != null) {
+                transform.stopPreview();
+            }
+            transform = transformFactory.get();
+            if (preview) {
+                transform.executePreview();
+            } else {
+                transform.execute();
+            }
+        } catch (Exception e) {
+            errorHandler.accept(e);
+        }
+    }
+
+    private void generateOutput() throws DocgenException, IOException {
+        if (preview) {
+            transform.startPreview();
+        } else {
+            transform.generateOutput();
+        }
+    }
+
+    /**
+     * See {@link Transform#getPreviewFile(String)}; only used if this is a preview watcher.
+     */
+    synchronized byte[] getPreviewFile(String path) throws DocgenException, IOException {
+        if (transform == null) {
+            throw new DocgenException("Nothing can be previewed, as the book wasn't built yet.");
+        }
+        return transform.getPreviewFile(path);
+    }
+
+    private void registerWatchedDirectories() throws IOException {
+        Set<Path> recursiveDirs = new LinkedHashSet<>();
+        Set<Path> singleDirs = new LinkedHashSet<>();
+
+        recursiveDirs.add(toPath(transform.getSourceDirectory()));
+        File contentDir = transform.getContentDirectory();
+        if (contentDir != null) {
+            recursiveDirs.add(toPath(contentDir));
+        }
+        Map<String, Path> insertableFiles = transform.getInsertableFiles();
+        if (insertableFiles != null) {
+            for (Path path : insertableFiles.values()) {
+                if (Files.isDirectory(path)) {
+                    recursiveDirs.add(path.toAbsolutePath().normalize());
+                } else if (path.getParent() != null) {
+                    singleDirs.add(path.toAbsolutePath().normalize().getParent());
+                }
+            }
+        }
+        for (File file : transform.getFilesReferredBySettings()) {
+            File parentDir = file.getAbsoluteFile().getParentFile();
+            if (parentDir != null) {
+                singleDirs.add(toPath(parentDir));
+            }
+        }
+
+        Set<Path> alreadyWatched = new LinkedHashSet<>(watchedDirs.values());
+        for (Path dir : recursiveDirs) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                    if (isInDestinationDirectory(subDir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (alreadyWatched.add(subDir)) {
+                        register(subDir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        for (Path dir : singleDirs) {
+            if (Files.isDirectory(dir) && !isInDestinationDirectory(dir) && alreadyWatched.add(dir)) {
+                register(dir);
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+    }
+
+    private boolean isSettingsFile(Path file) {
+        if (file.equals(toPath(transform.getSettingsFile()))) {
+            return true;
+        }
+        for (File referredFile : transform.getFilesReferredBySettings()) {
+            if (file.equals(toPath(referredFile))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDocumentFile(Path file) {
+        if (!file.getFileName().toString().toLowerCase().endsWith(".xml")) {
+            return false;
+        }
+        File contentDir = transform.getContentDirectory();
+        return contentDir != null && file.startsWith(toPath(contentDir));
+    }
+
+    private boolean isTemplateFile(Path file) {
+        File templatesDir = transform.getTemplatesDirectory();
+        return templatesDir != null && file.startsWith(toPath(templatesDir));
+    }
+
+    private boolean isInsertableFile(Path file) {
+        Map<String, Path> insertableFiles = transform.getInsertableFiles();
+        if (insertableFiles == null) {
+            return false;
+        }
+        for (Path path : insertableFiles.values()) {
+            if (file.startsWith(path.toAbsolutePath().normalize())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isContentFile(Path file) {
+        File contentDir = transform.getContentDirectory();
+        return contentDir != null && file.startsWith(toPath(contentDir));
+    }
+
+    private boolean isInDestinationDirectory(Path file) {
+        File destDir = transform.getDestinationDirectory();
+        return destDir != null && file.startsWith(toPath(destDir));
+    }
+
+    private static boolean anyOf(Set<Path> files, Predicate<Path> predicate) {
+        for (Path file : files) {
+            if (predicate.test(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path toPath(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private DocgenLogger getLogger() {
+        return transform.getLogger();
+    }
+
+    // -------------------------------------------------------------------------
+
+    public long getQuietPeriodMillis() {
+        return quietPeriodMillis;
+    }
+
+    /**
+     * How long to wait after the last file change before re-generating the output. Defaults to 300.
+     */
+    public void setQuietPeriodMillis(long quietPeriodMillis) {
+        if (quietPeriodMillis < 0) {
+            throw new IllegalArgumentException("quietPeriodMillis can't be negative");
+        }
+        this.quietPeriodMillis = quietPeriodMillis;
+    }
+
+    public Consumer<Exception> getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Called when the output generation fails; the watching continues after that. Defaults to printing the stack
+     * trace.
+     */
+    public void setErrorHandler(Consumer<Exception> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+}
@@ -22,7 +22,11 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
@@ -36,6 +40,7 @@ import org.freemarker.docgen.core.ValidatingDOMBuilderWithLocations.Location;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
@@ -48,6 +53,18 @@ final class XMLUtil {
     }
     
     private static Boolean cachedIsJingAvilable;
+
+    private static final String DOCBOOK_XSD_RESOURCE = "schema/docbook.xsd";
+
+    /**
+     * The key of the {@link Document} user data where the book loading stores the {@link Set} of the system IDs
+     * (URI-s) of the resources that were loaded besides the book file itself, like the files included with XInclude
+     * (including those with {@code parse="text"}). Use {@link #getLoadedResources(Document)} to read it.
+     */
+    private static final String KEY_LOADED_RESOURCES = "docgen_loadedResources";
+
+    /** The compiled W3C XML Schemas, with the schema URL as key. */
+    private static final SchemaCache<String, Schema> XSD_SCHEMA_CACHE = new SchemaCache<>();
     
     static boolean isJingAvilable() {
         if (cachedIsJingAvilable == null) {
@@ -94,10 +111,90 @@ final class XMLUtil {
         return dbf;
     }
     
+    /**
+     * Compiles the schema that {@link #loadDocBook5XML(File, boolean, DocgenValidationOptions, DocgenLogger)} uses for
+     * validation, and puts it into the JVM-wide cache. Does nothing if Jing isn't available.
+     */
+    static void prewarmDocBook5SchemaCache() throws SAXException, IOException {
+        if (!isJingAvilable()) {
+            return;
+        }
+        
+        // Reflection is used to prevent static linking to Jing.
+        Method m;
+        try {
+            m = Transform.class.getClassLoader().loadClass(
+                    "org.freemarker.docgen.core.RelaxNGValidator")
+                        .getMethod("prewarmSchemaCache");
+        } catch (Throwable e) {
+            throw new BugException(
+                    "Failed to get the "
+                    + "org.freemarker.docgen.RelaxNGValidator.prewarmSchemaCache "
+                    + "method (see cause exception).",
+                    e);
+        }
+        try {
+            m.invoke(null);
+        } catch (InvocationTargetException e) {
+            Throwable te = e.getTargetException();
+            if (te instanceof SAXException) {
+                throw (SAXException) te;
+            }
+            if (te instanceof IOException) {
+                throw (IOException) te;
+            }
+            throw new BugException(
+                    "Failed to load the Relax NG schema "
+                    + "(see cause exception).", e);
+        } catch (Throwable e) {
+            throw new BugException(
+                    "Failed to invoke docgen.RelaxNGValidator method "
+                    + "(see cause exception).", e);
+        }
+    }
+
+    /**
+     * Loads the book XML. The resources loaded besides the book file are recorded in the returned document; see
+     * {@link #getLoadedResources(Document)}.
+     */
     static Document loadDocBook5XML(File bookFile, boolean validate,
             DocgenValidationOptions validationOps, DocgenLogger logger)
             throws SAXException, IOException, DocgenException {
         logger.info("Loading " + bookFile.getAbsolutePath() + "...");
+        Set<String> loadedResources = new LinkedHashSet<>();
+        // Returning null means that the resource is resolved as usual; we only record it:
+        EntityResolver loadedResourceRecorder = (publicId, systemId) -> {
+            if (systemId != null) {
+                loadedResources.add(systemId);
+            }
+            return null;
+        };
+        Document doc = loadDocBook5XML(bookFile, validate, validationOps, logger, loadedResourceRecorder);
+        doc.setUserData(KEY_LOADED_RESOURCES, Collections.unmodifiableSet(loadedResources), null);
+        return doc;
+    }
+
+    /**
+     * Returns the system IDs (URI-s) of the resources that were loaded besides the book file itself, when the document
+     * was created by {@link #loadDocBook5XML(File, boolean, DocgenValidationOptions, DocgenLogger)}, or was copied
+     * from such a document with {@link DocumentReplica}; {@code null} otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    static Set<String> getLoadedResources(Document doc) {
+        return (Set<String>) doc.getUserData(KEY_LOADED_RESOURCES);
+    }
+
+    /**
+     * Copies what {@link #getLoadedResources(Document)} returns into another document, as that isn't copied by
+     * {@link Node#cloneNode(boolean)}.
+     */
+    static void copyLoadedResources(Document from, Document to) {
+        to.setUserData(KEY_LOADED_RESOURCES, from.getUserData(KEY_LOADED_RESOURCES), null);
+    }
+
+    private static Document loadDocBook5XML(File bookFile, boolean validate,
+            DocgenValidationOptions validationOps, DocgenLogger logger, EntityResolver entityResolver)
+            throws SAXException, IOException, DocgenException {
         if (validate) {
             if (!isJingAvilable()) {
                 throw new DocgenException("Jing classes are reqired for the "
@@ -111,7 +208,8 @@ final class XMLUtil {
                         "org.freemarker.docgen.core.RelaxNGValidator")
                             .getMethod("load", new Class[] {
                                     File.class,
-                                    DocgenValidationOptions.class});
+                                    DocgenValidationOptions.class,
+                                    EntityResolver.class});
             } catch (Throwable e) {
                 throw new BugException(
                         "Failed to get the "
@@ -120,7 +218,7 @@ final class XMLUtil {
                         e);
             }
             try {
-                return (Document) vm.invoke(null, bookFile, validationOps);
+                return (Document) vm.invoke(null, bookFile, validationOps, entityResolver);
             } catch (InvocationTargetException e) {
                 Throwable te = e.getTargetException();
                 if (te instanceof SAXException) {
@@ -146,14 +244,8 @@ final class XMLUtil {
         ErrorHandler eh = new DraconianErrorHandler(logger);
         
         DocumentBuilderFactory dbf = newDocumentBuilderFactory();
-
-        SchemaFactory schemaFact = SchemaFactory.newInstance(
-                XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        schemaFact.setErrorHandler(eh);
-        Schema schema = schemaFact.newSchema(
-                Transform.class.getResource("schema/docbook.xsd"));
         if (validate) {
-            dbf.setSchema(schema);
+            dbf.setSchema(getDocBookXSDSchema(eh));
         }
         DocumentBuilder db;
         try {
@@ -162,10 +254,28 @@ final class XMLUtil {
             throw new BugException(e);
         }
         db.setErrorHandler(eh);
+        db.setEntityResolver(entityResolver);
         
         return db.parse(bookFile);
     }
     
+    /**
+     * Returns the DocBook W3C XML Schema, which is only compiled for the first call in the JVM, as that's slow. (JAXP
+     * {@link Schema}-s are immutable and thread-safe.)
+     */
+    private static Schema getDocBookXSDSchema(ErrorHandler eh) throws IOException, SAXException {
+        URL xsdUrl = Transform.class.getResource(DOCBOOK_XSD_RESOURCE);
+        if (xsdUrl == null) {
+            throw new IOException("Resource was not found: " + DOCBOOK_XSD_RESOURCE);
+        }
+        return XSD_SCHEMA_CACHE.get(xsdUrl.toString(), () -> {
+            SchemaFactory schemaFact = SchemaFactory.newInstance(
+                    XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            schemaFact.setErrorHandler(eh);
+            return schemaFact.newSchema(xsdUrl);
+        });
+    }
+
     private static final class DraconianErrorHandler implements ErrorHandler {
 
         private final DocgenLogger logger;
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.collect.ImmutableMap;
+
+public class BuildManifestTest {
+
+    private static final DocgenLogger FAILING_LOGGER = new DocgenLogger() {
+        @Override
+        public void info(String message) {
+            // Nop
+        }
+
+        @Override
+        public void warning(String message) {
+            fail("Unexpected warning: " + message);
+        }
+    };
+
+    private static final DocgenLogger SILENT_LOGGER = new DocgenLogger() {
+        @Override
+        public void info(String message) {
+            // Nop
+        }
+
+        @Override
+        public void warning(String message) {
+            // Nop
+        }
+    };
+
+    @Test
+    public void testSaveAndLoad(@TempDir File dir) throws IOException {
+        assertNull(BuildManifest.load(dir, FAILING_LOGGER));
+
+        BuildManifest manifest = new BuildManifest("i1");
+        BuildManifest.PageEntry page1 = new BuildManifest.PageEntry("p1");
+        page1.addInsertedFile("/foo/a b.txt", "f1");
+        page1.addInsertedFile("/foo/c.txt", "f2");
+        manifest.putPage("index.html", page1);
+        BuildManifest.PageEntry page2 = new BuildManifest.PageEntry("p2");
+        page2.setExecutesCommands(true);
+        manifest.putPage("x.html", page2);
+        manifest.save(dir);
+
+        BuildManifest loaded = BuildManifest.load(dir, FAILING_LOGGER);
+        assertNotNull(loaded);
+        assertEquals("i1", loaded.getInputsFingerprint());
+        BuildManifest.PageEntry loadedPage1 = loaded.getPage("index.html");
+        assertEquals("p1", loadedPage1.getFingerprint());
+        assertEquals(
+                ImmutableMap.of("/foo/a b.txt", "f1", "/foo/c.txt", "f2"),
+                loadedPage1.getInsertedFiles());
+        assertFalse(loadedPage1.getExecutesCommands());
+        BuildManifest.PageEntry loadedPage2 = loaded.getPage("x.html");
+        assertEquals("p2", loadedPage2.getFingerprint());
+        assertTrue(loadedPage2.getInsertedFiles().isEmpty());
+        assertTrue(loadedPage2.getExecutesCommands());
+        assertNull(loaded.getPage("y.html"));
+
+        BuildManifest.delete(dir);
+        assertNull(BuildManifest.load(dir, FAILING_LOGGER));
+    }
+
+    @Test
+    public void testUnusableManifests(@TempDir File dir) throws IOException {
+        Path file = dir.toPath().resolve(BuildManifest.FILE_NAME);
+
+        Files.write(file, "version\t0\ninputs\ti1\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(BuildManifest.load(dir, FAILING_LOGGER));
+
+        Files.write(file, "version\t1\npage\tx.html\tp1\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(BuildManifest.load(dir, SILENT_LOGGER));
+
+        Files.write(file, "inputs\ti1\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(BuildManifest.load(dir, SILENT_LOGGER));
+
+        Files.write(file, "version\t1\ninputs\ti1\nfoo\n".getBytes(StandardCharsets.UTF_8));
+        assertNull(BuildManifest.load(dir, SILENT_LOGGER));
+    }
+
+    @Test
+    public void testFieldsWithLineBreaksAreRejected(@TempDir File dir) throws IOException {
+        BuildManifest manifest = new BuildManifest("i1");
+        manifest.putPage("x\ny.html", new BuildManifest.PageEntry("p1"));
+        assertThrows(DocgenException.class, () -> manifest.save(dir));
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class BuildTaskGraphTest {
+
+    @Test
+    public void testSingleThreadRunsInOrderOfAdding() throws IOException {
+        List<String> log = new ArrayList<>();
+        BuildTaskGraph graph = new BuildTaskGraph();
+        BuildTaskGraph.Task a = graph.add("a", () -> log.add("a"));
+        graph.add("b", () -> log.add("b"));
+        graph.add("c", () -> log.add("c"), a, null);
+        graph.run(1);
+        assertEquals(Arrays.asList("a", "b", "c"), log);
+    }
+
+    @Test
+    public void testDependenciesAreRespected() throws IOException {
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        BuildTaskGraph graph = new BuildTaskGraph();
+        BuildTaskGraph.Task a = graph.add("a", () -> sleepAndLog(log, "a"));
+        BuildTaskGraph.Task b = graph.add("b", () -> sleepAndLog(log, "b"), a);
+        BuildTaskGraph.Task c = graph.add("c", () -> log.add("c"));
+        graph.add("d", () -> log.add("d"), b, c);
+        graph.run(3);
+
+        assertEquals(4, log.size());
+        assertTrue(log.indexOf("a") < log.indexOf("b"));
+        assertEquals("d", log.get(3));
+        String summary = graph.formatSummary();
+        assertTrue(summary.contains("3 threads"), summary);
+        assertTrue(summary.contains("b, c"), summary);
+    }
+
+    @Test
+    public void testIndependentTasksOverlap() throws IOException {
+        CountDownLatch latch = new CountDownLatch(2);
+        BuildTaskGraph graph = new BuildTaskGraph();
+        for (String name : Arrays.asList("a", "b")) {
+            graph.add(name, () -> {
+                latch.countDown();
+                try {
+                    // Would time out if the tasks weren't running at the same time:
+                    assertTrue(latch.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        graph.run(2);
+    }
+
+    @Test
+    public void testTasksOnCallingThread() throws IOException {
+        Thread callingThread = Thread.currentThread();
+        CountDownLatch latch = new CountDownLatch(2);
+        List<String> log = Collections.synchronizedList(new ArrayList<>());
+        BuildTaskGraph graph = new BuildTaskGraph();
+        BuildTaskGraph.Task a = graph.addOnCallingThread("a", () -> {
+            assertSame(callingThread, Thread.currentThread());
+            latch.countDown();
+            try {
+                // Would time out if "b" wasn't running at the same time on another thread:
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            log.add("a");
+        });
+        BuildTaskGraph.Task b = graph.add("b", () -> {
+            assertNotSame(callingThread, Thread.currentThread());
+            latch.countDown();
+            log.add("b");
+        });
+        graph.addOnCallingThread("c", () -> {
+            assertSame(callingThread, Thread.currentThread());
+            log.add("c");
+        }, a, b);
+        graph.run(2);
+        assertEquals(3, log.size());
+        assertEquals("c", log.get(2));
+    }
+
+    @Test
+    public void testFailure() {
+        for (int threads : new int[] { 1, 2 }) {
+            List<String> log = Collections.synchronizedList(new ArrayList<>());
+            BuildTaskGraph graph = new BuildTaskGraph();
+            BuildTaskGraph.Task a = graph.add("a", () -> {
+                throw new IOException("a failed");
+            });
+            graph.add("b", () -> log.add("b"), a);
+            graph.addOnCallingThread("c", () -> log.add("c"), a);
+            IOException e = assertThrows(IOException.class, () -> graph.run(threads));
+            assertEquals("a failed", e.getMessage());
+            assertEquals(Collections.emptyList(), log);
+            assertTrue(graph.formatSummary().contains("not run"));
+        }
+    }
+
+    @Test
+    public void testDependencyFromOtherGraph() {
+        BuildTaskGraph.Task other = new BuildTaskGraph().add("other", () -> { });
+        assertThrows(BugException.class, () -> new BuildTaskGraph().add("a", () -> { }, other));
+    }
+
+    private static void sleepAndLog(List<String> log, String name) {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        log.add(name);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class CommandOutputCacheTest {
+
+    @Test
+    public void testGetAndPut(@TempDir File dir) throws Exception {
+        CommandOutputCache cache = new CommandOutputCache(new File(dir, "cache"), 1024);
+        String key = cache.computeKey(
+                "cmd", newCommandProperties(null, Collections.emptyMap()), getClass(),
+                ImmutableList.of("a"), null);
+        assertNull(cache.get(key));
+        cache.put(key, "Output á\n");
+        assertEquals("Output á\n", cache.get(key));
+        assertEquals("Output á\n", new CommandOutputCache(new File(dir, "cache"), 1024).get(key));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getStores());
+    }
+
+    @Test
+    public void testKeyDependsOnInputs(@TempDir File dir) throws Exception {
+        File wd = new File(dir, "wd");
+        File wdFile = new File(wd, "example.ftl");
+        FileUtils.write(wdFile, "${x}", "UTF-8");
+        File cacheDir = new File(dir, "cache");
+
+        Transform.InsertableOutputCommandProperties cmdProps = newCommandProperties(
+                wd.toPath(), ImmutableMap.of("p", "1"));
+        List<String> cmdArgs = ImmutableList.of("a", "b");
+        String key = new CommandOutputCache(cacheDir, 1024).computeKey(
+                "cmd", cmdProps, getClass(), cmdArgs, null);
+
+        CommandOutputCache cache = new CommandOutputCache(cacheDir, 1024);
+        assertEquals(key, cache.computeKey("cmd", cmdProps, getClass(), cmdArgs, null));
+        assertEquals(key, cache.computeKey("cmd", cmdProps, getClass(), cmdArgs, Collections.emptyMap()));
+        assertNotEquals(key, cache.computeKey("cmd2", cmdProps, getClass(), cmdArgs, null));
+        assertNotEquals(key, cache.computeKey("cmd", cmdProps, getClass(), ImmutableList.of("a"), null));
+        assertNotEquals(key, cache.computeKey("cmd", cmdProps, getClass(), ImmutableList.of("ab"), null));
+        assertNotEquals(key, cache.computeKey("cmd", cmdProps, getClass(), cmdArgs, ImmutableMap.of("p", "1")));
+        assertNotEquals(key, cache.computeKey(
+                "cmd", newCommandProperties(wd.toPath(), ImmutableMap.of("p", "2")), getClass(), cmdArgs,
+                null));
+        assertNotEquals(key, cache.computeKey(
+                "cmd", newCommandProperties(null, ImmutableMap.of("p", "1")), getClass(), cmdArgs, null));
+
+        FileUtils.write(wdFile, "${y}", "UTF-8");
+        assertNotEquals(key, new CommandOutputCache(cacheDir, 1024).computeKey(
+                "cmd", cmdProps, getClass(), cmdArgs, null));
+    }
+
+    @Test
+    public void testEvict(@TempDir File dir) throws Exception {
+        CommandOutputCache cache = new CommandOutputCache(dir, 10);
+        cache.put("k1", "1234");
+        cache.put("k2", "1234");
+        cache.put("k3", "1234");
+        long now = System.currentTimeMillis();
+        setLastModified(dir, "k1", now - 3000);
+        setLastModified(dir, "k2", now - 2000);
+        setLastModified(dir, "k3", now - 1000);
+        // Marks k1 as recently used:
+        assertEquals("1234", cache.get("k1"));
+
+        cache.evict();
+        assertEquals(1, cache.getEvictedEntries());
+        assertEquals("1234", cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals("1234", cache.get("k3"));
+    }
+
+    private static void setLastModified(File dir, String key, long millis) throws Exception {
+        Path entryFile = dir.toPath().resolve(key + ".out");
+        Files.setLastModifiedTime(entryFile, FileTime.fromMillis(millis));
+    }
+
+    private static Transform.InsertableOutputCommandProperties newCommandProperties(
+            Path wdSubstitution, Map<String, String> systemProperties) {
+        return new Transform.InsertableOutputCommandProperties(
+                "com.example.Main", "main", systemProperties,
+                Collections.emptyList(), Collections.emptyList(), wdSubstitution);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class CommandRunnerTest {
+
+    private static final String SYSTEM_PROPERTY = "docgen.test.commandRunner";
+
+    @Test
+    public void testInvokeMainMethod() throws Exception {
+        Method mainMethod = TestCommand.class.getMethod("main", String[].class);
+
+        CommandRunner.Result result = CommandRunner.invokeMainMethod(
+                mainMethod, ImmutableList.of("a", "b"), ImmutableMap.of(SYSTEM_PROPERTY, "v"));
+        assertTrue(result.isSuccessful());
+        assertEquals("a, b, v\nerr\n", normalizeLineBreaks(result.getOutput()));
+        assertNull(System.getProperty(SYSTEM_PROPERTY));
+
+        result = CommandRunner.invokeMainMethod(
+                mainMethod, ImmutableList.of("fail"), Collections.emptyMap());
+        assertFalse(result.isSuccessful());
+        assertEquals("fail, null\nerr\n", normalizeLineBreaks(result.getOutput()));
+        assertTrue(result.getException() instanceof InvocationTargetException);
+    }
+
+    @Test
+    public void testForkedWorkers() throws Exception {
+        Method mainMethod = TestCommand.class.getMethod("main", String[].class);
+        try (CommandRunner runner = new CommandRunner(null, 2)) {
+            assertTrue(runner.canStartInBackground());
+            CommandInvocation invocation1 = newInvocation(mainMethod, ImmutableList.of("1"), null);
+            CommandInvocation invocation2 = newInvocation(
+                    mainMethod, ImmutableList.of("2"), ImmutableMap.of(SYSTEM_PROPERTY, "v"));
+            CommandInvocation invocation3 = newInvocation(mainMethod, ImmutableList.of("fail"), null);
+            runner.start(invocation1);
+            runner.start(invocation2);
+            runner.start(invocation3);
+
+            CommandRunner.Result result = runner.run(invocation2);
+            assertTrue(result.isSuccessful());
+            assertEquals("2, v\nerr\n", normalizeLineBreaks(result.getOutput()));
+
+            result = runner.run(newInvocation(mainMethod, ImmutableList.of("1"), null));
+            assertTrue(result.isSuccessful());
+            assertEquals("1, null\nerr\n", normalizeLineBreaks(result.getOutput()));
+
+            result = runner.run(invocation3);
+            assertFalse(result.isSuccessful());
+            assertEquals("fail, null\nerr\n", normalizeLineBreaks(result.getOutput()));
+            assertTrue(result.getException() instanceof InvocationTargetException);
+            assertEquals(
+                    IllegalArgumentException.class, result.getException().getCause().getClass());
+
+            // Not started earlier:
+            result = runner.run(newInvocation(mainMethod, ImmutableList.of("3"), null));
+            assertEquals("3, null\nerr\n", normalizeLineBreaks(result.getOutput()));
+        }
+        assertNull(System.getProperty(SYSTEM_PROPERTY));
+    }
+
+    private static CommandInvocation newInvocation(
+            Method mainMethod, List<String> cmdArgs, Map<String, String> directiveSystemProperties) {
+        Transform.InsertableOutputCommandProperties cmdProps = new Transform.InsertableOutputCommandProperties(
+                mainMethod.getDeclaringClass().getName(), mainMethod.getName(), Collections.emptyMap(),
+                Collections.emptyList(), Collections.emptyList(), null);
+        return new CommandInvocation("test", cmdProps, mainMethod, cmdArgs, directiveSystemProperties);
+    }
+
+    private static String normalizeLineBreaks(String s) {
+        return s.replace("\r\n", "\n");
+    }
+
+    public static class TestCommand {
+        public static void main(String[] args) {
+            System.out.println(String.join(", ", args) + ", " + System.getProperty(SYSTEM_PROPERTY));
+            System.err.println("err");
+            if (args[0].equals("fail")) {
+                throw new IllegalArgumentException("Failed on purpose");
+            }
+        }
+    }
+
+}
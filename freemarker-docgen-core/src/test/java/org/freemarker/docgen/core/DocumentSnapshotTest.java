@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.freemarker.docgen.core.ValidatingDOMBuilderWithLocations.Location;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import com.google.common.collect.ImmutableList;
+
+public class DocumentSnapshotTest {
+
+    private static final String XML = "<book xmlns='http://docbook.org/ns/docbook' "
+            + "xmlns:xlink='http://www.w3.org/1999/xlink' version='5.0'>"
+            + "<chapter xml:id='c1'><title>Chápter</title>"
+            + "<para>Text <link xlink:href='http://example.com'>link</link> and <![CDATA[<cdata>]]></para>"
+            + "<indexterm><primary>p</primary><secondary>s</secondary></indexterm>"
+            + "</chapter>"
+            + "<chapter xml:id='c2'><title>Second</title><?pi data?><!--comment--></chapter>"
+            + "</book>";
+
+    @Test
+    public void testSaveAndLoad(@TempDir File dir) throws Exception {
+        Document doc = parse(XML);
+        Element book = doc.getDocumentElement();
+        // Added without namespace, like Docgen does during the preprocessing:
+        book.setAttribute("docgen_rank", "book");
+        List<Element> chapters = ImmutableList.copyOf(XMLUtil.childrenElementsOf(book));
+        Element chapter1 = chapters.get(0);
+        Element chapter2 = chapters.get(1);
+        chapter1.setUserData(
+                ValidatingDOMBuilderWithLocations.KEY_LOCATION, new Location("file:/ch1.xml", 3, 5), null);
+        Element indexTerm = (Element) chapter1.getElementsByTagNameNS("*", "indexterm").item(0);
+        File externalFile = new File(dir, "external.xml");
+        FileUtils.write(externalFile, "x", "UTF-8");
+
+        DocumentSnapshot snapshot = new DocumentSnapshot("fp1", doc);
+        snapshot.putElementById("c1", chapter1);
+        snapshot.putElementById("c2", chapter2);
+        snapshot.addTOCEntry(new DocumentSnapshot.TOCEntry(book, -1, true, "index.html"));
+        snapshot.addTOCEntry(new DocumentSnapshot.TOCEntry(chapter1, 0, true, "c1.html"));
+        snapshot.addTOCEntry(new DocumentSnapshot.TOCEntry(chapter2, 0, false, null));
+        snapshot.putPrimaryIndexTerms("p", new ArrayList<>());
+        SortedMap<String, List<Element>> bySecondaryText = new TreeMap<>();
+        bySecondaryText.put("s", Arrays.asList(indexTerm));
+        snapshot.putSecondaryIndexTerms("p", bySecondaryText);
+        snapshot.setIndexEntries(Arrays.asList("p"));
+        snapshot.addExternalInputFile(externalFile.toPath());
+
+        File file = new File(dir, "snapshot");
+        snapshot.save(file);
+
+        CollectingLogger logger = new CollectingLogger();
+        assertNull(DocumentSnapshot.load(file, "fp2", logger));
+        assertNull(DocumentSnapshot.load(new File(dir, "missing"), "fp1", logger));
+
+        DocumentSnapshot loaded = DocumentSnapshot.load(file, "fp1", logger);
+        assertNotNull(loaded);
+        Document loadedDoc = loaded.getDocument();
+        assertEquals(
+                new Fingerprint().addNode(doc).getHash(), new Fingerprint().addNode(loadedDoc).getHash());
+        Element loadedBook = loadedDoc.getDocumentElement();
+        assertEquals("book", loadedBook.getAttribute("docgen_rank"));
+        assertNull(loadedBook.getAttributeNode("docgen_rank").getLocalName());
+        assertEquals("http://docbook.org/ns/docbook", loadedBook.getNamespaceURI());
+
+        List<Element> loadedChapters = ImmutableList.copyOf(XMLUtil.childrenElementsOf(loadedBook));
+        assertSame(loadedChapters.get(0), loaded.getElementsById().get("c1"));
+        assertSame(loadedChapters.get(1), loaded.getElementsById().get("c2"));
+        Location location = (Location) loadedChapters.get(0).getUserData(
+                ValidatingDOMBuilderWithLocations.KEY_LOCATION);
+        assertEquals("file:/ch1.xml", location.getSystemId());
+        assertEquals(3, location.getLine());
+        assertEquals(5, location.getColumn());
+
+        List<DocumentSnapshot.TOCEntry> tocEntries = loaded.getTOCEntries();
+        assertEquals(3, tocEntries.size());
+        assertSame(loadedBook, tocEntries.get(0).getElement());
+        assertEquals(-1, tocEntries.get(0).getParentIndex());
+        assertEquals("c1.html", tocEntries.get(1).getOutputFileName());
+        assertEquals(0, tocEntries.get(2).getParentIndex());
+        assertFalse(tocEntries.get(2).isFileElement());
+        assertNull(tocEntries.get(2).getOutputFileName());
+
+        assertEquals(0, loaded.getPrimaryIndexTerms().get("p").size());
+        Element loadedIndexTerm = loaded.getSecondaryIndexTerms().get("p").get("s").get(0);
+        assertEquals("indexterm", loadedIndexTerm.getLocalName());
+        assertSame(loadedChapters.get(0), loadedIndexTerm.getParentNode());
+        assertEquals(Arrays.asList("p"), loaded.getIndexEntries());
+        assertEquals(0, logger.warnings.size());
+
+        // Changed external input file:
+        FileUtils.write(externalFile, "xy", "UTF-8");
+        assertNull(DocumentSnapshot.load(file, "fp1", logger));
+
+        // Truncated file:
+        snapshot.addExternalInputFile(externalFile.toPath());
+        snapshot.save(file);
+        assertNotNull(DocumentSnapshot.load(file, "fp1", logger));
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length / 2));
+        assertNull(DocumentSnapshot.load(file, "fp1", logger));
+        assertEquals(1, logger.warnings.size());
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    private static class CollectingLogger implements DocgenLogger {
+        private final List<String> warnings = new ArrayList<>();
+
+        @Override
+        public void info(String message) {
+            // Ignored
+        }
+
+        @Override
+        public void warning(String message) {
+            warnings.add(message);
+        }
+    }
+
+}
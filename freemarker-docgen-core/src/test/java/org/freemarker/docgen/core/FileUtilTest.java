@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.freemarker.docgen.core.TestFileUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class FileUtilTest {
+
+    @Test
+    public void testCopyDir(@TempDir File dir) throws IOException {
+        File srcDir = new File(dir, "src");
+        File destDir = new File(dir, "dest");
+        createFile(srcDir, "a.png", "a");
+        createFile(srcDir, "sub/b.css", "b");
+        createFile(srcDir, "sub/deeper/c.js", "c");
+        createFile(srcDir, "sub/ignored.psd", "x");
+        createFile(srcDir, "docgen.cjson", "x");
+        createFile(srcDir, "docgen-templates/x.ftl", "x");
+        createFile(srcDir, "x.bak", "x");
+
+        RecordingListener listener = new RecordingListener();
+        assertEquals(3, copyDir(srcDir, destDir, false, listener));
+        assertEquals(ImmutableSet.of("a.png", "sub/b.css", "sub/deeper/c.js"), listener.written);
+        assertEquals(Collections.emptySet(), listener.unchanged);
+        assertEquals(ImmutableSet.of("a.png", "sub"), ImmutableSet.copyOf(destDir.list()));
+        assertEquals(ImmutableSet.of("b.css", "deeper"), ImmutableSet.copyOf(new File(destDir, "sub").list()));
+        assertEquals("c", readFile(destDir, "sub/deeper/c.js"));
+        assertEquals(
+                new File(srcDir, "a.png").lastModified(), new File(destDir, "a.png").lastModified());
+
+        // Same size and last modification time means up to date:
+        createFile(srcDir, "sub/b.css", "B");
+        new File(srcDir, "sub/b.css").setLastModified(new File(destDir, "sub/b.css").lastModified());
+        // Same content, but different last modification time:
+        new File(srcDir, "a.png").setLastModified(new File(destDir, "a.png").lastModified() - 60000);
+        listener = new RecordingListener();
+        assertEquals(3, copyDir(srcDir, destDir, false, listener));
+        assertEquals(ImmutableSet.of("a.png"), listener.written);
+        assertEquals(ImmutableSet.of("sub/b.css", "sub/deeper/c.js"), listener.unchanged);
+        assertEquals("b", readFile(destDir, "sub/b.css"));
+
+        new File(srcDir, "a.png").setLastModified(new File(destDir, "a.png").lastModified() - 60000);
+        listener = new RecordingListener();
+        assertEquals(3, FileUtil.copyDir(
+                srcDir, destDir, ImmutableList.of(FileUtil.globToRegexp("**/*.psd")), true, false, listener));
+        assertEquals(ImmutableSet.of("a.png", "sub/b.css", "sub/deeper/c.js"), listener.unchanged);
+    }
+
+    @Test
+    public void testCopyFiles(@TempDir File dir) throws IOException {
+        File srcDir = new File(dir, "src");
+        File destDir = new File(dir, "dest");
+        createFile(srcDir, "a.html", "a");
+        createFile(srcDir, "sub/b.html", "b");
+        createFile(srcDir, "stale.html", "x");
+
+        RecordingListener listener = new RecordingListener();
+        assertEquals(2, FileUtil.copyFiles(
+                srcDir, destDir, ImmutableList.of("a.html", "sub/b.html"), false, false, listener));
+        assertEquals(ImmutableSet.of("a.html", "sub/b.html"), listener.written);
+        assertEquals(ImmutableSet.of("a.html", "sub"), ImmutableSet.copyOf(destDir.list()));
+        assertEquals("b", readFile(destDir, "sub/b.html"));
+
+        listener = new RecordingListener();
+        assertEquals(1, FileUtil.copyFiles(srcDir, destDir, ImmutableList.of("a.html"), false, false, listener));
+        assertEquals(ImmutableSet.of("a.html"), listener.unchanged);
+
+        assertThrows(IOException.class, () -> FileUtil.copyFiles(
+                srcDir, destDir, ImmutableList.of("missing.html"), false, false, null));
+    }
+
+    @Test
+    public void testIsCopiedByCopyDir() {
+        ImmutableList<Pattern> ignored = ImmutableList.of(FileUtil.globToRegexp("**/*.psd"));
+        assertTrue(FileUtil.isCopiedByCopyDir("a.png", ignored));
+        assertTrue(FileUtil.isCopiedByCopyDir("sub/deeper/c.js", ignored));
+        assertFalse(FileUtil.isCopiedByCopyDir("sub/ignored.psd", ignored));
+        assertFalse(FileUtil.isCopiedByCopyDir("docgen.cjson", ignored));
+        assertFalse(FileUtil.isCopiedByCopyDir("docgen-templates/x.ftl", ignored));
+        assertFalse(FileUtil.isCopiedByCopyDir("x.bak", ignored));
+        assertTrue(FileUtil.isCopiedByCopyDir("sub/ignored.psd", Collections.emptySet()));
+    }
+
+    @Test
+    public void testCopyDirWithHardLinks(@TempDir File dir) throws IOException {
+        File srcDir = new File(dir, "src");
+        File destDir = new File(dir, "dest");
+        createFile(srcDir, "a.png", "a");
+        createFile(srcDir, "sub/b.css", "b");
+        createFile(destDir, "sub/b.css", "old");
+
+        RecordingListener listener = new RecordingListener();
+        assertEquals(2, FileUtil.copyDir(srcDir, destDir, Collections.emptySet(), false, true, listener));
+        assertEquals("b", readFile(destDir, "sub/b.css"));
+        // Where the file system supports hard links, the destination is the same file as the source:
+        if (Files.isSameFile(new File(srcDir, "a.png").toPath(), new File(destDir, "a.png").toPath())) {
+            assertTrue(Files.isSameFile(
+                    new File(srcDir, "sub/b.css").toPath(), new File(destDir, "sub/b.css").toPath()));
+        }
+
+        listener = new RecordingListener();
+        assertEquals(2, FileUtil.copyDir(srcDir, destDir, Collections.emptySet(), false, true, listener));
+        assertEquals(ImmutableSet.of("a.png", "sub/b.css"), listener.unchanged);
+    }
+
+    @Test
+    public void testWritingDoesNotModifyHardLinkedSource(@TempDir File dir) throws IOException {
+        File srcDir = new File(dir, "src");
+        File destDir = new File(dir, "dest");
+        createFile(srcDir, "a.html", "custom");
+        createFile(srcDir, "b.html", "custom");
+        FileUtil.copyDir(srcDir, destDir, Collections.emptySet(), false, true, null);
+
+        assertTrue(FileUtil.writeFile(new File(destDir, "a.html"), "generated".getBytes(StandardCharsets.UTF_8), true));
+        try (Writer w = FileUtil.newFileWriter(new File(destDir, "b.html"))) {
+            w.write("generated");
+        }
+        assertEquals("generated", readFile(destDir, "a.html"));
+        assertEquals("generated", readFile(destDir, "b.html"));
+        assertEquals("custom", readFile(srcDir, "a.html"));
+        assertEquals("custom", readFile(srcDir, "b.html"));
+    }
+
+    @Test
+    public void testCombinePatterns() {
+        assertNull(FileUtil.combinePatterns(Collections.emptySet()));
+        Pattern pattern = FileUtil.combinePatterns(ImmutableList.of(
+                FileUtil.globToRegexp("*.bak"), FileUtil.globToRegexp("drafts/"),
+                FileUtil.globToRegexp("**/*.psd")));
+        assertTrue(pattern.matcher("/x.bak").matches());
+        assertFalse(pattern.matcher("/sub/x.bak").matches());
+        assertTrue(pattern.matcher("/drafts/x.html").matches());
+        assertTrue(pattern.matcher("/sub/x.psd").matches());
+        assertFalse(pattern.matcher("/x.png").matches());
+    }
+
+    private static int copyDir(File srcDir, File destDir, boolean skipUnchangedFiles, RecordingListener listener)
+            throws IOException {
+        return FileUtil.copyDir(
+                srcDir, destDir, ImmutableList.of(FileUtil.globToRegexp("**/*.psd")),
+                skipUnchangedFiles, false, listener);
+    }
+
+    private static class RecordingListener implements OutputFileListener {
+
+        private final Set<String> written = new HashSet<>();
+        private final Set<String> unchanged = new HashSet<>();
+
+        @Override
+        public synchronized void addWrittenFile(File file) {
+            written.add(relativePath(file));
+        }
+
+        @Override
+        public synchronized void addUnchangedFile(File file) {
+            unchanged.add(relativePath(file));
+        }
+
+        private static String relativePath(File file) {
+            String path = FileUtil.pathToUnixStyle(file.getPath());
+            return path.substring(path.indexOf("/dest/") + "/dest/".length());
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.freemarker.docgen.core.TestFileUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.collect.ImmutableSet;
+
+public class GzipOutputCompressorTest {
+
+    @Test
+    public void testCompression(@TempDir File dir) throws IOException {
+        String longContent = "<p>Lorem ipsum dolor sit amet</p>\n".repeat(100);
+        File html = createFile(dir, "a.html", longContent);
+        File smallHtml = createFile(dir, "small.html", "<p>x</p>");
+        File png = createFile(dir, "b.png", longContent);
+
+        BuildReport report = new BuildReport();
+        GzipOutputCompressor compressor = new GzipOutputCompressor(
+                ImmutableSet.of("html"), 100, 9, true, report);
+        compressor.addWrittenFile(html);
+        compressor.addWrittenFile(smallHtml);
+        compressor.addWrittenFile(png);
+        compressor.finish();
+
+        File htmlGz = new File(dir, "a.html.gz");
+        assertEquals(longContent, readGzipFile(htmlGz));
+        assertTrue(htmlGz.length() < html.length());
+        assertFalse(new File(dir, "small.html.gz").exists());
+        assertFalse(new File(dir, "b.png.gz").exists());
+
+        // Unchanged file whose gzip file is up to date:
+        assertTrue(htmlGz.setLastModified(html.lastModified() + 1000));
+        compressor = new GzipOutputCompressor(ImmutableSet.of("html"), 100, 9, true, report);
+        compressor.addUnchangedFile(html);
+        compressor.finish();
+        assertEquals(html.lastModified() + 1000, htmlGz.lastModified());
+
+        assertTrue(report.formatSummary().contains("in 1 files, 1 files unchanged"));
+    }
+
+    @Test
+    public void testStaleGzipFileDeleted(@TempDir File dir) throws IOException {
+        String longContent = "<p>Lorem ipsum dolor sit amet</p>\n".repeat(100);
+        File html = createFile(dir, "a.html", longContent);
+        File js = createFile(dir, "b.js", longContent);
+
+        BuildReport report = new BuildReport();
+        GzipOutputCompressor compressor = new GzipOutputCompressor(
+                ImmutableSet.of("html", "js"), 100, 9, true, report);
+        compressor.addWrittenFile(html);
+        compressor.addWrittenFile(js);
+        compressor.finish();
+        assertTrue(new File(dir, "a.html.gz").isFile());
+        assertTrue(new File(dir, "b.js.gz").isFile());
+
+        // The HTML became too small, and "js" was removed from the extensions:
+        createFile(dir, "a.html", "<p>x</p>");
+        compressor = new GzipOutputCompressor(ImmutableSet.of("html"), 100, 9, true, report);
+        compressor.addWrittenFile(html);
+        compressor.addUnchangedFile(js);
+        compressor.finish();
+        assertFalse(new File(dir, "a.html.gz").exists());
+        assertFalse(new File(dir, "b.js.gz").exists());
+    }
+
+    private static String readGzipFile(File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
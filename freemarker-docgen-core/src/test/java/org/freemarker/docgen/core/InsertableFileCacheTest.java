@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class InsertableFileCacheTest {
+
+    @Test
+    public void testGetContent(@TempDir File dir) throws Exception {
+        Path file = new File(dir, "example.ftl").toPath();
+        Files.write(file, (
+                "<#--\n  Licensed to the Apache Software Foundation (ASF) under one\n-->\n${á}\n")
+                .getBytes(StandardCharsets.UTF_8));
+        FileTime lastModified = Files.getLastModifiedTime(file);
+
+        InsertableFileCache cache = new InsertableFileCache();
+        assertEquals("${á}\n", cache.getContent(file, StandardCharsets.UTF_8));
+        assertEquals("${á}\n", cache.getContent(file, StandardCharsets.UTF_8));
+        assertNotEquals("${á}\n", cache.getContent(file, StandardCharsets.ISO_8859_1));
+
+        // Same size, but different last modification time:
+        Files.write(file, "${b}\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 2000));
+        assertEquals("${b}\n", cache.getContent(file, StandardCharsets.UTF_8));
+
+        BuildReport report = new BuildReport();
+        cache.addStatisticsTo(report);
+        assertTrue(report.formatSummary().contains(
+                "Cache " + InsertableFileCache.CONTENT_CACHE_NAME + ": 1 hits, 3 misses"));
+    }
+
+    @Test
+    public void testGetCutContent(@TempDir File dir) throws Exception {
+        Path file = new File(dir, "example.txt").toPath();
+        Files.write(file, "a\nb\nc\nd\n".getBytes(StandardCharsets.UTF_8));
+
+        InsertableFileCache cache = new InsertableFileCache();
+        Pattern from = Pattern.compile("^b", Pattern.MULTILINE);
+        Pattern to = Pattern.compile("^d", Pattern.MULTILINE);
+        InsertableFileCache.CutResult cutResult = cache.getCutContent(file, StandardCharsets.UTF_8, from, to);
+        assertEquals("[…]\nb\nc\n[…]", cutResult.getContent());
+        assertTrue(cutResult.isFromFound());
+        assertTrue(cutResult.isToFound());
+        assertSame(cutResult, cache.getCutContent(
+                file, StandardCharsets.UTF_8,
+                Pattern.compile("^b", Pattern.MULTILINE), Pattern.compile("^d", Pattern.MULTILINE)));
+
+        cutResult = cache.getCutContent(
+                file, StandardCharsets.UTF_8, Pattern.compile("x", Pattern.MULTILINE), to);
+        assertFalse(cutResult.isFromFound());
+        assertTrue(cutResult.isToFound());
+        assertEquals("a\nb\nc\n[…]", cutResult.getContent());
+
+        cutResult = cache.getCutContent(file, StandardCharsets.UTF_8, null, null);
+        assertEquals("a\nb\nc\nd\n", cutResult.getContent());
+    }
+
+    @Test
+    public void testLargeFile() throws Exception {
+        File dir = Files.createTempDirectory("docgen-test").toFile();
+        try {
+            Path file = new File(dir, "large.txt").toPath();
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < InsertableFileCache.MEMORY_MAPPING_THRESHOLD) {
+                sb.append("Line ő ").append(sb.length()).append('\n');
+            }
+            String content = sb.toString();
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(content, new InsertableFileCache().getContent(file, StandardCharsets.UTF_8));
+        } finally {
+            // On Windows the file can't be deleted until the mapped buffer is garbage collected:
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+}
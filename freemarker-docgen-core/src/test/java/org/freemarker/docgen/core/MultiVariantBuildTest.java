@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+public class MultiVariantBuildTest {
+
+    @Test
+    public void testNestedDestinationDirectoriesAreRejected() {
+        assertDestinationDirectoriesRejected("out", "out/online");
+        assertDestinationDirectoriesRejected("out/online", "out");
+        assertDestinationDirectoriesRejected("out", "out/../out/");
+    }
+
+    private static void assertDestinationDirectoriesRejected(String destDir1, String destDir2) {
+        MultiVariantBuild build = new MultiVariantBuild(Arrays.asList(
+                newTransform(new File(destDir1)), newTransform(new File(destDir2))));
+        DocgenException e = assertThrows(DocgenException.class, build::execute);
+        assertTrue(e.getMessage().contains("inside each other"), e.getMessage());
+    }
+
+    private static Transform newTransform(File destDir) {
+        Transform transform = new Transform();
+        transform.setDestinationDirectory(destDir);
+        return transform;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.freemarker.docgen.core.TestFileUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.common.collect.ImmutableSet;
+
+public class OutputChangeSetTest {
+
+    @Test
+    public void testChangesAndPruning(@TempDir File tempDir) throws IOException {
+        File dir = new File(tempDir, "out");
+        File modified = createFile(dir, "modified.html", "x");
+        File unchanged = createFile(dir, "sub/unchanged.html", "x");
+        File ignored = createFile(dir, BuildManifest.FILE_NAME, "x");
+        createFile(dir, "stale.html", "x");
+        createFile(dir, "staleDir/deeper/stale.png", "x");
+        File keptDir = new File(dir, "sub");
+        File ignoredDir = new File(dir, "cache");
+        createFile(dir, "cache/entry.out", "x");
+
+        OutputChangeSet changeSet = new OutputChangeSet(dir);
+        changeSet.addWrittenFile(modified);
+        changeSet.addUnchangedFile(unchanged);
+        changeSet.addWrittenFile(createFile(dir, "sub/added.html", "x"));
+        changeSet.addWrittenFile(new File(tempDir, "outside.html"));
+        changeSet.ignoreFile(ignored);
+        changeSet.addWrittenFile(createFile(dir, "cache/new.out", "x"));
+        changeSet.ignoreDirectory(ignoredDir);
+
+        assertEquals(ImmutableSet.of("stale.html", "staleDir/deeper/stale.png"), changeSet.getStaleFiles());
+        assertEquals(1, changeSet.getAddedFileCount());
+        assertEquals(1, changeSet.getModifiedFileCount());
+        assertEquals(1, changeSet.getUnchangedFileCount());
+
+        assertEquals(2, changeSet.pruneStaleFiles());
+        assertFalse(new File(dir, "stale.html").exists());
+        assertFalse(new File(dir, "staleDir").exists());
+        assertTrue(keptDir.isDirectory());
+        assertTrue(ignored.isFile());
+        assertTrue(new File(ignoredDir, "entry.out").isFile());
+
+        changeSet.writeJSON(new File(tempDir, "changes.json"));
+        String json = readFile(tempDir, "changes.json");
+        assertTrue(json.contains("\"added\": [\n    \"sub/added.html\"\n  ]"), json);
+        assertTrue(json.contains("\"modified\": [\n    \"modified.html\"\n  ]"), json);
+        assertTrue(json.contains(
+                "\"deleted\": [\n    \"stale.html\",\n    \"staleDir/deeper/stale.png\"\n  ]"), json);
+        assertTrue(json.contains("\"stale\": []"), json);
+        assertTrue(json.contains("\"unchangedCount\": 1"), json);
+    }
+
+}
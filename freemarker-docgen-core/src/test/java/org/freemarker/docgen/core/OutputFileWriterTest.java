@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class OutputFileWriterTest {
+
+    @Test
+    public void testSkipIfUnchanged(@TempDir File dir) throws IOException {
+        File file = new File(dir, "a.html");
+        BuildReport report = new BuildReport();
+
+        assertTrue(writeAndCheckModified(file, "árvíztűrő", report));
+        assertFalse(writeAndCheckModified(file, "árvíztűrő", report));
+        // Same length, different content:
+        assertTrue(writeAndCheckModified(file, "árvíztűrŐ", report));
+        // Different length:
+        assertTrue(writeAndCheckModified(file, "árvíztűrőx", report));
+        assertEquals("árvíztűrőx", FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+
+        assertTrue(report.formatSummary().contains("in 3 files, 1 files unchanged"));
+    }
+
+    @Test
+    public void testNoSkip(@TempDir File dir) throws IOException {
+        File file = new File(dir, "a.html");
+        BuildReport report = new BuildReport();
+        for (int i = 0; i < 2; i++) {
+            try (Writer w = new OutputFileWriter(file, false, report)) {
+                w.write("abc");
+            }
+        }
+        assertEquals("abc", FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        assertTrue(report.formatSummary().contains("in 2 files, 0 files unchanged"));
+    }
+
+    private static boolean writeAndCheckModified(File file, String content, BuildReport report)
+            throws IOException {
+        long lastModified = 1000_000L;
+        if (file.exists()) {
+            assertTrue(file.setLastModified(lastModified));
+        }
+        try (Writer w = new OutputFileWriter(file, true, report)) {
+            w.write(content.substring(0, 3));
+            w.write(content.toCharArray(), 3, content.length() - 3);
+        }
+        return file.lastModified() != lastModified;
+    }
+
+}
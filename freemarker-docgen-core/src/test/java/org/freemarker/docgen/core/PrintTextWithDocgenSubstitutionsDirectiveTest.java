@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+
+public class PrintTextWithDocgenSubstitutionsDirectiveTest {
+
+    @Test
+    public void testCompiledTextsAreReused() throws Exception {
+        Transform transform = new Transform();
+        String text = "<b>[docgen.customVariables.name]</b> & [docgen.customVariables.version]!";
+        assertEquals("&lt;b&gt;D&amp;G&lt;/b&gt; &amp; 1.0!", render(transform, text));
+        assertEquals("&lt;b&gt;D&amp;G&lt;/b&gt; &amp; 1.0!", render(transform, new String(text)));
+        assertEquals("No tags: &lt;b&gt;", render(transform, "No tags: <b>"));
+
+        CompiledTextCache cache = transform.getCompiledTextCache();
+        assertEquals(1, cache.size());
+        BuildReport report = new BuildReport();
+        cache.addStatisticsTo(report);
+        assertTrue(report.formatSummary().contains("Cache " + CompiledTextCache.CACHE_NAME + ": 1 hits, 1 misses"));
+
+        // Only the entries used in the previous generation are kept:
+        cache.startGeneration();
+        assertEquals("1.0", render(transform, "[docgen.customVariables.version]"));
+        cache.startGeneration();
+        assertEquals("&lt;b&gt;D&amp;G&lt;/b&gt; &amp; 1.0!", render(transform, text));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testErrorsAreReportedLikeWithoutCompilation() throws Exception {
+        Transform transform = new Transform();
+        for (int i = 0; i < 2; i++) {
+            StringWriter out = new StringWriter();
+            TemplateException e = assertThrows(
+                    TemplateException.class,
+                    () -> render(transform, "a<[docgen.customVariables.name] [docgen.customVariables.", out));
+            assertEquals("a&lt;D&amp;G ", out.toString());
+            assertTrue(e.getMessage().contains("Expected variable name after this: [docgen.customVariables."),
+                    e.getMessage());
+
+            e = assertThrows(
+                    TemplateException.class,
+                    () -> render(transform, "[docgen.customVariables.noSuchVariable]"));
+            assertTrue(e.getMessage().contains(
+                    "Error in docgen tag: [docgen.customVariables.noSuchVariable]"), e.getMessage());
+        }
+    }
+
+    private static String render(Transform transform, String text) throws Exception {
+        StringWriter out = new StringWriter();
+        render(transform, text, out);
+        return out.toString();
+    }
+
+    private static void render(Transform transform, String text, StringWriter out) throws Exception {
+        Configuration cfg = new Configuration(Configuration.VERSION_2_3_25);
+        cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        cfg.setLogTemplateExceptions(false);
+        cfg.setSharedVariable("printTextWithDocgenSubstitutions",
+                new PrintTextWithDocgenSubstitutionsDirective(transform));
+        Template template = new Template("test", new StringReader(
+                "<@printTextWithDocgenSubstitutions text=text />"), cfg);
+
+        Map<String, Object> customVariables = new HashMap<>();
+        customVariables.put("name", "D&G");
+        customVariables.put("version", "1.0");
+        Map<String, Object> dataModel = new HashMap<>();
+        dataModel.put(Transform.VAR_CUSTOM_VARIABLES, customVariables);
+        dataModel.put("text", text);
+        template.process(dataModel, out);
+    }
+
+}
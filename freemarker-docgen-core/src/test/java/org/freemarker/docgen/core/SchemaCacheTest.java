@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+import org.xml.sax.SAXException;
+
+public class SchemaCacheTest {
+
+    @Test
+    public void testLoadedOnceByConcurrentCallers() throws Exception {
+        SchemaCache<String, Object> cache = new SchemaCache<>();
+        AtomicInteger loadCount = new AtomicInteger();
+        CountDownLatch callersStarted = new CountDownLatch(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    callersStarted.countDown();
+                    callersStarted.await();
+                    return cache.get("k", () -> {
+                        loadCount.incrementAndGet();
+                        LockSupport.parkNanos(50_000_000L);
+                        return new Object();
+                    });
+                }));
+            }
+            Object value = futures.get(0).get();
+            for (Future<Object> future : futures) {
+                assertSame(value, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loadCount.get());
+        assertTrue(cache.contains("k"));
+        assertFalse(cache.contains("other"));
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws Exception {
+        SchemaCache<String, String> cache = new SchemaCache<>();
+        assertThrows(SAXException.class, () -> cache.get("k", () -> {
+            throw new SAXException("Broken schema");
+        }));
+        assertThrows(IOException.class, () -> cache.get("k", () -> {
+            throw new IOException("Missing schema");
+        }));
+        assertFalse(cache.contains("k"));
+        assertEquals("v", cache.get("k", () -> "v"));
+        assertEquals("v", cache.get("k", () -> "v2"));
+        cache.clear();
+        assertEquals("v2", cache.get("k", () -> "v2"));
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShardManifestTest {
+
+    @Test
+    public void testSaveAndLoad(@TempDir File dir) throws IOException {
+        ShardManifest manifest = new ShardManifest(2, 3, "abc");
+        manifest.addPage("index.html");
+        manifest.addPage("ref with space.html");
+        manifest.addOutputFile("detailed-toc.html");
+        manifest.addOutputFile("index.html");
+        manifest.addOutputFile("ref with space.html");
+        manifest.save(dir);
+
+        ShardManifest loaded = ShardManifest.load(dir);
+        assertEquals(2, loaded.getShardIndex());
+        assertEquals(3, loaded.getShardCount());
+        assertEquals("abc", loaded.getInputsFingerprint());
+        assertEquals(Arrays.asList("index.html", "ref with space.html"), loaded.getPages());
+        assertEquals(
+                Arrays.asList("detailed-toc.html", "index.html", "ref with space.html"), loaded.getOutputFiles());
+
+        ShardManifest.delete(dir);
+        assertThrows(DocgenException.class, () -> ShardManifest.load(dir));
+    }
+
+    @Test
+    public void testLoadMalformed(@TempDir File dir) throws IOException {
+        Files.write(
+                dir.toPath().resolve(ShardManifest.FILE_NAME),
+                "version\t1\nshard\tx\t3\n".getBytes(StandardCharsets.UTF_8));
+        assertThrows(DocgenException.class, () -> ShardManifest.load(dir));
+    }
+
+    @Test
+    public void testAssignPagesToShards() {
+        long[] weights = { 10, 50, 10, 30, 20, 10, 10 };
+        int[] shards = ShardManifest.assignPagesToShards(weights, 3);
+        assertArrayEquals(shards, ShardManifest.assignPagesToShards(weights.clone(), 3));
+
+        long[] shardWeights = new long[3];
+        for (int i = 0; i < weights.length; i++) {
+            shardWeights[shards[i]] += weights[i];
+        }
+        // The biggest page alone is a shard, and the others are balanced:
+        assertArrayEquals(new long[] { 40, 50, 50 }, sortedCopy(shardWeights));
+    }
+
+    @Test
+    public void testAssignPagesToShardsMoreShardsThanPages() {
+        int[] shards = ShardManifest.assignPagesToShards(new long[] { 5, 5 }, 4);
+        assertEquals(2, shards.length);
+        assertNotEquals(shards[0], shards[1]);
+    }
+
+    private static long[] sortedCopy(long[] array) {
+        long[] result = array.clone();
+        Arrays.sort(result);
+        return result;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.freemarker.docgen.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+
+public class SharedDocumentSourceTest {
+
+    private static final DocgenLogger NO_LOGGER = new DocgenLogger() {
+        @Override
+        public void info(String message) {
+            // Nop
+        }
+
+        @Override
+        public void warning(String message) {
+            // Nop
+        }
+    };
+
+    @Test
+    public void testEachConsumerGetsItsOwnDocument(@TempDir File dir) throws Exception {
+        File bookFile = new File(dir, "book.xml");
+        Files.write(bookFile.toPath(), (
+                "<book xmlns='http://docbook.org/ns/docbook' version='5.0'>"
+                + "<title>T</title><chapter xml:id='c1'><title>C1</title><para>P</para></chapter>"
+                + "</book>").getBytes(StandardCharsets.UTF_8));
+        DocgenValidationOptions validationOps = new DocgenValidationOptions();
+
+        SharedDocumentSource source = new SharedDocumentSource(3);
+        BuildReport report1 = new BuildReport();
+        Document doc1 = source.getDocument(bookFile, false, validationOps, NO_LOGGER, report1);
+
+        // Loaded with different options, so it's not shared:
+        DocgenValidationOptions otherValidationOps = new DocgenValidationOptions();
+        otherValidationOps.setMaximumProgramlistingWidth(80);
+        BuildReport report2 = new BuildReport();
+        Document doc2 = source.getDocument(bookFile, false, otherValidationOps, NO_LOGGER, report2);
+        assertTrue(report2.formatSummary().contains("loadXML"));
+
+        BuildReport report3 = new BuildReport();
+        Document doc3 = source.getDocument(bookFile, false, validationOps, NO_LOGGER, report3);
+
+        assertNotSame(doc1, doc2);
+        assertNotSame(doc1, doc3);
+        doc1.getDocumentElement().removeChild(doc1.getElementsByTagName("chapter").item(0));
+        assertEquals(0, doc1.getElementsByTagName("chapter").getLength());
+        assertEquals(1, doc3.getElementsByTagName("chapter").getLength());
+
+        // Only the first consumer has loaded it, and the last one needn't copy it:
+        assertTrue(report1.formatSummary().contains("loadXML"));
+        assertTrue(report1.formatSummary().contains("copyDocument"));
+        assertFalse(report3.formatSummary().contains("loadXML"));
+        assertFalse(report3.formatSummary().contains("copyDocument"));
+    }
+
+}
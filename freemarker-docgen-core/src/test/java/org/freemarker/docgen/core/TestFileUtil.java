@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * File related helpers shared by the tests.
+ */
+final class TestFileUtil {
+
+    private TestFileUtil() {
+        // Not meant to be instantiated
+    }
+
+    /**
+     * Creates or overwrites a file, with UTF-8 content; the missing parent directories are created too.
+     *
+     * @param path
+     *            Relative to {@code dir}, with {@code /} separators.
+     */
+    static File createFile(File dir, String path, String content) throws IOException {
+        File file = new File(dir, path);
+        FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Reads a file as UTF-8 text.
+     *
+     * @param path
+     *            Relative to {@code dir}, with {@code /} separators.
+     */
+    static String readFile(File dir, String path) throws IOException {
+        return FileUtils.readFileToString(new File(dir, path), StandardCharsets.UTF_8);
+    }
+
+}
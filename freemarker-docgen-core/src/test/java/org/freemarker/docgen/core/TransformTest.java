@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.freemarker.docgen.core;
+
+import static org.freemarker.docgen.core.TestFileUtil.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TransformTest {
+
+    @Test
+    public void testDocumentSnapshotTracksExternalXIncludeWithoutValidation(@TempDir File dir) throws Exception {
+        File srcDir = new File(dir, "src");
+        File destDir = new File(dir, "out");
+        File snapshotFile = new File(dir, "snapshot");
+        createBook(srcDir,
+                "<chapter xml:id='c1'><title>C</title>"
+                        + "<programlisting><xi:include href='../external/example.txt' parse='text'/></programlisting>"
+                        + "</chapter>");
+        createFile(dir, "external/example.txt", "Version 1");
+        TransformEngine engine = new TransformEngine(srcDir);
+
+        executeWithSnapshot(engine, destDir, snapshotFile);
+        assertTrue(snapshotFile.isFile());
+        assertTrue(readFile(destDir, "c1.html").contains("Version 1"));
+
+        createFile(dir, "external/example.txt", "Version 22");
+        executeWithSnapshot(engine, destDir, snapshotFile);
+        assertTrue(readFile(destDir, "c1.html").contains("Version 22"));
+    }
+
+    @Test
+    public void testMergeIgnoresStaleFilesInShardDirectories(@TempDir File dir) throws Exception {
+        File srcDir = new File(dir, "src");
+        StringBuilder chapters = new StringBuilder();
+        for (int chapter = 1; chapter <= 2; chapter++) {
+            chapters.append("<chapter xml:id='c" + chapter + "'><title>C</title><para>Chapter " + chapter + "</para>");
+            for (int section = 1; section <= 2; section++) {
+                // The subsections make the main ToC short enough for the detailed ToC page to be generated.
+                chapters.append("<section xml:id='s" + chapter + "_" + section + "'><title>S</title><para>P</para>"
+                        + "<section><title>U1</title><para>P</para></section>"
+                        + "<section><title>U2</title><para>P</para></section>"
+                        + "</section>");
+            }
+            chapters.append("</chapter>");
+        }
+        createBook(srcDir, chapters.toString());
+        TransformEngine engine = new TransformEngine(srcDir);
+
+        String oldGenerationTime = System.setProperty(Transform.SYSPROP_GENERATION_TIME, "2020-07-15T17:00Z");
+        try {
+            File[] shardDirs = { new File(dir, "shard1"), new File(dir, "shard2") };
+            for (int i = 0; i < shardDirs.length; i++) {
+                // As if an earlier build has assigned all pages to this shard:
+                for (String page : new String[] {
+                        "index.html", Transform.FILE_DETAILED_TOC_HTML, "c1.html", "c2.html", "s1_1.html" }) {
+                    createFile(shardDirs[i], page, "STALE");
+                }
+                createFile(shardDirs[i], "removed.html", "STALE");
+
+                Transform shard = newTransform(engine, shardDirs[i]);
+                shard.setShardIndex(i + 1);
+                shard.setShardCount(shardDirs.length);
+                shard.execute();
+            }
+
+            File destDir = new File(dir, "out");
+            Transform merge = newTransform(engine, destDir);
+            merge.setShardDirectories(Arrays.asList(shardDirs));
+            merge.execute();
+
+            for (String page : new String[] {
+                    "index.html", Transform.FILE_DETAILED_TOC_HTML, "c1.html", "c2.html", "s1_1.html" }) {
+                assertFalse(readFile(destDir, page).contains("STALE"), page);
+            }
+            assertTrue(readFile(destDir, "c2.html").contains("Chapter 2"));
+            assertFalse(new File(destDir, "removed.html").exists());
+        } finally {
+            if (oldGenerationTime != null) {
+                System.setProperty(Transform.SYSPROP_GENERATION_TIME, oldGenerationTime);
+            } else {
+                System.clearProperty(Transform.SYSPROP_GENERATION_TIME);
+            }
+        }
+    }
+
+    /**
+     * Creates a minimal book, with the given content after the title of the book element.
+     */
+    private static void createBook(File srcDir, String content) throws IOException {
+        createFile(srcDir, "docgen.cjson",
+                "deployUrl: \"http://example.com/\"\n"
+                        + "logo: { href: \"http://example.com\", src: logo.png, alt: \"My Logo\" }\n"
+                        + "copyrightHolder: \"The Apache Software Foundation\"\n"
+                        + "copyrightHolderSite: \"https://apache.org/\"\n"
+                        + "copyrightStartYear: 1999\n");
+        createFile(srcDir, "logo.png", "");
+        createFile(srcDir, "book.xml",
+                "<book xmlns='http://docbook.org/ns/docbook' xmlns:xi='http://www.w3.org/2001/XInclude' "
+                        + "version='5.0' conformance='docgen'>"
+                        + "<title>T</title>"
+                        + content
+                        + "</book>");
+    }
+
+    private static Transform newTransform(TransformEngine engine, File destDir) {
+        Transform transform = engine.newTransform();
+        transform.setDestinationDirectory(destDir);
+        transform.setOffline(true);
+        transform.setValidate(false);
+        transform.setPrintProgress(false);
+        return transform;
+    }
+
+    private static void executeWithSnapshot(TransformEngine engine, File destDir, File snapshotFile)
+            throws Exception {
+        Transform transform = newTransform(engine, destDir);
+        transform.setDocumentSnapshotFile(snapshotFile);
+        transform.execute();
+    }
+
+}
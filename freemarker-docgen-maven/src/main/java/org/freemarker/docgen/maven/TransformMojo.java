@@ -19,6 +19,7 @@
 package org.freemarker.docgen.maven;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -28,6 +29,7 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.freemarker.docgen.core.Transform;
+import org.freemarker.docgen.core.TransformEngine;
 
 @Mojo(name = "transform")
 public class TransformMojo extends AbstractMojo {
@@ -59,6 +61,75 @@ public class TransformMojo extends AbstractMojo {
     @Parameter()
     private boolean printProgress = true;
 
+    @Parameter
+    private Integer renderingThreads;
+
+    @Parameter
+    private Integer buildTaskThreads;
+
+    @Parameter
+    private Boolean incremental;
+
+    @Parameter
+    private Boolean skipUnchangedOutputFiles;
+
+    @Parameter
+    private Boolean hardLinkStaticFiles;
+
+    @Parameter
+    private Boolean pruneStaleOutputFiles;
+
+    @Parameter
+    private File changeSetFile;
+
+    @Parameter
+    private Boolean gzipOutputFiles;
+
+    @Parameter
+    private List<String> gzipExtensions;
+
+    @Parameter
+    private Integer gzipMinimumSize;
+
+    @Parameter
+    private Integer gzipCompressionLevel;
+
+    @Parameter
+    private File buildReportFile;
+
+    @Parameter
+    private File documentSnapshotFile;
+
+    @Parameter
+    private File commandOutputCacheDirectory;
+
+    @Parameter
+    private Long commandOutputCacheMaxSize;
+
+    @Parameter
+    private Integer commandWorkers;
+
+    @Parameter
+    private List<String> pageSelection;
+
+    @Parameter
+    private Boolean includeNeighborPages;
+
+    @Parameter
+    private Boolean skipCustomStaticFiles;
+
+    @Parameter
+    private Boolean skipTOCJSON;
+
+    @Parameter
+    private Integer shardIndex;
+
+    @Parameter
+    private Integer shardCount;
+
+    @Parameter
+    private List<File> shardDirectories;
+
     @Parameter()
     private Map<String, Object> customVariables;
 
@@ -70,8 +141,12 @@ public class TransformMojo extends AbstractMojo {
 
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
-        Transform transform = new Transform();
-        transform.setSourceDirectory(sourceDirectory);
+        Transform transform;
+        try {
+            transform = new TransformEngine(sourceDirectory).newTransform();
+        } catch (Exception e) {
+            throw new MojoExecutionException("Error during document transformation setup", e);
+        }
         transform.setDestinationDirectory(outputDirectory);
         if (showEditoralNotes != null) {
             transform.setShowEditoralNotes(showEditoralNotes);
@@ -88,6 +163,75 @@ public class TransformMojo extends AbstractMojo {
         if (offline != null) {
             transform.setOffline(offline);
         }
+        if (renderingThreads != null) {
+            transform.setRenderingThreads(renderingThreads);
+        }
+        if (buildTaskThreads != null) {
+            transform.setBuildTaskThreads(buildTaskThreads);
+        }
+        if (incremental != null) {
+            transform.setIncremental(incremental);
+        }
+        if (skipUnchangedOutputFiles != null) {
+            transform.setSkipUnchangedOutputFiles(skipUnchangedOutputFiles);
+        }
+        if (hardLinkStaticFiles != null) {
+            transform.setHardLinkStaticFiles(hardLinkStaticFiles);
+        }
+        if (pruneStaleOutputFiles != null) {
+            transform.setPruneStaleOutputFiles(pruneStaleOutputFiles);
+        }
+        if (changeSetFile != null) {
+            transform.setChangeSetFile(changeSetFile);
+        }
+        if (gzipOutputFiles != null) {
+            transform.setGzipOutputFiles(gzipOutputFiles);
+        }
+        if (gzipExtensions != null) {
+            transform.setGzipExtensions(gzipExtensions);
+        }
+        if (gzipMinimumSize != null) {
+            transform.setGzipMinimumSize(gzipMinimumSize);
+        }
+        if (gzipCompressionLevel != null) {
+            transform.setGzipCompressionLevel(gzipCompressionLevel);
+        }
+        if (buildReportFile != null) {
+            transform.setBuildReportFile(buildReportFile);
+        }
+        if (documentSnapshotFile != null) {
+            transform.setDocumentSnapshotFile(documentSnapshotFile);
+        }
+        if (commandOutputCacheDirectory != null) {
+            transform.setCommandOutputCacheDirectory(commandOutputCacheDirectory);
+        }
+        if (commandOutputCacheMaxSize != null) {
+            transform.setCommandOutputCacheMaxSize(commandOutputCacheMaxSize);
+        }
+        if (commandWorkers != null) {
+            transform.setCommandWorkers(commandWorkers);
+        }
+        if (pageSelection != null) {
+            transform.setPageSelection(pageSelection);
+        }
+        if (includeNeighborPages != null) {
+            transform.setIncludeNeighborPages(includeNeighborPages);
+        }
+        if (skipCustomStaticFiles != null) {
+            transform.setSkipCustomStaticFiles(skipCustomStaticFiles);
+        }
+        if (skipTOCJSON != null) {
+            transform.setSkipTOCJSON(skipTOCJSON);
+        }
+        if (shardIndex != null) {
+            transform.setShardIndex(shardIndex);
+        }
+        if (shardCount != null) {
+            transform.setShardCount(shardCount);
+        }
+        if (shardDirectories != null) {
+            transform.setShardDirectories(shardDirectories);
+        }
         if (customVariableFileDirectory != null) {
             transform.setCustomVariableFileDirectory(customVariableFileDirectory);
         }